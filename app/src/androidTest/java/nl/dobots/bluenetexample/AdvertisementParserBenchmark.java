@@ -0,0 +1,163 @@
+package nl.dobots.bluenetexample;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Benchmark of the {@link AdvertisementParser}. Parses scan records of an iBeacon, a
+ * Crownstone and a device of an unknown format, and logs the time per packet for every
+ * format, both for new records, which are decoded, and for repeated records, which are
+ * skipped on their hash. The records are padded to the 62 bytes of a scan record, like the
+ * records which Android hands out.
+ */
+public class AdvertisementParserBenchmark extends AndroidTestCase {
+
+	private static final String TAG = AdvertisementParserBenchmark.class.getCanonicalName();
+
+	private static final int WARMUP = 20000;
+	private static final int PACKETS = 200000;
+	// a scan delivers at most a few thousand packets per second
+	private static final long MAX_PACKET_NANOS = 20000;
+
+	private static final int RECORD_SIZE = 62;
+	private static final UUID PROXIMITY_UUID = UUID.fromString("a643423e-e175-4af0-a2e4-31e32f729a8a");
+
+	public void testIBeacon() {
+		byte[] record = iBeaconRecord(1234, 5678);
+		AdvertisementParser parser = new AdvertisementParser();
+		parser.parse(null, record);
+		assertTrue(parser.isIBeacon());
+		assertFalse(parser.isCrownstone());
+		assertEquals(PROXIMITY_UUID, parser.getProximityUuid());
+		assertEquals(1234, parser.getMajor());
+		assertEquals(5678, parser.getMinor());
+		assertEquals(-59, parser.getTxPower());
+		run("iBeacon", record);
+	}
+
+	public void testCrownstone() {
+		byte[] record = crownstoneRecord(42, true, 1500);
+		AdvertisementParser parser = new AdvertisementParser();
+		parser.parse(null, record);
+		assertTrue(parser.isCrownstone());
+		assertFalse(parser.isIBeacon());
+		assertEquals("crown", parser.getName());
+		assertEquals(42, parser.getCrownstoneId());
+		assertTrue(parser.isRelayOn());
+		assertEquals(1500, parser.getPowerUsage());
+		run("Crownstone", record);
+	}
+
+	public void testUnknown() {
+		byte[] record = unknownRecord();
+		AdvertisementParser parser = new AdvertisementParser();
+		parser.parse(null, record);
+		assertFalse(parser.isIBeacon());
+		assertFalse(parser.isCrownstone());
+		assertNull(parser.getName());
+		run("unknown", record);
+	}
+
+	public void testChangedRecord() {
+		AdvertisementParser parser = new AdvertisementParser();
+		assertTrue(parser.parse("address", crownstoneRecord(42, true, 1500)));
+		assertFalse(parser.parse("address", crownstoneRecord(42, true, 1500)));
+		assertTrue(parser.parse("address", crownstoneRecord(42, false, 0)));
+		assertFalse(parser.isRelayOn());
+		assertTrue(parser.parse("other address", crownstoneRecord(42, false, 0)));
+	}
+
+	private void run(String format, byte[] record) {
+		AdvertisementParser parser = new AdvertisementParser();
+		decode(parser, record, WARMUP);
+		repeat(parser, record, WARMUP);
+
+		long start = System.nanoTime();
+		int checksum = decode(parser, record, PACKETS);
+		long perDecode = (System.nanoTime() - start) / PACKETS;
+
+		start = System.nanoTime();
+		int skipped = repeat(parser, record, PACKETS);
+		long perRepeat = (System.nanoTime() - start) / PACKETS;
+
+		Log.i(TAG, String.format("%s: %d ns per new packet, %d ns per repeated packet (checksum %d)",
+				format, perDecode, perRepeat, checksum));
+		assertEquals(PACKETS, skipped);
+		assertTrue(perDecode < MAX_PACKET_NANOS);
+		assertTrue(perRepeat < MAX_PACKET_NANOS);
+	}
+
+	/**
+	 * Decode the fields which the app uses, as for a record which changed.
+	 */
+	private static int decode(AdvertisementParser parser, byte[] record, int packets) {
+		int checksum = 0;
+		for (int i = 0; i < packets; i++) {
+			parser.parse(null, record);
+			if (parser.isIBeacon()) {
+				checksum += parser.getProximityUuid().hashCode() + parser.getMajor() + parser.getMinor();
+			} else if (parser.isCrownstone()) {
+				checksum += parser.getPowerUsage() + (parser.isRelayOn() ? 1 : 0);
+			}
+		}
+		return checksum;
+	}
+
+	/**
+	 * @return the number of packets which were skipped as repeats
+	 */
+	private static int repeat(AdvertisementParser parser, byte[] record, int packets) {
+		parser.clear();
+		parser.parse("address", record);
+		int skipped = 0;
+		for (int i = 0; i < packets; i++) {
+			if (!parser.parse("address", record)) {
+				skipped++;
+			}
+		}
+		return skipped;
+	}
+
+	private static ByteBuffer record() {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		// flags: general discoverable, no BR/EDR
+		record.put((byte) 2).put((byte) 0x01).put((byte) 0x06);
+		return record;
+	}
+
+	private static byte[] iBeaconRecord(int major, int minor) {
+		ByteBuffer record = record();
+		record.put((byte) 26).put((byte) 0xFF);
+		record.put((byte) 0x4C).put((byte) 0x00).put((byte) 0x02).put((byte) 0x15);
+		record.order(ByteOrder.BIG_ENDIAN);
+		record.putLong(PROXIMITY_UUID.getMostSignificantBits()).putLong(PROXIMITY_UUID.getLeastSignificantBits());
+		record.putShort((short) major).putShort((short) minor).put((byte) -59);
+		return record.array();
+	}
+
+	private static byte[] crownstoneRecord(int id, boolean relayOn, int powerUsage) {
+		ByteBuffer record = record();
+		record.put((byte) 6).put((byte) 0x09).put("crown".getBytes());
+		record.put((byte) 17).put((byte) 0x16);
+		record.order(ByteOrder.LITTLE_ENDIAN);
+		record.putShort((short) AdvertisementParser.CROWNSTONE_PLUG_SERVICE);
+		record.put((byte) 1).putShort((short) id).put((byte) (relayOn ? 0x80 : 0)).put((byte) 0).put((byte) 21);
+		record.putInt(powerUsage).putInt(123456);
+		return record.array();
+	}
+
+	private static byte[] unknownRecord() {
+		ByteBuffer record = record();
+		// manufacturer data of another company
+		record.put((byte) 27).put((byte) 0xFF).put((byte) 0x06).put((byte) 0x00);
+		for (int i = 0; i < 25; i++) {
+			record.put((byte) (i * 37));
+		}
+		return record.array();
+	}
+
+}
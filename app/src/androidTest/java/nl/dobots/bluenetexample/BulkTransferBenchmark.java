@@ -0,0 +1,171 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a {@link BulkTransfer} against a {@link SimulatedPeripheral}. A quarter of the
+ * blocks differ from the peripheral's data, and the link drops halfway, after which the
+ * transfer is resumed from its checkpoint. The throughput is logged.
+ *
+ * A second transfer to a peripheral which lost the data after the checkpoint was stored has to
+ * send the differing blocks again, instead of trusting the checkpoint.
+ */
+public class BulkTransferBenchmark extends AndroidTestCase {
+
+	private static final String TAG = BulkTransferBenchmark.class.getCanonicalName();
+
+	private static final int PAYLOAD_SIZE = 64 * 1024;
+	private static final long TIMEOUT = 60000;
+
+	private HandlerThread _thread;
+	private Handler _handler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_thread = new HandlerThread("BulkTransferBenchmark");
+		_thread.start();
+		_handler = new Handler(_thread.getLooper());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_thread.quit();
+		super.tearDown();
+	}
+
+	/**
+	 * Runs a transfer, and resumes it once if it fails.
+	 */
+	private class Run implements BulkTransfer.Listener {
+		final String address;
+		final SimulatedPeripheral peripheral;
+		final byte[] payload;
+		final CountDownLatch done = new CountDownLatch(1);
+		boolean resumed = false;
+		BulkTransfer.Result result;
+		int error = 0;
+
+		Run(String address, SimulatedPeripheral peripheral, byte[] payload) {
+			this.address = address;
+			this.peripheral = peripheral;
+			this.payload = payload;
+		}
+
+		void start() {
+			new BulkTransfer(getContext(), address, peripheral, payload, _handler, this).start();
+		}
+
+		@Override
+		public void onProgress(int sentBlocks, int totalBlocks) {
+		}
+
+		@Override
+		public void onFinished(BulkTransfer.Result result) {
+			this.result = result;
+			done.countDown();
+		}
+
+		@Override
+		public void onError(int error) {
+			if (!resumed) {
+				// try again, the new transfer continues at the checkpoint
+				resumed = true;
+				Log.i(TAG, "link dropped, resuming");
+				start();
+			} else {
+				this.error = error;
+				done.countDown();
+			}
+		}
+
+		void await() throws InterruptedException {
+			assertTrue("transfer timed out", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertEquals("transfer failed", 0, error);
+		}
+	}
+
+	private static byte[] createPayload() {
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		new Random(0).nextBytes(payload);
+		return payload;
+	}
+
+	/**
+	 * @return the payload with a quarter of the blocks changed
+	 */
+	private static byte[] createImage(byte[] payload) {
+		byte[] image = payload.clone();
+		for (int i = 0; i < image.length; i += 4 * BulkTransfer.BLOCK_SIZE) {
+			image[i]++;
+		}
+		return image;
+	}
+
+	public void testThroughput() throws Exception {
+		byte[] payload = createPayload();
+
+		// a link with default parameters, which carries 4 packets per interval
+		SimulatedPeripheral peripheral = new SimulatedPeripheral(createImage(payload), BlockTransport.DEFAULT_MTU,
+				SimulatedPeripheral.INTERVAL_BALANCED, 4);
+
+		// the 64 differing blocks are sent in 2 chunks each, so drop the link after half of
+		// the chunks
+		peripheral.disconnectAfter(64);
+
+		Run run = new Run("simulated throughput", peripheral, payload);
+		try {
+			run.start();
+			run.await();
+		} finally {
+			peripheral.destroy();
+		}
+
+		assertTrue("transfer did not resume", run.resumed);
+		assertTrue("data mismatch", Arrays.equals(payload, peripheral.getImage()));
+		Log.i(TAG, run.result.toString());
+	}
+
+	public void testResetAfterCheckpoint() throws Exception {
+		byte[] payload = createPayload();
+		String address = "simulated reset";
+
+		// a transfer which is interrupted halfway, and not resumed, so its checkpoint is kept
+		SimulatedPeripheral peripheral = new SimulatedPeripheral(createImage(payload), BlockTransport.DEFAULT_MTU,
+				SimulatedPeripheral.INTERVAL_HIGH, 4);
+		Run interrupted = new Run(address, peripheral, payload);
+		interrupted.resumed = true;
+		try {
+			peripheral.disconnectAfter(64);
+			interrupted.start();
+			assertTrue("transfer timed out", interrupted.done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertEquals(SimulatedPeripheral.ERROR_DISCONNECTED, interrupted.error);
+		} finally {
+			peripheral.destroy();
+		}
+
+		// the same payload to the peripheral after a reset, which holds the old data again. the
+		// blocks before the checkpoint differ, so they have to be sent again
+		SimulatedPeripheral reset = new SimulatedPeripheral(createImage(payload), BlockTransport.DEFAULT_MTU,
+				SimulatedPeripheral.INTERVAL_HIGH, 4);
+		Run run = new Run(address, reset, payload);
+		try {
+			run.start();
+			run.await();
+		} finally {
+			reset.destroy();
+		}
+		assertEquals("differing blocks not sent again", 64, run.result.sentBlocks);
+		assertTrue("data mismatch after reset", Arrays.equals(payload, reset.getImage()));
+		Log.i(TAG, run.result.toString());
+	}
+
+}
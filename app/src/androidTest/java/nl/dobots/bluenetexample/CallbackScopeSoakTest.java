@@ -0,0 +1,199 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * Soak test of the {@link CallbackScope}. Opens and closes a simulated control screen
+ * thousands of times against a simulated stack, which only completes the operations of a screen
+ * long after the screen was closed. Every closed screen has to be collected, even while the
+ * stack still holds its callbacks, and the heap has to stay flat.
+ */
+public class CallbackScopeSoakTest extends AndroidTestCase {
+
+	private static final String TAG = CallbackScopeSoakTest.class.getCanonicalName();
+
+	private static final int CYCLES = 5000;
+	// memory which a screen keeps reachable, like the views of an activity
+	private static final int SCREEN_SIZE = 64 * 1024;
+	// number of operations the stack holds before it completes the oldest
+	private static final int STACK_BACKLOG = 64;
+	private static final long MAX_HEAP_GROWTH = 2 * 1024 * 1024;
+
+	/**
+	 * Simulated library, which keeps the callbacks of the last operations, and completes the
+	 * oldest operation when a new one comes in.
+	 */
+	private static class SimulatedStack {
+		private final ArrayDeque<IStatusCallback> _status = new ArrayDeque<>();
+		private final ArrayDeque<IBooleanCallback> _booleans = new ArrayDeque<>();
+		private int _count = 0;
+
+		void relayOn(IStatusCallback callback) {
+			_status.add(callback);
+			if (_status.size() > STACK_BACKLOG) {
+				_status.poll().onSuccess();
+			}
+		}
+
+		void readRelay(IBooleanCallback callback) {
+			_booleans.add(callback);
+			if (_booleans.size() > STACK_BACKLOG) {
+				if (_count++ % 2 == 0) {
+					_booleans.poll().onSuccess(true);
+				} else {
+					_booleans.poll().onError(1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Simulated control screen, with callbacks which capture the screen like the anonymous
+	 * callbacks of an activity.
+	 */
+	private static class Screen {
+		private final byte[] _views = new byte[SCREEN_SIZE];
+		private final CallbackScope _scope = new CallbackScope(new Handler(Looper.getMainLooper()));
+		private boolean _lightOn;
+		private int _callbacks = 0;
+
+		void open(SimulatedStack stack) {
+			stack.readRelay(_scope.wrap(new IBooleanCallback() {
+				@Override
+				public void onSuccess(boolean result) {
+					_lightOn = result;
+					_callbacks++;
+				}
+
+				@Override
+				public void onError(int error) {
+					_callbacks++;
+				}
+			}, null));
+			stack.relayOn(_scope.wrap(new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					_lightOn = true;
+					_callbacks++;
+				}
+
+				@Override
+				public void onError(int error) {
+					_callbacks++;
+				}
+			}));
+			_scope.post(new Runnable() {
+				@Override
+				public void run() {
+					_views[0]++;
+				}
+			}, 1000);
+		}
+
+		void close() {
+			_scope.cancel();
+		}
+	}
+
+	public void testOpenAndCloseScreen() throws Exception {
+		SimulatedStack stack = new SimulatedStack();
+		// fill the backlog of the stack before measuring
+		cycle(stack, 2 * STACK_BACKLOG, new ArrayList<WeakReference<Screen>>());
+		long before = usedHeap();
+
+		ArrayList<WeakReference<Screen>> samples = new ArrayList<>();
+		cycle(stack, CYCLES, samples);
+		long after = usedHeap();
+
+		int alive = 0;
+		for (WeakReference<Screen> sample : samples) {
+			if (sample.get() != null) {
+				alive++;
+			}
+		}
+		Log.i(TAG, String.format("%d cycles: %d of %d sampled screens alive, heap %d kB before, %d kB after",
+				CYCLES, alive, samples.size(), before / 1024, after / 1024));
+		assertEquals(0, alive);
+		assertTrue(after - before < MAX_HEAP_GROWTH);
+	}
+
+	/**
+	 * A multi-shot callback, like the status callback of BleExt.init, is held by the scope until
+	 * the scope is cancelled, also after its first call.
+	 */
+	public void testMultiShotCallback() throws Exception {
+		CallbackScope scope = new CallbackScope(new Handler(Looper.getMainLooper()));
+		int[] calls = new int[1];
+		ArrayList<WeakReference<IStatusCallback>> callback = new ArrayList<>();
+		IStatusCallback wrapper = wrapMultiShot(scope, calls, callback);
+
+		for (int i = 0; i < 3; i++) {
+			wrapper.onSuccess();
+			usedHeap();
+		}
+		assertEquals(3, calls[0]);
+		assertTrue("collected while in use", callback.get(0).get() != null);
+
+		scope.cancel();
+		usedHeap();
+		wrapper.onSuccess();
+		assertEquals(3, calls[0]);
+		assertNull(callback.get(0).get());
+	}
+
+	/**
+	 * Wrap the callback in a separate method, so that only the scope holds it.
+	 */
+	private static IStatusCallback wrapMultiShot(CallbackScope scope, final int[] calls,
+												 ArrayList<WeakReference<IStatusCallback>> reference) {
+		IStatusCallback callback = new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				calls[0]++;
+			}
+
+			@Override
+			public void onError(int error) {
+			}
+		};
+		reference.add(new WeakReference<>(callback));
+		return scope.wrapMultiShot(callback);
+	}
+
+	/**
+	 * Open and close the screen, in a separate method so that no local variable keeps the last
+	 * screen alive.
+	 */
+	private static void cycle(SimulatedStack stack, int cycles, ArrayList<WeakReference<Screen>> samples) {
+		for (int i = 0; i < cycles; i++) {
+			Screen screen = new Screen();
+			screen.open(stack);
+			screen.close();
+			// the last screens are sampled too, the stack still holds their callbacks
+			if (i % 100 == 0 || i >= cycles - 10) {
+				samples.add(new WeakReference<>(screen));
+			}
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			System.runFinalization();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,81 @@
+package nl.dobots.bluenetexample;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * Benchmark of the ingestion of the {@link DeviceSnapshots}. Replays the scan reports of a
+ * dense venue, many devices which are reported in large batches, and publishes a snapshot
+ * after every batch. The throughput is logged for 1 up to as many shards as there are cores,
+ * together with the speedup over a single shard.
+ */
+public class DeviceIngestionBenchmark extends AndroidTestCase {
+
+	private static final String TAG = DeviceIngestionBenchmark.class.getCanonicalName();
+
+	private static final int DEVICES = 2000;
+	private static final int BATCH_SIZE = 1000;
+	private static final int BATCHES = 200;
+	private static final int WARMUP_BATCHES = 50;
+
+	public void testScaling() {
+		BleDevice[] replay = replay(new Random(0));
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		double single = 0;
+		int devices = -1;
+		for (int shards = 1; shards <= cores; shards++) {
+			DeviceSnapshots snapshots = new DeviceSnapshots(shards);
+			run(snapshots, replay, WARMUP_BATCHES);
+			snapshots.clear();
+
+			long start = System.nanoTime();
+			DeviceStore snapshot = run(snapshots, replay, BATCHES);
+			double reportsPerSecond = BATCHES * BATCH_SIZE * 1e9 / (System.nanoTime() - start);
+			if (shards == 1) {
+				single = reportsPerSecond;
+				devices = snapshot.size();
+			}
+
+			Log.i(TAG, String.format("%d shards: %.0f reports/s, speedup %.2f", shards, reportsPerSecond,
+					reportsPerSecond / single));
+			// every shard count has to end up with the same devices
+			assertEquals(devices, snapshot.size());
+		}
+	}
+
+	private static DeviceStore run(DeviceSnapshots snapshots, BleDevice[] replay, int batches) {
+		DeviceStore snapshot = null;
+		int report = 0;
+		for (int batch = 0; batch < batches; batch++) {
+			for (int i = 0; i < BATCH_SIZE; i++) {
+				snapshots.update(replay[report]);
+				report = (report + 1) % replay.length;
+			}
+			snapshot = snapshots.publish();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Reports of the devices in random order, with the same rssi per device, like the averaged
+	 * rssi of the library.
+	 */
+	private static BleDevice[] replay(Random random) {
+		BleDevice[] devices = new BleDevice[DEVICES];
+		for (int i = 0; i < DEVICES; i++) {
+			String address = DeviceStore.formatMac(0xC0FFEE000000L + i);
+			devices[i] = new BleDevice(address, "device " + (i % 10), -40 - random.nextInt(60));
+		}
+		BleDevice[] replay = new BleDevice[10 * BATCH_SIZE];
+		for (int i = 0; i < replay.length; i++) {
+			replay[i] = devices[random.nextInt(DEVICES)];
+		}
+		return replay;
+	}
+
+}
@@ -0,0 +1,255 @@
+package nl.dobots.bluenetexample;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * Load test of the {@link GatewayServer} against localhost. The relay commands are executed
+ * by a fake executor, so the test measures the gateway itself, not the BLE connections. The
+ * results are logged.
+ */
+public class GatewayLoadTest extends AndroidTestCase {
+
+	private static final String TAG = GatewayLoadTest.class.getCanonicalName();
+
+	private static final int STREAM_CLIENTS = 200;
+	private static final int COMMAND_CLIENTS = 16;
+	private static final int BATCHES_PER_CLIENT = 100;
+	private static final int COMMANDS_PER_BATCH = 10;
+
+	private CommandQueue _commands;
+	private GatewayServer _server;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_commands = new CommandQueue(new CommandQueue.Executor() {
+			@Override
+			public int getConnections() {
+				return 4;
+			}
+
+			@Override
+			public void execute(String address, boolean relayOn, IStatusCallback callback) {
+				callback.onSuccess();
+			}
+		}, 1024);
+		_server = new GatewayServer(0, _commands);
+		_server.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		_server.stop();
+		super.tearDown();
+	}
+
+	public void testConcurrentStreamClients() throws Exception {
+		ArrayList<Socket> sockets = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < STREAM_CLIENTS; i++) {
+			Socket socket = new Socket("127.0.0.1", _server.getPort());
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET /stream HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n" +
+					"Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+					"Sec-WebSocket-Version: 13\r\n\r\n").getBytes("UTF-8"));
+			out.flush();
+			sockets.add(socket);
+		}
+
+		// every client gets the upgrade response, followed by a frame with all devices
+		for (Socket socket : sockets) {
+			InputStream in = socket.getInputStream();
+			assertTrue(readHeader(in).startsWith("HTTP/1.1 101"));
+			readFrame(in);
+		}
+
+		// every published device list reaches every client
+		int frames = 20;
+		for (int i = 0; i < frames; i++) {
+			_server.publish(new DeviceStore());
+			Thread.sleep(10);
+		}
+		int received = 0;
+		for (Socket socket : sockets) {
+			InputStream in = socket.getInputStream();
+			while (in.available() > 0) {
+				readFrame(in);
+				received++;
+			}
+			socket.close();
+		}
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Log.i(TAG, String.format("%d stream clients, %d frames received in %d ms", STREAM_CLIENTS, received, elapsed));
+		assertTrue(received > 0);
+	}
+
+	public void testCommandThroughput() throws Exception {
+		final StringBuilder batch = new StringBuilder("[");
+		for (int i = 0; i < COMMANDS_PER_BATCH; i++) {
+			if (i > 0) {
+				batch.append(',');
+			}
+			batch.append(String.format("{\"address\":\"AA:BB:CC:DD:EE:%02X\",\"on\":%b}", i, i % 2 == 0));
+		}
+		batch.append(']');
+		byte[] body = batch.toString().getBytes("UTF-8");
+		byte[] header = ("POST /relay HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("UTF-8");
+		final byte[] request = new byte[header.length + body.length];
+		System.arraycopy(header, 0, request, 0, header.length);
+		System.arraycopy(body, 0, request, header.length, body.length);
+
+		final CountDownLatch done = new CountDownLatch(COMMAND_CLIENTS);
+		final AtomicInteger errors = new AtomicInteger();
+		long start = System.nanoTime();
+		for (int i = 0; i < COMMAND_CLIENTS; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						// keep the connection open for all batches of this client
+						Socket socket = new Socket("127.0.0.1", _server.getPort());
+						socket.setSoTimeout(5000);
+						socket.setTcpNoDelay(true);
+						OutputStream out = socket.getOutputStream();
+						InputStream in = socket.getInputStream();
+						for (int j = 0; j < BATCHES_PER_CLIENT; j++) {
+							out.write(request);
+							out.flush();
+							String header = readHeader(in);
+							if (!header.startsWith("HTTP/1.1 202")) {
+								errors.incrementAndGet();
+							}
+							readBody(in, header);
+						}
+						socket.close();
+					} catch (IOException e) {
+						Log.e(TAG, "client failed", e);
+						errors.incrementAndGet();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		int commands = COMMAND_CLIENTS * BATCHES_PER_CLIENT * COMMANDS_PER_BATCH;
+		Log.i(TAG, String.format("%d clients sent %d commands in %d ms: %d commands/s, executed %d, rejected %d",
+				COMMAND_CLIENTS, commands, elapsed, commands * 1000L / Math.max(1, elapsed),
+				_commands.getExecuted(), _commands.getRejected()));
+		assertEquals(0, errors.get());
+	}
+
+	public void testMalformedRequests() throws Exception {
+		String[] requests = {
+				"POST /relay HTTP/1.1\r\nContent-Length: abc\r\n\r\n",
+				"POST /relay HTTP/1.1\r\nContent-Length: -5\r\n\r\n",
+				"POST /relay HTTP/1.1\r\nContent-Length: 27\r\n\r\n[{\"address\":\"x\",\"on\":true}]",
+		};
+		String[] statuses = { "400", "400", "202" };
+		for (int i = 0; i < requests.length; i++) {
+			Socket socket = new Socket("127.0.0.1", _server.getPort());
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(requests[i].getBytes("UTF-8"));
+			assertTrue(readHeader(socket.getInputStream()).startsWith("HTTP/1.1 " + statuses[i]));
+			socket.close();
+		}
+
+		// a WebSocket frame with a negative 64 bit length only closes its client
+		Socket socket = new Socket("127.0.0.1", _server.getPort());
+		socket.setSoTimeout(5000);
+		OutputStream out = socket.getOutputStream();
+		out.write(("GET /stream HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+				"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes("UTF-8"));
+		assertTrue(readHeader(socket.getInputStream()).startsWith("HTTP/1.1 101"));
+		out.write(new byte[] { (byte) 0x81, (byte) 0xFF, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
+		out.flush();
+		socket.close();
+
+		// the server still serves other clients
+		socket = new Socket("127.0.0.1", _server.getPort());
+		socket.setSoTimeout(5000);
+		socket.getOutputStream().write("GET /stats HTTP/1.1\r\n\r\n".getBytes("UTF-8"));
+		assertTrue(readHeader(socket.getInputStream()).startsWith("HTTP/1.1 200"));
+		socket.close();
+		assertEquals(0, _commands.getExecuted() + _commands.getWaiting());
+	}
+
+	public void testRoom() throws Exception {
+		assertEquals("{\"room\":null}", get("/room"));
+		_server.setRoom("kitchen");
+		assertEquals("{\"room\":\"kitchen\"}", get("/room"));
+	}
+
+	private String get(String path) throws IOException {
+		Socket socket = new Socket("127.0.0.1", _server.getPort());
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes("UTF-8"));
+			InputStream in = socket.getInputStream();
+			String header = readHeader(in);
+			assertTrue(header.startsWith("HTTP/1.1 200"));
+			int length = Integer.parseInt(header.replaceAll("(?s).*Content-Length: (\\d+).*", "$1"));
+			byte[] body = new byte[length];
+			for (int i = 0; i < length; i++) {
+				body[i] = (byte) in.read();
+			}
+			return new String(body, "UTF-8");
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String readHeader(InputStream in) throws IOException {
+		StringBuilder header = new StringBuilder();
+		while (!header.toString().endsWith("\r\n\r\n")) {
+			int b = in.read();
+			if (b < 0) {
+				throw new IOException("connection closed");
+			}
+			header.append((char) b);
+		}
+		return header.toString();
+	}
+
+	private static void readBody(InputStream in, String header) throws IOException {
+		BufferedReader reader = new BufferedReader(new StringReader(header));
+		int length = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.toLowerCase().startsWith("content-length:")) {
+				length = Integer.parseInt(line.substring(15).trim());
+			}
+		}
+		for (int i = 0; i < length; i++) {
+			in.read();
+		}
+	}
+
+	private static void readFrame(InputStream in) throws IOException {
+		in.read();
+		int length = in.read() & 0x7F;
+		if (length == 126) {
+			length = in.read() << 8 | in.read();
+		}
+		for (int i = 0; i < length; i++) {
+			in.read();
+		}
+	}
+
+}
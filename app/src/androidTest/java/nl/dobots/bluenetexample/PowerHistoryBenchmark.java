@@ -0,0 +1,149 @@
+package nl.dobots.bluenetexample;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Benchmark of the {@link PowerHistory}. Records a week of samples of 500 stones, one sample
+ * every 10 s per stone, of appliances which are switched on and off and have some noise on
+ * their power usage. Logs the size of every resolution and the time of typical queries: the
+ * last day of samples and of minutes, and the week of hours. Checks that the last day of
+ * samples of a stone is read back exactly.
+ */
+public class PowerHistoryBenchmark extends AndroidTestCase {
+
+	private static final String TAG = PowerHistoryBenchmark.class.getCanonicalName();
+
+	private static final String DIRECTORY = "power_history_benchmark";
+
+	private static final int STONES = 500;
+	private static final int DAYS = 7;
+	private static final int INTERVAL = 10;
+	private static final long START = 1560000000000L;
+
+	private static final long MAX_SIZE = 12 * 1024 * 1024;
+	private static final long MAX_QUERY_MILLIS = 50;
+
+	private File _directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		_directory = new File(getContext().getFilesDir(), DIRECTORY);
+		delete(_directory);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(_directory);
+		super.tearDown();
+	}
+
+	public void testWeekOfHistory() throws Exception {
+		PowerHistory history = new PowerHistory(_directory);
+		String[] addresses = new String[STONES];
+		int[] power = new int[STONES];
+		Random random = new Random(0);
+		for (int i = 0; i < STONES; i++) {
+			addresses[i] = DeviceStore.formatMac(0xC0FFEE000000L + i);
+		}
+
+		// the samples of the first stone during the last day, to check the raw samples
+		int samplesPerDay = 24 * 3600 / INTERVAL;
+		int[] expected = new int[samplesPerDay];
+
+		long begin = System.nanoTime();
+		int samples = DAYS * samplesPerDay;
+		for (int s = 0; s < samples; s++) {
+			long time = START + s * INTERVAL * 1000L;
+			for (int i = 0; i < STONES; i++) {
+				// switch the appliance now and then, between off and about 10 to 2000 W
+				if (random.nextInt(360) == 0) {
+					power[i] = power[i] == 0 ? 10000 + random.nextInt(2000000) : 0;
+				}
+				int sample = power[i] == 0 ? 0 : power[i] + random.nextInt(200) - 100;
+				// the timing of the samples jitters a bit
+				history.record(addresses[i], time + random.nextInt(1000), sample);
+				if (i == 0 && s >= samples - samplesPerDay) {
+					expected[s - (samples - samplesPerDay)] = sample;
+				}
+			}
+		}
+		history.flush();
+		long recordNanos = (System.nanoTime() - begin) / ((long) samples * STONES);
+
+		long total = 0;
+		for (PowerHistory.Resolution resolution : PowerHistory.Resolution.values()) {
+			long size = history.getSize(resolution);
+			total += size;
+			Log.i(TAG, String.format("%s: %d kB", resolution, size / 1024));
+		}
+		Log.i(TAG, String.format("%d stones, %d days: %d kB in total, %d ns per sample", STONES, DAYS,
+				total / 1024, recordNanos));
+		assertTrue(total < MAX_SIZE);
+
+		final long end = START + (long) samples * INTERVAL * 1000;
+		final int[] read = new int[samplesPerDay + 1];
+		final int[] count = new int[1];
+		long queryMillis = time(history, addresses[0], PowerHistory.Resolution.RAW, end - 24 * 3600 * 1000L, end,
+				new PowerHistory.Visitor() {
+			@Override
+			public boolean onSample(long time, int[] values) {
+				read[count[0]++] = values[0];
+				return true;
+			}
+		});
+		assertEquals(samplesPerDay, count[0]);
+		for (int i = 0; i < samplesPerDay; i++) {
+			assertEquals(expected[i], read[i]);
+		}
+		assertTrue(queryMillis < MAX_QUERY_MILLIS);
+
+		PowerHistory.Visitor counter = new PowerHistory.Visitor() {
+			@Override
+			public boolean onSample(long time, int[] values) {
+				count[0]++;
+				return true;
+			}
+		};
+		count[0] = 0;
+		queryMillis = time(history, addresses[STONES / 2], PowerHistory.Resolution.MINUTE, end - 24 * 3600 * 1000L, end,
+				counter);
+		assertEquals(24 * 60, count[0]);
+		assertTrue(queryMillis < MAX_QUERY_MILLIS);
+
+		count[0] = 0;
+		queryMillis = time(history, addresses[STONES - 1], PowerHistory.Resolution.HOUR, START, end, counter);
+		assertEquals(DAYS * 24, count[0]);
+		assertTrue(queryMillis < MAX_QUERY_MILLIS);
+
+		// reopen, the blocks are found again. only the rollup of the current hour is lost
+		history = new PowerHistory(_directory);
+		count[0] = 0;
+		time(history, addresses[STONES - 1], PowerHistory.Resolution.HOUR, START, end, counter);
+		assertEquals(DAYS * 24 - 1, count[0]);
+	}
+
+	private static long time(PowerHistory history, String address, PowerHistory.Resolution resolution,
+							 long from, long to, PowerHistory.Visitor visitor) {
+		long start = System.nanoTime();
+		history.query(address, resolution, from, to, visitor);
+		long millis = (System.nanoTime() - start) / 1000000;
+		Log.i(TAG, String.format("query of %s from %s: %d ms", address, resolution, millis));
+		return millis;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
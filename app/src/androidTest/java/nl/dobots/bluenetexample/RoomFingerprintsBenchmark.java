@@ -0,0 +1,133 @@
+package nl.dobots.bluenetexample;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Offline benchmark of the {@link RoomFingerprints}. Replays the labelled windows of the
+ * traces recorded with {@link RoomInference#startRecording(String)} which are in the
+ * "room_traces" directory of the app's files, see the "record_trace" extra of the
+ * {@link GatewayService}. Half of the windows of every room are used for
+ * training, the other half is classified. If no traces were recorded, a synthetic trace of a
+ * floor with beacons in a grid is used instead. The accuracy and the time per
+ * classification are logged.
+ */
+public class RoomFingerprintsBenchmark extends AndroidTestCase {
+
+	private static final String TAG = RoomFingerprintsBenchmark.class.getCanonicalName();
+
+	private static final String TRACE_DIRECTORY = GatewayService.TRACE_DIRECTORY;
+
+	// classifying a window has to fit easily in the one second of a scan interval
+	private static final long MAX_CLASSIFICATION_NANOS = 1000000;
+
+	private static class Sample {
+		final String room;
+		final ScanWindow window;
+
+		Sample(String room, ScanWindow window) {
+			this.room = room;
+			this.window = window;
+		}
+	}
+
+	public void testRecordedTraces() throws Exception {
+		ArrayList<Sample> samples = new ArrayList<>();
+		File[] traces = new File(getContext().getFilesDir(), TRACE_DIRECTORY).listFiles();
+		if (traces != null) {
+			for (File trace : traces) {
+				readTrace(trace, samples);
+			}
+		}
+		if (samples.isEmpty()) {
+			Log.i(TAG, "no recorded traces, using a synthetic trace");
+			samples = syntheticTrace(20, 40, new Random(0));
+		}
+		run(samples);
+	}
+
+	public void testManyRooms() throws Exception {
+		// classification time must not depend on the number of rooms
+		run(syntheticTrace(500, 10, new Random(1)));
+	}
+
+	private void run(ArrayList<Sample> samples) {
+		RoomFingerprints fingerprints = new RoomFingerprints();
+		ArrayList<Sample> test = new ArrayList<>();
+		// alternate between training and testing per room
+		HashMap<String, Integer> counts = new HashMap<>();
+		for (Sample sample : samples) {
+			Integer count = counts.get(sample.room);
+			count = count == null ? 0 : count + 1;
+			counts.put(sample.room, count);
+			if (count % 2 == 0) {
+				fingerprints.train(sample.room, sample.window);
+			} else {
+				test.add(sample);
+			}
+		}
+
+		int correct = 0;
+		long start = System.nanoTime();
+		for (Sample sample : test) {
+			RoomFingerprints.Result result = fingerprints.classify(sample.window);
+			if (result != null && result.room.equals(sample.room)) {
+				correct++;
+			}
+		}
+		long perClassification = (System.nanoTime() - start) / Math.max(1, test.size());
+
+		Log.i(TAG, String.format("%d rooms, %d windows: accuracy %.1f%%, %d ns per classification",
+				fingerprints.getRooms().size(), test.size(), 100.0 * correct / test.size(), perClassification));
+		assertTrue(perClassification < MAX_CLASSIFICATION_NANOS);
+	}
+
+	private static void readTrace(File file, ArrayList<Sample> samples) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				// only labelled windows can be used to train and to check the classification
+				if (tab > 0) {
+					samples.add(new Sample(line.substring(0, tab), ScanWindow.fromLine(line.substring(tab + 1))));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Rooms of 5 x 5 m in a row, with a beacon in the middle of every room, and log distance
+	 * path loss with gaussian noise.
+	 */
+	private static ArrayList<Sample> syntheticTrace(int rooms, int windowsPerRoom, Random random) {
+		ArrayList<Sample> samples = new ArrayList<>();
+		for (int window = 0; window < windowsPerRoom; window++) {
+			for (int room = 0; room < rooms; room++) {
+				double x = room * 5 + 1 + random.nextDouble() * 3;
+				ScanWindow scan = new ScanWindow();
+				for (int beacon = 0; beacon < rooms; beacon++) {
+					double distance = Math.max(0.5, Math.abs(beacon * 5 + 2.5 - x));
+					int rssi = (int) (-59 - 20 * Math.log10(distance) + random.nextGaussian() * 3);
+					// beacons further away than about 15 m are not received
+					if (rssi > -90) {
+						scan.put(0x1000 + beacon, rssi);
+					}
+				}
+				samples.add(new Sample("room " + room, scan));
+			}
+		}
+		return samples;
+	}
+
+}
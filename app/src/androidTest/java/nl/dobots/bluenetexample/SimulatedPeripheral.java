@@ -0,0 +1,172 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.zip.CRC32;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * A peripheral in memory which models the timing of a BLE link, to measure the throughput of
+ * a {@link BulkTransfer} without hardware:
+ *
+ * 		* every connection interval a limited number of packets can be sent
+ * 		* a write without response only occupies a packet slot
+ * 		* a write with response, and every read, takes a round trip of two connection intervals
+ *
+ * The peripheral can be made to drop the link after a number of chunks, to test resuming an
+ * interrupted transfer. Its MTU and connection interval are fixed, like those of the links of
+ * the library, which can't be negotiated.
+ *
+ * Created on 19-10-26
+ */
+public class SimulatedPeripheral implements BlockTransport {
+
+	public static final int ERROR_DISCONNECTED = -1;
+
+	// connection intervals in ms, of a high priority and of a balanced connection
+	public static final int INTERVAL_HIGH = 8;
+	public static final int INTERVAL_BALANCED = 45;
+
+	private final byte[] _image;
+	private final int _mtu;
+	private final int _connectionInterval;
+	private final int _packetsPerInterval;
+
+	private final HandlerThread _thread;
+	private final Handler _handler;
+
+	// uptime at which the link is free to send the next packet
+	private long _linkFreeAt;
+	// number of chunks after which the link is dropped, -1 to never drop it
+	private int _disconnectAfter = -1;
+	// whether the link was dropped, until the next transfer connects again
+	private boolean _dropped = false;
+
+	/**
+	 * @param image the data the peripheral holds before the transfer
+	 * @param mtu the ATT MTU of the link
+	 * @param connectionInterval connection interval in ms
+	 * @param packetsPerInterval packets the link can carry per connection interval
+	 */
+	public SimulatedPeripheral(byte[] image, int mtu, int connectionInterval, int packetsPerInterval) {
+		_image = image;
+		_mtu = mtu;
+		_connectionInterval = connectionInterval;
+		_packetsPerInterval = packetsPerInterval;
+
+		_thread = new HandlerThread("SimulatedPeripheral");
+		_thread.start();
+		_handler = new Handler(_thread.getLooper());
+	}
+
+	public void destroy() {
+		_thread.quit();
+	}
+
+	public synchronized void disconnectAfter(int chunks) {
+		_disconnectAfter = chunks;
+	}
+
+	public synchronized byte[] getImage() {
+		return _image.clone();
+	}
+
+	@Override
+	public int getMtu() {
+		return _mtu;
+	}
+
+	@Override
+	public boolean supportsWriteWithoutResponse() {
+		return true;
+	}
+
+	@Override
+	public void readChecksums(final int blockSize, final int blockCount, final ChecksumCallback callback) {
+		final int[] checksums = new int[blockCount];
+		synchronized (this) {
+			// a transfer starts by reading the checksums, so the link is up again
+			_dropped = false;
+			CRC32 crc = new CRC32();
+			for (int i = 0; i < blockCount; i++) {
+				int offset = i * blockSize;
+				crc.reset();
+				crc.update(_image, offset, Math.max(0, Math.min(blockSize, _image.length - offset)));
+				checksums[i] = (int) crc.getValue();
+			}
+		}
+
+		// four bytes per checksum, read as a long read of several packets
+		int mtu = getMtu();
+		int packets = (blockCount * 4 + mtu - 4) / (mtu - 3);
+		_handler.postAtTime(new Runnable() {
+			@Override
+			public void run() {
+				callback.onSuccess(checksums);
+			}
+		}, occupyLink(packets, true));
+	}
+
+	@Override
+	public void writeChunk(final byte[] chunk, boolean withResponse, final IStatusCallback callback) {
+		final boolean dropped;
+		synchronized (this) {
+			if (_disconnectAfter == 0) {
+				_disconnectAfter = -1;
+				_dropped = true;
+			} else if (_disconnectAfter > 0) {
+				_disconnectAfter--;
+			}
+			dropped = _dropped;
+			if (!dropped) {
+				int block = (chunk[0] & 0xFF) | (chunk[1] & 0xFF) << 8;
+				int offset = (chunk[2] & 0xFF) | (chunk[3] & 0xFF) << 8;
+				int position = block * BulkTransfer.BLOCK_SIZE + offset;
+				System.arraycopy(chunk, 4, _image, position, Math.min(chunk.length - 4, _image.length - position));
+			}
+		}
+
+		_handler.postAtTime(new Runnable() {
+			@Override
+			public void run() {
+				if (dropped) {
+					callback.onError(ERROR_DISCONNECTED);
+				} else {
+					callback.onSuccess();
+				}
+			}
+		}, occupyLink(1, withResponse));
+	}
+
+	@Override
+	public void commit(final IStatusCallback callback) {
+		_handler.postAtTime(new Runnable() {
+			@Override
+			public void run() {
+				callback.onSuccess();
+			}
+		}, occupyLink(1, true));
+	}
+
+	/**
+	 * Reserve the link for a number of packets.
+	 * @return uptime at which the packets are sent, or answered if a response is expected
+	 */
+	private synchronized long occupyLink(int packets, boolean withResponse) {
+		long now = SystemClock.uptimeMillis();
+		long start = Math.max(now, _linkFreeAt);
+		double slot = (double) _connectionInterval / _packetsPerInterval;
+		long done = start + (long) Math.ceil(packets * slot);
+		if (withResponse) {
+			// the response arrives in the next connection interval, and nothing else is sent
+			// on the link until then
+			done += 2 * _connectionInterval;
+		}
+		_linkFreeAt = done;
+		return done;
+	}
+
+}
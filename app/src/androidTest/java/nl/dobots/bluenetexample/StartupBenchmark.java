@@ -0,0 +1,83 @@
+package nl.dobots.bluenetexample;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Benchmark of the {@link StartupTrace} milestones of the main screen. The screen is started
+ * {@link #RUNS} times, and the scan is started as soon as the library is ready, like a user who
+ * opens the app to find a device. The median of every milestone is logged together with the
+ * version of the app, so the results can be compared between releases.
+ *
+ * The process is already running during the benchmark, so it doesn't include starting the
+ * process itself. For a start from a stopped process, run
+ *
+ * 		adb shell am force-stop nl.dobots.bluenetexample
+ * 		adb shell am start -W -n nl.dobots.bluenetexample/.MainActivity
+ *
+ * and collect the milestones from logcat.
+ *
+ * Bluetooth has to be enabled, and FIRST_DEVICE needs a device in range.
+ */
+public class StartupBenchmark extends InstrumentationTestCase {
+
+	private static final String TAG = StartupBenchmark.class.getCanonicalName();
+
+	private static final int RUNS = 10;
+	private static final long TIMEOUT = 10000;
+
+	public void testStartup() throws Exception {
+		StartupTrace.Milestone[] milestones = StartupTrace.Milestone.values();
+		long[][] times = new long[milestones.length][RUNS];
+
+		for (int run = 0; run < RUNS; run++) {
+			StartupTrace.getInstance().reset();
+			Intent intent = new Intent(getInstrumentation().getTargetContext(), MainActivity.class);
+			intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+			final Activity activity = getInstrumentation().startActivitySync(intent);
+
+			assertTrue("bluetooth not ready", waitFor(StartupTrace.Milestone.BLE_READY));
+			getInstrumentation().runOnMainSync(new Runnable() {
+				@Override
+				public void run() {
+					activity.findViewById(R.id.btnScan).performClick();
+				}
+			});
+			waitFor(StartupTrace.Milestone.FIRST_DEVICE);
+
+			for (int i = 0; i < milestones.length; i++) {
+				times[i][run] = StartupTrace.getInstance().getTime(milestones[i]);
+			}
+			activity.finish();
+			getInstrumentation().waitForIdleSync();
+		}
+
+		for (int i = 0; i < milestones.length; i++) {
+			Arrays.sort(times[i]);
+			if (times[i][0] < 0) {
+				Log.i(TAG, String.format("version %s: %s not reached in every run",
+						BuildConfig.VERSION_NAME, milestones[i]));
+			} else {
+				Log.i(TAG, String.format("version %s: %s median %d ms, min %d ms, max %d ms",
+						BuildConfig.VERSION_NAME, milestones[i], times[i][RUNS / 2], times[i][0], times[i][RUNS - 1]));
+			}
+		}
+	}
+
+	private static boolean waitFor(StartupTrace.Milestone milestone) throws InterruptedException {
+		long deadline = SystemClock.elapsedRealtime() + TIMEOUT;
+		while (StartupTrace.getInstance().getTime(milestone) < 0) {
+			if (SystemClock.elapsedRealtime() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,201 @@
+package nl.dobots.bluenetexample;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * A {@link NotificationSource} which doesn't need a link: the stones advertise their switch
+ * state and power usage, so instead of GATT notifications, the advertisements are scanned and
+ * parsed with the {@link AdvertisementParser}, like the dashboard does.
+ *
+ * 		* the scan runs while notifications are enabled for at least one stone
+ * 		* a notification is only passed on if the advertisement of the stone changed. the
+ * 		  payload has the format of the state characteristic, see {@link StateSubscriptions}
+ * 		* while a connection is open, the scan alternates between short windows and long
+ * 		  pauses, see {@link RadioArbiter}
+ *
+ * The scan is accounted to the control screen, see {@link RadioAccounting}.
+ *
+ * Created on 19-10-26
+ */
+public class AdvertisedStateSource implements NotificationSource {
+
+	// bluetooth is off, or the scan couldn't be started
+	public static final int ERROR_NO_SCAN = -1;
+
+	private final Handler _handler = new Handler(Looper.getMainLooper());
+	private final KeyStore _keys;
+
+	private Listener _listener;
+	// the stones with notifications enabled, under the lock of this object
+	private final HashSet<String> _addresses = new HashSet<>();
+
+	// only used on the main thread
+	private BluetoothAdapter _bluetoothAdapter;
+	private boolean _scanPaused = false;
+
+	// only used on the thread of the scan callback, under the lock of this object
+	private final AdvertisementParser _parser = new AdvertisementParser();
+	private final byte[] _payload = new byte[5];
+
+	private final BluetoothAdapter.LeScanCallback _scanCallback = new BluetoothAdapter.LeScanCallback() {
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			RadioAccounting.getInstance().callback(RadioAccounting.Feature.CONTROL);
+			onAdvertisement(device.getAddress(), scanRecord);
+		}
+	};
+
+	private final RadioArbiter.Listener _radioListener = new RadioArbiter.Listener() {
+		@Override
+		public void onModeChanged(RadioArbiter.Mode mode) {
+			_handler.removeCallbacks(_dutyCycle);
+			if (mode == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+				_handler.postDelayed(_dutyCycle, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			} else if (_scanPaused) {
+				// back to full scanning
+				_scanPaused = false;
+				startLeScan();
+			}
+		}
+	};
+
+	private final Runnable _dutyCycle = new Runnable() {
+		@Override
+		public void run() {
+			if (_bluetoothAdapter == null) {
+				return;
+			}
+			if (_scanPaused) {
+				_scanPaused = false;
+				startLeScan();
+				_handler.postDelayed(this, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			} else {
+				_scanPaused = true;
+				stopLeScan();
+				_handler.postDelayed(this, RadioArbiter.LOW_DUTY_SCAN_PAUSE);
+			}
+		}
+	};
+
+	public AdvertisedStateSource(Context context) {
+		_keys = KeyStore.getInstance(context);
+	}
+
+	@Override
+	public synchronized void setListener(Listener listener) {
+		_listener = listener;
+	}
+
+	@Override
+	public void enableNotifications(final String address, final IStatusCallback callback) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (_bluetoothAdapter == null && !startScan()) {
+					callback.onError(ERROR_NO_SCAN);
+					return;
+				}
+				synchronized (AdvertisedStateSource.this) {
+					_addresses.add(address);
+				}
+				callback.onSuccess();
+			}
+		});
+	}
+
+	@Override
+	public void disableNotifications(final String address, final IStatusCallback callback) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				boolean last;
+				synchronized (AdvertisedStateSource.this) {
+					last = _addresses.remove(address) && _addresses.isEmpty();
+					if (last) {
+						_parser.clear();
+					}
+				}
+				if (last) {
+					stopScan();
+				}
+				callback.onSuccess();
+			}
+		});
+	}
+
+	private boolean startScan() {
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if (adapter == null || !adapter.isEnabled()) {
+			return false;
+		}
+		_bluetoothAdapter = adapter;
+		_scanPaused = false;
+		if (!startLeScan()) {
+			_bluetoothAdapter = null;
+			return false;
+		}
+		RadioArbiter.getInstance().registerListener(_radioListener);
+		if (RadioArbiter.getInstance().getMode() == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+			_handler.postDelayed(_dutyCycle, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+		}
+		return true;
+	}
+
+	private void stopScan() {
+		if (_bluetoothAdapter == null) {
+			return;
+		}
+		RadioArbiter.getInstance().unregisterListener(_radioListener);
+		_handler.removeCallbacks(_dutyCycle);
+		if (!_scanPaused) {
+			stopLeScan();
+		}
+		_bluetoothAdapter = null;
+	}
+
+	private boolean startLeScan() {
+		if (_bluetoothAdapter.startLeScan(_scanCallback)) {
+			RadioAccounting.getInstance().scanStarted(RadioAccounting.Feature.CONTROL);
+			return true;
+		}
+		return false;
+	}
+
+	private void stopLeScan() {
+		_bluetoothAdapter.stopLeScan(_scanCallback);
+		RadioAccounting.getInstance().scanStopped(RadioAccounting.Feature.CONTROL);
+	}
+
+	/**
+	 * Called on the thread of the scan callback for every advertisement.
+	 */
+	private synchronized void onAdvertisement(String address, byte[] scanRecord) {
+		if (_listener == null || !_addresses.contains(address)) {
+			return;
+		}
+		if (!_parser.parse(address, scanRecord) || !_parser.isCrownstone()) {
+			return;
+		}
+		if (Config.ENCRYPTION_ENABLED && !_parser.decrypt(_keys.getSphere(address).guestKey)) {
+			return;
+		}
+
+		// encode the state like the state characteristic does
+		int powerUsage = _parser.getPowerUsage();
+		_payload[0] = (byte) (_parser.isRelayOn() ? 1 : 0);
+		_payload[1] = (byte) powerUsage;
+		_payload[2] = (byte) (powerUsage >> 8);
+		_payload[3] = (byte) (powerUsage >> 16);
+		_payload[4] = (byte) (powerUsage >> 24);
+		_listener.onNotification(address, _payload);
+	}
+
+}
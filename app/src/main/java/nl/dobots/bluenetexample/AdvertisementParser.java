@@ -0,0 +1,346 @@
+package nl.dobots.bluenetexample;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Parses raw scan records without copying or decoding them up front. The parser is a view on
+ * the record of the last packet, and is reused for every packet:
+ *
+ * 		* {@link #parse(String, byte[])} only points the view at the record, and tells whether
+ * 		  the record changed since the last sighting of the device, from a hash of the raw
+ * 		  bytes. most packets are repeats, which the caller can skip right away
+ * 		* the AD structures are only walked when a field is asked for, and only once per
+ * 		  packet. fields are read directly from the record, only the name and the proximity
+ * 		  UUID create objects, and only when they are asked for
+ *
+ * The Crownstone fields are read from the service data of a Crownstone, laid out as (little
+ * endian):
+ *
+ * 		firmware version (1) | crownstone id (2) | switch state (1) | event bitmask (1) |
+ * 		temperature (1) | power usage in mW (4) | accumulated energy (4)
+ *
+ * If encryption is enabled, everything after the firmware version is encrypted with AES-128 in
+ * ECB mode, with the guest key of the stone's sphere, as a single block of 16 bytes (the fields
+ * are followed by random padding). Call {@link #decrypt(String)} before reading the fields.
+ * ECB has no integrity check, any key decrypts the block into something, so the decrypted
+ * fields are checked against their valid ranges, and rejected if one of them is out of range.
+ * With a wrong key, e.g. of a neighbour's stone, that leaves less than 1 in 1000 blocks.
+ *
+ * The parser is not thread safe.
+ *
+ * Created on 19-10-26
+ */
+public class AdvertisementParser {
+
+	private static final String TAG = AdvertisementParser.class.getCanonicalName();
+
+	// AD types, see the assigned numbers of the Bluetooth SIG
+	private static final int TYPE_SHORT_NAME = 0x08;
+	private static final int TYPE_COMPLETE_NAME = 0x09;
+	private static final int TYPE_SERVICE_DATA = 0x16;
+	private static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+	private static final int APPLE_COMPANY_ID = 0x004C;
+	private static final int IBEACON_TYPE = 0x02;
+	private static final int IBEACON_LENGTH = 0x15;
+
+	public static final int CROWNSTONE_PLUG_SERVICE = 0xC001;
+	public static final int CROWNSTONE_BUILTIN_SERVICE = 0xC002;
+	public static final int GUIDESTONE_SERVICE = 0xC003;
+	private static final int CROWNSTONE_DATA_LENGTH = 14;
+	// the encrypted service data, the firmware version and one AES block
+	private static final int ENCRYPTED_DATA_LENGTH = 1 + 16;
+	// bit of the switch state which has the relay state, the other bits are the pwm value
+	private static final int RELAY_BIT = 0x80;
+	// valid ranges of the decrypted fields: pwm in %, temperature in C and power usage in mW
+	// (16 A at 230 V, with margin)
+	private static final int MAX_PWM = 100;
+	private static final int MIN_TEMPERATURE = -40;
+	private static final int MAX_TEMPERATURE = 100;
+	private static final int MAX_POWER_USAGE = 4000000;
+
+	// number of devices of which the hash of the last record is kept
+	public static final int MAX_SIGHTINGS = 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] _record;
+	private ByteBuffer _view;
+	private boolean _indexed;
+	private boolean _decrypted;
+
+	// offsets of the data (after the type) of the structures we know, -1 if there is none
+	private int _nameOffset;
+	private int _nameLength;
+	private int _manufacturerOffset;
+	private int _manufacturerLength;
+	private int _serviceDataOffset;
+	private int _serviceDataLength;
+
+	// cipher for the key it was created with, most stones share the key of the same sphere
+	private Cipher _cipher;
+	private String _cipherKey;
+
+	// hash of the last record per device, least recently seen devices are dropped first
+	private final LinkedHashMap<String, int[]> _sightings = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+			return size() > MAX_SIGHTINGS;
+		}
+	};
+
+	/**
+	 * Point the parser at a new packet. Nothing is decoded yet.
+	 * @param address address of the device which sent the packet, or null to not compare it
+	 *                with the last sighting
+	 * @return true if the record differs from the last record of the device, or if the device
+	 * wasn't seen before
+	 */
+	public boolean parse(String address, byte[] record) {
+		if (record != _record) {
+			_record = record;
+			_view = ByteBuffer.wrap(record);
+		}
+		_indexed = false;
+		_decrypted = false;
+		if (address == null) {
+			return true;
+		}
+
+		int hash = Arrays.hashCode(record);
+		int[] sighting = _sightings.get(address);
+		if (sighting == null) {
+			_sightings.put(address, new int[] {hash});
+			return true;
+		}
+		if (sighting[0] == hash) {
+			return false;
+		}
+		sighting[0] = hash;
+		return true;
+	}
+
+	/**
+	 * Forget the last records, e.g. when a new scan is started.
+	 */
+	public void clear() {
+		_sightings.clear();
+	}
+
+	/**
+	 * Walk the AD structures once, and remember where the structures we know are.
+	 */
+	private void index() {
+		if (_indexed) {
+			return;
+		}
+		_indexed = true;
+		_nameOffset = _manufacturerOffset = _serviceDataOffset = -1;
+
+		int position = 0;
+		while (position < _record.length) {
+			int length = _record[position] & 0xFF;
+			// a length of 0 marks the end of the significant part
+			if (length == 0 || position + 1 + length > _record.length) {
+				break;
+			}
+			int type = _record[position + 1] & 0xFF;
+			int offset = position + 2;
+			int dataLength = length - 1;
+			switch (type) {
+				case TYPE_COMPLETE_NAME:
+				case TYPE_SHORT_NAME:
+					// prefer the complete name over the short name
+					if (_nameOffset < 0 || type == TYPE_COMPLETE_NAME) {
+						_nameOffset = offset;
+						_nameLength = dataLength;
+					}
+					break;
+				case TYPE_MANUFACTURER_DATA:
+					if (_manufacturerOffset < 0) {
+						_manufacturerOffset = offset;
+						_manufacturerLength = dataLength;
+					}
+					break;
+				case TYPE_SERVICE_DATA:
+					if (_serviceDataOffset < 0) {
+						_serviceDataOffset = offset;
+						_serviceDataLength = dataLength;
+					}
+					break;
+			}
+			position += 1 + length;
+		}
+	}
+
+	/**
+	 * @return the advertised name, or null if there is none
+	 */
+	public String getName() {
+		index();
+		if (_nameOffset < 0) {
+			return null;
+		}
+		return new String(_record, _nameOffset, _nameLength, UTF8);
+	}
+
+	public boolean isIBeacon() {
+		index();
+		return _manufacturerOffset >= 0 && _manufacturerLength >= 2 + 2 + IBEACON_LENGTH
+				&& unsignedShort(_manufacturerOffset, ByteOrder.LITTLE_ENDIAN) == APPLE_COMPANY_ID
+				&& _record[_manufacturerOffset + 2] == IBEACON_TYPE
+				&& _record[_manufacturerOffset + 3] == IBEACON_LENGTH;
+	}
+
+	/**
+	 * Only valid if {@link #isIBeacon()}.
+	 */
+	public UUID getProximityUuid() {
+		int offset = _manufacturerOffset + 4;
+		_view.order(ByteOrder.BIG_ENDIAN);
+		return new UUID(_view.getLong(offset), _view.getLong(offset + 8));
+	}
+
+	/**
+	 * Only valid if {@link #isIBeacon()}.
+	 */
+	public int getMajor() {
+		return unsignedShort(_manufacturerOffset + 20, ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Only valid if {@link #isIBeacon()}.
+	 */
+	public int getMinor() {
+		return unsignedShort(_manufacturerOffset + 22, ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Only valid if {@link #isIBeacon()}.
+	 * @return the calibrated rssi at 1 m
+	 */
+	public int getTxPower() {
+		return _record[_manufacturerOffset + 24];
+	}
+
+	/**
+	 * @return the 16 bit UUID of the service data, or -1 if there is none
+	 */
+	public int getServiceUuid() {
+		index();
+		if (_serviceDataOffset < 0 || _serviceDataLength < 2) {
+			return -1;
+		}
+		return unsignedShort(_serviceDataOffset, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public boolean isCrownstone() {
+		int uuid = getServiceUuid();
+		return (uuid == CROWNSTONE_PLUG_SERVICE || uuid == CROWNSTONE_BUILTIN_SERVICE || uuid == GUIDESTONE_SERVICE)
+				&& _serviceDataLength >= 2 + CROWNSTONE_DATA_LENGTH;
+	}
+
+	/**
+	 * Decrypt the service data, if encryption is enabled. The fields are then read from a
+	 * decrypted copy of the record, the record itself is not changed. Only valid if
+	 * {@link #isCrownstone()}.
+	 * @param key the guest key of the stone's sphere
+	 * @return false if the service data isn't encrypted, or can't be decrypted with the key
+	 */
+	public boolean decrypt(String key) {
+		if (_decrypted) {
+			return true;
+		}
+		if (_serviceDataLength != 2 + ENCRYPTED_DATA_LENGTH) {
+			return false;
+		}
+		try {
+			if (!key.equals(_cipherKey)) {
+				_cipher = Cipher.getInstance("AES/ECB/NoPadding");
+				_cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.getBytes(UTF8), "AES"));
+				_cipherKey = key;
+			}
+			byte[] record = Arrays.copyOf(_record, _record.length);
+			int offset = _serviceDataOffset + 3;
+			_cipher.doFinal(_record, offset, 16, record, offset);
+			// the structures stay at the same offsets, so the index stays valid
+			byte[] encrypted = _record;
+			ByteBuffer view = _view;
+			_record = record;
+			_view = ByteBuffer.wrap(record);
+			if (!isValid()) {
+				// another key, or not a stone at all. keep the record as it was
+				_record = encrypted;
+				_view = view;
+				return false;
+			}
+			_decrypted = true;
+			return true;
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			Log.e(TAG, "failed to decrypt the service data", e);
+			_cipherKey = null;
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the decrypted fields are in their valid ranges
+	 */
+	private boolean isValid() {
+		int pwm = _record[_serviceDataOffset + 5] & ~RELAY_BIT & 0xFF;
+		int temperature = getTemperature();
+		int powerUsage = getPowerUsage();
+		_view.order(ByteOrder.LITTLE_ENDIAN);
+		int energy = _view.getInt(_serviceDataOffset + 12);
+		return pwm <= MAX_PWM && temperature >= MIN_TEMPERATURE && temperature <= MAX_TEMPERATURE
+				&& powerUsage >= -MAX_POWER_USAGE && powerUsage <= MAX_POWER_USAGE && energy >= 0;
+	}
+
+	/**
+	 * Only valid if {@link #isCrownstone()}.
+	 */
+	public int getCrownstoneId() {
+		return unsignedShort(_serviceDataOffset + 3, ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Only valid if {@link #isCrownstone()}.
+	 */
+	public boolean isRelayOn() {
+		return (_record[_serviceDataOffset + 5] & RELAY_BIT) != 0;
+	}
+
+	/**
+	 * Only valid if {@link #isCrownstone()}.
+	 */
+	public int getTemperature() {
+		return _record[_serviceDataOffset + 7];
+	}
+
+	/**
+	 * Only valid if {@link #isCrownstone()}.
+	 * @return power usage in mW
+	 */
+	public int getPowerUsage() {
+		_view.order(ByteOrder.LITTLE_ENDIAN);
+		return _view.getInt(_serviceDataOffset + 8);
+	}
+
+	private int unsignedShort(int offset, ByteOrder order) {
+		_view.order(order);
+		return _view.getShort(offset) & 0xFFFF;
+	}
+
+}
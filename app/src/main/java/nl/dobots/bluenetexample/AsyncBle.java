@@ -0,0 +1,65 @@
+package nl.dobots.bluenetexample;
+
+import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * The operations of the library as {@link BleFuture}s, so they can be chained instead of
+ * nested. The futures are completed on the thread on which the library calls its callbacks.
+ *
+ * The library executes one GATT operation at a time, so operations on the same connection
+ * are chained with {@link BleFuture#then(BleFuture.Continuation)}. Only the operations the
+ * app chains are wrapped, add others the same way when they are needed.
+ *
+ * Created on 19-10-26
+ */
+public class AsyncBle {
+
+	private final BleExt _ble;
+
+	public AsyncBle(BleExt ble) {
+		_ble = ble;
+	}
+
+	public BleFuture<Boolean> readRelay() {
+		BleFuture<Boolean> future = new BleFuture<>();
+		_ble.readRelay(bool(future));
+		return future;
+	}
+
+	public BleFuture<Integer> readPowerConsumption() {
+		BleFuture<Integer> future = new BleFuture<>();
+		_ble.readPowerConsumption(integer(future));
+		return future;
+	}
+
+	private static IBooleanCallback bool(final BleFuture<Boolean> future) {
+		return new IBooleanCallback() {
+			@Override
+			public void onSuccess(boolean result) {
+				future.complete(result);
+			}
+
+			@Override
+			public void onError(int error) {
+				future.fail(error);
+			}
+		};
+	}
+
+	private static IIntegerCallback integer(final BleFuture<Integer> future) {
+		return new IIntegerCallback() {
+			@Override
+			public void onSuccess(int result) {
+				future.complete(result);
+			}
+
+			@Override
+			public void onError(int error) {
+				future.fail(error);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,344 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * The result of an asynchronous BLE operation, which succeeds with a value or fails with an
+ * error code of the library. Instead of nesting callbacks, steps are chained:
+ *
+ * 		* {@link #then(Continuation)} starts the next step with the result
+ * 		* {@link #map(Stream.Function)} and {@link #orElse(Object)} change the result
+ * 		* {@link #ensure(Supplier)} runs a step whether the future succeeded or not, e.g. to
+ * 		  disconnect, and keeps the result
+ * 		* {@link #timeout(long, Handler)} fails the future if it takes too long
+ * 		* {@link #retry(int, long, Handler, Stream.Function, Supplier)} starts an operation
+ * 		  again after a delay, if it failed with an error which can go away
+ *
+ * Callbacks run on the thread which completes the future, usually the BLE thread, unless an
+ * executor is chosen with {@link #on(Executor)}. Only the end of a chain has to hop to the UI
+ * thread, with {@link #executor(Handler)}.
+ *
+ * See {@link AsyncBle} for the operations of the library as futures.
+ *
+ * Created on 19-10-26
+ */
+public class BleFuture<T> {
+
+	// errors of the futures themselves, negative so they don't overlap with the library's
+	public static final int ERROR_TIMEOUT = -100;
+
+	public interface Callback<T> {
+		void onSuccess(T result);
+		void onError(int error);
+	}
+
+	public interface Continuation<T, R> {
+		BleFuture<R> apply(T result);
+	}
+
+	public interface Supplier<T> {
+		BleFuture<T> get();
+	}
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable runnable) {
+			runnable.run();
+		}
+	};
+
+	private final Executor _executor;
+
+	private boolean _done = false;
+	private T _result;
+	private int _error;
+	private boolean _failed;
+	private ArrayList<Callback<? super T>> _callbacks = new ArrayList<>();
+
+	public BleFuture() {
+		this(DIRECT);
+	}
+
+	private BleFuture(Executor executor) {
+		_executor = executor;
+	}
+
+	public static <T> BleFuture<T> succeeded(T result) {
+		BleFuture<T> future = new BleFuture<>();
+		future.complete(result);
+		return future;
+	}
+
+	public static <T> BleFuture<T> failed(int error) {
+		BleFuture<T> future = new BleFuture<>();
+		future.fail(error);
+		return future;
+	}
+
+	/**
+	 * @return an executor which runs the callbacks on the thread of the handler
+	 */
+	public static Executor executor(final Handler handler) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable runnable) {
+				handler.post(runnable);
+			}
+		};
+	}
+
+	/**
+	 * @return false if the future was already done
+	 */
+	public boolean complete(T result) {
+		return finish(false, result, 0);
+	}
+
+	/**
+	 * @return false if the future was already done
+	 */
+	public boolean fail(int error) {
+		return finish(true, null, error);
+	}
+
+	public synchronized boolean isDone() {
+		return _done;
+	}
+
+	private boolean finish(boolean failed, T result, int error) {
+		ArrayList<Callback<? super T>> callbacks;
+		synchronized (this) {
+			if (_done) {
+				return false;
+			}
+			_done = true;
+			_failed = failed;
+			_result = result;
+			_error = error;
+			callbacks = _callbacks;
+			_callbacks = null;
+		}
+		for (Callback<? super T> callback : callbacks) {
+			dispatch(callback);
+		}
+		return true;
+	}
+
+	/**
+	 * Call the callback once the future is done, right away if it already is.
+	 */
+	public void whenDone(Callback<? super T> callback) {
+		synchronized (this) {
+			if (!_done) {
+				_callbacks.add(callback);
+				return;
+			}
+		}
+		dispatch(callback);
+	}
+
+	private void dispatch(final Callback<? super T> callback) {
+		_executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (_failed) {
+					callback.onError(_error);
+				} else {
+					callback.onSuccess(_result);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Complete the other future with the result of this one.
+	 */
+	private void forward(final BleFuture<T> other) {
+		whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				other.complete(result);
+			}
+
+			@Override
+			public void onError(int error) {
+				other.fail(error);
+			}
+		});
+	}
+
+	/**
+	 * @return a future with the same result, which calls its callbacks and the following steps
+	 * with the executor
+	 */
+	public BleFuture<T> on(Executor executor) {
+		BleFuture<T> next = new BleFuture<>(executor);
+		forward(next);
+		return next;
+	}
+
+	/**
+	 * Start the next step once this future succeeded. If this future fails, the next step is
+	 * skipped and the returned future fails with the same error.
+	 */
+	public <R> BleFuture<R> then(final Continuation<? super T, R> continuation) {
+		final BleFuture<R> next = new BleFuture<>(_executor);
+		whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				continuation.apply(result).forward(next);
+			}
+
+			@Override
+			public void onError(int error) {
+				next.fail(error);
+			}
+		});
+		return next;
+	}
+
+	public <R> BleFuture<R> map(final Stream.Function<? super T, R> function) {
+		final BleFuture<R> next = new BleFuture<>(_executor);
+		whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				next.complete(function.apply(result));
+			}
+
+			@Override
+			public void onError(int error) {
+				next.fail(error);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * @return a future which succeeds with the value if this future fails
+	 */
+	public BleFuture<T> orElse(final T value) {
+		final BleFuture<T> next = new BleFuture<>(_executor);
+		whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				next.complete(result);
+			}
+
+			@Override
+			public void onError(int error) {
+				next.complete(value);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Run the step once this future is done, whether it succeeded or failed. The returned
+	 * future has the result of this future, once the step is done too. The result of the step
+	 * itself is ignored.
+	 */
+	public BleFuture<T> ensure(final Supplier<?> step) {
+		final BleFuture<T> next = new BleFuture<>(_executor);
+		whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				onDone();
+			}
+
+			@Override
+			public void onError(int error) {
+				onDone();
+			}
+
+			private void onDone() {
+				step.get().whenDone(new Callback<Object>() {
+					@Override
+					public void onSuccess(Object result) {
+						forward(next);
+					}
+
+					@Override
+					public void onError(int error) {
+						forward(next);
+					}
+				});
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Fail with {@link #ERROR_TIMEOUT} if this future isn't done within the timeout. The
+	 * operation itself is not stopped, so follow up with a step which cleans up, e.g. with
+	 * {@link #ensure(Supplier)}.
+	 * @param handler handler on which the timeout is scheduled
+	 */
+	public BleFuture<T> timeout(long timeout, final Handler handler) {
+		final BleFuture<T> next = new BleFuture<>(_executor);
+		final Runnable expire = new Runnable() {
+			@Override
+			public void run() {
+				next.fail(ERROR_TIMEOUT);
+			}
+		};
+		handler.postDelayed(expire, timeout);
+		whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				handler.removeCallbacks(expire);
+				next.complete(result);
+			}
+
+			@Override
+			public void onError(int error) {
+				handler.removeCallbacks(expire);
+				next.fail(error);
+			}
+		});
+		return next;
+	}
+
+	/**
+	 * Start the operation, and start it again if it fails with an error for which retryable
+	 * returns true, at most the given number of attempts in total. Every retry waits longer,
+	 * delay ms times the number of attempts so far, so the device has time to recover.
+	 * @param handler handler on which the retries are scheduled
+	 * @param retryable returns false for errors which won't go away, e.g. a missing
+	 *                  characteristic, which fail the result right away
+	 */
+	public static <T> BleFuture<T> retry(int attempts, long delay, Handler handler,
+										 Stream.Function<Integer, Boolean> retryable, Supplier<T> operation) {
+		BleFuture<T> result = new BleFuture<>();
+		attempt(operation, 1, attempts, delay, handler, retryable, result);
+		return result;
+	}
+
+	private static <T> void attempt(final Supplier<T> operation, final int attempt, final int attempts,
+									final long delay, final Handler handler,
+									final Stream.Function<Integer, Boolean> retryable, final BleFuture<T> result) {
+		operation.get().whenDone(new Callback<T>() {
+			@Override
+			public void onSuccess(T value) {
+				result.complete(value);
+			}
+
+			@Override
+			public void onError(int error) {
+				if (attempt < attempts && retryable.apply(error)) {
+					handler.postDelayed(new Runnable() {
+						@Override
+						public void run() {
+							attempt(operation, attempt + 1, attempts, delay, handler, retryable, result);
+						}
+					}, delay * attempt);
+				} else {
+					result.fail(error);
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,108 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Initializes the library off the main thread, so that the activities can draw their first
+ * frame without waiting for the bluetooth adapter and the encryption keys. Destroy a library
+ * which was initialized this way with {@link #destroy(BleExt)}.
+ *
+ * The initialization runs on one shared background thread with a looper, in case the library
+ * creates handlers while it initializes. The status callback of the library and the ready
+ * callback are delivered on the main thread, so the activities can update their views from
+ * them as before.
+ *
+ * Created on 19-10-26
+ */
+public class BleStartup {
+
+	private static HandlerThread _thread;
+	private static Handler _background;
+	private static final Handler _main = new Handler(Looper.getMainLooper());
+
+	private static synchronized Handler getBackground() {
+		if (_background == null) {
+			_thread = new HandlerThread("BleStartup");
+			_thread.start();
+			_background = new Handler(_thread.getLooper());
+		}
+		return _background;
+	}
+
+	/**
+	 * Initialize the library and, if enabled, set the encryption keys.
+	 * @param status the status callback of the library, called whenever bluetooth is enabled or
+	 *               disabled
+	 * @param ready called once, after the library is initialized, e.g. to start connecting
+	 */
+	public static void init(final Context context, final BleExt ble, final IStatusCallback status, final Runnable ready) {
+		getBackground().post(new Runnable() {
+			@Override
+			public void run() {
+				ble.init(context, new IStatusCallback() {
+					@Override
+					public void onSuccess() {
+						_main.post(new Runnable() {
+							@Override
+							public void run() {
+								status.onSuccess();
+							}
+						});
+					}
+
+					@Override
+					public void onError(final int error) {
+						_main.post(new Runnable() {
+							@Override
+							public void run() {
+								status.onError(error);
+							}
+						});
+					}
+				});
+				// the key store is read here too, on the first start, instead of on the main thread
+				KeyStore.getInstance(context).apply(ble);
+				if (ready != null) {
+					_main.post(ready);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run the work on the background thread, after the initializations which were started
+	 * before, and then the ready callback, if any, on the main thread. E.g. to read the files
+	 * a screen needs without blocking its first frame.
+	 */
+	public static void load(final Runnable work, final Runnable ready) {
+		getBackground().post(new Runnable() {
+			@Override
+			public void run() {
+				work.run();
+				if (ready != null) {
+					_main.post(ready);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Destroy the library once its initialization is done, so that an activity which is
+	 * closed right away doesn't destroy the library before it is initialized.
+	 */
+	public static void destroy(final BleExt ble) {
+		getBackground().post(new Runnable() {
+			@Override
+			public void run() {
+				ble.destroy();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,59 @@
+package nl.dobots.bluenetexample;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * The link a {@link BulkTransfer} writes its payload over, e.g. the control characteristic
+ * of a connected stone, or a {@link SimulatedPeripheral} to measure throughput without
+ * hardware.
+ *
+ * The payload is divided into blocks of a fixed size. The peripheral keeps a checksum per
+ * block of the data it holds, so that only the blocks which differ have to be written.
+ * Blocks are written in chunks which fit in a single ATT packet.
+ *
+ * Created on 19-10-26
+ */
+public interface BlockTransport {
+
+	// default ATT MTU, used until a larger MTU was negotiated
+	int DEFAULT_MTU = 23;
+
+	interface ChecksumCallback {
+		/**
+		 * @param checksums CRC32 of every block the peripheral holds, in block order
+		 */
+		void onSuccess(int[] checksums);
+		void onError(int error);
+	}
+
+	/**
+	 * @return the negotiated ATT MTU of the link
+	 */
+	int getMtu();
+
+	/**
+	 * @return true if chunks can be written without waiting for a response, in which case
+	 * the transfer keeps several writes in flight
+	 */
+	boolean supportsWriteWithoutResponse();
+
+	/**
+	 * Read the checksums of the blocks the peripheral currently holds.
+	 * @param blockSize size of a block in bytes
+	 * @param blockCount number of blocks of the payload
+	 */
+	void readChecksums(int blockSize, int blockCount, ChecksumCallback callback);
+
+	/**
+	 * Write a chunk. Without response, the callback is called as soon as the chunk is queued
+	 * on the link, with response once the peripheral confirmed it.
+	 * @param chunk header and data, at most MTU - 3 bytes
+	 */
+	void writeChunk(byte[] chunk, boolean withResponse, IStatusCallback callback);
+
+	/**
+	 * Tell the peripheral that all blocks are written, so it can verify and apply the payload.
+	 */
+	void commit(IStatusCallback callback);
+
+}
@@ -0,0 +1,129 @@
+package nl.dobots.bluenetexample;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * This example activity shows how to run a maintenance operation (recover or factory reset)
+ * on many devices at once, e.g. when a site is redeployed. The activity receives the
+ * addresses of the devices and the operation to execute through the intent, and then
+ *
+ * 1. Creates one access point to the library per connection it wants to use in parallel
+ * 2. Runs the operation on all devices with the BulkMaintenanceJob, which retries failed
+ *    operations
+ * 3. Adds the result of every device to a report as soon as it is available, instead of
+ *    blocking the screen with a dialog per device
+ *
+ * Created on 19-10-26
+ */
+public class BulkMaintenanceActivity extends Activity {
+
+	private static final String TAG = BulkMaintenanceActivity.class.getCanonicalName();
+
+	public static final String EXTRA_ADDRESSES = "addresses";
+	public static final String EXTRA_OPERATION = "operation";
+
+	// how many devices are connected at the same time
+	public static final int MAX_CONNECTIONS = 3;
+
+	private ArrayList<BleExt> _connections = new ArrayList<>();
+	private BulkMaintenanceJob _job;
+
+	private TextView _txtStatus;
+	private TextView _txtReport;
+
+	private int _total;
+	private int _done;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		setContentView(R.layout.activity_bulk);
+		_txtStatus = (TextView) findViewById(R.id.txtBulkStatus);
+		_txtReport = (TextView) findViewById(R.id.txtBulkReport);
+
+		String[] addresses = getIntent().getStringArrayExtra(EXTRA_ADDRESSES);
+		BulkMaintenanceJob.Operation operation =
+				BulkMaintenanceJob.Operation.valueOf(getIntent().getStringExtra(EXTRA_OPERATION));
+		_total = addresses.length;
+
+		// every access point to the library holds its own connection, so create as many as
+		// we want to have devices connected in parallel
+		int connections = Math.min(MAX_CONNECTIONS, addresses.length);
+		for (int i = 0; i < connections; i++) {
+			BleExt ble = new BleExt();
+			ble.init(this, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					Log.v(TAG, "onSuccess");
+				}
+
+				@Override
+				public void onError(int error) {
+					Log.e(TAG, "onError: " + error);
+				}
+			});
+			// the keys of the stone's sphere are set before every connection, see the key store
+			_connections.add(ble);
+		}
+
+		updateStatus(operation + " running");
+
+		_job = new BulkMaintenanceJob(_connections, operation, Arrays.asList(addresses), new BulkMaintenanceJob.Listener() {
+			@Override
+			public void onResult(final BulkMaintenanceJob.Result result) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						_done++;
+						if (result.success) {
+							_txtReport.append(result.address + ": success (attempts: " + result.attempts + ")\n");
+						} else {
+							_txtReport.append(result.address + ": failed with error " + result.error + " (attempts: " + result.attempts + ")\n");
+						}
+						updateStatus(null);
+					}
+				});
+			}
+
+			@Override
+			public void onFinished(final int succeeded, final int failed) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						updateStatus("finished, " + succeeded + " succeeded, " + failed + " failed");
+					}
+				});
+			}
+		}, KeyStore.getInstance(this));
+		_job.start();
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		_job.cancel();
+		for (BleExt ble : _connections) {
+			ble.destroy();
+		}
+	}
+
+	private String _state = "";
+
+	private void updateStatus(String state) {
+		if (state != null) {
+			_state = state;
+		}
+		_txtStatus.setText(_state + " (" + _done + "/" + _total + ")");
+	}
+
+}
@@ -0,0 +1,215 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.cfg.BleErrors;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Runs a maintenance operation (recover or factory reset) on a set of devices. Every BleExt
+ * instance handed to the job can hold one connection, so the job runs as many operations
+ * concurrently as it has connections. Each connection takes the next device from a shared
+ * queue once it is done with the previous one. Failed operations are retried a couple of
+ * times with a short back off, unless the error shows that retrying won't help.
+ *
+ * Results are reported per device as soon as they are available, through the listener. The
+ * listener is called on the BLE thread.
+ *
+ * Created on 19-10-26
+ */
+public class BulkMaintenanceJob {
+
+	private static final String TAG = BulkMaintenanceJob.class.getCanonicalName();
+
+	// how often an operation is tried on a device before giving up
+	public static final int MAX_ATTEMPTS = 3;
+	// delay before an operation is retried, multiplied with the number of attempts
+	private static final int RETRY_DELAY = 1000;
+
+	public enum Operation {
+		RECOVER,
+		FACTORY_RESET
+	}
+
+	public static class Result {
+		public final String address;
+		public final boolean success;
+		public final int error;
+		public final int attempts;
+
+		Result(String address, boolean success, int error, int attempts) {
+			this.address = address;
+			this.success = success;
+			this.error = error;
+			this.attempts = attempts;
+		}
+	}
+
+	public interface Listener {
+		void onResult(Result result);
+		void onFinished(int succeeded, int failed);
+	}
+
+	private final List<BleExt> _connections;
+	private final Operation _operation;
+	private final Listener _listener;
+	private final KeyStore _keys;
+
+	private final ConcurrentLinkedQueue<String> _queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger _activeConnections = new AtomicInteger();
+	private final AtomicInteger _succeeded = new AtomicInteger();
+	private final AtomicInteger _failed = new AtomicInteger();
+	// connections which are acquired at the radio arbiter, as their link is up
+	private final HashSet<BleExt> _held = new HashSet<>();
+
+	private final Handler _handler = new Handler(Looper.getMainLooper());
+	private volatile boolean _cancelled = false;
+
+	public BulkMaintenanceJob(List<BleExt> connections, Operation operation, List<String> addresses, Listener listener,
+							  KeyStore keys) {
+		_connections = connections;
+		_operation = operation;
+		_listener = listener;
+		_keys = keys;
+		_queue.addAll(addresses);
+	}
+
+	public void start() {
+		_activeConnections.set(_connections.size());
+		for (BleExt connection : _connections) {
+			next(connection);
+		}
+	}
+
+	/**
+	 * Stop taking new devices from the queue. Operations which are already running will
+	 * finish, but are not retried anymore. After cancelling, the listener is not guaranteed
+	 * to get the onFinished call. The connections are released at the radio arbiter, as the
+	 * callbacks of the running operations might not come anymore once the caller destroys the
+	 * connections.
+	 */
+	public void cancel() {
+		_cancelled = true;
+		_queue.clear();
+		_handler.removeCallbacksAndMessages(null);
+		synchronized (_held) {
+			for (int i = 0; i < _held.size(); i++) {
+				RadioArbiter.getInstance().releaseConnection(RadioAccounting.Feature.MAINTENANCE);
+			}
+			_held.clear();
+		}
+	}
+
+	public int getRemaining() {
+		return _queue.size();
+	}
+
+	private void next(BleExt connection) {
+		String address = _cancelled ? null : _queue.poll();
+		if (address == null) {
+			// this connection is done, the last one to finish reports the total
+			if (_activeConnections.decrementAndGet() == 0) {
+				_listener.onFinished(_succeeded.get(), _failed.get());
+			}
+			return;
+		}
+		execute(connection, address, 1);
+	}
+
+	private void execute(final BleExt connection, final String address, final int attempt) {
+		IStatusCallback callback = new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				Log.i(TAG, _operation + " " + address + " success");
+				_succeeded.incrementAndGet();
+				_listener.onResult(new Result(address, true, 0, attempt));
+				close(connection, new Runnable() {
+					@Override
+					public void run() {
+						next(connection);
+					}
+				});
+			}
+
+			@Override
+			public void onError(final int error) {
+				Log.e(TAG, _operation + " " + address + " failed with error: " + error);
+				close(connection, new Runnable() {
+					@Override
+					public void run() {
+						if (!_cancelled && attempt < MAX_ATTEMPTS && isTransient(error)) {
+							_handler.postDelayed(new Runnable() {
+								@Override
+								public void run() {
+									execute(connection, address, attempt + 1);
+								}
+							}, RETRY_DELAY * attempt);
+						} else {
+							_failed.incrementAndGet();
+							_listener.onResult(new Result(address, false, error, attempt));
+							next(connection);
+						}
+					}
+				});
+			}
+		};
+
+		_keys.apply(connection, address);
+		// while we are connected, scanners only scan at a low duty cycle
+		synchronized (_held) {
+			_held.add(connection);
+			RadioArbiter.getInstance().acquireConnection(RadioAccounting.Feature.MAINTENANCE);
+		}
+		switch (_operation) {
+			case RECOVER:
+				connection.recover(address, callback);
+				break;
+			case FACTORY_RESET:
+				connection.writeFactoryReset(address, callback);
+				break;
+		}
+	}
+
+	/**
+	 * Disconnect from the device right away, instead of once the disconnect timeout of the
+	 * library expires, and release the connection once the link is closed. Only then the
+	 * connection goes on with the next device.
+	 */
+	private void close(final BleExt connection, final Runnable then) {
+		IStatusCallback closed = new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				synchronized (_held) {
+					// unless the job was cancelled, which released it already
+					if (_held.remove(connection)) {
+						RadioArbiter.getInstance().releaseConnection(RadioAccounting.Feature.MAINTENANCE);
+					}
+				}
+				then.run();
+			}
+
+			@Override
+			public void onError(int error) {
+				onSuccess();
+			}
+		};
+		// returns false, without calling back, if there is no link to close
+		if (!connection.disconnectAndClose(false, closed)) {
+			closed.onSuccess();
+		}
+	}
+
+	private boolean isTransient(int error) {
+		// if the device doesn't have the characteristic, it won't have it on the next try either
+		return error != BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND;
+	}
+
+}
@@ -0,0 +1,310 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.zip.CRC32;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * Pushes a payload, e.g. a configuration or firmware image, to a peripheral over a
+ * {@link BlockTransport}:
+ *
+ * 		* the payload is divided into blocks of {@link #BLOCK_SIZE} bytes. the checksums of the
+ * 		  blocks the peripheral holds are read first, and only the blocks which differ are sent
+ * 		* blocks are sent in chunks which fill the negotiated MTU
+ * 		* if the transport supports writes without response, up to {@link #PIPELINE_DEPTH}
+ * 		  chunks are kept in flight instead of waiting for every write to complete
+ * 		* progress is checkpointed per address and payload, so a transfer which is interrupted,
+ * 		  e.g. by a disconnect, resumes at the block where it stopped. the checksums stay
+ * 		  authoritative, blocks before the checkpoint which differ are sent again
+ *
+ * Chunks have a header of four bytes, the block index and the offset in the block, both as
+ * unsigned 16 bit little endian values.
+ *
+ * All work is done on the thread of the given handler, the listener is called on that thread.
+ *
+ * Created on 19-10-26
+ */
+public class BulkTransfer {
+
+	private static final String TAG = BulkTransfer.class.getCanonicalName();
+
+	public static final int BLOCK_SIZE = 256;
+	// maximum number of chunks in flight when writing without response
+	public static final int PIPELINE_DEPTH = 8;
+
+	private static final int ATT_HEADER_SIZE = 3;
+	private static final int CHUNK_HEADER_SIZE = 4;
+	// the checkpoint is stored every so many blocks, not for every block
+	private static final int CHECKPOINT_INTERVAL = 8;
+
+	private static final String PREFERENCES = "bulk_transfer";
+
+	public static class Result {
+		// size of the payload, and the bytes which actually had to be sent
+		public int payloadBytes;
+		public int sentBytes;
+		public int blocks;
+		public int sentBlocks;
+		// blocks before the checkpoint which the peripheral still held, so were not sent again
+		public int resumedBlocks;
+		public int chunkSize;
+		public long duration;
+
+		/**
+		 * @return throughput of the sent data in KB/s
+		 */
+		public double getThroughput() {
+			return duration == 0 ? 0 : sentBytes / 1.024 / duration;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("sent %d of %d blocks (%d resumed), %.1f KB in %d ms, %.1f KB/s",
+					sentBlocks, blocks, resumedBlocks, sentBytes / 1024.0, duration, getThroughput());
+		}
+	}
+
+	public interface Listener {
+		void onProgress(int sentBlocks, int totalBlocks);
+		void onFinished(Result result);
+		void onError(int error);
+	}
+
+	private final BlockTransport _transport;
+	private final byte[] _payload;
+	private final Handler _handler;
+	private final Listener _listener;
+
+	private final SharedPreferences _checkpoints;
+	private final String _checkpointKey;
+
+	private final int _blockCount;
+	private final int[] _checksums;
+	private final int _chunkSize;
+	private final boolean _pipelined;
+
+	// indices of the blocks to send, in ascending order
+	private int[] _dirtyBlocks;
+	private int _dirtyCount;
+
+	// position of the next chunk to send
+	private int _nextDirty;
+	private int _nextOffset;
+	// number of dirty blocks of which all chunks completed
+	private int _completedDirty;
+	private int _inFlight;
+
+	private boolean _running = false;
+	private long _startTime;
+	private final Result _result = new Result();
+
+	/**
+	 * @param context used to store the checkpoints
+	 * @param address address of the peripheral, identifies the checkpoint together with the
+	 *                payload
+	 */
+	public BulkTransfer(Context context, String address, BlockTransport transport, byte[] payload,
+						Handler handler, Listener listener) {
+		_transport = transport;
+		_payload = payload;
+		_handler = handler;
+		_listener = listener;
+
+		_blockCount = (payload.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		_checksums = new int[_blockCount];
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < _blockCount; i++) {
+			crc.reset();
+			crc.update(payload, i * BLOCK_SIZE, blockLength(i));
+			_checksums[i] = (int) crc.getValue();
+		}
+
+		crc.reset();
+		crc.update(payload);
+		_checkpoints = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+		_checkpointKey = address + "/" + Long.toHexString(crc.getValue()) + "/" + payload.length;
+
+		_chunkSize = transport.getMtu() - ATT_HEADER_SIZE - CHUNK_HEADER_SIZE;
+		_pipelined = transport.supportsWriteWithoutResponse();
+
+		_result.payloadBytes = payload.length;
+		_result.blocks = _blockCount;
+		_result.chunkSize = _chunkSize;
+	}
+
+	public void start() {
+		_running = true;
+		_startTime = SystemClock.elapsedRealtime();
+		_transport.readChecksums(BLOCK_SIZE, _blockCount, new BlockTransport.ChecksumCallback() {
+			@Override
+			public void onSuccess(final int[] checksums) {
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (_running) {
+							onChecksums(checksums);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void onError(int error) {
+				fail(error);
+			}
+		});
+	}
+
+	/**
+	 * Stop the transfer. The checkpoint is kept, so a new transfer of the same payload to the
+	 * same address continues where this one stopped.
+	 */
+	public void cancel() {
+		_running = false;
+	}
+
+	private void onChecksums(int[] remote) {
+		// blocks before the checkpoint were written in an earlier, interrupted transfer. the
+		// checkpoint is only a hint, the checksums decide: if the peripheral was reset or erased
+		// since, its blocks differ again and are sent again
+		int checkpoint = _checkpoints.getInt(_checkpointKey, 0);
+
+		_dirtyBlocks = new int[_blockCount];
+		_dirtyCount = 0;
+		for (int i = 0; i < _blockCount; i++) {
+			if (i >= remote.length || remote[i] != _checksums[i]) {
+				_dirtyBlocks[_dirtyCount++] = i;
+			} else if (i < checkpoint) {
+				_result.resumedBlocks++;
+			}
+		}
+		Log.d(TAG, String.format("%d of %d blocks differ, resuming at block %d", _dirtyCount, _blockCount, checkpoint));
+
+		pump();
+	}
+
+	/**
+	 * Send chunks until the pipeline is full, or finish if all chunks completed.
+	 */
+	private void pump() {
+		if (!_running) {
+			return;
+		}
+		if (_completedDirty == _dirtyCount) {
+			finish();
+			return;
+		}
+
+		int depth = _pipelined ? PIPELINE_DEPTH : 1;
+		while (_inFlight < depth && _nextDirty < _dirtyCount) {
+			int block = _dirtyBlocks[_nextDirty];
+			int length = Math.min(_chunkSize, blockLength(block) - _nextOffset);
+			final boolean lastOfBlock = _nextOffset + length == blockLength(block);
+
+			byte[] chunk = new byte[CHUNK_HEADER_SIZE + length];
+			chunk[0] = (byte) block;
+			chunk[1] = (byte) (block >> 8);
+			chunk[2] = (byte) _nextOffset;
+			chunk[3] = (byte) (_nextOffset >> 8);
+			System.arraycopy(_payload, block * BLOCK_SIZE + _nextOffset, chunk, CHUNK_HEADER_SIZE, length);
+
+			if (lastOfBlock) {
+				_nextDirty++;
+				_nextOffset = 0;
+			} else {
+				_nextOffset += length;
+			}
+			_inFlight++;
+			_result.sentBytes += length;
+
+			_transport.writeChunk(chunk, !_pipelined, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					_handler.post(new Runnable() {
+						@Override
+						public void run() {
+							onChunkWritten(lastOfBlock);
+						}
+					});
+				}
+
+				@Override
+				public void onError(int error) {
+					fail(error);
+				}
+			});
+		}
+	}
+
+	private void onChunkWritten(boolean lastOfBlock) {
+		_inFlight--;
+		if (lastOfBlock) {
+			// the link delivers chunks in order, so all blocks up to this one are written
+			_completedDirty++;
+			_result.sentBlocks++;
+			if (_completedDirty % CHECKPOINT_INTERVAL == 0) {
+				checkpoint(_dirtyBlocks[_completedDirty - 1] + 1);
+			}
+			_listener.onProgress(_completedDirty, _dirtyCount);
+		}
+		pump();
+	}
+
+	private void finish() {
+		if (_dirtyCount > 0) {
+			checkpoint(_dirtyBlocks[_dirtyCount - 1] + 1);
+		}
+		_transport.commit(new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						_running = false;
+						_checkpoints.edit().remove(_checkpointKey).apply();
+						_result.duration = SystemClock.elapsedRealtime() - _startTime;
+						Log.i(TAG, _result.toString());
+						_listener.onFinished(_result);
+					}
+				});
+			}
+
+			@Override
+			public void onError(int error) {
+				fail(error);
+			}
+		});
+	}
+
+	private void fail(final int error) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				Log.e(TAG, "transfer failed: " + error);
+				// store how far we got, so that the next attempt resumes from there
+				if (_completedDirty > 0) {
+					checkpoint(_dirtyBlocks[_completedDirty - 1] + 1);
+				}
+				if (_running) {
+					_running = false;
+					_listener.onError(error);
+				}
+			}
+		});
+	}
+
+	private void checkpoint(int block) {
+		_checkpoints.edit().putInt(_checkpointKey, block).apply();
+	}
+
+	private int blockLength(int block) {
+		return Math.min(BLOCK_SIZE, _payload.length - block * BLOCK_SIZE);
+	}
+
+}
@@ -0,0 +1,377 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+
+import org.json.JSONObject;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IDiscoveryCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IProgressCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * Ties the callbacks of a screen to its lifecycle. The callbacks of the library are usually
+ * anonymous classes which capture the activity, and the library keeps them until the
+ * operation is done, which can be long after the activity was destroyed. Wrap them with the
+ * scope of the activity instead, and cancel the scope in onDestroy:
+ *
+ * 		* the library only gets a wrapper, which holds the callback weakly. the scope holds the
+ * 		  callbacks strongly until they are called or the scope is cancelled, after which they
+ * 		  (and the activity) can be collected. callbacks which are called more than once, e.g.
+ * 		  the status callback of BleExt.init, are wrapped with
+ * 		  {@link #wrapMultiShot(IStatusCallback)}, and are held until the scope is cancelled
+ * 		* callbacks are not called anymore once the scope is cancelled. if an {@link Operation}
+ * 		  is given, the result goes to the operation instead, so an operation which continues
+ * 		  in the background still finishes on the previous screen
+ * 		* work posted with {@link #post(Runnable, long)} is dropped on cancel
+ * 		* actions registered with {@link #onCancel(Runnable)} run on cancel, e.g. to abort a
+ * 		  connection
+ *
+ * A callback which is already running when the scope is cancelled on another thread still
+ * finishes.
+ *
+ * Created on 19-10-26
+ */
+public class CallbackScope {
+
+	private final Handler _handler;
+
+	// the callbacks which are waiting to be called, held strongly until then
+	private final Set<Object> _callbacks = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+	private final ArrayList<Runnable> _posted = new ArrayList<>();
+	private final ArrayList<Runnable> _cancelActions = new ArrayList<>();
+	private volatile boolean _cancelled = false;
+
+	/**
+	 * @param handler handler of the thread on which posted work runs
+	 */
+	public CallbackScope(Handler handler) {
+		_handler = handler;
+	}
+
+	public boolean isCancelled() {
+		return _cancelled;
+	}
+
+	/**
+	 * Cancel the scope: drop the callbacks and posted work, and run the cancel actions.
+	 */
+	public void cancel() {
+		ArrayList<Runnable> actions;
+		synchronized (this) {
+			if (_cancelled) {
+				return;
+			}
+			_cancelled = true;
+			_callbacks.clear();
+			for (Runnable runnable : _posted) {
+				_handler.removeCallbacks(runnable);
+			}
+			_posted.clear();
+			actions = new ArrayList<>(_cancelActions);
+			_cancelActions.clear();
+		}
+		for (Runnable action : actions) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Run the action when the scope is cancelled, or right away if it already is.
+	 */
+	public void onCancel(Runnable action) {
+		synchronized (this) {
+			if (!_cancelled) {
+				_cancelActions.add(action);
+				return;
+			}
+		}
+		action.run();
+	}
+
+	/**
+	 * Post work which is dropped if the scope is cancelled before it runs.
+	 */
+	public void post(final Runnable runnable, long delay) {
+		synchronized (this) {
+			if (_cancelled) {
+				return;
+			}
+			Runnable posted = new Runnable() {
+				@Override
+				public void run() {
+					synchronized (CallbackScope.this) {
+						if (!_posted.remove(this)) {
+							return;
+						}
+					}
+					runnable.run();
+				}
+			};
+			_posted.add(posted);
+			_handler.postDelayed(posted, delay);
+		}
+	}
+
+	/**
+	 * Link between a wrapper, which is held by the library, and the callback. Only holds weak
+	 * references, so the library can't keep the scope or the callback alive.
+	 */
+	private static class Link<T> {
+		private final WeakReference<CallbackScope> _scope;
+		private final WeakReference<T> _callback;
+
+		Link(CallbackScope scope, T callback) {
+			_scope = new WeakReference<>(scope);
+			_callback = new WeakReference<>(callback);
+			synchronized (scope) {
+				if (!scope._cancelled) {
+					scope._callbacks.add(callback);
+				}
+			}
+		}
+
+		/**
+		 * @return the callback, or null if the scope was cancelled
+		 */
+		T get() {
+			CallbackScope scope = _scope.get();
+			if (scope == null || scope._cancelled) {
+				return null;
+			}
+			return _callback.get();
+		}
+
+		/**
+		 * The last call of the callback, after which the scope doesn't have to hold it anymore.
+		 * @return the callback, or null if the scope was cancelled
+		 */
+		T finish() {
+			T callback = get();
+			CallbackScope scope = _scope.get();
+			if (callback != null && scope != null) {
+				synchronized (scope) {
+					scope._callbacks.remove(callback);
+				}
+			}
+			return callback;
+		}
+	}
+
+	public Runnable wrap(Runnable runnable) {
+		final Link<Runnable> link = new Link<>(this, runnable);
+		return new Runnable() {
+			@Override
+			public void run() {
+				Runnable target = link.finish();
+				if (target != null) {
+					target.run();
+				}
+			}
+		};
+	}
+
+	public IStatusCallback wrap(IStatusCallback callback) {
+		return wrap(callback, null);
+	}
+
+	/**
+	 * Wrap a callback which is called more than once, e.g. the status callback of BleExt.init,
+	 * which reports every change of the bluetooth state. The scope holds it until the scope is
+	 * cancelled, instead of until the first call.
+	 */
+	public IStatusCallback wrapMultiShot(IStatusCallback callback) {
+		final Link<IStatusCallback> link = new Link<>(this, callback);
+		return new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				IStatusCallback target = link.get();
+				if (target != null) {
+					target.onSuccess();
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				IStatusCallback target = link.get();
+				if (target != null) {
+					target.onError(error);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @param operation the operation which gets the result if the scope is cancelled, or null
+	 */
+	public IStatusCallback wrap(IStatusCallback callback, final Operation operation) {
+		final Link<IStatusCallback> link = new Link<>(this, callback);
+		return new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				IStatusCallback target = link.finish();
+				if (target != null) {
+					target.onSuccess();
+				} else if (operation != null) {
+					operation.succeed(null);
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				IStatusCallback target = link.finish();
+				if (target != null) {
+					target.onError(error);
+				} else if (operation != null) {
+					operation.fail("failed with error: " + error);
+				}
+			}
+		};
+	}
+
+	public IBooleanCallback wrap(IBooleanCallback callback, final Operation operation) {
+		final Link<IBooleanCallback> link = new Link<>(this, callback);
+		return new IBooleanCallback() {
+			@Override
+			public void onSuccess(boolean result) {
+				IBooleanCallback target = link.finish();
+				if (target != null) {
+					target.onSuccess(result);
+				} else if (operation != null) {
+					operation.succeed(null);
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				IBooleanCallback target = link.finish();
+				if (target != null) {
+					target.onError(error);
+				} else if (operation != null) {
+					operation.fail("failed with error: " + error);
+				}
+			}
+		};
+	}
+
+	public IIntegerCallback wrap(IIntegerCallback callback, final Operation operation) {
+		final Link<IIntegerCallback> link = new Link<>(this, callback);
+		return new IIntegerCallback() {
+			@Override
+			public void onSuccess(int result) {
+				IIntegerCallback target = link.finish();
+				if (target != null) {
+					target.onSuccess(result);
+				} else if (operation != null) {
+					operation.succeed(null);
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				IIntegerCallback target = link.finish();
+				if (target != null) {
+					target.onError(error);
+				} else if (operation != null) {
+					operation.fail("failed with error: " + error);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The progress of a cancelled scope goes to the operation. The final result is reported
+	 * through a separate status callback, so the progress callback is held until the scope
+	 * is cancelled.
+	 */
+	public IProgressCallback wrap(IProgressCallback callback, final Operation operation) {
+		final Link<IProgressCallback> link = new Link<>(this, callback);
+		return new IProgressCallback() {
+			@Override
+			public void onProgress(double progress, JSONObject status) {
+				IProgressCallback target = link.get();
+				if (target != null) {
+					target.onProgress(progress, status);
+				} else if (operation != null) {
+					operation.setProgress((int) progress);
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				IProgressCallback target = link.get();
+				if (target != null) {
+					target.onError(error);
+				} else if (operation != null) {
+					operation.setMessage("failed with error: " + error);
+				}
+			}
+		};
+	}
+
+	public <T> BleFuture.Callback<T> wrap(BleFuture.Callback<T> callback, final Operation operation) {
+		final Link<BleFuture.Callback<T>> link = new Link<>(this, callback);
+		return new BleFuture.Callback<T>() {
+			@Override
+			public void onSuccess(T result) {
+				BleFuture.Callback<T> target = link.finish();
+				if (target != null) {
+					target.onSuccess(result);
+				} else if (operation != null) {
+					operation.succeed(null);
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				BleFuture.Callback<T> target = link.finish();
+				if (target != null) {
+					target.onError(error);
+				} else if (operation != null) {
+					operation.fail("failed with error: " + error);
+				}
+			}
+		};
+	}
+
+	public IDiscoveryCallback wrap(IDiscoveryCallback callback, final Operation operation) {
+		final Link<IDiscoveryCallback> link = new Link<>(this, callback);
+		return new IDiscoveryCallback() {
+			@Override
+			public void onDiscovery(String serviceUuid, String characteristicUuid) {
+				IDiscoveryCallback target = link.get();
+				if (target != null) {
+					target.onDiscovery(serviceUuid, characteristicUuid);
+				}
+			}
+
+			@Override
+			public void onSuccess() {
+				IDiscoveryCallback target = link.finish();
+				if (target != null) {
+					target.onSuccess();
+				} else if (operation != null) {
+					operation.succeed(null);
+				}
+			}
+
+			@Override
+			public void onError(int error) {
+				IDiscoveryCallback target = link.finish();
+				if (target != null) {
+					target.onError(error);
+				} else if (operation != null) {
+					operation.fail("failed with error: " + error);
+				}
+			}
+		};
+	}
+
+}
@@ -0,0 +1,311 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persistent journal of relay commands for stones which are out of range. A command which
+ * failed because the stone couldn't be reached is journaled with a deadline, and delivered
+ * as soon as the stone is seen again by a scan, through the {@link CommandQueue} which is
+ * attached to the journal:
+ *
+ * 		* there is at most one command per stone, a new command replaces the journaled one,
+ * 		  only the latest requested state matters
+ * 		* commands which are not delivered before their deadline are dropped
+ * 		* a command stays in the journal until it was executed successfully. if it fails
+ * 		  again, it is retried when the stone is seen after {@link #RETRY_DELAY}
+ * 		* the journal is written to a file on every change, so it survives a restart of the
+ * 		  app. the file is written on a background thread, in the order of the changes, so
+ * 		  neither the scan thread nor the UI thread waits for the file
+ *
+ * {@link #onDeviceSeen(String)} is called for every scanned device, so it is a single lookup
+ * in a {@link MacIndex}, without allocations and without a lock if the journal is empty.
+ *
+ * Created on 19-10-26
+ */
+public class CommandJournal implements CommandQueue.Listener {
+
+	private static final String TAG = CommandJournal.class.getCanonicalName();
+
+	public static final String FILE = "command_journal";
+
+	// how long a command is kept by default, in ms
+	public static final long DEFAULT_DEADLINE = 60 * 60 * 1000;
+	// time before a command which failed is tried again, in ms
+	public static final long RETRY_DELAY = 30 * 1000;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static CommandJournal _instance;
+	private static ExecutorService _writer;
+
+	private final File _file;
+	private CommandQueue _queue;
+
+	// the commands, in slots 0 to size - 1
+	private volatile int _size;
+	private long[] _mac = new long[INITIAL_CAPACITY];
+	private boolean[] _relayOn = new boolean[INITIAL_CAPACITY];
+	private long[] _deadline = new long[INITIAL_CAPACITY];
+	// the command is not dispatched again before this time
+	private long[] _retryAt = new long[INITIAL_CAPACITY];
+	private boolean[] _dispatched = new boolean[INITIAL_CAPACITY];
+
+	// mac -> slot
+	private final MacIndex _index = new MacIndex();
+
+	public static synchronized CommandJournal getInstance(Context context) {
+		if (_instance == null) {
+			_instance = new CommandJournal(new File(context.getFilesDir(), FILE));
+		}
+		return _instance;
+	}
+
+	private static synchronized ExecutorService getWriter() {
+		if (_writer == null) {
+			_writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "CommandJournal");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _writer;
+	}
+
+	public CommandJournal(File file) {
+		_file = file;
+		load();
+	}
+
+	/**
+	 * Deliver the commands through the queue, the journal listens to the results of the
+	 * queue. Replaces the queue which was attached before.
+	 */
+	public synchronized void attach(CommandQueue queue) {
+		_queue = queue;
+		queue.setListener(this);
+	}
+
+	/**
+	 * Stop delivering through the queue, if it is attached. Commands which are still being
+	 * delivered through it are delivered again through the next queue.
+	 */
+	public synchronized void detach(CommandQueue queue) {
+		if (_queue == queue) {
+			_queue = null;
+			Arrays.fill(_dispatched, false);
+		}
+		if (queue.getListener() == this) {
+			queue.setListener(null);
+		}
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Journal a command, replacing the command which is journaled for the stone.
+	 * @param deadline time until which the command is delivered, in ms
+	 */
+	public synchronized void add(String address, boolean relayOn, long deadline) {
+		put(address, relayOn, deadline);
+		save();
+	}
+
+	private void put(String address, boolean relayOn, long deadline) {
+		long mac = DeviceStore.parseMac(address);
+		int slot = _index.get(mac);
+		if (slot < 0) {
+			slot = _size;
+			if (slot == _mac.length) {
+				grow();
+			}
+			_mac[slot] = mac;
+			_index.put(mac, slot);
+			_size++;
+		}
+		_relayOn[slot] = relayOn;
+		_deadline[slot] = deadline;
+		_retryAt[slot] = 0;
+		_dispatched[slot] = false;
+	}
+
+	/**
+	 * Remove the command of the stone, e.g. because the stone was switched directly.
+	 */
+	public synchronized void remove(String address) {
+		int slot = _index.get(DeviceStore.parseMac(address));
+		if (slot >= 0) {
+			removeSlot(slot);
+			save();
+		}
+	}
+
+	/**
+	 * Called for every scanned device. Dispatches the command of the device, if there is one.
+	 */
+	public void onDeviceSeen(String address) {
+		if (_size == 0) {
+			return;
+		}
+		boolean relayOn;
+		CommandQueue queue;
+		synchronized (this) {
+			if (_queue == null) {
+				return;
+			}
+			int slot = _index.get(DeviceStore.parseMac(address));
+			if (slot < 0 || _dispatched[slot]) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			if (now > _deadline[slot]) {
+				// drop the other expired commands too, so the file is written once
+				for (int i = _size - 1; i >= 0; i--) {
+					if (now > _deadline[i] && !_dispatched[i]) {
+						Log.i(TAG, "command for " + DeviceStore.formatMac(_mac[i]) + " expired");
+						removeSlot(i);
+					}
+				}
+				save();
+				return;
+			}
+			if (now < _retryAt[slot]) {
+				return;
+			}
+			_dispatched[slot] = true;
+			relayOn = _relayOn[slot];
+			queue = _queue;
+		}
+		Log.i(TAG, "deliver command for " + address + ": " + (relayOn ? "on" : "off"));
+		if (!queue.offer(address, relayOn)) {
+			onExecuted(address, relayOn, false);
+		}
+	}
+
+	@Override
+	public void onExecuted(String address, boolean relayOn, boolean success) {
+		synchronized (this) {
+			int slot = _index.get(DeviceStore.parseMac(address));
+			if (slot < 0 || !_dispatched[slot]) {
+				// not a journaled command, or the command was replaced in the meantime
+				return;
+			}
+			_dispatched[slot] = false;
+			if (_relayOn[slot] != relayOn) {
+				return;
+			}
+			if (success) {
+				removeSlot(slot);
+				save();
+			} else {
+				_retryAt[slot] = System.currentTimeMillis() + RETRY_DELAY;
+			}
+		}
+	}
+
+	private void removeSlot(int slot) {
+		// move the last command into the slot, and rebuild the index. commands are removed
+		// rarely, and the journal is small
+		int last = --_size;
+		_mac[slot] = _mac[last];
+		_relayOn[slot] = _relayOn[last];
+		_deadline[slot] = _deadline[last];
+		_retryAt[slot] = _retryAt[last];
+		_dispatched[slot] = _dispatched[last];
+		_index.clear();
+		for (int i = 0; i < _size; i++) {
+			_index.put(_mac[i], i);
+		}
+	}
+
+	private void grow() {
+		int capacity = _mac.length * 2;
+		_mac = Arrays.copyOf(_mac, capacity);
+		_relayOn = Arrays.copyOf(_relayOn, capacity);
+		_deadline = Arrays.copyOf(_deadline, capacity);
+		_retryAt = Arrays.copyOf(_retryAt, capacity);
+		_dispatched = Arrays.copyOf(_dispatched, capacity);
+	}
+
+	/**
+	 * Read the journal from the file. Every line has a command:
+	 *
+	 * 		address on|off deadline
+	 */
+	private void load() {
+		if (!_file.exists()) {
+			return;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(_file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split(" ");
+					if (parts.length != 3) {
+						Log.e(TAG, "invalid line in journal: " + line);
+						continue;
+					}
+					put(parts[0], "on".equals(parts[1]), Long.parseLong(parts[2]));
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | NumberFormatException e) {
+			Log.e(TAG, "failed to read the journal", e);
+		}
+	}
+
+	/**
+	 * Write the journal to a new file on the writer thread, and replace the old file with it,
+	 * so the journal is never left half written. Call with the lock of the journal held, the
+	 * contents are copied right away.
+	 */
+	private void save() {
+		StringBuilder contents = new StringBuilder();
+		for (int i = 0; i < _size; i++) {
+			contents.append(DeviceStore.formatMac(_mac[i])).append(" ").append(_relayOn[i] ? "on" : "off")
+					.append(" ").append(_deadline[i]).append("\n");
+		}
+		final String journal = contents.toString();
+		getWriter().execute(new Runnable() {
+			@Override
+			public void run() {
+				write(journal);
+			}
+		});
+	}
+
+	private void write(String journal) {
+		File temp = new File(_file.getPath() + ".tmp");
+		try {
+			FileWriter writer = new FileWriter(temp);
+			try {
+				writer.write(journal);
+			} finally {
+				writer.close();
+			}
+			if (!temp.renameTo(_file)) {
+				Log.e(TAG, "failed to replace the journal");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "failed to write the journal", e);
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package nl.dobots.bluenetexample;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * Bounded queue for relay commands from remote clients, e.g. through the {@link GatewayServer}:
+ *
+ * 		* at most {@link #getCapacity()} commands wait at any time, further commands are
+ * 		  rejected so that a burst of requests can't build up an unbounded backlog
+ * 		* commands for the same device are executed one after the other, never concurrently
+ * 		* commands for different devices are executed concurrently, up to the number of
+ * 		  connections of the executor
+ * 		* a command for a device which already has a command waiting replaces the waiting
+ * 		  command, only the latest requested state matters
+ *
+ * The queue is thread safe, commands can be offered from any thread. A {@link Listener} is
+ * informed about the result of every command.
+ *
+ * Created on 19-10-26
+ */
+public class CommandQueue {
+
+	private static final String TAG = CommandQueue.class.getCanonicalName();
+
+	public interface Executor {
+		/**
+		 * @return how many commands can be executed concurrently
+		 */
+		int getConnections();
+
+		/**
+		 * Switch the relay of a device, call the callback once done (on any thread).
+		 */
+		void execute(String address, boolean relayOn, IStatusCallback callback);
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the thread of the executor's callback, once a command is done.
+		 */
+		void onExecuted(String address, boolean relayOn, boolean success);
+	}
+
+	private static class DeviceQueue {
+		// the next state to set, valid if pending is true
+		boolean relayOn;
+		boolean pending = false;
+		boolean running = false;
+	}
+
+	private final Executor _executor;
+	private final int _capacity;
+	private volatile Listener _listener;
+
+	private final HashMap<String, DeviceQueue> _devices = new HashMap<>();
+	// devices with a pending command which is not running yet, in order of arrival
+	private final ArrayDeque<String> _ready = new ArrayDeque<>();
+	private int _waiting = 0;
+	private int _running = 0;
+
+	private final AtomicLong _executed = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private final AtomicLong _rejected = new AtomicLong();
+
+	public CommandQueue(Executor executor, int capacity) {
+		_executor = executor;
+		_capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	public void setListener(Listener listener) {
+		_listener = listener;
+	}
+
+	public Listener getListener() {
+		return _listener;
+	}
+
+	/**
+	 * @return false if the queue is full and the command was rejected
+	 */
+	public boolean offer(String address, boolean relayOn) {
+		synchronized (this) {
+			DeviceQueue device = _devices.get(address);
+			if (device == null) {
+				device = new DeviceQueue();
+				_devices.put(address, device);
+			}
+			if (!device.pending) {
+				if (_waiting == _capacity) {
+					_rejected.incrementAndGet();
+					return false;
+				}
+				_waiting++;
+				device.pending = true;
+				if (!device.running) {
+					_ready.add(address);
+				}
+			}
+			device.relayOn = relayOn;
+		}
+		dispatch();
+		return true;
+	}
+
+	public synchronized int getWaiting() {
+		return _waiting;
+	}
+
+	public long getExecuted() {
+		return _executed.get();
+	}
+
+	public long getFailed() {
+		return _failed.get();
+	}
+
+	public long getRejected() {
+		return _rejected.get();
+	}
+
+	/**
+	 * Start the commands of ready devices while there are idle connections.
+	 */
+	private void dispatch() {
+		while (true) {
+			final String address;
+			final boolean relayOn;
+			synchronized (this) {
+				if (_running == _executor.getConnections() || _ready.isEmpty()) {
+					return;
+				}
+				address = _ready.poll();
+				DeviceQueue device = _devices.get(address);
+				relayOn = device.relayOn;
+				device.pending = false;
+				device.running = true;
+				_waiting--;
+				_running++;
+			}
+
+			_executor.execute(address, relayOn, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					_executed.incrementAndGet();
+					onDone(address, relayOn, true);
+				}
+
+				@Override
+				public void onError(int error) {
+					Log.e(TAG, "failed to switch " + address + ": " + error);
+					_failed.incrementAndGet();
+					onDone(address, relayOn, false);
+				}
+			});
+		}
+	}
+
+	private void onDone(String address, boolean relayOn, boolean success) {
+		Listener listener = _listener;
+		if (listener != null) {
+			listener.onExecuted(address, relayOn, success);
+		}
+		synchronized (this) {
+			_running--;
+			DeviceQueue device = _devices.get(address);
+			device.running = false;
+			if (device.pending) {
+				// a command arrived while this one was running
+				_ready.add(address);
+			} else {
+				_devices.remove(address);
+			}
+		}
+		dispatch();
+	}
+
+}
@@ -26,4 +26,7 @@ public class Config {
 	public static final String IBEACON_UUID = "b643423e-e175-4af0-a2e4-31e32f729a8a";
 	public static final int    IBEACON_MAJOR = 123;
 	public static final int    IBEACON_MINOR = 456;
+	// token which clients of the gateway have to send. without a token, the gateway is only
+	// reachable from the phone itself, see GatewayServer
+	public static final String GATEWAY_TOKEN = null;
 }
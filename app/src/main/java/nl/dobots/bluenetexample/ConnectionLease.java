@@ -0,0 +1,93 @@
+package nl.dobots.bluenetexample;
+
+import android.util.Log;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Holds the connection of a BleExt at the {@link RadioArbiter} while the link is really up,
+ * instead of while a screen is open. Every operation which connects calls {@link #acquire()}
+ * before it starts, and {@link #release()} once it is done. Once the last operation is done,
+ * the link is disconnected right away, instead of after the disconnect timeout of the library,
+ * and the connection is released at the arbiter once the link is closed. So the connected time
+ * in the {@link RadioAccounting} is the time the link was up.
+ *
+ * Created on 19-10-26
+ */
+public class ConnectionLease {
+
+	private static final String TAG = ConnectionLease.class.getCanonicalName();
+
+	private final BleExt _ble;
+	private final RadioAccounting.Feature _feature;
+
+	// operations which use the link
+	private int _holders = 0;
+	// whether the connection is acquired at the arbiter, until the link is closed
+	private boolean _acquired = false;
+
+	public ConnectionLease(BleExt ble, RadioAccounting.Feature feature) {
+		_ble = ble;
+		_feature = feature;
+	}
+
+	/**
+	 * An operation is about to connect, or to use the link.
+	 */
+	public synchronized void acquire() {
+		_holders++;
+		if (!_acquired) {
+			_acquired = true;
+			RadioArbiter.getInstance().acquireConnection(_feature);
+		}
+	}
+
+	/**
+	 * An operation is done with the link. If it was the last one, the link is disconnected and
+	 * closed.
+	 */
+	public void release() {
+		synchronized (this) {
+			if (_holders == 0) {
+				Log.w(TAG, "release without acquire");
+				return;
+			}
+			if (--_holders > 0) {
+				return;
+			}
+		}
+		// returns false, without calling back, if there is no link to close
+		if (!_ble.disconnectAndClose(false, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				closed();
+			}
+
+			@Override
+			public void onError(int error) {
+				closed();
+			}
+		})) {
+			closed();
+		}
+	}
+
+	private synchronized void closed() {
+		// if another operation started while the link was closing, it keeps the connection
+		if (_holders == 0 && _acquired) {
+			_acquired = false;
+			RadioArbiter.getInstance().releaseConnection(_feature);
+		}
+	}
+
+	/**
+	 * Release the connection at the arbiter, whether operations still hold it or not, e.g.
+	 * because their callbacks are dropped. The caller disconnects the link itself.
+	 */
+	public synchronized void cancel() {
+		_holders = 0;
+		closed();
+	}
+
+}
@@ -1,9 +1,12 @@
 package nl.dobots.bluenetexample;
 
-import android.app.ProgressDialog;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -11,16 +14,17 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.ImageView;
-import android.widget.Toast;
+import android.widget.LinearLayout;
 
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+
 import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IDiscoveryCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IProgressCallback;
 import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
-import nl.dobots.bluenet.ble.base.structs.EncryptionKeys;
 import nl.dobots.bluenet.ble.cfg.BleErrors;
 import nl.dobots.bluenet.ble.cfg.BleTypes;
 import nl.dobots.bluenet.ble.cfg.BluenetConfig;
@@ -48,24 +52,98 @@ public class ControlActivity extends AppCompatActivity {
 
 	private static final String TAG = ControlActivity.class.getCanonicalName();
 
+	// levels of the light bulb drawable, see res/drawable/light_bulb.xml
+	private static final int LIGHT_BULB_OFF = 0;
+	private static final int LIGHT_BULB_ON = 1;
+
+	// reading the relay state is retried once before giving up, after a short pause
+	private static final int READ_ATTEMPTS = 2;
+	private static final int READ_RETRY_DELAY = 500;
+	private static final int READ_TIMEOUT = 15000;
+
 	private String _address;
 	private BleExt _ble;
 	private boolean _lightOn;
 
 	private ImageView _lightBulb;
+	private OperationsView _operationsView;
+
+	// records the round trip times of the jobs of this screen
+	private LinkTuner _linkTuner = new LinkTuner();
+
+	private CallbackScope _scope;
+	// handler of the UI thread, for the timeouts and results of the futures, which are
+	// completed on the thread of the library
+	private Handler _uiHandler;
+
+	// holds the connection at the radio arbiter while the link is up, and closes the link once
+	// the last operation is done
+	private ConnectionLease _lease;
+
+	// keeps the light bulb up to date if someone else switches the stone. the library doesn't
+	// deliver notifications of the state characteristic, so the state is taken from the
+	// advertisements instead, which doesn't need the link
+	private StateSubscriptions _states;
+	private Stream.Subscription _stateSubscription;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		_uiHandler = new Handler(Looper.getMainLooper());
+
+		// the callbacks of this screen are wrapped with the scope, so they are dropped once the
+		// screen is destroyed, see onDestroy
+		_scope = new CallbackScope(_uiHandler);
+
 		initUI();
 
 		_address = getIntent().getStringExtra("address");
 
+		// instead of blocking the screen with a progress dialog, the connection is shown as an
+		// operation, so the user can already start other operations
+		final Operation connect = OperationTracker.getInstance().start("Connecting");
+		// leaving the screen aborts the connection, see onDestroy
+		_scope.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				connect.fail("cancelled");
+			}
+		});
+
+		// if the device was pre-connected in the background (e.g. because the user pressed its
+		// row in the device list), we can take over that connection instead of starting the
+		// connection setup from scratch
+		PreConnector.Session session = PreConnector.getInstance().claim(_address);
+		if (session != null) {
+			_ble = session.getBle();
+			_lease = new ConnectionLease(_ble, RadioAccounting.Feature.CONTROL);
+			// the pre-connector released the connection with the claim, we hold it from now on
+			_lease.acquire();
+			session.whenReady(_scope.wrap(new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					readRelayState(connect, true);
+				}
+
+				@Override
+				public void onError(int error) {
+					_lease.release();
+					Log.e(TAG, "failed to connect/discover: " + error);
+					connect.fail("failed to connect: " + error);
+					finish();
+				}
+			}, connect));
+			return;
+		}
+
 		// create our access point to the library, and make sure it is initialized (if it
-		// wasn't already)
+		// wasn't already). the initialization runs in the background, so the screen is shown
+		// right away, and we connect once it is done
 		_ble = new BleExt();
-		_ble.init(this, new IStatusCallback() {
+		_lease = new ConnectionLease(_ble, RadioAccounting.Feature.CONTROL);
+		// the status callback reports every change of the bluetooth state, not only the first
+		BleStartup.init(this, _ble, _scope.wrapMultiShot(new IStatusCallback() {
 			@Override
 			public void onSuccess() {
 				Log.v(TAG, "onSuccess");
@@ -75,17 +153,21 @@ public class ControlActivity extends AppCompatActivity {
 			public void onError(int error) {
 				Log.e(TAG, "onError: " + error);
 			}
-		});
-
-		final ProgressDialog dlg = ProgressDialog.show(this, "Connecting", "Please wait...", true);
+		}), _scope.wrap(new Runnable() {
+			@Override
+			public void run() {
+				connectAndDiscover(connect);
+			}
+		}));
+	}
 
+	private void connectAndDiscover(final Operation connect) {
 		// first we have to connect to the device and discover the available characteristics.
-		if (Config.ENCRYPTION_ENABLED) {
-			EncryptionKeys keys = new EncryptionKeys(Config.ADMIN_KEY, Config.MEMBER_KEY, Config.GUEST_KEY);
-			_ble.getBleBase().setEncryptionKeys(keys);
-			_ble.getBleBase().enableEncryption(true);
-		}
-		_ble.connectAndDiscover(_address, new IDiscoveryCallback() {
+		// the keys of the stone's sphere are set before connecting
+		KeyStore.getInstance(this).apply(_ble, _address);
+		// while we are connected, scanners only scan at a low duty cycle
+		_lease.acquire();
+		_ble.connectAndDiscover(_address, _scope.wrap(new IDiscoveryCallback() {
 			@Override
 			public void onDiscovery(String serviceUuid, String characteristicUuid) {
 				// this function is called for every detected characteristic with the
@@ -99,85 +181,18 @@ public class ControlActivity extends AppCompatActivity {
 				// once discovery is completed, this function will be called. we can now execute
 				// the functions on the device. in this case, we want to know what the current
 				// PWM state is
-
-				// first we try and read the PWM value from the device. this call will make sure
-				// that the PWM or State characteristic is available, otherwise an error is created
-				_ble.readRelay(new IBooleanCallback() {
-					@Override
-					public void onSuccess(boolean result) {
-						// if reading was successful, we get the value in the onSuccess as
-						// the parameter
-
-						// now we can update the image of the light bulb to on (if PWM value is
-						// greater than 0) or off if it is 0
-						updateLightBulb(result);
-
-						// at the end we disconnect and close the device again. you could also
-						// stay connected if you want. but it's preferable to only connect,
-						// execute and disconnect, so that the device can continue advertising
-						// again.
-						_ble.disconnectAndClose(false, new IStatusCallback() {
-							@Override
-							public void onSuccess() {
-								// at this point we successfully disconnected and closed
-								// the device again
-								dlg.dismiss();
-							}
-
-							@Override
-							public void onError(int error) {
-								// an error occurred while disconnecting
-								dlg.dismiss();
-							}
-						});
-					}
-
-					@Override
-					public void onError(int error) {
-						// an error occurred while trying to read the PWM state
-						Log.e(TAG, "Failed to get relay status: " + error);
-
-						if (error == BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND) {
-
-							// return an error and exit if the PWM characteristic is not available
-							runOnUiThread(new Runnable() {
-								@Override
-								public void run() {
-									Toast.makeText(ControlActivity.this, "No relay characteristic found for this device!", Toast.LENGTH_LONG).show();
-								}
-							});
-							dlg.dismiss();
-							finish();
-						} else {
-
-							// disconnect and close the device again
-							_ble.disconnectAndClose(false, new IStatusCallback() {
-								@Override
-								public void onSuccess() {
-									// at this point we successfully disconnected and closed
-									// the device again.
-									dlg.dismiss();
-								}
-
-								@Override
-								public void onError(int error) {
-									// an error occurred while disconnecting
-									dlg.dismiss();
-								}
-							});
-						}
-					}
-				});
+				readRelayState(connect, false);
 			}
 
 			@Override
 			public void onError(int error) {
 				// an error occurred during connect/discover
+				_lease.release();
 				Log.e(TAG, "failed to connect/discover: " + error);
-				dlg.dismiss();
+				connect.fail("failed to connect: " + error);
 				finish();
 			}
-		});
+		}, connect));
 
 		/* You might think that was quite complicated for just reading the current PWM state.
 		 *
@@ -193,20 +208,14 @@ public class ControlActivity extends AppCompatActivity {
 		 *		@Override
 		 *		public void onSuccess(int result) {
 		 *			updateLightBulb(result > 0);
-		 *			dlg.dismiss();
+		 *			connect.succeed(null);
 		 *		}
 		 *
 		 *		@Override
 		 *		public void onError(int error) {
 		 *			Log.e(TAG, "Failed to get Pwm: " + error);
 		 *			if (error == BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND) {
-		 *				runOnUiThread(new Runnable() {
-		 *					@Override
-		 *					public void run() {
-		 *						Toast.makeText(ControlActivity.this, "No PWM Characteristic found for this device!", Toast.LENGTH_LONG).show();
-		 *					}
-		 *				});
-		 *				dlg.dismiss();
+		 *				connect.fail("No PWM Characteristic found for this device!");
 		 *				finish();
 		 *			}
 		 *		}
@@ -224,16 +233,121 @@ public class ControlActivity extends AppCompatActivity {
 		 *    expires, the library will automatically disconnect and close the device. If you call
 		 *    another function within the timeout, the timeout will be restarted
 		 **/
+	}
+
+	/**
+	 * @param preConnected whether the link was set up by the {@link PreConnector}
+	 */
+	private void readRelayState(final Operation connect, final boolean preConnected) {
+		final long start = _linkTuner.begin();
+		final AsyncBle ble = new AsyncBle(_ble);
+		// first we try and read the relay state from the device. this call will make sure
+		// that the relay characteristic is available, otherwise an error is created
+		BleFuture.retry(READ_ATTEMPTS, READ_RETRY_DELAY, _uiHandler, new Stream.Function<Integer, Boolean>() {
+			@Override
+			public Boolean apply(Integer error) {
+				// if the device doesn't have the characteristic, it won't have it on the next
+				// try either
+				return error != BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND;
+			}
+		}, new BleFuture.Supplier<Boolean>() {
+			@Override
+			public BleFuture<Boolean> get() {
+				return ble.readRelay();
+			}
+		}).then(new BleFuture.Continuation<Boolean, Boolean>() {
+			@Override
+			public BleFuture<Boolean> apply(final Boolean relayOn) {
+				_linkTuner.record(connect, start);
+				// the screen is interactive once the relay state is known, measured from the
+				// press of the device's row
+				long interactive = PreConnector.getInstance().onInteractive(_address, preConnected);
+				if (interactive >= 0) {
+					connect.setMetric("interactive", interactive + " ms");
+				}
+				// while we are connected anyway, read the power consumption too. the library
+				// executes one operation at a time, so it is chained on the same connection
+				// instead of connecting again. older firmware doesn't have the
+				// characteristic, which is fine, we only show it as a metric
+				return ble.readPowerConsumption().map(new Stream.Function<Integer, Boolean>() {
+					@Override
+					public Boolean apply(Integer power) {
+						connect.setMetric("power", power + " mW");
+						return relayOn;
+					}
+				}).orElse(relayOn);
+			}
+		}).timeout(READ_TIMEOUT, _uiHandler).ensure(new BleFuture.Supplier<Void>() {
+			@Override
+			public BleFuture<Void> get() {
+				// at the end we disconnect and close the device again, whether the reads
+				// succeeded or not. you could also stay connected if you want. but it's
+				// preferable to only connect, execute and disconnect, so that the device can
+				// continue advertising again. the lease disconnects once no other operation
+				// uses the link anymore
+				_lease.release();
+				return BleFuture.succeeded(null);
+			}
+		}).on(BleFuture.executor(_uiHandler)).whenDone(_scope.wrap(new BleFuture.Callback<Boolean>() {
+			@Override
+			public void onSuccess(Boolean result) {
+				// only this last step runs on the UI thread, where we can update the image of
+				// the light bulb to on or off
+				updateLightBulb(result);
+				connect.succeed(null);
+				// from now on the light bulb follows the advertised state, see onResume
+			}
+
+			@Override
+			public void onError(int error) {
+				// an error occurred while trying to read the relay state
+				Log.e(TAG, "Failed to get relay status: " + error);
+
+				if (error == BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND) {
+					// return an error and exit if the relay characteristic is not available. the
+					// operation stays visible on the previous screen
+					connect.fail("No relay characteristic found for this device!");
+					finish();
+				} else {
+					connect.fail("failed to read relay: " + error);
+				}
+			}
+		}, connect));
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		if (_states == null) {
+			_states = new StateSubscriptions(_ble, new AdvertisedStateSource(this), _uiHandler);
+		}
+		_stateSubscription = _states.subscribe(_address, new StateSubscriptions.Observer() {
+			@Override
+			public void onStateChanged(String address, StateSubscriptions.State state) {
+				updateLightBulb(state.relayOn);
+			}
+		});
+	}
 
+	@Override
+	protected void onPause() {
+		super.onPause();
+		_stateSubscription.unsubscribe();
+		_stateSubscription = null;
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		// drop the callbacks of this screen. operations which continue in the background
+		// report their result to their operation instead
+		_scope.cancel();
+		_operationsView.detach();
 		// finish has to be called on the library to release the objects if the library
 		// is not used anymore
 		if (_ble.isConnected(null)) {
-			_ble.disconnectAndClose(true, new IStatusCallback() {
+			// the scope is cancelled already, so it only passes a weak reference to the library
+			_ble.disconnectAndClose(true, _scope.wrap(new IStatusCallback() {
 				@Override
 				public void onSuccess() {
 
@@ -243,14 +357,19 @@ public class ControlActivity extends AppCompatActivity {
 				public void onError(int error) {
 
 				}
-			});
+			}));
 		}
-		_ble.destroy();
+		// the callbacks of running operations are dropped, so they don't release the lease
+		_lease.cancel();
+		BleStartup.destroy(_ble);
 	}
 
 	private void initUI() {
 		setContentView(R.layout.activity_control);
 
+		_operationsView = new OperationsView(this, (LinearLayout) findViewById(R.id.layOperations));
+		_operationsView.attach();
+
 		_lightBulb = (ImageView) findViewById(R.id.imgLightBulb);
 		_lightBulb.setOnClickListener(new View.OnClickListener() {
 			@Override
@@ -279,7 +398,7 @@ public class ControlActivity extends AppCompatActivity {
 		btnSetup.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View view) {
-				executeSetup();
+				selectSphere();
 			}
 		});
 
@@ -293,168 +412,214 @@ public class ControlActivity extends AppCompatActivity {
 	}
 
 	private void factoryReset() {
-		final ProgressDialog dlg = ProgressDialog.show(this, "Executing Factory Reset", "Please wait...", true);
-		_ble.writeFactoryReset(_address, new IStatusCallback() {
+		final Operation operation = OperationTracker.getInstance().start("Factory Reset");
+		_lease.acquire();
+		_ble.writeFactoryReset(_address, _scope.wrap(new IStatusCallback() {
 			@Override
 			public void onSuccess() {
+				_lease.release();
 				Log.d(TAG, "successfully reset to factory settings");
-				runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						Toast.makeText(ControlActivity.this, "success", Toast.LENGTH_LONG).show();
-					}
-				});
-				dlg.dismiss();
+				operation.succeed("success");
 			}
 
 			@Override
 			public void onError(final int error) {
+				_lease.release();
 				Log.e(TAG, "failed to reset to factory");
+				operation.fail("failed with error: " + error);
+			}
+		}, operation));
+	}
 
-				runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						Toast.makeText(ControlActivity.this, "failed with error: " + error, Toast.LENGTH_LONG).show();
-					}
-				});
-				dlg.dismiss();
+	/**
+	 * Let the user pick the sphere the stone is set up for, one of the known spheres or a new
+	 * one. The sphere the stone belongs to now is selected up front.
+	 */
+	private void selectSphere() {
+		final KeyStore keys = KeyStore.getInstance(this);
+		final ArrayList<KeyStore.Sphere> spheres = keys.getSpheres();
+		String[] items = new String[spheres.size() + 1];
+		for (int i = 0; i < spheres.size(); i++) {
+			items[i] = spheres.get(i).id;
+		}
+		items[spheres.size()] = "New sphere";
+		final int[] selected = {spheres.indexOf(keys.getSphere(_address))};
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Setup: select sphere");
+		builder.setSingleChoiceItems(items, selected[0], new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				selected[0] = which;
+			}
+		});
+		builder.setPositiveButton("Setup", new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				if (selected[0] < spheres.size()) {
+					executeSetup(spheres.get(selected[0]));
+				} else {
+					executeSetup(keys.createSphere());
+				}
 			}
 		});
+		builder.setNegativeButton(android.R.string.cancel, null);
+		builder.show();
 	}
 
-	private void executeSetup() {
-		final ProgressDialog dlg = new ProgressDialog(this);
-		dlg.setTitle("Executing Setup");
-		dlg.setMessage("Please wait ...");
-		dlg.setIndeterminate(false);
-		dlg.setMax(13);
-		dlg.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-		dlg.show();
+	private void executeSetup(final KeyStore.Sphere sphere) {
+		// the setup reports its progress in 13 steps. the operation tracker coalesces these
+		// updates, so the UI is refreshed at most once per frame
+		final Operation operation = OperationTracker.getInstance().start("Setup " + sphere.id, 13);
+		final long start = _linkTuner.begin();
 
+		// the stone is set up with the keys and the iBeacon UUID of the sphere, and assigned to
+		// it once the setup succeeded, so that the keys are found when connecting to it later
+		final KeyStore keys = KeyStore.getInstance(this);
 		CrownstoneSetup setup = new CrownstoneSetup(_ble);
 		_ble.enableEncryption(true);
+		_lease.acquire();
 		setup.executeSetup(_address,
 			1,
-			Config.ADMIN_KEY,
-			Config.MEMBER_KEY,
-			Config.GUEST_KEY,
+			sphere.adminKey,
+			sphere.memberKey,
+			sphere.guestKey,
 			0x9449d07c,
-			"b1a64158-ada0-4cc1-b508-eab42c82cd81",
+			sphere.proximityUuid.toString(),
 			123,
 			456,
-			new IProgressCallback() {
+			_scope.wrap(new IProgressCallback() {
 
 				@Override
 				public void onError(final int error) {
 					BleLog.getInstance().LOGe(TAG, "failed with error: %d", error);
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Toast.makeText(ControlActivity.this, "failed with error: " + error, Toast.LENGTH_LONG).show();
-						}
-					});
+					operation.setMessage("failed with error: " + error);
 				}
 
 				@Override
 				public void onProgress(final double progress, @Nullable JSONObject statusJson) {
 					BleLog.getInstance().LOGi(TAG, "progress: %f", progress);
-
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							dlg.setProgress((int) progress);
-						}
-					});
+					operation.setProgress((int) progress);
 				}
-			}, new IStatusCallback() {
+			}, operation), _scope.wrap(new IStatusCallback() {
 
 				@Override
 				public void onError(final int error) {
+					_lease.release();
 					BleLog.getInstance().LOGe(TAG, "status error: %d", error);
-
-					dlg.dismiss();
-
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Toast.makeText(ControlActivity.this, "status error: " + error, Toast.LENGTH_LONG).show();
-						}
-					});
+					operation.fail("status error: " + error);
 				}
 
 				@Override
 				public void onSuccess() {
+					_lease.release();
 					BleLog.getInstance().LOGd(TAG, "success");
-
-					dlg.dismiss();
-
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Toast.makeText(ControlActivity.this, "success", Toast.LENGTH_LONG).show();
-						}
-					});
+					_linkTuner.record(operation, start);
+					keys.assign(_address, sphere.id);
+					operation.succeed("success");
 				}
-			}
+			}, operation)
 		);
 	}
 
 	private void powerOff() {
+		final Operation operation = OperationTracker.getInstance().start("Power OFF");
+		final long start = _linkTuner.begin();
 		// switch the device off. this function will check first if the device is connected
-		// (and connect if it is not), then it switches the device off, and disconnects again
-		// afterwards (once the disconnect timeout expires)
-		_ble.relayOff(_address, new IStatusCallback() {
+		// (and connect if it is not), then it switches the device off. the lease disconnects
+		// again right afterwards, instead of once the disconnect timeout of the library expires
+		_lease.acquire();
+		_ble.relayOff(_address, _scope.wrap(new IStatusCallback() {
 			@Override
 			public void onSuccess() {
+				_lease.release();
 				Log.i(TAG, "power off success");
 				// power was switch off successfully, update the light bulb
 				updateLightBulb(false);
+				_linkTuner.record(operation, start);
+				CommandJournal.getInstance(ControlActivity.this).remove(_address);
+				operation.succeed(null);
 			}
 
 			@Override
 			public void onError(int error) {
+				_lease.release();
 				Log.i(TAG, "power off failed: " + error);
+				journal(false, error, operation);
 			}
-		});
+		}, operation));
 	}
 
 	private void powerOn() {
+		final Operation operation = OperationTracker.getInstance().start("Power ON");
+		final long start = _linkTuner.begin();
 		// switch the device on. this function will check first if the device is connected
-		// (and connect if it is not), then it switches the device on, and disconnects again
-		// afterwards (once the disconnect timeout expires)
-		_ble.relayOn(_address, new IStatusCallback() {
+		// (and connect if it is not), then it switches the device on. the lease disconnects
+		// again right afterwards, instead of once the disconnect timeout of the library expires
+		_lease.acquire();
+		_ble.relayOn(_address, _scope.wrap(new IStatusCallback() {
 			@Override
 			public void onSuccess() {
+				_lease.release();
 				Log.i(TAG, "power on success");
 				// power was switch on successfully, update the light bulb
 				updateLightBulb(true);
+				_linkTuner.record(operation, start);
+				CommandJournal.getInstance(ControlActivity.this).remove(_address);
+				operation.succeed(null);
 			}
 
 			@Override
 			public void onError(int error) {
+				_lease.release();
 				Log.i(TAG, "power on failed: " + error);
+				journal(true, error, operation);
 			}
-		});
+		}, operation));
+	}
+
+	/**
+	 * Journal the switch command if the stone couldn't be reached, so that it is delivered as
+	 * soon as the stone is seen again. The library has no dedicated error for a stone which is
+	 * out of range, so every error except a missing characteristic is taken as unreachable.
+	 */
+	private void journal(boolean relayOn, int error, Operation operation) {
+		if (error == BleErrors.ERROR_CHARACTERISTIC_NOT_FOUND) {
+			operation.fail("failed with error: " + error);
+			return;
+		}
+		CommandJournal.getInstance(this).add(_address, relayOn,
+				System.currentTimeMillis() + CommandJournal.DEFAULT_DEADLINE);
+		operation.fail("out of range, will switch once the stone is seen again (error " + error + ")");
 	}
 
 	private void togglePower() {
+		final Operation operation = OperationTracker.getInstance().start("Toggle");
+		final long start = _linkTuner.begin();
 		// toggle the device switch, without needing to know the current state. this function will
 		// check first if the device is connected (and connect if it is not), then it reads the
 		// current relay state, and depending on the state, decides if it needs to switch it on or
-		// off. in the end it disconnects again (once the disconnect timeout expires)
-		_ble.toggleRelay(_address, new IBooleanCallback() {
+		// off. in the end the lease disconnects again
+		_lease.acquire();
+		_ble.toggleRelay(_address, _scope.wrap(new IBooleanCallback() {
 			@Override
 			public void onSuccess(boolean value) {
+				_lease.release();
 				Log.i(TAG, "toggle success");
 				// power was toggled successfully, update the light bulb
 				updateLightBulb(value);
+				_linkTuner.record(operation, start);
+				CommandJournal.getInstance(ControlActivity.this).remove(_address);
+				operation.succeed(null);
 			}
 
 			@Override
 			public void onError(int error) {
+				_lease.release();
 				Log.e(TAG, "toggle failed: " + error);
+				operation.fail("failed with error: " + error);
 			}
-		});
+		}, operation));
 	}
 
 	private void updateLightBulb(final boolean on) {
@@ -462,11 +627,9 @@ public class ControlActivity extends AppCompatActivity {
 			@Override
 			public void run() {
 				_lightOn = on;
-				if (on) {
-					_lightBulb.setImageResource(getResources().getIdentifier("light_bulb_on", "drawable", getPackageName()));
-				} else {
-					_lightBulb.setImageResource(getResources().getIdentifier("light_bulb_off", "drawable", getPackageName()));
-				}
+				// the image is a level list with both states of the bulb, which are decoded
+				// once when the layout is inflated. switching the level just selects the other one
+				_lightBulb.setImageLevel(on ? LIGHT_BULB_ON : LIGHT_BULB_OFF);
 			}
 		});
 	}
@@ -0,0 +1,345 @@
+package nl.dobots.bluenetexample;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.GridView;
+import android.widget.TextView;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * This example activity shows the relay state and power usage of many stones at once, e.g.
+ * all stones on a floor. The activity receives the addresses of the stones through the
+ * intent, and then
+ *
+ * 1. Creates one access point to the library per connection it may use in parallel
+ * 2. Lets the PollingScheduler keep the state of the stones up to date, which only connects
+ *    to a stone if its state is stale
+ * 3. Shows the state of every stone in a grid, together with the age of the state
+ *
+ * The state is also taken from the advertisements of the stones, which are read with the
+ * {@link AdvertisementParser} straight from the raw scan records, and decrypted with the guest
+ * key of the stone's sphere if encryption is enabled. Repeated advertisements are skipped
+ * without being decoded, and an unchanged state is only passed on once per
+ * {@link #REPORT_INTERVAL}, to keep it from going stale. While the scheduler has a connection
+ * open, the scan is time-sliced as the {@link RadioArbiter} tells.
+ *
+ * Every power usage which is read or advertised is recorded in the {@link PowerHistory}.
+ *
+ * Polling and scanning are paused while the activity is not visible.
+ *
+ * Created on 19-10-26
+ */
+public class DashboardActivity extends Activity {
+
+	private static final String TAG = DashboardActivity.class.getCanonicalName();
+
+	public static final String EXTRA_ADDRESSES = "addresses";
+
+	// how many stones are read at the same time
+	public static final int MAX_CONNECTIONS = 2;
+
+	// refresh the grid at least this often so that the age of the states stays correct
+	private static final int REFRESH_INTERVAL = 1000;
+
+	// pass an unchanged advertised state on at most this often
+	private static final int REPORT_INTERVAL = PollingScheduler.MIN_INTERVAL / 2;
+
+	private ArrayList<BleExt> _connections = new ArrayList<>();
+	private PollingScheduler _scheduler;
+	private PowerHistory _history;
+
+	private Handler _handler = new Handler();
+	private DashboardAdapter _adapter;
+
+	private BluetoothAdapter _bluetoothAdapter;
+	// true while the scan is paused by the duty cycle
+	private boolean _scanPaused = false;
+	private KeyStore _keys;
+	// only used on the thread of the scan callback
+	private final AdvertisementParser _parser = new AdvertisementParser();
+	private final HashMap<String, Long> _reportedAt = new HashMap<>();
+
+	private final BluetoothAdapter.LeScanCallback _scanCallback = new BluetoothAdapter.LeScanCallback() {
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+			RadioAccounting.getInstance().callback(RadioAccounting.Feature.DASHBOARD);
+			onAdvertisement(device.getAddress(), scanRecord);
+		}
+	};
+
+	// while the scheduler has a connection open, alternate between short scan windows and long
+	// pauses, like the main screens
+	private final RadioArbiter.Listener _radioListener = new RadioArbiter.Listener() {
+		@Override
+		public void onModeChanged(RadioArbiter.Mode mode) {
+			_handler.removeCallbacks(_dutyCycle);
+			if (mode == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+				_handler.postDelayed(_dutyCycle, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			} else if (_scanPaused) {
+				// back to full scanning
+				_scanPaused = false;
+				startLeScan();
+			}
+		}
+	};
+
+	private final Runnable _dutyCycle = new Runnable() {
+		@Override
+		public void run() {
+			if (_bluetoothAdapter == null) {
+				return;
+			}
+			if (_scanPaused) {
+				_scanPaused = false;
+				startLeScan();
+				_handler.postDelayed(this, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			} else {
+				_scanPaused = true;
+				stopLeScan();
+				_handler.postDelayed(this, RadioArbiter.LOW_DUTY_SCAN_PAUSE);
+			}
+		}
+	};
+
+	private final Runnable _refresh = new Runnable() {
+		@Override
+		public void run() {
+			_adapter.notifyDataSetChanged();
+			_handler.postDelayed(this, REFRESH_INTERVAL);
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		setContentView(R.layout.activity_dashboard);
+
+		String[] addresses = getIntent().getStringArrayExtra(EXTRA_ADDRESSES);
+
+		// every access point to the library holds its own connection, so create as many as
+		// we want to read stones in parallel
+		int connections = Math.min(MAX_CONNECTIONS, addresses.length);
+		for (int i = 0; i < connections; i++) {
+			BleExt ble = new BleExt();
+			ble.init(this, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					Log.v(TAG, "onSuccess");
+				}
+
+				@Override
+				public void onError(int error) {
+					Log.e(TAG, "onError: " + error);
+				}
+			});
+			// the keys of the stone's sphere are set before every connection, see the key store
+			_connections.add(ble);
+		}
+
+		_keys = KeyStore.getInstance(this);
+		try {
+			_history = PowerHistory.getInstance(this);
+		} catch (IOException e) {
+			Log.e(TAG, "failed to open the power history", e);
+		}
+
+		_scheduler = new PollingScheduler(_connections, _handler, new PollingScheduler.Listener() {
+			@Override
+			public void onStateChanged(PollingScheduler.StoneState state) {
+				if (_history != null && state.error == 0) {
+					_history.record(state.address, System.currentTimeMillis(), state.powerUsage);
+				}
+				_adapter.notifyDataSetChanged();
+			}
+		}, _keys);
+		for (String address : addresses) {
+			_scheduler.addStone(address);
+		}
+
+		_adapter = new DashboardAdapter(_scheduler.getStates());
+		GridView gvDashboard = (GridView) findViewById(R.id.gvDashboard);
+		gvDashboard.setAdapter(_adapter);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		_scheduler.start();
+		_handler.post(_refresh);
+		BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+		if (adapter != null && adapter.isEnabled()) {
+			_bluetoothAdapter = adapter;
+			_scanPaused = false;
+			RadioArbiter.getInstance().registerListener(_radioListener);
+			if (RadioArbiter.getInstance().getMode() == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+				_handler.postDelayed(_dutyCycle, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			}
+			startLeScan();
+		}
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		_scheduler.stop();
+		_handler.removeCallbacks(_refresh);
+		if (_history != null) {
+			_history.flush();
+		}
+		if (_bluetoothAdapter != null) {
+			RadioArbiter.getInstance().unregisterListener(_radioListener);
+			_handler.removeCallbacks(_dutyCycle);
+			if (!_scanPaused) {
+				stopLeScan();
+			}
+			_bluetoothAdapter = null;
+		}
+	}
+
+	private void startLeScan() {
+		if (_bluetoothAdapter.startLeScan(_scanCallback)) {
+			RadioAccounting.getInstance().scanStarted(RadioAccounting.Feature.DASHBOARD);
+		}
+	}
+
+	private void stopLeScan() {
+		_bluetoothAdapter.stopLeScan(_scanCallback);
+		RadioAccounting.getInstance().scanStopped(RadioAccounting.Feature.DASHBOARD);
+	}
+
+	/**
+	 * Called on the thread of the scan callback for every advertisement.
+	 */
+	private synchronized void onAdvertisement(final String address, byte[] scanRecord) {
+		boolean changed = _parser.parse(address, scanRecord);
+		long now = SystemClock.uptimeMillis();
+		Long reportedAt = _reportedAt.get(address);
+		if (!changed && reportedAt != null && now - reportedAt < REPORT_INTERVAL) {
+			return;
+		}
+		if (!_parser.isCrownstone()) {
+			return;
+		}
+		if (Config.ENCRYPTION_ENABLED && !_parser.decrypt(_keys.getSphere(address).guestKey)) {
+			return;
+		}
+		_reportedAt.put(address, now);
+
+		final boolean relayOn = _parser.isRelayOn();
+		final int powerUsage = _parser.getPowerUsage();
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				_scheduler.onAdvertisedState(address, relayOn, powerUsage);
+			}
+		});
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		// close the links the scheduler left open, before the BleExts are destroyed
+		for (final BleExt ble : _connections) {
+			if (ble.isConnected(null)) {
+				ble.disconnectAndClose(false, new IStatusCallback() {
+					@Override
+					public void onSuccess() {
+						ble.destroy();
+					}
+
+					@Override
+					public void onError(int error) {
+						ble.destroy();
+					}
+				});
+			} else {
+				ble.destroy();
+			}
+		}
+	}
+
+	private class DashboardAdapter extends BaseAdapter {
+
+		// the states are updated in place by the scheduler, so the list never changes
+		private final List<PollingScheduler.StoneState> _states;
+
+		DashboardAdapter(List<PollingScheduler.StoneState> states) {
+			_states = states;
+		}
+
+		@Override
+		public int getCount() {
+			return _states.size();
+		}
+
+		@Override
+		public Object getItem(int position) {
+			return _states.get(position);
+		}
+
+		@Override
+		public long getItemId(int position) {
+			return position;
+		}
+
+		private class ViewHolder {
+			protected TextView txtName;
+			protected TextView txtState;
+			protected TextView txtPower;
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			if (convertView == null) {
+				convertView = LayoutInflater.from(DashboardActivity.this).inflate(R.layout.dashboard_cell, parent, false);
+				ViewHolder viewHolder = new ViewHolder();
+				viewHolder.txtName = (TextView) convertView.findViewById(R.id.txtDashName);
+				viewHolder.txtState = (TextView) convertView.findViewById(R.id.txtDashState);
+				viewHolder.txtPower = (TextView) convertView.findViewById(R.id.txtDashPower);
+				convertView.setTag(viewHolder);
+			}
+
+			ViewHolder viewHolder = (ViewHolder) convertView.getTag();
+			PollingScheduler.StoneState state = _states.get(position);
+
+			viewHolder.txtName.setText(state.address);
+			if (!state.isKnown()) {
+				viewHolder.txtState.setText("unknown");
+				viewHolder.txtState.setTextColor(Color.GRAY);
+				viewHolder.txtPower.setText("");
+				return convertView;
+			}
+
+			long age = (SystemClock.uptimeMillis() - state.updatedAt) / 1000;
+			if (state.error != 0) {
+				viewHolder.txtState.setText("error " + state.error);
+				viewHolder.txtState.setTextColor(Color.RED);
+			} else {
+				viewHolder.txtState.setText(state.relayOn ? "ON" : "OFF");
+				viewHolder.txtState.setTextColor(state.relayOn ? Color.GREEN : Color.BLACK);
+			}
+			viewHolder.txtPower.setText(String.format("%d mW, %ds ago%s", state.powerUsage, age,
+					state.fromAdvertisement ? " (adv)" : ""));
+			return convertView;
+		}
+	}
+
+}
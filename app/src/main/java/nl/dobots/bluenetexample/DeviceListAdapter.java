@@ -9,8 +9,6 @@ import android.widget.BaseAdapter;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import nl.dobots.bluenet.ble.extended.structs.BleDevice;
-import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
 
 /**
  * This is just a simple list adapter to show the list of scanned devices. It checks the
@@ -22,6 +20,10 @@ import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
  * 		* Blue: iBeacon
  * 		* Black: any other BLE device
  *
+ * The adapter does not hold a list of devices itself, but reads from a DeviceListWindow,
+ * which only materializes lightweight views on the compact device store for the rows around
+ * the ones which are currently shown.
+ *
  * Created on 1-10-15
  * @author Dominik Egger
  */
@@ -30,12 +32,12 @@ public class DeviceListAdapter extends BaseAdapter {
 	private static final String TAG = DeviceListAdapter.class.getCanonicalName();
 
 	private Context _context;
-	private BleDeviceList _arrayList;
+	private DeviceListWindow _window;
 	private String _selection = "";
 
-	public DeviceListAdapter(Context context, BleDeviceList array) {
+	public DeviceListAdapter(Context context, DeviceListWindow window) {
 		_context = context;
-		_arrayList = array;
+		_window = window;
 	}
 
 	public void setSelection(String address) {
@@ -45,14 +47,14 @@ public class DeviceListAdapter extends BaseAdapter {
 	// How many items are in the data set represented by this Adapter.
 	@Override
 	public int getCount() {
-		return _arrayList.size();
+		return _window.size();
 	}
 
 	// Get the data item associated with the specified position in the data set.
 	@Override
 	public Object getItem(int position) {
-		Log.i(TAG, String.valueOf(_arrayList.get(position)));
-		return _arrayList.get(position);
+		Log.i(TAG, String.valueOf(_window.get(position)));
+		return _window.get(position);
 	}
 
 	@Override
@@ -60,8 +62,15 @@ public class DeviceListAdapter extends BaseAdapter {
 		return position;
 	}
 
-	public void updateList(BleDeviceList list) {
-		_arrayList = list;
+	/**
+	 * @return false if the records didn't change, so the list doesn't have to be redrawn
+	 */
+	public boolean updateList(DeviceStore records) {
+		return _window.update(records);
+	}
+
+	public String getAddress(int position) {
+		return _window.getAddress(position);
 	}
 
 	private class ViewHolder {
@@ -102,8 +111,8 @@ public class DeviceListAdapter extends BaseAdapter {
 
 		ViewHolder viewHolder = (ViewHolder) convertView.getTag();
 
-		if (!_arrayList.isEmpty()) {
-			BleDevice device = _arrayList.get(position);
+		DeviceView device = _window.get(position);
+		if (device != null) {
 			viewHolder.devName.setText(device.getName());
 			viewHolder.devRssi.setText(String.valueOf(device.getAverageRssi()));
 			viewHolder.devAddress.setText("[" + device.getAddress() + "]");
@@ -134,7 +143,7 @@ public class DeviceListAdapter extends BaseAdapter {
 					convertView.setBackgroundColor(0x00000000);
 				}
 			}
-			if (device.getAddress() == _selection) {
+			if (device.getAddress().equals(_selection)) {
 				convertView.setBackgroundColor(0x66FF0000);
 			}
 		}
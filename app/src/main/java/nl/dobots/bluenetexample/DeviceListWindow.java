@@ -0,0 +1,102 @@
+package nl.dobots.bluenetexample;
+
+/**
+ * Windowed data source for the device list. Instead of retaining a full, sorted list of
+ * BleDevice objects on every refresh, the list reads from an rssi sorted {@link DeviceStore},
+ * which keeps compact primitive records for all scanned devices. Only the rows around the
+ * ones currently shown, plus a prefetch margin, are materialized as {@link DeviceView}s, so
+ * that the memory retained by the list stays flat even with thousands of devices in range.
+ *
+ * The sorted store is an immutable snapshot, published on the BLE thread with
+ * {@link DeviceSnapshots} and handed to the window on the UI thread with
+ * {@link #update(DeviceStore)}.
+ *
+ * Created on 19-10-26
+ */
+public class DeviceListWindow {
+
+	// number of rows materialized before and after the requested position
+	public static final int DEFAULT_PREFETCH = 10;
+
+	private final int _prefetch;
+
+	private DeviceStore _records = DeviceStore.EMPTY;
+
+	// materialized devices for positions [_windowStart, _windowStart + _windowCount)
+	private final DeviceView[] _window;
+	private int _windowStart = 0;
+	private int _windowCount = 0;
+
+	public DeviceListWindow() {
+		this(DEFAULT_PREFETCH);
+	}
+
+	public DeviceListWindow(int prefetch) {
+		_prefetch = prefetch;
+		_window = new DeviceView[2 * prefetch + 1];
+		for (int i = 0; i < _window.length; i++) {
+			_window[i] = new DeviceView();
+		}
+	}
+
+	/**
+	 * Replace the records shown by the window. Has to be called on the UI thread.
+	 * @param records the rssi sorted snapshot
+	 * @return false if the records are the same snapshot as before, so nothing changed
+	 */
+	public boolean update(DeviceStore records) {
+		if (records.isSameSnapshot(_records)) {
+			return false;
+		}
+		_records = records;
+		// drop the materialized devices, they are repositioned again on demand
+		_windowCount = 0;
+		return true;
+	}
+
+	public int size() {
+		return _records.size();
+	}
+
+	public boolean isEmpty() {
+		return _records.isEmpty();
+	}
+
+	public String getAddress(int position) {
+		return _records.getAddress(position);
+	}
+
+	public int getRssi(int position) {
+		return _records.getRssi(position);
+	}
+
+	public boolean hasFlag(int position, byte flag) {
+		return _records.hasFlag(position, flag);
+	}
+
+	/**
+	 * Get the device at the given position. If the position is outside of the currently
+	 * materialized window, the window is moved so that it is centered around the position.
+	 * The returned view is reused when the window moves.
+	 * @param position position in the rssi sorted list
+	 * @return the device, or null if the position is out of range
+	 */
+	public DeviceView get(int position) {
+		if (position < 0 || position >= _records.size()) {
+			return null;
+		}
+		if (position < _windowStart || position >= _windowStart + _windowCount) {
+			moveWindow(position);
+		}
+		return _window[position - _windowStart];
+	}
+
+	private void moveWindow(int position) {
+		_windowStart = Math.max(0, position - _prefetch);
+		_windowCount = Math.min(_window.length, _records.size() - _windowStart);
+		for (int i = 0; i < _windowCount; i++) {
+			_window[i].moveTo(_records, _windowStart + i);
+		}
+	}
+
+}
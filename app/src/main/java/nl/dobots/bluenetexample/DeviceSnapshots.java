@@ -0,0 +1,266 @@
+package nl.dobots.bluenetexample;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * Publishes the scanned devices as immutable snapshots. The ingestion side updates a
+ * {@link DeviceStore} with every scanned device and publishes an rssi sorted snapshot of it
+ * from time to time. The latest snapshot is kept in a single volatile reference, so readers
+ * on any thread get a consistent list without locks and without copying it.
+ *
+ * A snapshot is only replaced if something changed, and every snapshot has a unique version,
+ * so readers can skip their work if the version didn't change, see
+ * {@link DeviceStore#isSameSnapshot(DeviceStore)}.
+ *
+ * The values of a scanned device are copied into a {@link DeviceStore.Report} right away, on
+ * the scanning thread, as the library keeps changing its device objects. The reports are
+ * collected in a batch, which is ingested when the next snapshot is published. Adding to the
+ * batch only takes a short lock, so the scanning thread never waits for an ingestion. The
+ * store is split into shards by the hash of the address, so every device is always in the
+ * same shard. A large batch is partitioned over the shards, and the shards are updated in
+ * parallel on a small shared pool, each by one thread, so they don't need any locks. The
+ * shards are merged into the sorted snapshot, see
+ * {@link DeviceStore#snapshot(DeviceStore[], int, DeviceStore)}.
+ *
+ * Publishing takes time for large batches, so publish on a worker thread, e.g. like
+ * {@link ScanStreams} does, and only read the published snapshot with {@link #get()} on the
+ * UI thread. {@link #clear()} can be called on the UI thread, it only drops the batch and
+ * flags the shards, which are cleared by the next ingestion.
+ *
+ * Created on 19-10-26
+ */
+public class DeviceSnapshots {
+
+	// batches smaller than this are ingested on the calling thread, handing them to the pool
+	// costs more than it saves
+	public static final int PARALLEL_THRESHOLD = 256;
+	// a batch this large is ingested right away on a worker, even if no snapshot is published
+	public static final int MAX_BATCH = 4096;
+
+	private static ExecutorService _pool;
+	private static ExecutorService _worker;
+
+	// the reports scanned since the last ingestion, under the lock of _batchLock
+	private final Object _batchLock = new Object();
+	private ArrayList<DeviceStore.Report> _batch = new ArrayList<>();
+	private boolean _ingestScheduled = false;
+	// the shards have to be cleared before the batch is ingested
+	private boolean _clearRequested = false;
+
+	// only accessed by the ingestion side, under the lock of this object
+	private final DeviceStore[] _shards;
+	private final ArrayList<ArrayList<DeviceStore.Report>> _partitions;
+	private ArrayList<DeviceStore.Report> _ingesting = new ArrayList<>();
+
+	private volatile DeviceStore _snapshot = DeviceStore.EMPTY;
+
+	/**
+	 * Creates as many shards as there are cores.
+	 */
+	public DeviceSnapshots() {
+		this(getParallelism());
+	}
+
+	/**
+	 * @param shards number of shards, i.e. how many threads at most ingest a batch
+	 */
+	public DeviceSnapshots(int shards) {
+		shards = Math.max(1, Math.min(shards, DeviceStore.MAX_STORES));
+		_shards = new DeviceStore[shards];
+		_partitions = new ArrayList<>(shards);
+		for (int i = 0; i < shards; i++) {
+			_shards[i] = new DeviceStore();
+			_partitions.add(new ArrayList<DeviceStore.Report>());
+		}
+	}
+
+	private static int getParallelism() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static synchronized ExecutorService getPool() {
+		if (_pool == null) {
+			// the calling thread ingests one shard itself
+			_pool = Executors.newFixedThreadPool(Math.max(1, getParallelism() - 1), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DeviceSnapshots");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _pool;
+	}
+
+	private static synchronized ExecutorService getWorker() {
+		if (_worker == null) {
+			// not the pool, an ingestion waits for the pool to update the shards
+			_worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DeviceSnapshots ingest");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return _worker;
+	}
+
+	/**
+	 * Add the scanned device to the batch, can be called on any thread.
+	 */
+	public void update(BleDevice device) {
+		DeviceStore.Report report = new DeviceStore.Report(device);
+		boolean full;
+		synchronized (_batchLock) {
+			_batch.add(report);
+			full = _batch.size() >= MAX_BATCH && !_ingestScheduled;
+			if (full) {
+				_ingestScheduled = true;
+			}
+		}
+		if (full) {
+			getWorker().execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (DeviceSnapshots.this) {
+						ingest();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Remove all devices, and publish the empty list. Doesn't wait for an ingestion which is
+	 * running, the shards are cleared by the next ingestion. Devices scanned after the call are
+	 * kept.
+	 */
+	public void clear() {
+		synchronized (_batchLock) {
+			_batch.clear();
+			_clearRequested = true;
+		}
+		_snapshot = DeviceStore.EMPTY;
+	}
+
+	/**
+	 * Publish a snapshot of all devices.
+	 * @return the published snapshot
+	 */
+	public DeviceStore publish() {
+		return publish(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Publish a snapshot of the strongest devices. Ingests the batch first, so don't call it on
+	 * the UI thread.
+	 * @param limit the maximum number of devices in the snapshot
+	 * @return the published snapshot
+	 */
+	public synchronized DeviceStore publish(int limit) {
+		ingest();
+		_snapshot = DeviceStore.snapshot(_shards, limit, _snapshot);
+		return _snapshot;
+	}
+
+	/**
+	 * @return the latest published snapshot, can be called on any thread
+	 */
+	public DeviceStore get() {
+		return _snapshot;
+	}
+
+	/**
+	 * Update the shards with the batch, in parallel if the batch is large enough.
+	 */
+	private void ingest() {
+		ArrayList<DeviceStore.Report> batch;
+		boolean clear;
+		synchronized (_batchLock) {
+			_ingestScheduled = false;
+			clear = _clearRequested;
+			_clearRequested = false;
+			// swap the batches, so the next batch can reuse the list
+			batch = _batch;
+			_batch = _ingesting;
+			_ingesting = batch;
+		}
+		if (clear) {
+			for (DeviceStore shard : _shards) {
+				shard.clear();
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		if (_shards.length == 1 || batch.size() < PARALLEL_THRESHOLD) {
+			for (DeviceStore.Report report : batch) {
+				_shards[shardOf(report)].update(report);
+			}
+		} else {
+			for (DeviceStore.Report report : batch) {
+				_partitions.get(shardOf(report)).add(report);
+			}
+			ingestParallel();
+			for (ArrayList<DeviceStore.Report> partition : _partitions) {
+				partition.clear();
+			}
+		}
+		batch.clear();
+	}
+
+	private void ingestParallel() {
+		final CountDownLatch done = new CountDownLatch(_shards.length - 1);
+		ExecutorService pool = getPool();
+		for (int i = 1; i < _shards.length; i++) {
+			final DeviceStore shard = _shards[i];
+			final ArrayList<DeviceStore.Report> partition = _partitions.get(i);
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (DeviceStore.Report report : partition) {
+							shard.update(report);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		for (DeviceStore.Report report : _partitions.get(0)) {
+			_shards[0].update(report);
+		}
+
+		// the shards are not consistent until all of them are done, so wait even if interrupted
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private int shardOf(DeviceStore.Report report) {
+		int hash = (int) (report.mac ^ (report.mac >>> 32));
+		hash ^= hash >>> 16;
+		return (hash & Integer.MAX_VALUE) % _shards.length;
+	}
+
+}
@@ -0,0 +1,601 @@
+package nl.dobots.bluenetexample;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * Struct-of-arrays store for scanned devices. Instead of keeping an object graph per device
+ * (address, name and proximity UUID strings, boxed and derived fields), every device occupies
+ * one slot in a set of primitive arrays:
+ *
+ * 		* the MAC address as a long
+ * 		* the proximity UUID as two longs
+ * 		* rssi, major, minor, distance and type flags as primitives
+ * 		* the name as an interned string, shared between all devices with the same name
+ *
+ * Slots are looked up by MAC address through an open addressing hash table, so updating a
+ * device does not allocate. Use a {@link DeviceView} to read a slot through getters.
+ *
+ * The store is updated with {@link Report}s, copies of the scanned devices, see
+ * {@link #update(Report)}. The UI reads from an immutable, rssi sorted snapshot created with {@link #snapshot(int, DeviceStore)}, see
+ * {@link DeviceSnapshots}. Every snapshot has a unique version, and shares the columns which
+ * didn't change with the previous snapshot, so a snapshot of devices which only changed their
+ * rssi only copies the rssi column.
+ *
+ * Created on 19-10-26
+ */
+public class DeviceStore {
+
+	public static final byte FLAG_IBEACON = 0x01;
+	public static final byte FLAG_GUIDESTONE = 0x02;
+	public static final byte FLAG_CROWNSTONE_PLUG = 0x04;
+	public static final byte FLAG_CROWNSTONE_BUILTIN = 0x08;
+	public static final byte FLAG_STONE = 0x10;
+
+	public static final DeviceStore EMPTY = new DeviceStore(0).freeze();
+
+	// a snapshot can merge this many stores, with up to 2^SLOT_BITS devices each
+	public static final int MAX_STORES = 128;
+	private static final int SLOT_BITS = 24;
+	private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+	private static final int DEFAULT_CAPACITY = 64;
+	// the name table is dropped once it has this many names, e.g. if devices keep changing
+	// their names. interning only saves memory, the names in the slots stay valid
+	private static final int MAX_NAMES = 1024;
+	private static final long NO_KEY = -1L;
+
+	private static final AtomicLong _versions = new AtomicLong();
+
+	/**
+	 * The values of a scanned device, copied on the thread on which it was scanned. The library
+	 * keeps updating its BleDevice objects on the BLE thread, so they can't be read later on
+	 * another thread.
+	 */
+	public static final class Report {
+		final long mac;
+		final int rssi;
+		final byte flags;
+		final String name;
+		final long uuidMsb;
+		final long uuidLsb;
+		final int major;
+		final int minor;
+		final float distance;
+
+		public Report(BleDevice device) {
+			mac = parseMac(device.getAddress());
+			rssi = device.getAverageRssi();
+			flags = getFlags(device);
+			name = device.getName();
+			if ((flags & FLAG_IBEACON) != 0) {
+				UUID uuid = device.getProximityUuid();
+				uuidMsb = uuid.getMostSignificantBits();
+				uuidLsb = uuid.getLeastSignificantBits();
+				major = device.getMajor();
+				minor = device.getMinor();
+				distance = (float) device.getDistance();
+			} else {
+				uuidMsb = 0;
+				uuidLsb = 0;
+				major = 0;
+				minor = 0;
+				distance = 0;
+			}
+		}
+	}
+
+	private int _size;
+	// 0 for a store which can be updated, unique for every snapshot
+	private long _version = 0;
+	private boolean _frozen = false;
+
+	private long[] _mac;
+	private long[] _uuidMsb;
+	private long[] _uuidLsb;
+	private int[] _rssi;
+	private char[] _major;
+	private char[] _minor;
+	private float[] _distance;
+	private byte[] _flags;
+	private String[] _names;
+
+	// open addressing table mapping mac -> slot, NO_KEY marks an empty bucket
+	private long[] _indexKeys;
+	private int[] _indexSlots;
+
+	// names are interned so that all devices with the same name share one string. only used
+	// by the store which is updated, snapshots don't have a table
+	private final HashMap<String, String> _nameTable;
+
+	public DeviceStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public DeviceStore(int capacity) {
+		this(capacity, new HashMap<String, String>());
+	}
+
+	private DeviceStore(int capacity, HashMap<String, String> nameTable) {
+		_mac = new long[capacity];
+		_uuidMsb = new long[capacity];
+		_uuidLsb = new long[capacity];
+		_rssi = new int[capacity];
+		_major = new char[capacity];
+		_minor = new char[capacity];
+		_distance = new float[capacity];
+		_flags = new byte[capacity];
+		_names = new String[capacity];
+		initIndex(capacity);
+		_nameTable = nameTable;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * @return the version of the snapshot, or 0 if this store is not a snapshot
+	 */
+	public long getVersion() {
+		return _version;
+	}
+
+	/**
+	 * @return true if both stores are the same snapshot, i.e. nothing changed in between. false
+	 * if the other store is null
+	 */
+	public boolean isSameSnapshot(DeviceStore other) {
+		return other != null && _version != 0 && _version == other._version;
+	}
+
+	private DeviceStore freeze() {
+		_frozen = true;
+		return this;
+	}
+
+	private void checkNotFrozen() {
+		if (_frozen) {
+			throw new IllegalStateException("snapshots can't be modified");
+		}
+	}
+
+	/**
+	 * Add the device to the store, or update its slot if it is already known.
+	 * @param report the values of the scanned device, with updated average rssi and distance
+	 * @return the slot of the device
+	 */
+	public int update(Report report) {
+		checkNotFrozen();
+		int slot = indexOf(report.mac);
+		if (slot < 0) {
+			slot = add(report.mac);
+		}
+
+		_rssi[slot] = report.rssi;
+		_flags[slot] = report.flags;
+		_names[slot] = intern(report.name);
+		// the iBeacon values of a report are 0 if the device doesn't advertise as iBeacon (any
+		// more), so the values of an earlier iBeacon advertisement don't stay behind
+		_uuidMsb[slot] = report.uuidMsb;
+		_uuidLsb[slot] = report.uuidLsb;
+		_major[slot] = (char) report.major;
+		_minor[slot] = (char) report.minor;
+		_distance[slot] = report.distance;
+		return slot;
+	}
+
+	public void clear() {
+		checkNotFrozen();
+		_size = 0;
+		Arrays.fill(_indexKeys, NO_KEY);
+		_nameTable.clear();
+	}
+
+	/**
+	 * Find the slot of a device.
+	 * @param mac MAC address, see {@link #parseMac(String)}
+	 * @return the slot, or -1 if the device is not in the store
+	 */
+	public int indexOf(long mac) {
+		int mask = _indexKeys.length - 1;
+		for (int i = hash(mac) & mask; ; i = (i + 1) & mask) {
+			if (_indexKeys[i] == mac) {
+				return _indexSlots[i];
+			} else if (_indexKeys[i] == NO_KEY) {
+				return -1;
+			}
+		}
+	}
+
+	public int indexOf(String address) {
+		return indexOf(parseMac(address));
+	}
+
+	/**
+	 * Create an immutable snapshot of the store with the slots ordered by average rssi,
+	 * strongest first. The snapshot shares the interned names, but no arrays with this store.
+	 * @return sorted snapshot
+	 */
+	public DeviceStore sortedByRssi() {
+		return sortedByRssi(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Same as {@link #sortedByRssi()}, but only copies the strongest devices.
+	 * @param limit the maximum number of devices in the snapshot
+	 * @return sorted snapshot
+	 */
+	public DeviceStore sortedByRssi(int limit) {
+		return snapshot(limit, null);
+	}
+
+	/**
+	 * Create an immutable snapshot of the strongest devices, ordered by average rssi. Columns
+	 * which are the same as in the previous snapshot are shared with it instead of copied.
+	 * @param limit the maximum number of devices in the snapshot
+	 * @param previous the previous snapshot, or null
+	 * @return the new snapshot, or the previous snapshot if nothing changed
+	 */
+	public DeviceStore snapshot(int limit, DeviceStore previous) {
+		return snapshot(new DeviceStore[] {this}, limit, previous);
+	}
+
+	/**
+	 * Same as {@link #snapshot(int, DeviceStore)}, but merges the devices of several stores,
+	 * e.g. the shards of a store which is updated in parallel. A device must only be in one
+	 * of the stores.
+	 * @param stores at most {@link #MAX_STORES} stores
+	 */
+	public static DeviceStore snapshot(DeviceStore[] stores, int limit, DeviceStore previous) {
+		// sort on a single primitive key: the negated rssi in the high word, the store and the
+		// slot in the low word. this avoids boxing and comparator calls
+		int size = 0;
+		for (DeviceStore store : stores) {
+			size += store._size;
+		}
+		long[] keys = new long[size];
+		int key = 0;
+		for (int s = 0; s < stores.length; s++) {
+			int[] rssi = stores[s]._rssi;
+			for (int i = 0; i < stores[s]._size; i++) {
+				keys[key++] = ((long) -rssi[i] << 32) | (s << SLOT_BITS) | i;
+			}
+		}
+		Arrays.sort(keys);
+
+		int count = Math.min(limit, size);
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = (int) keys[i];
+		}
+		if (previous != null && (previous._size != count || !previous._frozen)) {
+			previous = null;
+		}
+
+		long[][] mac = new long[stores.length][];
+		long[][] uuidMsb = new long[stores.length][];
+		long[][] uuidLsb = new long[stores.length][];
+		int[][] rssi = new int[stores.length][];
+		char[][] major = new char[stores.length][];
+		char[][] minor = new char[stores.length][];
+		float[][] distance = new float[stores.length][];
+		byte[][] flags = new byte[stores.length][];
+		String[][] names = new String[stores.length][];
+		for (int s = 0; s < stores.length; s++) {
+			mac[s] = stores[s]._mac;
+			uuidMsb[s] = stores[s]._uuidMsb;
+			uuidLsb[s] = stores[s]._uuidLsb;
+			rssi[s] = stores[s]._rssi;
+			major[s] = stores[s]._major;
+			minor[s] = stores[s]._minor;
+			distance[s] = stores[s]._distance;
+			flags[s] = stores[s]._flags;
+			names[s] = stores[s]._names;
+		}
+
+		DeviceStore snapshot = new DeviceStore(0, null);
+		snapshot._size = count;
+		snapshot._mac = gather(mac, order, previous != null ? previous._mac : null);
+		snapshot._uuidMsb = gather(uuidMsb, order, previous != null ? previous._uuidMsb : null);
+		snapshot._uuidLsb = gather(uuidLsb, order, previous != null ? previous._uuidLsb : null);
+		snapshot._rssi = gather(rssi, order, previous != null ? previous._rssi : null);
+		snapshot._major = gather(major, order, previous != null ? previous._major : null);
+		snapshot._minor = gather(minor, order, previous != null ? previous._minor : null);
+		snapshot._distance = gather(distance, order, previous != null ? previous._distance : null);
+		snapshot._flags = gather(flags, order, previous != null ? previous._flags : null);
+		snapshot._names = gather(names, order, previous != null ? previous._names : null);
+
+		if (previous != null && snapshot._mac == previous._mac) {
+			if (snapshot._uuidMsb == previous._uuidMsb && snapshot._uuidLsb == previous._uuidLsb
+					&& snapshot._rssi == previous._rssi && snapshot._major == previous._major
+					&& snapshot._minor == previous._minor && snapshot._distance == previous._distance
+					&& snapshot._flags == previous._flags && snapshot._names == previous._names) {
+				return previous;
+			}
+			// same devices in the same order, so the index is the same too
+			snapshot._indexKeys = previous._indexKeys;
+			snapshot._indexSlots = previous._indexSlots;
+		} else {
+			snapshot.initIndex(count);
+			for (int i = 0; i < count; i++) {
+				snapshot.putIndex(snapshot._mac[i], i);
+			}
+		}
+		snapshot._version = _versions.incrementAndGet();
+		return snapshot.freeze();
+	}
+
+	public long getMac(int slot) {
+		return _mac[slot];
+	}
+
+	public String getAddress(int slot) {
+		return formatMac(_mac[slot]);
+	}
+
+	public String getName(int slot) {
+		return _names[slot];
+	}
+
+	public int getRssi(int slot) {
+		return _rssi[slot];
+	}
+
+	public byte getFlags(int slot) {
+		return _flags[slot];
+	}
+
+	public boolean hasFlag(int slot, byte flag) {
+		return (_flags[slot] & flag) != 0;
+	}
+
+	public long getUuidMsb(int slot) {
+		return _uuidMsb[slot];
+	}
+
+	public long getUuidLsb(int slot) {
+		return _uuidLsb[slot];
+	}
+
+	public int getMajor(int slot) {
+		return _major[slot];
+	}
+
+	public int getMinor(int slot) {
+		return _minor[slot];
+	}
+
+	public float getDistance(int slot) {
+		return _distance[slot];
+	}
+
+	public static byte getFlags(BleDevice device) {
+		byte flags = 0;
+		if (device.isIBeacon()) flags |= FLAG_IBEACON;
+		if (device.isGuidestone()) flags |= FLAG_GUIDESTONE;
+		if (device.isCrownstonePlug()) flags |= FLAG_CROWNSTONE_PLUG;
+		if (device.isCrownstoneBuiltin()) flags |= FLAG_CROWNSTONE_BUILTIN;
+		if (device.isStone()) flags |= FLAG_STONE;
+		return flags;
+	}
+
+	/**
+	 * Parse a MAC address of the form AA:BB:CC:DD:EE:FF into a long.
+	 * @param address the MAC address
+	 * @return the 48 bit address in the lower bytes of a long
+	 */
+	public static long parseMac(String address) {
+		long mac = 0;
+		for (int i = 0; i < address.length(); i++) {
+			int digit = Character.digit(address.charAt(i), 16);
+			if (digit >= 0) {
+				mac = (mac << 4) | digit;
+			}
+		}
+		return mac;
+	}
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	public static String formatMac(long mac) {
+		char[] chars = new char[17];
+		for (int i = 0; i < 6; i++) {
+			int b = (int) (mac >>> (40 - 8 * i)) & 0xFF;
+			chars[3 * i] = HEX[b >>> 4];
+			chars[3 * i + 1] = HEX[b & 0x0F];
+			if (i < 5) {
+				chars[3 * i + 2] = ':';
+			}
+		}
+		return new String(chars);
+	}
+
+	private String intern(String name) {
+		if (name == null) {
+			return null;
+		}
+		String interned = _nameTable.get(name);
+		if (interned == null) {
+			if (_nameTable.size() >= MAX_NAMES) {
+				_nameTable.clear();
+			}
+			_nameTable.put(name, name);
+			interned = name;
+		}
+		return interned;
+	}
+
+	/**
+	 * Copy the slots of a column in the given order, or return the column of the previous
+	 * snapshot if it already has the same values. The column is split over the stores, the
+	 * order has the store in the high bits and the slot in the low bits. Names are interned,
+	 * so they can be compared by reference.
+	 */
+	private static long[] gather(long[][] columns, int[] order, long[] previous) {
+		if (previous != null) {
+			int i = 0;
+			while (i < order.length && previous[i] == columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK]) {
+				i++;
+			}
+			if (i == order.length) {
+				return previous;
+			}
+		}
+		long[] gathered = new long[order.length];
+		for (int i = 0; i < order.length; i++) {
+			gathered[i] = columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK];
+		}
+		return gathered;
+	}
+
+	private static int[] gather(int[][] columns, int[] order, int[] previous) {
+		if (previous != null) {
+			int i = 0;
+			while (i < order.length && previous[i] == columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK]) {
+				i++;
+			}
+			if (i == order.length) {
+				return previous;
+			}
+		}
+		int[] gathered = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			gathered[i] = columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK];
+		}
+		return gathered;
+	}
+
+	private static char[] gather(char[][] columns, int[] order, char[] previous) {
+		if (previous != null) {
+			int i = 0;
+			while (i < order.length && previous[i] == columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK]) {
+				i++;
+			}
+			if (i == order.length) {
+				return previous;
+			}
+		}
+		char[] gathered = new char[order.length];
+		for (int i = 0; i < order.length; i++) {
+			gathered[i] = columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK];
+		}
+		return gathered;
+	}
+
+	private static float[] gather(float[][] columns, int[] order, float[] previous) {
+		if (previous != null) {
+			int i = 0;
+			while (i < order.length && previous[i] == columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK]) {
+				i++;
+			}
+			if (i == order.length) {
+				return previous;
+			}
+		}
+		float[] gathered = new float[order.length];
+		for (int i = 0; i < order.length; i++) {
+			gathered[i] = columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK];
+		}
+		return gathered;
+	}
+
+	private static byte[] gather(byte[][] columns, int[] order, byte[] previous) {
+		if (previous != null) {
+			int i = 0;
+			while (i < order.length && previous[i] == columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK]) {
+				i++;
+			}
+			if (i == order.length) {
+				return previous;
+			}
+		}
+		byte[] gathered = new byte[order.length];
+		for (int i = 0; i < order.length; i++) {
+			gathered[i] = columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK];
+		}
+		return gathered;
+	}
+
+	private static String[] gather(String[][] columns, int[] order, String[] previous) {
+		if (previous != null) {
+			int i = 0;
+			while (i < order.length && previous[i] == columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK]) {
+				i++;
+			}
+			if (i == order.length) {
+				return previous;
+			}
+		}
+		String[] gathered = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			gathered[i] = columns[order[i] >>> SLOT_BITS][order[i] & SLOT_MASK];
+		}
+		return gathered;
+	}
+
+	private int add(long mac) {
+		if (_size == _mac.length) {
+			grow();
+		}
+		int slot = _size++;
+		_mac[slot] = mac;
+		_uuidMsb[slot] = 0;
+		_uuidLsb[slot] = 0;
+		_major[slot] = 0;
+		_minor[slot] = 0;
+		_distance[slot] = 0;
+		putIndex(mac, slot);
+		return slot;
+	}
+
+	private void grow() {
+		int capacity = Math.max(DEFAULT_CAPACITY, _mac.length * 2);
+		_mac = Arrays.copyOf(_mac, capacity);
+		_uuidMsb = Arrays.copyOf(_uuidMsb, capacity);
+		_uuidLsb = Arrays.copyOf(_uuidLsb, capacity);
+		_rssi = Arrays.copyOf(_rssi, capacity);
+		_major = Arrays.copyOf(_major, capacity);
+		_minor = Arrays.copyOf(_minor, capacity);
+		_distance = Arrays.copyOf(_distance, capacity);
+		_flags = Arrays.copyOf(_flags, capacity);
+		_names = Arrays.copyOf(_names, capacity);
+
+		initIndex(capacity);
+		for (int i = 0; i < _size; i++) {
+			putIndex(_mac[i], i);
+		}
+	}
+
+	private void initIndex(int capacity) {
+		// keep the load factor of the table at or below 0.5
+		int buckets = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) << 1;
+		_indexKeys = new long[buckets];
+		_indexSlots = new int[buckets];
+		Arrays.fill(_indexKeys, NO_KEY);
+	}
+
+	private void putIndex(long mac, int slot) {
+		int mask = _indexKeys.length - 1;
+		int i = hash(mac) & mask;
+		while (_indexKeys[i] != NO_KEY) {
+			i = (i + 1) & mask;
+		}
+		_indexKeys[i] = mac;
+		_indexSlots[i] = slot;
+	}
+
+	private static int hash(long mac) {
+		long h = mac * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
@@ -0,0 +1,81 @@
+package nl.dobots.bluenetexample;
+
+import java.util.UUID;
+
+/**
+ * Lightweight, reusable view on one slot of a {@link DeviceStore}. Provides the same getters
+ * as a BleDevice, so that the UI can read the compact store without materializing a device
+ * object per row. Views are repositioned with {@link #moveTo(DeviceStore, int)}, so don't hold
+ * on to a view (or pass it to a callback) if you need the values later, copy them instead.
+ *
+ * Created on 19-10-26
+ */
+public class DeviceView {
+
+	private DeviceStore _store = DeviceStore.EMPTY;
+	private int _slot = -1;
+
+	public DeviceView moveTo(DeviceStore store, int slot) {
+		_store = store;
+		_slot = slot;
+		return this;
+	}
+
+	public int getSlot() {
+		return _slot;
+	}
+
+	public String getAddress() {
+		return _store.getAddress(_slot);
+	}
+
+	public String getName() {
+		return _store.getName(_slot);
+	}
+
+	public int getAverageRssi() {
+		return _store.getRssi(_slot);
+	}
+
+	public boolean isIBeacon() {
+		return _store.hasFlag(_slot, DeviceStore.FLAG_IBEACON);
+	}
+
+	public boolean isGuidestone() {
+		return _store.hasFlag(_slot, DeviceStore.FLAG_GUIDESTONE);
+	}
+
+	public boolean isCrownstonePlug() {
+		return _store.hasFlag(_slot, DeviceStore.FLAG_CROWNSTONE_PLUG);
+	}
+
+	public boolean isCrownstoneBuiltin() {
+		return _store.hasFlag(_slot, DeviceStore.FLAG_CROWNSTONE_BUILTIN);
+	}
+
+	public boolean isStone() {
+		return _store.hasFlag(_slot, DeviceStore.FLAG_STONE);
+	}
+
+	public UUID getProximityUuid() {
+		return new UUID(_store.getUuidMsb(_slot), _store.getUuidLsb(_slot));
+	}
+
+	public int getMajor() {
+		return _store.getMajor(_slot);
+	}
+
+	public int getMinor() {
+		return _store.getMinor(_slot);
+	}
+
+	public double getDistance() {
+		return _store.getDistance(_slot);
+	}
+
+	@Override
+	public String toString() {
+		return "DeviceView{" + getAddress() + ", " + getName() + ", " + getAverageRssi() + "}";
+	}
+
+}
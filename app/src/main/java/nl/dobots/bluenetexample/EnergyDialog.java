@@ -0,0 +1,58 @@
+package nl.dobots.bluenetexample;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+
+import java.util.Locale;
+
+/**
+ * Shows the radio time and the estimated energy of every feature, see the radio accounting.
+ * The accounting can be exported as csv, e.g. to mail it, or reset. Used by both main screens.
+ *
+ * Created on 19-10-26
+ */
+public class EnergyDialog {
+
+	private EnergyDialog() {
+	}
+
+	public static void show(final Activity activity) {
+		final RadioAccounting accounting = RadioAccounting.getInstance();
+		StringBuilder message = new StringBuilder();
+		message.append(String.format(Locale.US, "Last %d min:\n", accounting.getDuration() / 60000));
+		for (RadioAccounting.Mode mode : RadioAccounting.Mode.values()) {
+			message.append(String.format(Locale.US, "%s: %d s\n", mode, accounting.getModeTime(mode) / 1000));
+		}
+		message.append(String.format(Locale.US, "\nEstimated total: %.2f mAh\n", accounting.getTotalEnergy()));
+		for (RadioAccounting.Feature feature : RadioAccounting.Feature.values()) {
+			message.append(String.format(Locale.US, "%s: %.2f mAh, %d wakeups, %d connections\n", feature,
+					accounting.getEnergy(feature), accounting.getCount(feature, RadioAccounting.Counter.WAKEUPS),
+					accounting.getCount(feature, RadioAccounting.Counter.CONNECTIONS)));
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle("Energy");
+		builder.setMessage(message.toString());
+		builder.setPositiveButton("Export", new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				Intent intent = new Intent(Intent.ACTION_SEND);
+				intent.setType("text/csv");
+				intent.putExtra(Intent.EXTRA_SUBJECT, "Radio accounting");
+				intent.putExtra(Intent.EXTRA_TEXT, accounting.toCsv());
+				activity.startActivity(Intent.createChooser(intent, "Export"));
+			}
+		});
+		builder.setNeutralButton("Reset", new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				accounting.reset();
+			}
+		});
+		builder.setNegativeButton(android.R.string.cancel, null);
+		builder.show();
+	}
+
+}
@@ -0,0 +1,712 @@
+package nl.dobots.bluenetexample;
+
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+/**
+ * A small HTTP and WebSocket server, so that a phone which is deployed as a fixed gateway
+ * can be used without anybody at the screen. All clients are served by a single thread with
+ * non blocking sockets.
+ *
+ * 		* GET /devices returns the scanned devices
+ * 		* GET /stream upgrades to a WebSocket, which streams the scanned devices. The first
+ * 		  frame contains all devices, the following frames only the devices which changed or
+ * 		  disappeared since the previous frame
+ * 		* POST /relay with a batch of commands, e.g. [{"address":"AA:BB:CC:DD:EE:FF","on":true}]
+ * 		  switches the relays of the devices. Batches can also be sent as text frames over the
+ * 		  WebSocket. The commands go through a bounded {@link CommandQueue}, commands which
+ * 		  don't fit are rejected
+ * 		* GET /stats returns the number of clients and the counters of the command queue
+ * 		* GET /energy returns the radio accounting, see {@link RadioAccounting#toJson()}
+ * 		* GET /room returns the room the gateway is in, see {@link #setRoom(String)}
+ *
+ * Device frames are encoded once and shared by all WebSocket clients. A client which can't
+ * keep up skips frames, and gets all devices again once it caught up.
+ *
+ * Without a token, the server only listens on the loopback interface, use e.g.
+ * "adb forward tcp:8080 tcp:8080" to reach it. With a token, it listens on all interfaces,
+ * and every request has to carry the token, either as "Authorization: Bearer token" header,
+ * or as "token" query parameter (browsers can't set headers for WebSockets). A malformed
+ * request only closes the connection of its client.
+ *
+ * Created on 19-10-26
+ */
+public class GatewayServer {
+
+	private static final String TAG = GatewayServer.class.getCanonicalName();
+
+	// largest request (headers and body) a client may send
+	public static final int MAX_REQUEST_SIZE = 16 * 1024;
+	// frames are skipped for a WebSocket client which has more bytes waiting to be sent
+	public static final int MAX_PENDING_BYTES = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+	private static final Pattern MAC_ADDRESS = Pattern.compile("[0-9A-Fa-f]{2}(:[0-9A-Fa-f]{2}){5}");
+
+	private static final int OPCODE_TEXT = 0x1;
+	private static final int OPCODE_CLOSE = 0x8;
+	private static final int OPCODE_PING = 0x9;
+	private static final int OPCODE_PONG = 0xA;
+
+	private static class Client {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		int outBytes;
+		boolean websocket = false;
+		// true if the client has to get all devices with the next frame
+		boolean needsFull = false;
+		boolean closeAfterWrite = false;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final CommandQueue _commands;
+	private final int _port;
+	private final byte[] _token;
+
+	private Selector _selector;
+	private ServerSocketChannel _serverChannel;
+	private Thread _thread;
+	private volatile boolean _running = false;
+
+	private final ArrayList<Client> _clients = new ArrayList<>();
+
+	// the latest published devices, taken by the server thread
+	private final AtomicReference<DeviceStore> _published = new AtomicReference<>();
+	// the devices as they were sent with the last frame
+	private DeviceStore _current = DeviceStore.EMPTY;
+	private int _sequence = 0;
+	private ByteBuffer _fullFrame;
+
+	// the room the gateway is in, null if unknown
+	private volatile String _room;
+
+	/**
+	 * Create a server which only listens on the loopback interface.
+	 * @param port port to listen on, 0 to pick a free port, see {@link #getPort()}
+	 */
+	public GatewayServer(int port, CommandQueue commands) {
+		this(port, null, commands);
+	}
+
+	/**
+	 * @param port port to listen on, 0 to pick a free port, see {@link #getPort()}
+	 * @param token token which the clients have to send, null to only listen on the loopback
+	 *              interface instead
+	 */
+	public GatewayServer(int port, String token, CommandQueue commands) {
+		_port = port;
+		_token = token != null ? token.getBytes(UTF8) : null;
+		_commands = commands;
+	}
+
+	public synchronized void start() throws IOException {
+		_selector = Selector.open();
+		_serverChannel = ServerSocketChannel.open();
+		_serverChannel.configureBlocking(false);
+		_serverChannel.socket().setReuseAddress(true);
+		if (_token != null) {
+			_serverChannel.socket().bind(new InetSocketAddress(_port));
+		} else {
+			_serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), _port));
+		}
+		_serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+
+		_running = true;
+		_thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, "GatewayServer");
+		_thread.start();
+		Log.i(TAG, "listening on port " + getPort());
+	}
+
+	public synchronized void stop() {
+		_running = false;
+		if (_selector != null) {
+			_selector.wakeup();
+		}
+		if (_thread != null) {
+			try {
+				_thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_thread = null;
+		}
+	}
+
+	public int getPort() {
+		return _serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Set the room the gateway is in, e.g. as inferred by a {@link RoomInference}.
+	 * @param room the room, or null if it is unknown
+	 */
+	public void setRoom(String room) {
+		_room = room;
+	}
+
+	/**
+	 * Publish the scanned devices, they are sent to the clients as soon as possible. If devices
+	 * are published faster than they can be sent, only the latest devices are sent.
+	 */
+	public void publish(DeviceStore devices) {
+		if (_published.getAndSet(devices) == null && _selector != null) {
+			_selector.wakeup();
+		}
+	}
+
+	private void loop() {
+		try {
+			while (_running) {
+				_selector.select();
+
+				DeviceStore devices = _published.getAndSet(null);
+				if (devices != null) {
+					broadcast(devices);
+				}
+
+				Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							Client client = (Client) key.attachment();
+							if (key.isReadable()) {
+								read(client);
+							}
+							if (key.isValid() && key.isWritable()) {
+								write(client);
+							}
+						}
+					} catch (IOException e) {
+						close((Client) key.attachment());
+					} catch (RuntimeException e) {
+						// a bug or a request we didn't expect, only drop this client
+						Log.e(TAG, "failed to serve client", e);
+						close((Client) key.attachment());
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "server failed", e);
+		} finally {
+			for (Client client : new ArrayList<>(_clients)) {
+				close(client);
+			}
+			try {
+				_serverChannel.close();
+				_selector.close();
+			} catch (IOException e) {
+				Log.e(TAG, "failed to close", e);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = _serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			Client client = new Client(channel);
+			channel.register(_selector, SelectionKey.OP_READ, client);
+			_clients.add(client);
+		}
+	}
+
+	private void close(Client client) {
+		if (client == null) {
+			return;
+		}
+		_clients.remove(client);
+		try {
+			client.channel.close();
+		} catch (IOException e) {
+			// closed anyway
+		}
+	}
+
+	private void read(Client client) throws IOException {
+		if (client.channel.read(client.in) < 0) {
+			close(client);
+			return;
+		}
+		client.in.flip();
+		if (client.websocket) {
+			readFrames(client);
+		} else {
+			readRequests(client);
+		}
+		client.in.compact();
+
+		if (!client.in.hasRemaining()) {
+			// the request doesn't fit in the buffer
+			client.closeAfterWrite = true;
+			respond(client, 413, "text/plain", "request too large");
+		} else if (client.closeAfterWrite && client.out.isEmpty()) {
+			close(client);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	// HTTP
+	////////////////////////////////////////////////////////////////////////////////////////////
+
+	private void readRequests(Client client) {
+		// handle every complete request in the buffer, clients may pipeline their requests
+		while (!client.websocket && !client.closeAfterWrite) {
+			ByteBuffer in = client.in;
+			int headerEnd = indexOf(in, "\r\n\r\n");
+			if (headerEnd < 0) {
+				return;
+			}
+			String[] lines = new String(in.array(), in.position(), headerEnd - in.position(), UTF8).split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length < 3) {
+				client.closeAfterWrite = true;
+				respond(client, 400, "text/plain", "bad request");
+				return;
+			}
+
+			int contentLength = 0;
+			String webSocketKey = null;
+			String authorization = null;
+			boolean keepAlive = requestLine[2].equals("HTTP/1.1");
+			for (int i = 1; i < lines.length; i++) {
+				int colon = lines[i].indexOf(':');
+				if (colon < 0) {
+					continue;
+				}
+				String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+				String value = lines[i].substring(colon + 1).trim();
+				if (name.equals("content-length")) {
+					contentLength = parseContentLength(value);
+					if (contentLength < 0) {
+						client.closeAfterWrite = true;
+						respond(client, 400, "text/plain", "bad content length");
+						return;
+					}
+				} else if (name.equals("authorization")) {
+					authorization = value;
+				} else if (name.equals("sec-websocket-key")) {
+					webSocketKey = value;
+				} else if (name.equals("connection")) {
+					keepAlive = !value.equalsIgnoreCase("close");
+				}
+			}
+
+			int bodyStart = headerEnd + 4;
+			if (in.limit() - bodyStart < contentLength) {
+				// wait for the rest of the body
+				return;
+			}
+			String body = new String(in.array(), bodyStart, contentLength, UTF8);
+			in.position(bodyStart + contentLength);
+
+			String path = requestLine[1];
+			String query = null;
+			int question = path.indexOf('?');
+			if (question >= 0) {
+				query = path.substring(question + 1);
+				path = path.substring(0, question);
+			}
+			if (!isAuthorized(authorization, query)) {
+				client.closeAfterWrite = true;
+				respond(client, 401, "text/plain", "unauthorized");
+				return;
+			}
+
+			handle(client, requestLine[0], path, webSocketKey, body);
+			if (!keepAlive) {
+				client.closeAfterWrite = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the content length, or -1 if it isn't a number, or larger than a request may be
+	 */
+	private static int parseContentLength(String value) {
+		try {
+			int length = Integer.parseInt(value);
+			return length <= MAX_REQUEST_SIZE ? length : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private boolean isAuthorized(String authorization, String query) {
+		if (_token == null) {
+			return true;
+		}
+		String token = null;
+		if (authorization != null && authorization.startsWith("Bearer ")) {
+			token = authorization.substring("Bearer ".length()).trim();
+		} else if (query != null) {
+			for (String parameter : query.split("&")) {
+				if (parameter.startsWith("token=")) {
+					token = parameter.substring("token=".length());
+				}
+			}
+		}
+		// compared in constant time, so the token can't be guessed from the response times
+		return token != null && MessageDigest.isEqual(_token, token.getBytes(UTF8));
+	}
+
+	private void handle(Client client, String method, String path, String webSocketKey, String body) {
+		if (method.equals("GET") && path.equals("/devices")) {
+			respond(client, 200, "application/json", encodeDevices(_current, true));
+		} else if (method.equals("GET") && path.equals("/stream") && webSocketKey != null) {
+			upgrade(client, webSocketKey);
+		} else if (method.equals("POST") && path.equals("/relay")) {
+			respond(client, 202, "application/json", enqueue(body));
+		} else if (method.equals("GET") && path.equals("/stats")) {
+			respond(client, 200, "application/json", String.format(Locale.US,
+					"{\"clients\":%d,\"waiting\":%d,\"executed\":%d,\"failed\":%d,\"rejected\":%d}",
+					_clients.size(), _commands.getWaiting(), _commands.getExecuted(),
+					_commands.getFailed(), _commands.getRejected()));
+		} else if (method.equals("GET") && path.equals("/energy")) {
+			respond(client, 200, "application/json", RadioAccounting.getInstance().toJson());
+		} else if (method.equals("GET") && path.equals("/room")) {
+			String room = _room;
+			respond(client, 200, "application/json", "{\"room\":" + (room != null ? JSONObject.quote(room) : "null") + "}");
+		} else {
+			respond(client, 404, "text/plain", "not found");
+		}
+	}
+
+	private void respond(Client client, int status, String contentType, String body) {
+		byte[] content = body.getBytes(UTF8);
+		String header = "HTTP/1.1 " + status + " " + reason(status) + "\r\n" +
+				"Content-Type: " + contentType + "\r\n" +
+				"Content-Length: " + content.length + "\r\n\r\n";
+		byte[] head = header.getBytes(UTF8);
+		ByteBuffer response = ByteBuffer.allocate(head.length + content.length);
+		response.put(head).put(content).flip();
+		send(client, response);
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+			case 101: return "Switching Protocols";
+			case 200: return "OK";
+			case 202: return "Accepted";
+			case 400: return "Bad Request";
+			case 401: return "Unauthorized";
+			case 404: return "Not Found";
+			case 413: return "Payload Too Large";
+			default: return "";
+		}
+	}
+
+	/**
+	 * Offer a batch of commands to the command queue. Commands with an address which is no
+	 * MAC address are rejected right away, they would fail in the library anyway.
+	 * @return the response, with the number of accepted and rejected commands
+	 */
+	private String enqueue(String batch) {
+		int accepted = 0;
+		int rejected = 0;
+		try {
+			JSONArray commands = new JSONArray(batch);
+			for (int i = 0; i < commands.length(); i++) {
+				JSONObject command = commands.getJSONObject(i);
+				String address = command.getString("address");
+				if (!MAC_ADDRESS.matcher(address).matches()) {
+					rejected++;
+				} else if (_commands.offer(address.toUpperCase(Locale.US), command.getBoolean("on"))) {
+					accepted++;
+				} else {
+					rejected++;
+				}
+			}
+		} catch (JSONException e) {
+			return "{\"error\":\"invalid batch\"}";
+		}
+		return "{\"accepted\":" + accepted + ",\"rejected\":" + rejected + "}";
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	// WebSocket
+	////////////////////////////////////////////////////////////////////////////////////////////
+
+	private void upgrade(Client client, String key) {
+		String accept;
+		try {
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			accept = Base64.encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(UTF8)), Base64.NO_WRAP);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+				"Upgrade: websocket\r\n" +
+				"Connection: Upgrade\r\n" +
+				"Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+		send(client, ByteBuffer.wrap(response.getBytes(UTF8)));
+		client.websocket = true;
+
+		// the first frame contains all devices
+		sendFrame(client, fullFrame());
+	}
+
+	private void readFrames(Client client) {
+		ByteBuffer in = client.in;
+		while (in.remaining() >= 2) {
+			int start = in.position();
+			int opcode = in.get(start) & 0x0F;
+			boolean masked = (in.get(start + 1) & 0x80) != 0;
+			long length = in.get(start + 1) & 0x7F;
+			int offset = start + 2;
+			if (length == 126) {
+				if (in.limit() < offset + 2) return;
+				length = in.getShort(offset) & 0xFFFF;
+				offset += 2;
+			} else if (length == 127) {
+				if (in.limit() < offset + 8) return;
+				length = in.getLong(offset);
+				offset += 8;
+			}
+			// a 64 bit length can be negative
+			if (length < 0 || length > MAX_REQUEST_SIZE) {
+				close(client);
+				return;
+			}
+			int maskOffset = offset;
+			if (masked) {
+				offset += 4;
+			}
+			if (in.limit() < offset + length) {
+				// wait for the rest of the frame
+				return;
+			}
+
+			byte[] payload = new byte[(int) length];
+			for (int i = 0; i < length; i++) {
+				byte b = in.get(offset + i);
+				payload[i] = masked ? (byte) (b ^ in.get(maskOffset + (i & 3))) : b;
+			}
+			in.position(offset + (int) length);
+
+			switch (opcode) {
+				case OPCODE_TEXT:
+					sendFrame(client, encodeFrame(OPCODE_TEXT, enqueue(new String(payload, UTF8)).getBytes(UTF8)));
+					break;
+				case OPCODE_PING:
+					sendFrame(client, encodeFrame(OPCODE_PONG, payload));
+					break;
+				case OPCODE_CLOSE:
+					sendFrame(client, encodeFrame(OPCODE_CLOSE, payload));
+					client.closeAfterWrite = true;
+					return;
+			}
+		}
+	}
+
+	private static ByteBuffer encodeFrame(int opcode, byte[] payload) {
+		int headerSize = payload.length < 126 ? 2 : payload.length < 65536 ? 4 : 10;
+		ByteBuffer frame = ByteBuffer.allocate(headerSize + payload.length);
+		frame.put((byte) (0x80 | opcode));
+		if (payload.length < 126) {
+			frame.put((byte) payload.length);
+		} else if (payload.length < 65536) {
+			frame.put((byte) 126);
+			frame.putShort((short) payload.length);
+		} else {
+			frame.put((byte) 127);
+			frame.putLong(payload.length);
+		}
+		frame.put(payload).flip();
+		return frame.asReadOnlyBuffer();
+	}
+
+	private void sendFrame(Client client, ByteBuffer frame) {
+		send(client, frame.duplicate());
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	// Device frames
+	////////////////////////////////////////////////////////////////////////////////////////////
+
+	private void broadcast(DeviceStore devices) {
+		if (devices.isSameSnapshot(_current)) {
+			// nothing changed since the last frame
+			return;
+		}
+		DeviceStore previous = _current;
+		_current = devices;
+		_sequence++;
+		_fullFrame = null;
+
+		ByteBuffer delta = null;
+		for (Client client : new ArrayList<>(_clients)) {
+			if (!client.websocket) {
+				continue;
+			}
+			if (client.outBytes > MAX_PENDING_BYTES) {
+				// the client can't keep up, skip this frame and resend everything later
+				client.needsFull = true;
+			} else if (client.needsFull) {
+				client.needsFull = false;
+				sendFrame(client, fullFrame());
+			} else {
+				if (delta == null) {
+					delta = encodeFrame(OPCODE_TEXT, encodeDelta(previous, devices).getBytes(UTF8));
+				}
+				sendFrame(client, delta);
+			}
+		}
+	}
+
+	private ByteBuffer fullFrame() {
+		if (_fullFrame == null) {
+			_fullFrame = encodeFrame(OPCODE_TEXT, encodeDevices(_current, true).getBytes(UTF8));
+		}
+		return _fullFrame;
+	}
+
+	/**
+	 * Encode devices compactly as {"seq":n,"full":true,"upd":[[address,rssi,flags,name],..]}
+	 */
+	private String encodeDevices(DeviceStore devices, boolean full) {
+		StringBuilder builder = new StringBuilder(64 + devices.size() * 40);
+		builder.append("{\"seq\":").append(_sequence).append(",\"full\":").append(full).append(",\"upd\":[");
+		for (int i = 0; i < devices.size(); i++) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			appendDevice(builder, devices, i);
+		}
+		return builder.append("]}").toString();
+	}
+
+	/**
+	 * Encode only the devices which were added or changed, and the addresses of the devices
+	 * which are gone as "del":[address,..]
+	 */
+	private String encodeDelta(DeviceStore previous, DeviceStore devices) {
+		StringBuilder builder = new StringBuilder(256);
+		builder.append("{\"seq\":").append(_sequence).append(",\"full\":false,\"upd\":[");
+		boolean first = true;
+		for (int i = 0; i < devices.size(); i++) {
+			int slot = previous.indexOf(devices.getMac(i));
+			if (slot >= 0 && previous.getRssi(slot) == devices.getRssi(i) &&
+					previous.getFlags(slot) == devices.getFlags(i) &&
+					previous.getName(slot) == devices.getName(i)) {
+				// names are interned, so comparing references is enough
+				continue;
+			}
+			if (!first) {
+				builder.append(',');
+			}
+			first = false;
+			appendDevice(builder, devices, i);
+		}
+		builder.append("],\"del\":[");
+		first = true;
+		for (int i = 0; i < previous.size(); i++) {
+			if (devices.indexOf(previous.getMac(i)) < 0) {
+				if (!first) {
+					builder.append(',');
+				}
+				first = false;
+				builder.append('"').append(previous.getAddress(i)).append('"');
+			}
+		}
+		return builder.append("]}").toString();
+	}
+
+	private static void appendDevice(StringBuilder builder, DeviceStore devices, int slot) {
+		builder.append("[\"").append(devices.getAddress(slot)).append("\",")
+				.append(devices.getRssi(slot)).append(',')
+				.append(devices.getFlags(slot)).append(',')
+				.append(devices.getName(slot) != null ? JSONObject.quote(devices.getName(slot)) : "null")
+				.append(']');
+	}
+
+	////////////////////////////////////////////////////////////////////////////////////////////
+	// Output
+	////////////////////////////////////////////////////////////////////////////////////////////
+
+	private void send(Client client, ByteBuffer data) {
+		client.out.add(data);
+		client.outBytes += data.remaining();
+		try {
+			write(client);
+		} catch (IOException e) {
+			close(client);
+		}
+	}
+
+	private void write(Client client) throws IOException {
+		while (!client.out.isEmpty()) {
+			ByteBuffer data = client.out.peek();
+			int written = client.channel.write(data);
+			client.outBytes -= written;
+			if (data.hasRemaining()) {
+				// the socket buffer is full, continue once the socket is writable again
+				client.channel.keyFor(_selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			client.out.poll();
+		}
+		if (client.closeAfterWrite) {
+			close(client);
+			return;
+		}
+		SelectionKey key = client.channel.keyFor(_selector);
+		if (key != null && key.isValid()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private static int indexOf(ByteBuffer buffer, String pattern) {
+		byte[] bytes = pattern.getBytes(UTF8);
+		outer:
+		for (int i = buffer.position(); i <= buffer.limit() - bytes.length; i++) {
+			for (int j = 0; j < bytes.length; j++) {
+				if (buffer.get(i + j) != bytes[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+}
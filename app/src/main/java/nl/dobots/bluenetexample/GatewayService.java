@@ -0,0 +1,364 @@
+package nl.dobots.bluenetexample;
+
+import android.app.Service;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.service.BleScanService;
+
+/**
+ * Runs the phone as a headless gateway: scans with the BleScanService and serves the scanned
+ * devices and relay commands to remote clients through a {@link GatewayServer} on
+ * {@link #PORT}. Start it without any activity, e.g. with
+ *
+ * 		adb shell am startservice -n nl.dobots.bluenetexample/.GatewayService
+ *
+ * Unless {@link Config#GATEWAY_TOKEN} is set, the server is only reachable from the phone
+ * itself, e.g. through "adb forward tcp:8080 tcp:8080".
+ *
+ * The service also runs the proximity {@link Rule}s in the file {@link #RULES_FILE} of the
+ * app's files, one rule per line. The rules are read again every time the service is
+ * started, so after changing the file, start the service again to apply them.
+ *
+ * The room the phone is in is inferred with a {@link RoomInference}, and served as GET /room.
+ * The fingerprints of the rooms are trained by starting the service with the room, and then
+ * walking through it. Training stops once the service is started to train another room, or
+ * with "stop_training":
+ *
+ * 		adb shell am startservice -n nl.dobots.bluenetexample/.GatewayService --es train_room kitchen
+ * 		adb shell am startservice -n nl.dobots.bluenetexample/.GatewayService --ez stop_training true
+ *
+ * The fingerprints are kept in memory, so they have to be trained again after the service was
+ * stopped.
+ *
+ * The scan intervals can be recorded to a trace in the directory {@link #TRACE_DIRECTORY} of
+ * the app's files, e.g. while training, to replay them in the RoomFingerprintsBenchmark. The
+ * recording stops with "stop_recording", or when the service is stopped:
+ *
+ * 		adb shell am startservice -n nl.dobots.bluenetexample/.GatewayService --es record_trace home
+ * 		adb shell am startservice -n nl.dobots.bluenetexample/.GatewayService --ez stop_recording true
+ *
+ * Created on 19-10-26
+ */
+public class GatewayService extends Service {
+
+	private static final String TAG = GatewayService.class.getCanonicalName();
+
+	public static final int PORT = 8080;
+
+	// how often the scanned devices are sent to the clients
+	public static final int PUBLISH_INTERVAL = 1000;
+	// how many relay commands are executed at the same time
+	public static final int MAX_CONNECTIONS = 2;
+	// how many relay commands may wait before further commands are rejected
+	public static final int COMMAND_QUEUE_CAPACITY = 64;
+
+	public static final String RULES_FILE = "rules";
+	public static final String TRACE_DIRECTORY = "room_traces";
+
+	public static final String EXTRA_TRAIN_ROOM = "train_room";
+	public static final String EXTRA_STOP_TRAINING = "stop_training";
+	public static final String EXTRA_RECORD_TRACE = "record_trace";
+	public static final String EXTRA_STOP_RECORDING = "stop_recording";
+
+	private BleScanService _service;
+	private boolean _bound = false;
+	private ScanStreams _streams;
+	private Stream.Subscription _subscription;
+	private Stream.Subscription _deviceSubscription;
+	private Stream.Subscription _accountingSubscription;
+
+	private final Handler _handler = new Handler();
+
+	private final ArrayList<BleExt> _connections = new ArrayList<>();
+	// connections which don't execute a command at the moment
+	private final ArrayDeque<BleExt> _idle = new ArrayDeque<>();
+	private CommandQueue _commands;
+	private GatewayServer _server;
+	private RuleEngine _rules;
+	private RoomInference _rooms;
+
+	/**
+	 * Executes the commands with a pool of connections, the command queue makes sure that
+	 * never more commands run than there are connections.
+	 */
+	private final CommandQueue.Executor _executor = new CommandQueue.Executor() {
+		@Override
+		public int getConnections() {
+			return _connections.size();
+		}
+
+		@Override
+		public void execute(String address, boolean relayOn, final IStatusCallback callback) {
+			final BleExt ble;
+			synchronized (_idle) {
+				ble = _idle.poll();
+			}
+			RadioArbiter.getInstance().acquireConnection(RadioAccounting.Feature.GATEWAY);
+			KeyStore.getInstance(GatewayService.this).apply(ble, address);
+
+			// the command only completes once the link is closed, so the queue doesn't hand out
+			// the connection before it is idle again
+			IStatusCallback done = new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					close(ble, new Runnable() {
+						@Override
+						public void run() {
+							callback.onSuccess();
+						}
+					});
+				}
+
+				@Override
+				public void onError(final int error) {
+					close(ble, new Runnable() {
+						@Override
+						public void run() {
+							callback.onError(error);
+						}
+					});
+				}
+			};
+			if (relayOn) {
+				ble.relayOn(address, done);
+			} else {
+				ble.relayOff(address, done);
+			}
+		}
+
+		/**
+		 * Disconnect right away instead of after the disconnect timeout of the library, and
+		 * only return the connection to the pool, and release it at the arbiter, once the link
+		 * is closed. Otherwise the next command could get a connection which is still linked
+		 * to the previous stone.
+		 */
+		private void close(final BleExt ble, final Runnable then) {
+			IStatusCallback closed = new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					RadioArbiter.getInstance().releaseConnection(RadioAccounting.Feature.GATEWAY);
+					synchronized (_idle) {
+						_idle.add(ble);
+					}
+					then.run();
+				}
+
+				@Override
+				public void onError(int error) {
+					onSuccess();
+				}
+			};
+			// returns false, without calling back, if there is no link to close
+			if (!ble.disconnectAndClose(false, closed)) {
+				closed.onSuccess();
+			}
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		for (int i = 0; i < MAX_CONNECTIONS; i++) {
+			BleExt ble = new BleExt();
+			ble.init(this, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					Log.v(TAG, "onSuccess");
+				}
+
+				@Override
+				public void onError(int error) {
+					Log.e(TAG, "onError: " + error);
+				}
+			});
+			// the keys of the stone's sphere are set before every connection, see the key store
+			_connections.add(ble);
+		}
+		_idle.addAll(_connections);
+
+		// remote clients and rules share the connections
+		_commands = new CommandQueue(_executor, COMMAND_QUEUE_CAPACITY);
+		_rules = new RuleEngine(_commands);
+		_server = new GatewayServer(PORT, Config.GATEWAY_TOKEN, _commands);
+		_rooms = new RoomInference(new RoomFingerprints(), _handler, new RoomInference.Listener() {
+			@Override
+			public void onRoomChanged(String room) {
+				Log.i(TAG, "room: " + room);
+				_server.setRoom(room);
+			}
+		});
+		// commands of stones which were out of range are delivered through the same queue
+		CommandJournal.getInstance(this).attach(_commands);
+		try {
+			_server.start();
+		} catch (IOException e) {
+			Log.e(TAG, "failed to start the gateway server", e);
+			stopSelf();
+			return;
+		}
+
+		Intent intent = new Intent(this, BleScanService.class);
+		bindService(intent, _connection, Context.BIND_AUTO_CREATE);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		loadRules();
+		// the intent is null if the service is restarted after it was killed
+		if (intent != null) {
+			String room = intent.getStringExtra(EXTRA_TRAIN_ROOM);
+			if (room != null) {
+				Log.i(TAG, "training room " + room);
+				_rooms.train(room);
+			} else if (intent.getBooleanExtra(EXTRA_STOP_TRAINING, false)) {
+				Log.i(TAG, "stopped training");
+				_rooms.train(null);
+			}
+			String trace = intent.getStringExtra(EXTRA_RECORD_TRACE);
+			if (trace != null) {
+				startRecording(trace);
+			} else if (intent.getBooleanExtra(EXTRA_STOP_RECORDING, false)) {
+				Log.i(TAG, "stopped recording");
+				_rooms.stopRecording();
+			}
+		}
+		return START_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		if (_subscription != null) {
+			_subscription.unsubscribe();
+		}
+		_rules.stop();
+		_rooms.stop();
+		CommandJournal.getInstance(this).detach(_commands);
+		if (_deviceSubscription != null) {
+			_deviceSubscription.unsubscribe();
+		}
+		if (_accountingSubscription != null) {
+			_accountingSubscription.unsubscribe();
+		}
+		if (_bound) {
+			_service.stopIntervalScan();
+			unbindService(_connection);
+		}
+		_server.stop();
+		for (BleExt ble : _connections) {
+			ble.destroy();
+		}
+	}
+
+	private ServiceConnection _connection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			Log.i(TAG, "connected to ble scan service ...");
+			_service = ((BleScanService.BleScanBinder) service).getService();
+			_bound = true;
+
+			// the server takes the devices on its own thread, so no need to deliver them on
+			// the main thread, but the sampling needs a handler
+			_streams = new ScanStreams(_service);
+			_subscription = _streams.rssiSorted(Integer.MAX_VALUE, PUBLISH_INTERVAL, _handler).subscribe(
+					new Stream.Subscriber<DeviceStore>() {
+						@Override
+						public void onNext(DeviceStore devices) {
+							_server.publish(devices);
+						}
+					});
+			_rules.start(_streams);
+			_rooms.start(_streams);
+			_accountingSubscription = _streams.account(RadioAccounting.Feature.GATEWAY);
+			final CommandJournal journal = CommandJournal.getInstance(GatewayService.this);
+			final KeyStore keyStore = KeyStore.getInstance(GatewayService.this);
+			_deviceSubscription = _streams.devices().subscribe(new Stream.Subscriber<BleDevice>() {
+				@Override
+				public void onNext(BleDevice device) {
+					keyStore.onDeviceScanned(device);
+					journal.onDeviceSeen(device.getAddress());
+				}
+			});
+
+			keyStore.apply(_service.getBleExt());
+			_service.startIntervalScan();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			Log.i(TAG, "disconnected from service");
+			_bound = false;
+		}
+	};
+
+	private void startRecording(String name) {
+		if (name.isEmpty() || name.contains(File.separator)) {
+			Log.e(TAG, "invalid trace name " + name);
+			return;
+		}
+		File directory = new File(getFilesDir(), TRACE_DIRECTORY);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.e(TAG, "failed to create " + directory);
+			return;
+		}
+		File file = new File(directory, name);
+		try {
+			// appends to the trace if it exists
+			_rooms.startRecording(file.getPath());
+			Log.i(TAG, "recording trace " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "failed to record trace " + file, e);
+		}
+	}
+
+	private void loadRules() {
+		File file = new File(getFilesDir(), RULES_FILE);
+		ArrayList<Rule> rules = new ArrayList<>();
+		if (file.exists()) {
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						try {
+							Rule rule = Rule.parse(line);
+							if (rule != null) {
+								rules.add(rule);
+							}
+						} catch (IllegalArgumentException e) {
+							Log.e(TAG, "skipped rule: " + e.getMessage());
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "failed to read the rules", e);
+			}
+		}
+		_rules.setRules(rules);
+	}
+
+}
@@ -0,0 +1,150 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.util.Log;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Delivers the commands of the {@link CommandJournal} for a screen which scans, e.g. the main
+ * screens. The screen calls {@link #onDeviceSeen(String)} for every scanned device, and the
+ * journaled command of the device is executed through a queue with a single connection.
+ *
+ * The delivery has its own BleExt, so it doesn't disturb the scan of the screen, and setting
+ * the keys of a stone's sphere doesn't change the keys of the scanning BleExt. The link is
+ * closed right after every command, see the {@link ConnectionLease}.
+ *
+ * The BleExt is initialized, and the journal and the key store are read, by the
+ * {@link BleStartup}, so starting the delivery doesn't block the main thread. Devices seen
+ * before that are not delivered to, they are seen again by the next scan.
+ *
+ * Created on 19-10-26
+ */
+public class JournalDelivery {
+
+	private static final String TAG = JournalDelivery.class.getCanonicalName();
+
+	private static final int QUEUE_CAPACITY = 16;
+
+	private final Context _context;
+	// read on the startup thread, see start
+	private volatile CommandJournal _journal;
+	private volatile KeyStore _keys;
+	// only accessed on the main thread
+	private boolean _attached = false;
+	private boolean _stopped = false;
+
+	private BleExt _ble;
+	private ConnectionLease _lease;
+
+	private final CommandQueue _commands = new CommandQueue(new CommandQueue.Executor() {
+		@Override
+		public int getConnections() {
+			return 1;
+		}
+
+		@Override
+		public void execute(String address, boolean relayOn, final IStatusCallback callback) {
+			_keys.apply(_ble, address);
+			_lease.acquire();
+			IStatusCallback done = new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					_lease.release();
+					callback.onSuccess();
+				}
+
+				@Override
+				public void onError(int error) {
+					_lease.release();
+					callback.onError(error);
+				}
+			};
+			if (relayOn) {
+				_ble.relayOn(address, done);
+			} else {
+				_ble.relayOff(address, done);
+			}
+		}
+	}, QUEUE_CAPACITY);
+
+	public JournalDelivery(Context context) {
+		_context = context.getApplicationContext();
+	}
+
+	/**
+	 * Create the BleExt of the delivery and attach it to the journal, once both are ready.
+	 * Call on the main thread.
+	 */
+	public void start() {
+		_ble = new BleExt();
+		_lease = new ConnectionLease(_ble, RadioAccounting.Feature.JOURNAL);
+		BleStartup.init(_context, _ble, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				Log.v(TAG, "onSuccess");
+			}
+
+			@Override
+			public void onError(int error) {
+				Log.e(TAG, "onError: " + error);
+			}
+		}, null);
+		BleStartup.load(new Runnable() {
+			@Override
+			public void run() {
+				_keys = KeyStore.getInstance(_context);
+				_journal = CommandJournal.getInstance(_context);
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				if (!_stopped) {
+					_journal.attach(_commands);
+					_attached = true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Detach from the journal, commands which are being delivered are delivered again by the
+	 * next delivery.
+	 */
+	public void stop() {
+		_stopped = true;
+		if (_attached) {
+			_journal.detach(_commands);
+			_attached = false;
+		}
+		_lease.cancel();
+		if (_ble.isConnected(null)) {
+			_ble.disconnectAndClose(false, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					_ble.destroy();
+				}
+
+				@Override
+				public void onError(int error) {
+					_ble.destroy();
+				}
+			});
+		} else {
+			// the library might still be initializing in the background
+			BleStartup.destroy(_ble);
+		}
+	}
+
+	/**
+	 * Called for every scanned device.
+	 */
+	public void onDeviceSeen(String address) {
+		CommandJournal journal = _journal;
+		if (journal != null) {
+			journal.onDeviceSeen(address);
+		}
+	}
+
+}
@@ -0,0 +1,310 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+import nl.dobots.bluenet.ble.base.BleBase;
+import nl.dobots.bluenet.ble.base.structs.EncryptionKeys;
+import nl.dobots.bluenet.ble.extended.BleExt;
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * Encryption keys of the stones, per sphere. Every sphere has its own admin, member and guest
+ * key, and its own iBeacon proximity UUID, which all stones of the sphere advertise. A stone
+ * belongs to a sphere if it was assigned to it, see {@link #assign(String, String)}, or if it
+ * was scanned advertising the UUID of the sphere, see {@link #onDeviceScanned(BleDevice)}.
+ * Stones which belong to no sphere use the keys of {@link Config}, the default sphere.
+ *
+ * Finding the sphere of a stone is a single lookup in a {@link MacIndex}, so it takes constant
+ * time, also with thousands of stones, and is done for every scanned device.
+ *
+ * The keys have to be set on a BleExt before it connects to a stone, see
+ * {@link #apply(BleExt, String)}. The keys of every BleExt are cached, so they are only set
+ * again if the BleExt connects to a stone of another sphere. The library reads the session
+ * nonce of a stone once per connection, so keep the connection open while the stone is used,
+ * like the {@link PreConnector} does. Keys are set on the BleExt as a whole, so a BleExt can't
+ * connect to stones of different spheres at the same time.
+ *
+ * The spheres and the assigned stones are stored in a file, stones which were only scanned
+ * are not, they are found again by the next scan.
+ *
+ * Created on 19-10-26
+ */
+public class KeyStore {
+
+	private static final String TAG = KeyStore.class.getCanonicalName();
+
+	public static final String FILE = "key_store";
+
+	public static final String DEFAULT_SPHERE = "default";
+
+	public static class Sphere {
+		public final String id;
+		public final UUID proximityUuid;
+		public final String adminKey;
+		public final String memberKey;
+		public final String guestKey;
+		// created once, and shared by all connections to the sphere
+		private final EncryptionKeys _keys;
+
+		Sphere(String id, UUID proximityUuid, String adminKey, String memberKey, String guestKey) {
+			this.id = id;
+			this.proximityUuid = proximityUuid;
+			this.adminKey = adminKey;
+			this.memberKey = memberKey;
+			this.guestKey = guestKey;
+			_keys = new EncryptionKeys(adminKey, memberKey, guestKey);
+		}
+	}
+
+	private static KeyStore _instance;
+
+	private final File _file;
+
+	// the spheres, the default sphere first. spheres are only added or replaced, never removed,
+	// so the indices stay valid
+	private final ArrayList<Sphere> _spheres = new ArrayList<>();
+	private final HashMap<String, Integer> _sphereIds = new HashMap<>();
+	private final HashMap<UUID, Integer> _sphereUuids = new HashMap<>();
+	// mac -> index of the sphere, of the stones which were assigned or scanned
+	private final MacIndex _stones = new MacIndex();
+	// the assigned stones, by mac, which are stored
+	private final HashMap<Long, String> _assigned = new HashMap<>();
+
+	// the sphere of which the keys were set last on a BleExt, by its BleBase
+	private final WeakHashMap<BleBase, Sphere> _applied = new WeakHashMap<>();
+
+	private final SecureRandom _random = new SecureRandom();
+
+	public static synchronized KeyStore getInstance(Context context) {
+		if (_instance == null) {
+			_instance = new KeyStore(new File(context.getFilesDir(), FILE));
+		}
+		return _instance;
+	}
+
+	public KeyStore(File file) {
+		_file = file;
+		put(new Sphere(DEFAULT_SPHERE, UUID.fromString(Config.IBEACON_UUID), Config.ADMIN_KEY, Config.MEMBER_KEY,
+				Config.GUEST_KEY));
+		load();
+	}
+
+	/**
+	 * Add a sphere, or replace the keys of the sphere with the id.
+	 */
+	public synchronized void addSphere(String id, UUID proximityUuid, String adminKey, String memberKey,
+									   String guestKey) {
+		put(new Sphere(id, proximityUuid, adminKey, memberKey, guestKey));
+		save();
+	}
+
+	/**
+	 * Add a sphere with new random keys and proximity UUID, e.g. to set up the first stone of a
+	 * new home.
+	 * @return the new sphere
+	 */
+	public synchronized Sphere createSphere() {
+		String id = "sphere" + _spheres.size();
+		while (_sphereIds.containsKey(id)) {
+			id += "_";
+		}
+		addSphere(id, UUID.randomUUID(), randomKey(), randomKey(), randomKey());
+		return _spheres.get(_sphereIds.get(id));
+	}
+
+	private String randomKey() {
+		// 16 characters, the key is used as its 16 bytes
+		byte[] bytes = new byte[8];
+		_random.nextBytes(bytes);
+		StringBuilder key = new StringBuilder();
+		for (byte b : bytes) {
+			key.append(String.format(Locale.US, "%02x", b & 0xFF));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the spheres, the default sphere first
+	 */
+	public synchronized ArrayList<Sphere> getSpheres() {
+		return new ArrayList<>(_spheres);
+	}
+
+	private void put(Sphere sphere) {
+		Integer index = _sphereIds.get(sphere.id);
+		if (index == null) {
+			index = _spheres.size();
+			_spheres.add(sphere);
+			_sphereIds.put(sphere.id, index);
+		} else {
+			Sphere old = _spheres.set(index, sphere);
+			_sphereUuids.remove(old.proximityUuid);
+		}
+		_sphereUuids.put(sphere.proximityUuid, index);
+	}
+
+	/**
+	 * Assign the stone to the sphere, e.g. after it was set up with the keys of the sphere.
+	 * @return false if the sphere doesn't exist
+	 */
+	public synchronized boolean assign(String address, String sphereId) {
+		Integer index = _sphereIds.get(sphereId);
+		if (index == null) {
+			return false;
+		}
+		long mac = DeviceStore.parseMac(address);
+		_stones.put(mac, index);
+		_assigned.put(mac, sphereId);
+		save();
+		return true;
+	}
+
+	/**
+	 * Called for every scanned device. Learns the sphere of the stone from the proximity UUID
+	 * of its iBeacon advertisement, unless the stone was assigned to a sphere.
+	 */
+	public synchronized void onDeviceScanned(BleDevice device) {
+		if (!device.isIBeacon()) {
+			return;
+		}
+		long mac = DeviceStore.parseMac(device.getAddress());
+		if (_assigned.containsKey(mac)) {
+			return;
+		}
+		Integer index = _sphereUuids.get(device.getProximityUuid());
+		if (index != null && _stones.get(mac) != index) {
+			_stones.put(mac, index);
+		}
+	}
+
+	/**
+	 * @return the sphere of the stone, the default sphere if it belongs to no sphere
+	 */
+	public synchronized Sphere getSphere(String address) {
+		int index = _stones.get(DeviceStore.parseMac(address));
+		return _spheres.get(index == MacIndex.NOT_FOUND ? 0 : index);
+	}
+
+	/**
+	 * Set the keys of the stone's sphere on the BleExt, before it connects to the stone. Does
+	 * nothing if the BleExt has the keys already, or if encryption is disabled.
+	 */
+	public void apply(BleExt ble, String address) {
+		apply(ble, getSphere(address), address);
+	}
+
+	/**
+	 * Set the keys of the default sphere on the BleExt, e.g. after it is initialized, before it
+	 * is known which stones it connects to. Connect with {@link #apply(BleExt, String)}
+	 * nevertheless, the keys are only set again if the stone belongs to another sphere.
+	 */
+	public void apply(BleExt ble) {
+		Sphere sphere;
+		synchronized (this) {
+			sphere = _spheres.get(0);
+		}
+		apply(ble, sphere, null);
+	}
+
+	private void apply(BleExt ble, Sphere sphere, String address) {
+		if (!Config.ENCRYPTION_ENABLED) {
+			return;
+		}
+		BleBase base = ble.getBleBase();
+		synchronized (_applied) {
+			if (_applied.get(base) == sphere) {
+				return;
+			}
+			_applied.put(base, sphere);
+		}
+		Log.i(TAG, "keys of sphere " + sphere.id + (address != null ? " for " + address : ""));
+		base.setEncryptionKeys(sphere._keys);
+		base.enableEncryption(true);
+	}
+
+	/**
+	 * Read the spheres and the assigned stones from the file. Every line has a sphere or a
+	 * stone:
+	 *
+	 * 		sphere id proximityUuid adminKey memberKey guestKey
+	 * 		stone address sphereId
+	 */
+	private void load() {
+		if (!_file.exists()) {
+			return;
+		}
+		ArrayList<String[]> stones = new ArrayList<>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(_file));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split(" ");
+					if (parts.length == 6 && parts[0].equals("sphere")) {
+						put(new Sphere(parts[1], UUID.fromString(parts[2]), parts[3], parts[4], parts[5]));
+					} else if (parts.length == 3 && parts[0].equals("stone")) {
+						stones.add(parts);
+					} else {
+						Log.e(TAG, "invalid line in key store");
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			Log.e(TAG, "failed to read the key store", e);
+		}
+		// the stones after the spheres, as a stone can be listed before its sphere
+		for (String[] stone : stones) {
+			Integer index = _sphereIds.get(stone[2]);
+			if (index != null) {
+				long mac = DeviceStore.parseMac(stone[1]);
+				_stones.put(mac, index);
+				_assigned.put(mac, stone[2]);
+			}
+		}
+	}
+
+	/**
+	 * Write the spheres and the assigned stones to a new file, and replace the old file with it.
+	 * The default sphere comes from the config, and isn't written.
+	 */
+	private void save() {
+		File temp = new File(_file.getPath() + ".tmp");
+		try {
+			FileWriter writer = new FileWriter(temp);
+			try {
+				for (int i = 1; i < _spheres.size(); i++) {
+					Sphere sphere = _spheres.get(i);
+					writer.write("sphere " + sphere.id + " " + sphere.proximityUuid + " " + sphere.adminKey + " "
+							+ sphere.memberKey + " " + sphere.guestKey + "\n");
+				}
+				for (Map.Entry<Long, String> stone : _assigned.entrySet()) {
+					writer.write("stone " + DeviceStore.formatMac(stone.getKey()) + " " + stone.getValue() + "\n");
+				}
+			} finally {
+				writer.close();
+			}
+			if (!temp.renameTo(_file)) {
+				Log.e(TAG, "failed to replace the key store");
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "failed to write the key store", e);
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * Measures the round trip time of the jobs on a connection, e.g. switching a stone from the
+ * ControlActivity, or the setup, and adds it to the job's operation, together with the
+ * average round trip time and the handset model. This gives a baseline to compare handsets,
+ * firmware versions and connection setups with.
+ *
+ * The tuner doesn't negotiate the link parameters (ATT MTU and connection priority): the
+ * library doesn't give access to the BluetoothGatt of its connections, so they can't be
+ * requested for the connections of the app.
+ *
+ * Created on 19-10-26
+ */
+public class LinkTuner {
+
+	// sum and number of the round trip times measured
+	private long _rttSum;
+	private int _rttCount;
+
+	/**
+	 * @return the time stamp to pass to {@link #record(Operation, long)} when the job is done
+	 */
+	public long begin() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Add the round trip time of a job to its operation.
+	 * @param start the time stamp returned by {@link #begin()}
+	 */
+	public void record(Operation operation, long start) {
+		long rtt = SystemClock.elapsedRealtime() - start;
+		long average;
+		int count;
+		synchronized (this) {
+			_rttSum += rtt;
+			count = ++_rttCount;
+			average = _rttSum / count;
+		}
+		operation.setMetric("rtt", rtt + " ms (average " + average + " ms over " + count + ")");
+		operation.setMetric("model", Build.MANUFACTURER + " " + Build.MODEL);
+	}
+
+}
@@ -0,0 +1,97 @@
+package nl.dobots.bluenetexample;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table which maps MAC addresses (see {@link DeviceStore#parseMac(String)})
+ * to ints, e.g. the slot of a device in parallel arrays. Lookups take constant time and don't
+ * allocate, so they can be done for every scanned device. The table grows to keep its load
+ * factor at or below 0.5. Not thread safe.
+ *
+ * Created on 19-10-26
+ */
+public class MacIndex {
+
+	public static final int NOT_FOUND = -1;
+
+	private static final long NO_KEY = -1L;
+	private static final int MIN_BUCKETS = 8;
+
+	private long[] _keys;
+	private int[] _values;
+	private int _size;
+
+	public MacIndex() {
+		init(MIN_BUCKETS);
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return the value of the mac, or {@link #NOT_FOUND}
+	 */
+	public int get(long mac) {
+		int mask = _keys.length - 1;
+		for (int i = hash(mac) & mask; ; i = (i + 1) & mask) {
+			if (_keys[i] == mac) {
+				return _values[i];
+			} else if (_keys[i] == NO_KEY) {
+				return NOT_FOUND;
+			}
+		}
+	}
+
+	/**
+	 * Set the value of the mac, replacing the value it had.
+	 */
+	public void put(long mac, int value) {
+		if ((_size + 1) * 2 > _keys.length) {
+			long[] keys = _keys;
+			int[] values = _values;
+			init(_keys.length * 2);
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != NO_KEY) {
+					insert(keys[i], values[i]);
+				}
+			}
+		}
+		insert(mac, value);
+	}
+
+	private void insert(long mac, int value) {
+		int mask = _keys.length - 1;
+		int i = hash(mac) & mask;
+		while (_keys[i] != NO_KEY && _keys[i] != mac) {
+			i = (i + 1) & mask;
+		}
+		if (_keys[i] == NO_KEY) {
+			_keys[i] = mac;
+			_size++;
+		}
+		_values[i] = value;
+	}
+
+	/**
+	 * Remove all macs. Entries can't be removed one by one, as that would break the probe
+	 * sequences, rebuild the index instead.
+	 */
+	public void clear() {
+		Arrays.fill(_keys, NO_KEY);
+		_size = 0;
+	}
+
+	private void init(int buckets) {
+		_keys = new long[buckets];
+		_values = new int[buckets];
+		Arrays.fill(_keys, NO_KEY);
+		_size = 0;
+	}
+
+	private static int hash(long mac) {
+		long h = mac * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+}
@@ -2,27 +2,31 @@ package nl.dobots.bluenetexample;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.ProgressDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+
 import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
-import nl.dobots.bluenet.ble.base.structs.EncryptionKeys;
 import nl.dobots.bluenet.ble.extended.BleDeviceFilter;
 import nl.dobots.bluenet.ble.extended.BleExt;
 import nl.dobots.bluenet.ble.extended.callbacks.IBleDeviceCallback;
 import nl.dobots.bluenet.ble.extended.structs.BleDevice;
-import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
 
 /**
  * This example activity shows the use of the bluenet library. The library is first initialized,
@@ -32,6 +36,10 @@ import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
  * 2. Scan for devices, and setting a scan device filter
  * 3. How to get the list of devices from the library, sorted by RSSI.
  *
+ * To show the screen as fast as possible, the library is initialized in the background (see
+ * BleStartup), and the parts of the screen which are not needed for the first frame are set
+ * up after it. The start is traced with the StartupTrace.
+ *
  * For an example of how to read the current PWM state and how to power On, power Off, or toggle
  * the device switch, see ControlActivity.java
  * For an example of how to use the library together with a service, see MainActivityService.java
@@ -49,27 +57,59 @@ public class MainActivity extends Activity {
 	private ListView _lvScanList;
 	private TextView _txtClosest;
 	private Spinner _spFilter;
+	private OperationsView _operationsView;
 
 	private boolean _scanning = false;
-	private BleDeviceList _bleDeviceList;
+	// true while the scan is paused in between two low duty scan windows
+	private boolean _scanPaused = false;
+	private Handler _handler = new Handler();
+	// drops the callbacks of this screen once it is destroyed
+	private CallbackScope _scope = new CallbackScope(_handler);
+	private DeviceListWindow _deviceList;
+	// compact copy of the scanned devices, updated on the BLE thread and published as
+	// immutable snapshots to the UI thread
+	private DeviceSnapshots _devices = new DeviceSnapshots();
+	// address of the stone which is being pre-connected because its row was pressed
+	private String _pressedAddress;
 	private String _address;
 
 	private static final int GUI_UPDATE_INTERVAL = 500;
 	private long _lastUpdate;
 
+	// delivers the journaled commands of stones which come back into range
+	private JournalDelivery _journal;
+	// read in the background, see onCreate
+	private volatile KeyStore _keys;
+
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
+		StartupTrace.getInstance().begin();
 		super.onCreate(savedInstanceState);
 
 		initUI();
+		Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+			@Override
+			public void doFrame(long frameTimeNanos) {
+				// the frame is drawn after the frame callbacks, so check once it is done
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						StartupTrace.getInstance().mark(StartupTrace.Milestone.FIRST_FRAME);
+						initDeferredUI();
+					}
+				});
+			}
+		});
 
-		// create access point to the library and initialize the Bluetooth adapter.
+		// create access point to the library and initialize the Bluetooth adapter in the
+		// background. the callbacks are called on the main thread
 		_ble = new BleExt();
-		_ble.init(this, new IStatusCallback() {
+		BleStartup.init(this, _ble, new IStatusCallback() {
 			@Override
 			public void onSuccess() {
 				// on success is called whenever bluetooth is enabled
 				Log.i(TAG, "BLE enabled");
+				StartupTrace.getInstance().mark(StartupTrace.Milestone.BLE_READY);
 				onBleEnabled();
 			}
 
@@ -79,21 +119,35 @@ public class MainActivity extends Activity {
 				Log.e(TAG, "Error: " + error);
 				onBleDisabled();
 			}
-		});
-		if (Config.ENCRYPTION_ENABLED) {
-			EncryptionKeys keys = new EncryptionKeys(Config.ADMIN_KEY, Config.MEMBER_KEY, Config.GUEST_KEY);
-			_ble.getBleBase().setEncryptionKeys(keys);
-			_ble.getBleBase().enableEncryption(true);
-		}
+		}, null);
 
+		RadioArbiter.getInstance().registerListener(_radioListener);
+		// the key store is read from its file in the background, after the initialization
+		final Context context = getApplicationContext();
+		BleStartup.load(new Runnable() {
+			@Override
+			public void run() {
+				_keys = KeyStore.getInstance(context);
+			}
+		}, null);
+		_journal = new JournalDelivery(this);
+		_journal.start();
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		_scope.cancel();
+		_operationsView.detach();
+		_journal.stop();
+		RadioArbiter.getInstance().unregisterListener(_radioListener);
+		_handler.removeCallbacks(_dutyCycle);
+		RadioAccounting.getInstance().scanStopped(RadioAccounting.Feature.MAIN_SCAN);
 		// finish has to be called on the library to release the objects if the library
-		// is not used anymore
-		_ble.destroy();
+		// is not used anymore. the library might still be initializing in the background
+		BleStartup.destroy(_ble);
+		// drop any connection which was set up in the background
+		PreConnector.getInstance().cancel();
 	}
 
 	private void initUI() {
@@ -108,7 +162,9 @@ public class MainActivity extends Activity {
 				// types. we are currently distinguish between Crownstones, Guidestones, iBeacons,
 				// and FridgeBeacons
 				BleDeviceFilter selectedItem = (BleDeviceFilter) _spFilter.getSelectedItem();
-				_ble.setScanFilter(selectedItem);
+				if (selectedItem != null) {
+					_ble.setScanFilter(selectedItem);
+				}
 
 				if (!_scanning) {
 					startScan();
@@ -119,27 +175,23 @@ public class MainActivity extends Activity {
 		});
 		_btnScan.setEnabled(false);
 
-		// create a spinner element with the device filter options
+		// the options of the filter spinner are only set after the first frame, see initDeferredUI
 		_spFilter = (Spinner) findViewById(R.id.spFilter);
-		_spFilter.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, BleDeviceFilter.values()));
 
 		// create an empty list to assign to the list view. this will be updated whenever a
-		// device is scanned
-		_bleDeviceList = new BleDeviceList();
-		DeviceListAdapter adapter = new DeviceListAdapter(this, _bleDeviceList);
+		// device is scanned. only the rows around the visible ones are materialized
+		_deviceList = new DeviceListWindow();
+		DeviceListAdapter adapter = new DeviceListAdapter(this, _deviceList);
 
 		_lvScanList = (ListView) findViewById(R.id.lvScanList);
 		_lvScanList.setAdapter(adapter);
 		_lvScanList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			@Override
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-				// stop scanning for devices. We can't scan and connect to a device at the same time.
-				if (_scanning) {
-					stopScan();
-				}
+				// we don't have to stop scanning, while the control activity is connected to the
+				// device, the radio arbiter switches the scan to low duty
 
-				BleDevice device = _bleDeviceList.get(position);
-				_address = device.getAddress();
+				_address = _deviceList.getAddress(position);
 
 				// start the control activity to switch the device
 				Intent intent = new Intent(MainActivity.this, ControlActivity.class);
@@ -147,42 +199,71 @@ public class MainActivity extends Activity {
 				startActivity(intent);
 			}
 		});
+		_lvScanList.setOnTouchListener(new View.OnTouchListener() {
+			@Override
+			public boolean onTouch(View view, MotionEvent event) {
+				// start connecting to a stone as soon as its row is pressed, so that the connection
+				// is already (partly) set up by the time the control activity is opened
+				switch (event.getActionMasked()) {
+					case MotionEvent.ACTION_DOWN: {
+						int position = _lvScanList.pointToPosition((int) event.getX(), (int) event.getY());
+						if (position != AdapterView.INVALID_POSITION && _deviceList.hasFlag(position, DeviceStore.FLAG_STONE)) {
+							_pressedAddress = _deviceList.getAddress(position);
+							PreConnector.getInstance().onPressed(_pressedAddress);
+							PreConnector.getInstance().warmUp(MainActivity.this, _pressedAddress);
+						}
+						break;
+					}
+					case MotionEvent.ACTION_CANCEL: {
+						// the user is scrolling instead of pressing the row
+						if (_pressedAddress != null) {
+							PreConnector.getInstance().cancel(_pressedAddress);
+							_pressedAddress = null;
+						}
+						break;
+					}
+				}
+				return false;
+			}
+		});
 		_lvScanList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
 			@Override
 			public boolean onItemLongClick(final AdapterView<?> parent, final View view, final int position, long id) {
 
-				final BleDevice device = _bleDeviceList.get(position);
-				if (device.isStone()) {
+				DeviceView device = _deviceList.get(position);
+				if (device != null && device.isStone()) {
+					// the view is reused by the list, so copy what we need for the dialog
+					final String name = device.getName();
+					final String address = device.getAddress();
+					// the press of the long click warmed up a session, which holds the stone's
+					// only link
+					PreConnector.getInstance().cancel(address);
 
 					final AlertDialog.Builder builder = new AlertDialog.Builder(parent.getContext());
 					builder.setTitle("Recover Stone");
-					builder.setMessage("Do you want to recover the stone " + device.getName() + "?");
+					builder.setMessage("Do you want to recover the stone " + name + "?");
 					builder.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
 						public void onClick(DialogInterface dialog, int id) {
-							final ProgressDialog dlg = ProgressDialog.show(MainActivity.this, "Recovering Stone " + device.getName(), "Please wait ...", true);
-							_ble.recover(device.getAddress(), new IStatusCallback() {
+							// the recover is shown as an operation below the list, so the user can
+							// recover several stones at the same time
+							final Operation operation = OperationTracker.getInstance().start("Recovering Stone " + name);
+							// recover once the link of a warmed up session is closed
+							PreConnector.getInstance().cancel(address, new Runnable() {
 								@Override
-								public void onSuccess() {
-									dlg.dismiss();
-
-									runOnUiThread(new Runnable() {
+								public void run() {
+									// the recover connects to the stone, with the keys of its sphere
+									KeyStore.getInstance(MainActivity.this).apply(_ble, address);
+									_ble.recover(address, _scope.wrap(new IStatusCallback() {
 										@Override
-										public void run() {
-											Toast.makeText(MainActivity.this, "Stone successfully recovered", Toast.LENGTH_LONG).show();
+										public void onSuccess() {
+											operation.succeed("Stone successfully recovered");
 										}
-									});
-								}
-
-								@Override
-								public void onError(final int error) {
-									dlg.dismiss();
 
-									runOnUiThread(new Runnable() {
 										@Override
-										public void run() {
-											Toast.makeText(MainActivity.this, "failed with error: " + error, Toast.LENGTH_LONG).show();
+										public void onError(final int error) {
+											operation.fail("failed with error: " + error);
 										}
-									});
+									}, operation));
 								}
 							});
 						}
@@ -201,11 +282,77 @@ public class MainActivity extends Activity {
 			}
 		});
 
+		Button btnMaintenance = (Button) findViewById(R.id.btnMaintenance);
+		btnMaintenance.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				MaintenanceDialog.show(MainActivity.this, _deviceList);
+			}
+		});
+
+		Button btnDashboard = (Button) findViewById(R.id.btnDashboard);
+		btnDashboard.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				showDashboard();
+			}
+		});
+
+		Button btnEnergy = (Button) findViewById(R.id.btnEnergy);
+		btnEnergy.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				EnergyDialog.show(MainActivity.this);
+			}
+		});
+
 		_txtClosest = (TextView) findViewById(R.id.txtClosest);
+
+		_operationsView = new OperationsView(this, (LinearLayout) findViewById(R.id.layOperations));
+		_operationsView.attach();
+	}
+
+	/**
+	 * Set up the parts of the screen which are not needed to draw the first frame.
+	 */
+	private void initDeferredUI() {
+		// create a spinner element with the device filter options
+		_spFilter.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, BleDeviceFilter.values()));
+	}
+
+	/**
+	 * Collect all stones from the current scan
+	 * @return the addresses of the stones, null if no stones were found
+	 */
+	private ArrayList<String> getStoneAddresses() {
+		ArrayList<String> addresses = new ArrayList<>();
+		for (int i = 0; i < _deviceList.size(); i++) {
+			if (_deviceList.hasFlag(i, DeviceStore.FLAG_STONE)) {
+				addresses.add(_deviceList.getAddress(i));
+			}
+		}
+		if (addresses.isEmpty()) {
+			Toast.makeText(this, "No stones found", Toast.LENGTH_LONG).show();
+			return null;
+		}
+		return addresses;
+	}
+
+	private void showDashboard() {
+		ArrayList<String> addresses = getStoneAddresses();
+		if (addresses == null) {
+			return;
+		}
+		Intent intent = new Intent(MainActivity.this, DashboardActivity.class);
+		intent.putExtra(DashboardActivity.EXTRA_ADDRESSES, addresses.toArray(new String[addresses.size()]));
+		startActivity(intent);
 	}
 
 	private void stopScan() {
 		_btnScan.setText(getString(R.string.main_scan));
+		_handler.removeCallbacks(_dutyCycle);
+		_scanPaused = false;
+		RadioAccounting.getInstance().scanStopped(RadioAccounting.Feature.MAIN_SCAN);
 		// stop scanning for devices
 		_ble.stopScan(new IStatusCallback() {
 			@Override
@@ -225,42 +372,121 @@ public class MainActivity extends Activity {
 		// start scanning for devices. the scan will run at the highest frequency until stopScan
 		// is called again. results are coming in as fast as possible. If you're concerned about
 		// battery consumption, use the example with the BleScanService instead.
-		_scanning = _ble.startScan(new IBleDeviceCallback() {
-			@Override
-			public void onDeviceScanned(BleDevice device) {
-				// called whenever a device was scanned. the library keeps track of the scanned devices
-				// and updates average rssi and distance measurements. the device received here as a
-				// parameter already has the updated values.
-
-				// but for this example we are only interested in the list of scanned devices, so
-				// we ignore the parameter and get the updated device list, sorted by rssi from the
-				// library
-				if (System.currentTimeMillis() > _lastUpdate + GUI_UPDATE_INTERVAL) {
-					Log.i(TAG, "update");
-					_bleDeviceList = _ble.getDeviceMap().getRssiSortedList();
-					runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							// the closest device is the first device in the list (because we asked for the
-							// rssi sorted list)
-							_txtClosest.setText(getString(R.string.main_closest_device, _bleDeviceList.get(0).getName()));
-
-							// update the list view
-							DeviceListAdapter adapter = ((DeviceListAdapter) _lvScanList.getAdapter());
-							adapter.updateList(_bleDeviceList);
-							adapter.notifyDataSetChanged();
-						}
-					});
-					_lastUpdate = System.currentTimeMillis();
+		// if a connection is open at the moment, the radio arbiter tells us to switch to low
+		// duty scanning instead
+		if (RadioArbiter.getInstance().getMode() == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+			_handler.postDelayed(_dutyCycle, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+		}
+		_scanning = _ble.startScan(_scanCallback);
+		if (_scanning) {
+			RadioAccounting.getInstance().scanStarted(RadioAccounting.Feature.MAIN_SCAN);
+		}
+	}
+
+	// while a connection is open (e.g. in the control activity), we don't stop scanning, but
+	// alternate between short scan windows and long pauses, so that the device list stays
+	// fresh without taking the radio away from the connection
+	private RadioArbiter.Listener _radioListener = new RadioArbiter.Listener() {
+		@Override
+		public void onModeChanged(RadioArbiter.Mode mode) {
+			_handler.removeCallbacks(_dutyCycle);
+			if (mode == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+				_handler.postDelayed(_dutyCycle, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			} else if (_scanPaused) {
+				// back to full scanning
+				_scanPaused = false;
+				if (_scanning) {
+					_ble.startScan(_scanCallback);
+					RadioAccounting.getInstance().scanStarted(RadioAccounting.Feature.MAIN_SCAN);
 				}
 			}
+		}
+	};
 
-			@Override
-			public void onError(int error) {
-				Log.e(TAG, "Scan error: " + error);
+	private Runnable _dutyCycle = new Runnable() {
+		@Override
+		public void run() {
+			if (!_scanning) {
+				return;
 			}
-		});
-	}
+			if (_scanPaused) {
+				_scanPaused = false;
+				_ble.startScan(_scanCallback);
+				RadioAccounting.getInstance().scanStarted(RadioAccounting.Feature.MAIN_SCAN);
+				_handler.postDelayed(this, RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+			} else {
+				_scanPaused = true;
+				RadioAccounting.getInstance().scanStopped(RadioAccounting.Feature.MAIN_SCAN);
+				// pause the scan without changing the scan state
+				_ble.stopScan(new IStatusCallback() {
+					@Override
+					public void onSuccess() {
+					}
+
+					@Override
+					public void onError(int error) {
+						Log.e(TAG, "Failed to pause scan: " + error);
+					}
+				});
+				_handler.postDelayed(this, RadioArbiter.LOW_DUTY_SCAN_PAUSE);
+			}
+		}
+	};
+
+	private IBleDeviceCallback _scanCallback = new IBleDeviceCallback() {
+		@Override
+		public void onDeviceScanned(BleDevice device) {
+			// called whenever a device was scanned. the library keeps track of the scanned devices
+			// and updates average rssi and distance measurements. the device received here as a
+			// parameter already has the updated values.
+
+			// for this example we copy the updated values into our compact device store,
+			// and periodically publish an rssi sorted snapshot of the store for the list view
+			RadioAccounting.getInstance().callback(RadioAccounting.Feature.MAIN_SCAN);
+			_devices.update(device);
+			// learn the sphere of the stone, so its keys are found when connecting to it
+			KeyStore keys = _keys;
+			if (keys != null) {
+				keys.onDeviceScanned(device);
+			}
+			// deliver the commands which were journaled while the stone was out of range
+			_journal.onDeviceSeen(device.getAddress());
+			if (System.currentTimeMillis() > _lastUpdate + GUI_UPDATE_INTERVAL) {
+				Log.i(TAG, "update");
+				_devices.publish();
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						// update the list view with the latest snapshot, unless it was already
+						// shown
+						DeviceListAdapter adapter = ((DeviceListAdapter) _lvScanList.getAdapter());
+						if (adapter.updateList(_devices.get())) {
+							adapter.notifyDataSetChanged();
+						}
+
+						// the closest device is the first device in the list (because the
+						// records are sorted by rssi)
+						DeviceView closest = _deviceList.get(0);
+						if (closest != null) {
+							StartupTrace.getInstance().mark(StartupTrace.Milestone.FIRST_DEVICE);
+							_txtClosest.setText(getString(R.string.main_closest_device, closest.getName()));
+						}
+
+						// if a stone stays the closest device for a while, the user is likely to
+						// open it, so start connecting to it in the background
+						PreConnector.getInstance().onClosestDevice(MainActivity.this,
+								closest != null && closest.isStone() ? closest.getAddress() : null);
+					}
+				});
+				_lastUpdate = System.currentTimeMillis();
+			}
+		}
+
+		@Override
+		public void onError(int error) {
+			Log.e(TAG, "Scan error: " + error);
+		}
+	};
 
 	private void onBleEnabled() {
 		_btnScan.setEnabled(true);
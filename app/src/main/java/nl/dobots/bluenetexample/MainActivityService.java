@@ -2,7 +2,6 @@ package nl.dobots.bluenetexample;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.app.ProgressDialog;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -10,26 +9,27 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+
 import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
-import nl.dobots.bluenet.ble.base.structs.EncryptionKeys;
 import nl.dobots.bluenet.ble.extended.BleDeviceFilter;
 import nl.dobots.bluenet.ble.extended.structs.BleDevice;
-import nl.dobots.bluenet.ble.extended.structs.BleDeviceList;
 import nl.dobots.bluenet.service.BleScanService;
 import nl.dobots.bluenet.service.callbacks.EventListener;
-import nl.dobots.bluenet.service.callbacks.IntervalScanListener;
-import nl.dobots.bluenet.service.callbacks.ScanDeviceListener;
 
 /**
  * This example activity shows the use of the bluenet library through the BleScanService. The
@@ -43,9 +43,8 @@ import nl.dobots.bluenet.service.callbacks.ScanDeviceListener;
  * 1. Start and connect to the BleScanService
  * 2. Set the scan interval and scan pause time
  * 3. Scan for devices and set a scan device filter
- * 4a. Register as a listener to get an update for every scanned device, or
- * 4b. Register as a listener to get an event at the start and end of each scan interval
- * 5. How to get the list of scanned devices, sorted by RSSI.
+ * 4. Subscribe to streams of the service's events and scanned devices, see ScanStreams
+ * 5. How to get the list of scanned devices, sorted by RSSI, at most every 500 ms.
  *
  * For an example of how to read the current PWM state and how to power On, power Off, or toggle
  * the device switch, see ControlActivity.java
@@ -54,7 +53,7 @@ import nl.dobots.bluenet.service.callbacks.ScanDeviceListener;
  * Created on 1-10-15
  * @author Dominik Egger
  */
-public class MainActivityService extends Activity implements IntervalScanListener, EventListener, ScanDeviceListener {
+public class MainActivityService extends Activity {
 
 	private static final String TAG = MainActivityService.class.getCanonicalName();
 
@@ -63,19 +62,28 @@ public class MainActivityService extends Activity implements IntervalScanListene
 	public static final int LOW_SCAN_PAUSE = 2000; // 2 seconds pause
 
 	private BleScanService _service;
+	private ScanStreams _streams;
+	private ArrayList<Stream.Subscription> _subscriptions = new ArrayList<>();
+	private Handler _handler = new Handler();
+	// drops the callbacks of this screen once it is destroyed
+	private CallbackScope _scope = new CallbackScope(_handler);
+	// delivers the journaled commands of stones which come back into range
+	private JournalDelivery _journal;
 
 	private Button _btnScan;
 	private ListView _lvScanList;
 	private TextView _txtClosest;
 	private Spinner _spFilter;
+	private OperationsView _operationsView;
 
 	private boolean _bound = false;
 
-	private BleDeviceList _bleDeviceList;
+	private DeviceListWindow _deviceList;
+	// address of the stone which is being pre-connected because its row was pressed
+	private String _pressedAddress;
 	private String _address = "";
 
 	private static final int GUI_UPDATE_INTERVAL = 500;
-	private long _lastUpdate;
 	private BleDeviceFilter _selectedItem;
 
 	@Override
@@ -84,6 +92,9 @@ public class MainActivityService extends Activity implements IntervalScanListene
 
 		initUI();
 
+		_journal = new JournalDelivery(this);
+		_journal.start();
+
 		// create and bind to the BleScanService
 		Intent intent = new Intent(this, BleScanService.class);
 		bindService(intent, _connection, Context.BIND_AUTO_CREATE);
@@ -92,10 +103,21 @@ public class MainActivityService extends Activity implements IntervalScanListene
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
+		_scope.cancel();
+		_operationsView.detach();
+		RadioArbiter.getInstance().unregisterListener(_radioListener);
+		// unsubscribing unregisters our listeners from the service
+		for (Stream.Subscription subscription : _subscriptions) {
+			subscription.unsubscribe();
+		}
+		_subscriptions.clear();
+		_journal.stop();
 		if (_bound) {
 			unbindService(_connection);
 			_bound = false;
 		}
+		// drop any connection which was set up in the background
+		PreConnector.getInstance().cancel();
 	}
 
 	// if the service was connected successfully, the service connection gives us access to the service
@@ -107,29 +129,57 @@ public class MainActivityService extends Activity implements IntervalScanListene
 			BleScanService.BleScanBinder binder = (BleScanService.BleScanBinder) service;
 			_service = binder.getService();
 
-			// register as event listener. Events, like bluetooth initialized, and bluetooth turned
+			// the scan streams register at the service as listeners, but only for the streams
+			// which have subscribers
+			_streams = new ScanStreams(_service);
+
+			// subscribe to the events. Events, like bluetooth initialized, and bluetooth turned
 			// off events will be triggered by the service, so we know if the user turned bluetooth
 			// on or off
-			_service.registerEventListener(MainActivityService.this);
-
-			// register as a scan device listener. If you want to get an event every time a device
-			// is scanned, then this is the choice for you.
-			_service.registerScanDeviceListener(MainActivityService.this);
-			// register as an interval scan listener. If you only need to know the list of scanned
-			// devices at every end of an interval, then this is better. additionally it also informs
-			// about the start of an interval.
-			_service.registerIntervalScanListener(MainActivityService.this);
-
-			// set the scan interval (for how many ms should the service scan for devices)
-			_service.setScanInterval(LOW_SCAN_INTERVAL);
-			// set the scan pause (how many ms should the service wait before starting the next scan)
-			_service.setScanPause(LOW_SCAN_PAUSE);
-
-			if (Config.ENCRYPTION_ENABLED) {
-				EncryptionKeys keys = new EncryptionKeys(Config.ADMIN_KEY, Config.MEMBER_KEY, Config.GUEST_KEY);
-				_service.getBleExt().getBleBase().setEncryptionKeys(keys);
-				_service.getBleExt().getBleBase().enableEncryption(true);
-			}
+			_subscriptions.add(_streams.events().subscribe(new Stream.Subscriber<EventListener.Event>() {
+				@Override
+				public void onNext(EventListener.Event event) {
+					onEvent(event);
+				}
+			}));
+
+			// subscribe to the list of scanned devices, sorted by rssi. instead of getting an
+			// event for every scanned device, we get the sorted list at most every
+			// GUI_UPDATE_INTERVAL ms, on the UI thread. the list is only sorted when it is
+			// delivered, on a background thread. if you need every scanned device, subscribe to
+			// devices() instead, or use bufferUntil(scanEnds()) to get the devices scanned in an
+			// interval at its end.
+			_subscriptions.add(_streams.rssiSorted(Integer.MAX_VALUE, GUI_UPDATE_INTERVAL, _handler).subscribe(
+					new Stream.Subscriber<DeviceStore>() {
+						@Override
+						public void onNext(DeviceStore records) {
+							updateDeviceList(records);
+						}
+					}));
+
+			// every scanned device, on the thread of the service
+			final KeyStore keyStore = KeyStore.getInstance(MainActivityService.this);
+			_subscriptions.add(_streams.devices().subscribe(new Stream.Subscriber<BleDevice>() {
+				@Override
+				public void onNext(BleDevice device) {
+					// learn the sphere of the stone, so its keys are found when connecting to it
+					keyStore.onDeviceScanned(device);
+					// deliver the commands which were journaled while the stone was out of range
+					_journal.onDeviceSeen(device.getAddress());
+				}
+			}));
+
+			// account the radio time of the interval scan, see the radio accounting
+			_subscriptions.add(_streams.account(RadioAccounting.Feature.SERVICE_SCAN));
+
+			// set the scan interval (for how many ms should the service scan for devices) and the
+			// scan pause (how many ms should the service wait before starting the next scan)
+			// depending on whether a connection is open at the moment
+			_radioListener.onModeChanged(RadioArbiter.getInstance().getMode());
+			RadioArbiter.getInstance().registerListener(_radioListener);
+
+			// the keys of the default sphere, the recover sets the keys of the stone's sphere
+			keyStore.apply(_service.getBleExt());
 
 			_bound = true;
 		}
@@ -141,6 +191,22 @@ public class MainActivityService extends Activity implements IntervalScanListene
 		}
 	};
 
+	// while a connection is open (e.g. in the control activity), we don't stop the interval
+	// scan, but shorten the scan interval and lengthen the pause, so that the device list stays
+	// fresh without taking the radio away from the connection
+	private RadioArbiter.Listener _radioListener = new RadioArbiter.Listener() {
+		@Override
+		public void onModeChanged(RadioArbiter.Mode mode) {
+			if (mode == RadioArbiter.Mode.LOW_DUTY_SCAN) {
+				_service.setScanInterval(RadioArbiter.LOW_DUTY_SCAN_WINDOW);
+				_service.setScanPause(RadioArbiter.LOW_DUTY_SCAN_PAUSE);
+			} else {
+				_service.setScanInterval(LOW_SCAN_INTERVAL);
+				_service.setScanPause(LOW_SCAN_PAUSE);
+			}
+		}
+	};
+
 	// is scanning returns true if the service is "running", not if it is currently in a
 	// scan interval or a scan pause
 	private boolean isScanning() {
@@ -176,22 +242,19 @@ public class MainActivityService extends Activity implements IntervalScanListene
 		_spFilter.setAdapter(new ArrayAdapter<>(this, android.R.layout.simple_spinner_dropdown_item, BleDeviceFilter.values()));
 
 		// create an empty list to assign to the list view. this will be updated whenever a
-		// device is scanned
-		_bleDeviceList = new BleDeviceList();
-		DeviceListAdapter adapter = new DeviceListAdapter(this, _bleDeviceList);
+		// device is scanned. only the rows around the visible ones are materialized
+		_deviceList = new DeviceListWindow();
+		DeviceListAdapter adapter = new DeviceListAdapter(this, _deviceList);
 
 		_lvScanList = (ListView) findViewById(R.id.lvScanList);
 		_lvScanList.setAdapter(adapter);
 		_lvScanList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			@Override
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-				// stop scanning for devices. We can't scan and connect to a device at the same time.
-				if (isScanning()) {
-					stopScan();
-				}
+				// we don't have to stop scanning, while the control activity is connected to the
+				// device, the radio arbiter switches the scan to low duty
 
-				BleDevice device = _bleDeviceList.get(position);
-				_address = device.getAddress();
+				_address = _deviceList.getAddress(position);
 
 				// start the control activity to switch the device
 				Intent intent = new Intent(MainActivityService.this, ControlActivity.class);
@@ -199,42 +262,71 @@ public class MainActivityService extends Activity implements IntervalScanListene
 				startActivity(intent);
 			}
 		});
+		_lvScanList.setOnTouchListener(new View.OnTouchListener() {
+			@Override
+			public boolean onTouch(View view, MotionEvent event) {
+				// start connecting to a stone as soon as its row is pressed, so that the connection
+				// is already (partly) set up by the time the control activity is opened
+				switch (event.getActionMasked()) {
+					case MotionEvent.ACTION_DOWN: {
+						int position = _lvScanList.pointToPosition((int) event.getX(), (int) event.getY());
+						if (position != AdapterView.INVALID_POSITION && _deviceList.hasFlag(position, DeviceStore.FLAG_STONE)) {
+							_pressedAddress = _deviceList.getAddress(position);
+							PreConnector.getInstance().onPressed(_pressedAddress);
+							PreConnector.getInstance().warmUp(MainActivityService.this, _pressedAddress);
+						}
+						break;
+					}
+					case MotionEvent.ACTION_CANCEL: {
+						// the user is scrolling instead of pressing the row
+						if (_pressedAddress != null) {
+							PreConnector.getInstance().cancel(_pressedAddress);
+							_pressedAddress = null;
+						}
+						break;
+					}
+				}
+				return false;
+			}
+		});
 		_lvScanList.setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
 			@Override
 			public boolean onItemLongClick(final AdapterView<?> parent, final View view, final int position, long id) {
 
-				final BleDevice device = _bleDeviceList.get(position);
-				if (device.isStone()) {
+				DeviceView device = _deviceList.get(position);
+				if (device != null && device.isStone()) {
+					// the view is reused by the list, so copy what we need for the dialog
+					final String name = device.getName();
+					final String address = device.getAddress();
+					// the press of the long click warmed up a session, which holds the stone's
+					// only link
+					PreConnector.getInstance().cancel(address);
 
 					final AlertDialog.Builder builder = new AlertDialog.Builder(parent.getContext());
 					builder.setTitle("Recover Stone");
-					builder.setMessage("Do you want to recover the stone " + device.getName() + "?");
+					builder.setMessage("Do you want to recover the stone " + name + "?");
 					builder.setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
 						public void onClick(DialogInterface dialog, int id) {
-							final ProgressDialog dlg = ProgressDialog.show(MainActivityService.this, "Recovering Stone " + device.getName(), "Please wait ...", true);
-							_service.getBleExt().recover(device.getAddress(), new IStatusCallback() {
+							// the recover is shown as an operation below the list, so the user can
+							// recover several stones at the same time
+							final Operation operation = OperationTracker.getInstance().start("Recovering Stone " + name);
+							// recover once the link of a warmed up session is closed
+							PreConnector.getInstance().cancel(address, new Runnable() {
 								@Override
-								public void onSuccess() {
-									dlg.dismiss();
-
-									runOnUiThread(new Runnable() {
+								public void run() {
+									// the recover connects with the keys of the stone's sphere
+									KeyStore.getInstance(MainActivityService.this).apply(_service.getBleExt(), address);
+									_service.getBleExt().recover(address, _scope.wrap(new IStatusCallback() {
 										@Override
-										public void run() {
-											Toast.makeText(MainActivityService.this, "Stone successfully recovered", Toast.LENGTH_LONG).show();
+										public void onSuccess() {
+											operation.succeed("Stone successfully recovered");
 										}
-									});
-								}
-
-								@Override
-								public void onError(final int error) {
-									dlg.dismiss();
 
-									runOnUiThread(new Runnable() {
 										@Override
-										public void run() {
-											Toast.makeText(MainActivityService.this, "failed with error: " + error, Toast.LENGTH_LONG).show();
+										public void onError(final int error) {
+											operation.fail("failed with error: " + error);
 										}
-									});
+									}, operation));
 								}
 							});
 						}
@@ -253,7 +345,62 @@ public class MainActivityService extends Activity implements IntervalScanListene
 			}
 		});
 
+		Button btnMaintenance = (Button) findViewById(R.id.btnMaintenance);
+		btnMaintenance.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				MaintenanceDialog.show(MainActivityService.this, _deviceList);
+			}
+		});
+
+		Button btnDashboard = (Button) findViewById(R.id.btnDashboard);
+		btnDashboard.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				showDashboard();
+			}
+		});
+
+		Button btnEnergy = (Button) findViewById(R.id.btnEnergy);
+		btnEnergy.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View view) {
+				EnergyDialog.show(MainActivityService.this);
+			}
+		});
+
 		_txtClosest = (TextView) findViewById(R.id.txtClosest);
+
+		_operationsView = new OperationsView(this, (LinearLayout) findViewById(R.id.layOperations));
+		_operationsView.attach();
+	}
+
+	/**
+	 * Collect all stones from the current scan
+	 * @return the addresses of the stones, null if no stones were found
+	 */
+	private ArrayList<String> getStoneAddresses() {
+		ArrayList<String> addresses = new ArrayList<>();
+		for (int i = 0; i < _deviceList.size(); i++) {
+			if (_deviceList.hasFlag(i, DeviceStore.FLAG_STONE)) {
+				addresses.add(_deviceList.getAddress(i));
+			}
+		}
+		if (addresses.isEmpty()) {
+			Toast.makeText(this, "No stones found", Toast.LENGTH_LONG).show();
+			return null;
+		}
+		return addresses;
+	}
+
+	private void showDashboard() {
+		ArrayList<String> addresses = getStoneAddresses();
+		if (addresses == null) {
+			return;
+		}
+		Intent intent = new Intent(MainActivityService.this, DashboardActivity.class);
+		intent.putExtra(DashboardActivity.EXTRA_ADDRESSES, addresses.toArray(new String[addresses.size()]));
+		startActivity(intent);
 	}
 
 	private void stopScan() {
@@ -269,6 +416,7 @@ public class MainActivityService extends Activity implements IntervalScanListene
 			_btnScan.setText(getString(R.string.main_stop_scan));
 			// start scanning for devices, only return devices defined by the filter
 			_service.clearDeviceMap();
+			_streams.clear();
 			_service.startIntervalScan(filter);
 		}
 	}
@@ -281,67 +429,37 @@ public class MainActivityService extends Activity implements IntervalScanListene
 		_btnScan.setEnabled(false);
 	}
 
-	private void updateDeviceList() {
-		// update the device list. since we are not keeping up a list of devices ourselves, we
-		// get the list of devices from the service
-
-		_bleDeviceList = _service.getDeviceMap().getRssiSortedList();
-		if (_bleDeviceList.isEmpty()) {
+	private void updateDeviceList(DeviceStore records) {
+		// update the device list from the devices which we received from the service. they are
+		// kept in a compact device store, which is much cheaper to copy and sort than the
+		// full device objects
+		if (records.isEmpty()) {
 			return;
 		}
-		runOnUiThread(new Runnable() {
-			@Override
-			public void run() {
-				// the closest device is the first device in the list (because we asked for the
-				// rssi sorted list)
-				_txtClosest.setText(getString(R.string.main_closest_device, _bleDeviceList.get(0).getName()));
-
-				// update the list view
-				DeviceListAdapter adapter = ((DeviceListAdapter) _lvScanList.getAdapter());
-				adapter.updateList(_bleDeviceList);
-				adapter.notifyDataSetChanged();
-			}
-		});
-	}
 
-	@Override
-	public void onDeviceScanned(BleDevice device) {
-		// by registering to the service as a ScanDeviceListener, the service triggers an
-		// event every time a device is scanned. the device in the parameter is already updated
-		// i.e. the average RSSI and estimated distance are recalculated.
-
-		// but in this example we are only interested in the list of devices, which can be easily
-		// obtained from the library, without the need of keeping up a list ourselves
-		if (System.currentTimeMillis() > _lastUpdate + GUI_UPDATE_INTERVAL) {
-			_lastUpdate = System.currentTimeMillis();
-			updateDeviceList();
+		// update the list view
+		DeviceListAdapter adapter = ((DeviceListAdapter) _lvScanList.getAdapter());
+		// the same snapshot as before doesn't have to be redrawn
+		boolean changed = adapter.updateList(records);
+		if (changed) {
+			adapter.notifyDataSetChanged();
 		}
-	}
-
-	@Override
-	public void onScanStart() {
-		// by registering to the service as an IntervalScanListener, the service informs us
-		// whenever a new scan interval is started.
 
-		// but we don't really care about that here
-	}
+		// the closest device is the first device in the list (because the records are sorted
+		// by rssi)
+		DeviceView closest = _deviceList.get(0);
+		if (closest != null && changed) {
+			_txtClosest.setText(getString(R.string.main_closest_device, closest.getName()));
+		}
 
-	@Override
-	public void onScanEnd() {
-		// by registering to the service as an IntervalScanListener, the service informs us
-		// whenever a scan interval ends.
-
-		// at this point we can obtain the list of scanned devices from the library to update
-		// the list view.
-		// Note: this happens much less frequently than the onDeviceScanned event. if you need
-		// instant updates for scanned devices, use the ScanDeviceListener instead.
-		updateDeviceList();
+		// if a stone stays the closest device for a while, the user is likely to open it, so
+		// start connecting to it in the background
+		PreConnector.getInstance().onClosestDevice(this, closest != null && closest.isStone() ? closest.getAddress() : null);
 	}
 
-	@Override
-	public void onEvent(Event event) {
-		// by registering to the service as an EventListener, we will be informed whenever the
-		// user turns bluetooth on or off, or even refuses to enable bluetooth
+	private void onEvent(EventListener.Event event) {
+		// by subscribing to the events of the service, we will be informed whenever the user
+		// turns bluetooth on or off, or even refuses to enable bluetooth
 		switch (event) {
 			case BLUETOOTH_INITIALIZED: {
 				onBleEnabled();
@@ -0,0 +1,123 @@
+package nl.dobots.bluenetexample;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.widget.Toast;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Starts a {@link BulkMaintenanceActivity} for the stones the user selects from the current
+ * scan. Used by both main screens:
+ *
+ * 		* the user picks the operation first, and then the stones it runs on. The scan contains
+ * 		  every stone in radio range, e.g. also the stones of the neighbours, so for a factory
+ * 		  reset no stone is selected up front
+ * 		* before the operation starts, the number of stones and their addresses are shown to
+ * 		  confirm
+ *
+ * Created on 19-10-26
+ */
+public class MaintenanceDialog {
+
+	private MaintenanceDialog() {
+	}
+
+	public static void show(final Activity activity, DeviceListWindow devices) {
+		final ArrayList<String> addresses = new ArrayList<>();
+		final ArrayList<String> labels = new ArrayList<>();
+		for (int i = 0; i < devices.size(); i++) {
+			if (devices.hasFlag(i, DeviceStore.FLAG_STONE)) {
+				addresses.add(devices.getAddress(i));
+				labels.add(String.format(Locale.US, "%s (%d dBm)", devices.getAddress(i), devices.getRssi(i)));
+			}
+		}
+		if (addresses.isEmpty()) {
+			Toast.makeText(activity, "No stones found", Toast.LENGTH_LONG).show();
+			return;
+		}
+
+		final BulkMaintenanceJob.Operation[] operations = BulkMaintenanceJob.Operation.values();
+		String[] items = new String[operations.length];
+		for (int i = 0; i < operations.length; i++) {
+			items[i] = operations[i].toString();
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle("Maintenance");
+		builder.setItems(items, new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				select(activity, operations[which], addresses, labels);
+			}
+		});
+		builder.show();
+	}
+
+	private static void select(final Activity activity, final BulkMaintenanceJob.Operation operation,
+							   final ArrayList<String> addresses, ArrayList<String> labels) {
+		final boolean[] selected = new boolean[addresses.size()];
+		// a factory reset can't be undone, so every stone has to be selected on purpose
+		boolean selectAll = operation != BulkMaintenanceJob.Operation.FACTORY_RESET;
+		for (int i = 0; i < selected.length; i++) {
+			selected[i] = selectAll;
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle(operation + ": select stones");
+		builder.setMultiChoiceItems(labels.toArray(new String[labels.size()]), selected,
+				new DialogInterface.OnMultiChoiceClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+						selected[which] = isChecked;
+					}
+				});
+		builder.setPositiveButton("Next", new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				ArrayList<String> selection = new ArrayList<>();
+				for (int i = 0; i < selected.length; i++) {
+					if (selected[i]) {
+						selection.add(addresses.get(i));
+					}
+				}
+				if (selection.isEmpty()) {
+					Toast.makeText(activity, "No stones selected", Toast.LENGTH_LONG).show();
+					return;
+				}
+				confirm(activity, operation, selection);
+			}
+		});
+		builder.setNegativeButton(android.R.string.cancel, null);
+		builder.show();
+	}
+
+	private static void confirm(final Activity activity, final BulkMaintenanceJob.Operation operation,
+								final ArrayList<String> addresses) {
+		StringBuilder message = new StringBuilder();
+		message.append(String.format(Locale.US, "%s %d stones:\n", operation, addresses.size()));
+		for (String address : addresses) {
+			message.append(address).append("\n");
+		}
+
+		AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+		builder.setTitle("Confirm");
+		builder.setMessage(message.toString());
+		builder.setPositiveButton(operation.toString(), new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which) {
+				// start the maintenance activity, which runs the operation on the selected stones
+				Intent intent = new Intent(activity, BulkMaintenanceActivity.class);
+				intent.putExtra(BulkMaintenanceActivity.EXTRA_ADDRESSES, addresses.toArray(new String[addresses.size()]));
+				intent.putExtra(BulkMaintenanceActivity.EXTRA_OPERATION, operation.name());
+				activity.startActivity(intent);
+			}
+		});
+		builder.setNegativeButton(android.R.string.cancel, null);
+		builder.show();
+	}
+
+}
@@ -0,0 +1,32 @@
+package nl.dobots.bluenetexample;
+
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+
+/**
+ * A connection layer which can push the state characteristic of stones through GATT
+ * notifications, see {@link StateSubscriptions}. The library doesn't deliver notifications,
+ * so {@link AdvertisedStateSource} takes the state from the advertisements instead.
+ *
+ * Created on 19-10-26
+ */
+public interface NotificationSource {
+
+	interface Listener {
+		/**
+		 * Called on the BLE thread for every notification of every stone. The payload is only
+		 * valid during the call.
+		 */
+		void onNotification(String address, byte[] payload);
+	}
+
+	void setListener(Listener listener);
+
+	/**
+	 * Enable notifications on the state characteristic of a stone. Fails if the stone's
+	 * characteristic doesn't support notifications.
+	 */
+	void enableNotifications(String address, IStatusCallback callback);
+
+	void disableNotifications(String address, IStatusCallback callback);
+
+}
@@ -0,0 +1,121 @@
+package nl.dobots.bluenetexample;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * State of a BLE job which is in flight, e.g. connecting to a device, executing the setup or
+ * recovering a stone. The job updates its operation from whatever thread its callbacks come
+ * in on, the {@link OperationTracker} takes care of showing the changes on the UI thread.
+ *
+ * Created on 19-10-26
+ */
+public class Operation {
+
+	public enum State {
+		RUNNING,
+		SUCCEEDED,
+		FAILED
+	}
+
+	private final OperationTracker _tracker;
+	private final int _id;
+	private final String _title;
+
+	private volatile State _state = State.RUNNING;
+	private volatile int _progress = 0;
+	private volatile int _max;
+	private volatile String _message;
+	private volatile long _finishedAt;
+	// measurements of the job, e.g. the round trip time and the link parameters used
+	private final LinkedHashMap<String, String> _metrics = new LinkedHashMap<>();
+
+	Operation(OperationTracker tracker, int id, String title, int max) {
+		_tracker = tracker;
+		_id = id;
+		_title = title;
+		_max = max;
+	}
+
+	public int getId() {
+		return _id;
+	}
+
+	public String getTitle() {
+		return _title;
+	}
+
+	public State getState() {
+		return _state;
+	}
+
+	public boolean isFinished() {
+		return _state != State.RUNNING;
+	}
+
+	/**
+	 * @return the progress, or -1 if the progress of the operation is unknown
+	 */
+	public int getProgress() {
+		return _max > 0 ? _progress : -1;
+	}
+
+	public int getMax() {
+		return _max;
+	}
+
+	public String getMessage() {
+		return _message;
+	}
+
+	/**
+	 * @return a copy of the metrics, in the order in which they were first set
+	 */
+	public Map<String, String> getMetrics() {
+		synchronized (_metrics) {
+			return new LinkedHashMap<>(_metrics);
+		}
+	}
+
+	long getFinishedAt() {
+		return _finishedAt;
+	}
+
+	public void setProgress(int progress) {
+		_progress = progress;
+		_tracker.onChanged();
+	}
+
+	public void setMessage(String message) {
+		_message = message;
+		_tracker.onChanged();
+	}
+
+	public void setMetric(String name, String value) {
+		synchronized (_metrics) {
+			_metrics.put(name, value);
+		}
+		_tracker.onChanged();
+	}
+
+	public void succeed(String message) {
+		finish(State.SUCCEEDED, message);
+	}
+
+	public void fail(String message) {
+		finish(State.FAILED, message);
+	}
+
+	private void finish(State state, String message) {
+		if (_state != State.RUNNING) {
+			return;
+		}
+		_message = message;
+		_finishedAt = SystemClock.uptimeMillis();
+		_state = state;
+		_tracker.onChanged();
+	}
+
+}
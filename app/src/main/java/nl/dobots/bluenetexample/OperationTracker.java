@@ -0,0 +1,146 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps track of all BLE jobs which are in flight, so that they can be shown without blocking
+ * the UI with a modal dialog per job, and several jobs can run (and be shown) at the same time.
+ *
+ * Updates to the operations are coalesced: no matter how many updates come in (e.g. the 13
+ * steps of the setup), the listeners are informed at most once per frame, on the UI thread.
+ * Finished operations are kept for {@link #REMOVE_DELAY} ms so the user can see the result.
+ *
+ * Created on 19-10-26
+ */
+public class OperationTracker {
+
+	// how long a finished operation is shown
+	public static final int REMOVE_DELAY = 3000;
+
+	public interface Listener {
+		void onOperationsChanged(List<Operation> operations);
+	}
+
+	private static OperationTracker _instance;
+
+	public static synchronized OperationTracker getInstance() {
+		if (_instance == null) {
+			_instance = new OperationTracker();
+		}
+		return _instance;
+	}
+
+	private final Handler _handler = new Handler(Looper.getMainLooper());
+	private final ArrayList<Operation> _operations = new ArrayList<>();
+	private final ArrayList<Listener> _listeners = new ArrayList<>();
+	private final AtomicBoolean _dirty = new AtomicBoolean();
+	private int _nextId = 0;
+
+	private final Runnable _scheduleFrame = new Runnable() {
+		@Override
+		public void run() {
+			Choreographer.getInstance().postFrameCallback(_frameCallback);
+		}
+	};
+
+	private final Runnable _markDirty = new Runnable() {
+		@Override
+		public void run() {
+			onChanged();
+		}
+	};
+
+	private final Choreographer.FrameCallback _frameCallback = new Choreographer.FrameCallback() {
+		@Override
+		public void doFrame(long frameTimeNanos) {
+			_dirty.set(false);
+
+			ArrayList<Operation> operations;
+			boolean finishedLeft = false;
+			synchronized (_operations) {
+				long now = SystemClock.uptimeMillis();
+				for (int i = _operations.size() - 1; i >= 0; i--) {
+					Operation operation = _operations.get(i);
+					if (operation.isFinished()) {
+						if (now - operation.getFinishedAt() >= REMOVE_DELAY) {
+							_operations.remove(i);
+						} else {
+							finishedLeft = true;
+						}
+					}
+				}
+				operations = new ArrayList<>(_operations);
+			}
+
+			for (Listener listener : _listeners) {
+				listener.onOperationsChanged(operations);
+			}
+
+			if (finishedLeft) {
+				// come back to remove the finished operations once they were shown long enough
+				_handler.removeCallbacks(_markDirty);
+				_handler.postDelayed(_markDirty, REMOVE_DELAY);
+			}
+		}
+	};
+
+	private OperationTracker() {
+	}
+
+	/**
+	 * Start tracking an operation of which the progress is unknown.
+	 * @param title title to show for the operation
+	 * @return the operation, to be updated by the job
+	 */
+	public Operation start(String title) {
+		return start(title, 0);
+	}
+
+	/**
+	 * Start tracking an operation which reports its progress.
+	 * @param title title to show for the operation
+	 * @param max the value of the progress once the operation is done
+	 * @return the operation, to be updated by the job
+	 */
+	public Operation start(String title, int max) {
+		Operation operation;
+		synchronized (_operations) {
+			operation = new Operation(this, _nextId++, title, max);
+			_operations.add(operation);
+		}
+		onChanged();
+		return operation;
+	}
+
+	/**
+	 * Register a listener. Has to be called on the UI thread.
+	 */
+	public void registerListener(Listener listener) {
+		if (!_listeners.contains(listener)) {
+			_listeners.add(listener);
+		}
+		onChanged();
+	}
+
+	/**
+	 * Unregister a listener. Has to be called on the UI thread.
+	 */
+	public void unregisterListener(Listener listener) {
+		_listeners.remove(listener);
+	}
+
+	void onChanged() {
+		// only schedule one frame, no matter how many updates come in before it
+		if (_dirty.compareAndSet(false, true)) {
+			_handler.post(_scheduleFrame);
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.LinearLayout;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shows the operations of the {@link OperationTracker} as rows in a LinearLayout. Rows are
+ * kept per operation and only updated when the tracker reports a change, at most once per
+ * frame.
+ *
+ * Created on 19-10-26
+ */
+public class OperationsView implements OperationTracker.Listener {
+
+	private final LinearLayout _container;
+	private final LayoutInflater _inflater;
+	private final SparseArray<View> _rows = new SparseArray<>();
+
+	public OperationsView(Context context, LinearLayout container) {
+		_container = container;
+		_inflater = LayoutInflater.from(context);
+	}
+
+	public void attach() {
+		OperationTracker.getInstance().registerListener(this);
+	}
+
+	public void detach() {
+		OperationTracker.getInstance().unregisterListener(this);
+	}
+
+	@Override
+	public void onOperationsChanged(List<Operation> operations) {
+		// remove the rows of operations which are not tracked anymore
+		SparseArray<View> rows = new SparseArray<>();
+		for (Operation operation : operations) {
+			View row = _rows.get(operation.getId());
+			if (row == null) {
+				row = _inflater.inflate(R.layout.operation_row, _container, false);
+				_container.addView(row);
+			} else {
+				_rows.remove(operation.getId());
+			}
+			rows.put(operation.getId(), row);
+			bind(row, operation);
+		}
+		for (int i = 0; i < _rows.size(); i++) {
+			_container.removeView(_rows.valueAt(i));
+		}
+		_rows.clear();
+		for (int i = 0; i < rows.size(); i++) {
+			_rows.put(rows.keyAt(i), rows.valueAt(i));
+		}
+		_container.setVisibility(operations.isEmpty() ? View.GONE : View.VISIBLE);
+	}
+
+	private void bind(View row, Operation operation) {
+		TextView title = (TextView) row.findViewById(R.id.txtOperationTitle);
+		TextView status = (TextView) row.findViewById(R.id.txtOperationStatus);
+		ProgressBar progress = (ProgressBar) row.findViewById(R.id.pbOperation);
+
+		title.setText(operation.getTitle());
+
+		String message = operation.getMessage();
+		StringBuilder text = new StringBuilder();
+		switch (operation.getState()) {
+			case RUNNING:
+				text.append(message != null ? message : "Please wait ...");
+				break;
+			case SUCCEEDED:
+				text.append(message != null ? message : "success");
+				break;
+			case FAILED:
+				text.append(message != null ? message : "failed");
+				break;
+		}
+		for (Map.Entry<String, String> metric : operation.getMetrics().entrySet()) {
+			text.append('\n').append(metric.getKey()).append(": ").append(metric.getValue());
+		}
+		status.setText(text);
+
+		if (operation.isFinished()) {
+			progress.setVisibility(View.GONE);
+		} else {
+			progress.setVisibility(View.VISIBLE);
+			if (operation.getProgress() < 0) {
+				progress.setIndeterminate(true);
+			} else {
+				progress.setIndeterminate(false);
+				progress.setMax(operation.getMax());
+				progress.setProgress(operation.getProgress());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,277 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IIntegerCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Keeps the relay state and power usage of many stones up to date for the dashboard, without
+ * saturating the radio:
+ *
+ * 		* state which is received through advertisements is preferred, a stone is only
+ * 		  connected to if its state is older than its polling interval
+ * 		* reads are staggered, at most one read is started per tick
+ * 		* at most as many links are open at the same time as there are connections in the
+ * 		  budget. a link is closed right after its read, and the connection is only used
+ * 		  again once the link is closed
+ * 		* the polling interval adapts per stone: it is halved when the state changed since the
+ * 		  last poll, and grows when it didn't, between {@link #MIN_INTERVAL} and
+ * 		  {@link #MAX_INTERVAL}. the power usage is noisy, so it only counts as changed if it
+ * 		  differs by more than {@link #POWER_CHANGE_ABSOLUTE} mW and
+ * 		  {@link #POWER_CHANGE_RELATIVE} of the previous value
+ *
+ * The scheduler runs on the thread of the handler it is given, listeners are called on that
+ * thread as well.
+ *
+ * Created on 19-10-26
+ */
+public class PollingScheduler {
+
+	private static final String TAG = PollingScheduler.class.getCanonicalName();
+
+	// time between two ticks, i.e. the minimum time between starting two reads
+	public static final int TICK_INTERVAL = 500;
+	// bounds of the adaptive polling interval per stone
+	public static final int MIN_INTERVAL = 5000;
+	public static final int MAX_INTERVAL = 120000;
+	// smallest difference in power usage which counts as a change, in mW, and relative to the
+	// previous power usage
+	public static final int POWER_CHANGE_ABSOLUTE = 5;
+	public static final double POWER_CHANGE_RELATIVE = 0.1;
+
+	public static class StoneState {
+		public final String address;
+		public boolean relayOn;
+		public int powerUsage;
+		// uptime at which the state was last updated, 0 if it is unknown
+		public long updatedAt;
+		public boolean fromAdvertisement;
+		public int error;
+
+		private int _interval = MIN_INTERVAL;
+		private boolean _polling = false;
+
+		StoneState(String address) {
+			this.address = address;
+		}
+
+		public boolean isKnown() {
+			return updatedAt != 0;
+		}
+
+		public int getInterval() {
+			return _interval;
+		}
+
+		private long dueAt() {
+			return updatedAt + _interval;
+		}
+	}
+
+	public interface Listener {
+		void onStateChanged(StoneState state);
+	}
+
+	private final Handler _handler;
+	private final Listener _listener;
+	private final KeyStore _keys;
+
+	private final LinkedHashMap<String, StoneState> _states = new LinkedHashMap<>();
+	// connections which are not used for a read at the moment
+	private final ArrayDeque<BleExt> _idleConnections = new ArrayDeque<>();
+
+	private boolean _running = false;
+
+	private final Runnable _tick = new Runnable() {
+		@Override
+		public void run() {
+			tick();
+			if (_running) {
+				_handler.postDelayed(this, TICK_INTERVAL);
+			}
+		}
+	};
+
+	/**
+	 * @param connections the connection budget, one read runs at a time per connection
+	 * @param handler handler of the thread the scheduler runs on
+	 * @param listener informed about every state update
+	 * @param keys the keys of the stones, set on a connection before it reads a stone
+	 */
+	public PollingScheduler(List<BleExt> connections, Handler handler, Listener listener, KeyStore keys) {
+		_idleConnections.addAll(connections);
+		_handler = handler;
+		_listener = listener;
+		_keys = keys;
+	}
+
+	public void addStone(String address) {
+		if (!_states.containsKey(address)) {
+			_states.put(address, new StoneState(address));
+		}
+	}
+
+	public List<StoneState> getStates() {
+		return new ArrayList<>(_states.values());
+	}
+
+	public void start() {
+		if (!_running) {
+			_running = true;
+			_handler.post(_tick);
+		}
+	}
+
+	public void stop() {
+		_running = false;
+		_handler.removeCallbacks(_tick);
+	}
+
+	/**
+	 * Update the state of a stone with the state which it advertises. This is much cheaper
+	 * than connecting, so the stone won't be polled until this state becomes stale.
+	 * Has to be called on the scheduler's thread.
+	 */
+	public void onAdvertisedState(String address, boolean relayOn, int powerUsage) {
+		StoneState state = _states.get(address);
+		if (state == null) {
+			return;
+		}
+		update(state, relayOn, powerUsage, true);
+	}
+
+	private void tick() {
+		if (_idleConnections.isEmpty()) {
+			return;
+		}
+
+		// pick the stone which is overdue the longest. unknown stones are due immediately
+		long now = SystemClock.uptimeMillis();
+		StoneState next = null;
+		for (StoneState state : _states.values()) {
+			if (!state._polling && state.dueAt() <= now && (next == null || state.dueAt() < next.dueAt())) {
+				next = state;
+			}
+		}
+		if (next != null) {
+			poll(next, _idleConnections.poll());
+		}
+	}
+
+	private void poll(final StoneState state, final BleExt connection) {
+		Log.d(TAG, "poll " + state.address + " (interval: " + state._interval + ")");
+		state._polling = true;
+		RadioArbiter.getInstance().acquireConnection(RadioAccounting.Feature.DASHBOARD);
+		_keys.apply(connection, state.address);
+
+		// the read with address connects and reads, so the power usage read right after reuses
+		// the connection. the link is closed once both are done, see onPolled
+		connection.readRelay(state.address, new IBooleanCallback() {
+			@Override
+			public void onSuccess(final boolean relayOn) {
+				connection.readPowerConsumption(state.address, new IIntegerCallback() {
+					@Override
+					public void onSuccess(final int powerUsage) {
+						onPolled(state, connection, relayOn, powerUsage, 0);
+					}
+
+					@Override
+					public void onError(int error) {
+						// not every stone measures power, the relay state is still valid
+						onPolled(state, connection, relayOn, state.powerUsage, 0);
+					}
+				});
+			}
+
+			@Override
+			public void onError(int error) {
+				onPolled(state, connection, state.relayOn, state.powerUsage, error);
+			}
+		});
+	}
+
+	private void onPolled(final StoneState state, final BleExt connection, final boolean relayOn,
+						  final int powerUsage, final int error) {
+		close(connection);
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				state._polling = false;
+				if (error != 0) {
+					Log.e(TAG, "failed to poll " + state.address + ": " + error);
+					state.error = error;
+					// try again later, don't hammer a stone which is out of range
+					state._interval = Math.min(MAX_INTERVAL, state._interval * 2);
+					state.updatedAt = SystemClock.uptimeMillis();
+					_listener.onStateChanged(state);
+				} else {
+					update(state, relayOn, powerUsage, false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Disconnect right away, instead of once the disconnect timeout of the library expires, so
+	 * the budget limits the open links. The connection is released and used again once the link
+	 * is closed.
+	 */
+	private void close(final BleExt connection) {
+		IStatusCallback closed = new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				_handler.post(new Runnable() {
+					@Override
+					public void run() {
+						RadioArbiter.getInstance().releaseConnection(RadioAccounting.Feature.DASHBOARD);
+						_idleConnections.add(connection);
+					}
+				});
+			}
+
+			@Override
+			public void onError(int error) {
+				onSuccess();
+			}
+		};
+		// returns false, without calling back, if there is no link to close
+		if (!connection.disconnectAndClose(false, closed)) {
+			closed.onSuccess();
+		}
+	}
+
+	private static boolean isPowerChanged(int previous, int powerUsage) {
+		int difference = Math.abs(powerUsage - previous);
+		return difference > POWER_CHANGE_ABSOLUTE && difference > POWER_CHANGE_RELATIVE * Math.abs(previous);
+	}
+
+	private void update(StoneState state, boolean relayOn, int powerUsage, boolean fromAdvertisement) {
+		boolean changed = !state.isKnown() || state.relayOn != relayOn
+				|| isPowerChanged(state.powerUsage, powerUsage);
+		if (state.isKnown()) {
+			// poll stones whose state changes often more frequently, and the others less
+			if (changed) {
+				state._interval = Math.max(MIN_INTERVAL, state._interval / 2);
+			} else {
+				state._interval = Math.min(MAX_INTERVAL, state._interval * 3 / 2);
+			}
+		}
+		state.relayOn = relayOn;
+		state.powerUsage = powerUsage;
+		state.updatedAt = SystemClock.uptimeMillis();
+		state.fromAdvertisement = fromAdvertisement;
+		state.error = 0;
+		_listener.onStateChanged(state);
+	}
+
+}
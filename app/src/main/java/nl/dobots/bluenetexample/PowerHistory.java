@@ -0,0 +1,335 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Power usage history of the stones, for weeks of data of hundreds of stones. The samples
+ * come from advertisements and reads, and are stored in compressed
+ * {@link TimeSeriesBlock}s in append-only {@link SegmentLog}s, one log per resolution:
+ *
+ * 		* {@link Resolution#RAW}: the samples, at most one per {@link #RAW_INTERVAL} per stone
+ * 		* {@link Resolution#MINUTE}, {@link Resolution#HOUR} and {@link Resolution#DAY}:
+ * 		  rollups with the mean, minimum and maximum power usage of every interval
+ *
+ * The rollups are computed incrementally while the samples come in, and are written as soon
+ * as their interval is over. Every resolution has its own retention: the samples and the
+ * rollups of a minute are kept for a day, the rollups of an hour for a year, so the coarser
+ * resolutions have to be used for longer ranges. Old data is dropped a segment at a time, so
+ * a little more than the retention is kept.
+ *
+ * Queries stream the samples in a range to a {@link Visitor}, block by block, without
+ * decoding anything outside of the range. The blocks which are still being written are
+ * included, as is the rollup of the current interval.
+ *
+ * The blocks which are still being written are kept in memory until they are full, or until
+ * {@link #flush()} is called. Call flush when the app goes to the background. Flush only writes
+ * the blocks of at least {@link #MIN_FLUSH_SIZE}, so going to the background often doesn't fill
+ * the logs with tiny blocks. The smaller blocks, and the rollup of the current interval, are
+ * lost if the app is killed.
+ *
+ * Created on 19-10-26
+ */
+public class PowerHistory {
+
+	private static final String TAG = PowerHistory.class.getCanonicalName();
+
+	public static final String DIRECTORY = "power_history";
+
+	// minimum time between two stored samples of a stone, in seconds
+	public static final int RAW_INTERVAL = 10;
+
+	// minimum size of a block which is still being written for flush to write it, in bytes
+	public static final int MIN_FLUSH_SIZE = TimeSeriesBlock.MAX_SIZE / 4;
+
+	private static final long ONE_DAY = 24 * 3600;
+
+	public enum Resolution {
+		RAW(0, 1, ONE_DAY),
+		MINUTE(60, 3, ONE_DAY),
+		HOUR(3600, 3, 365 * ONE_DAY),
+		DAY(24 * 3600, 3, 10 * 365 * ONE_DAY);
+
+		// length of the interval of a rollup in seconds, 0 for the samples
+		public final int seconds;
+		// the samples have one value, the rollups have the mean, minimum and maximum
+		public final int channels;
+		// how long the data is kept, in seconds
+		public final long retention;
+
+		Resolution(int seconds, int channels, long retention) {
+			this.seconds = seconds;
+			this.channels = channels;
+			this.retention = retention;
+		}
+	}
+
+	public static final int CHANNEL_MEAN = 0;
+	public static final int CHANNEL_MIN = 1;
+	public static final int CHANNEL_MAX = 2;
+
+	public interface Visitor {
+		/**
+		 * @param time time of the sample, or the start of the interval of a rollup, in ms
+		 * @param values the power usage in mW, for a rollup at the indices
+		 *               {@link #CHANNEL_MEAN}, {@link #CHANNEL_MIN} and {@link #CHANNEL_MAX}.
+		 *               the array is reused for the next sample
+		 * @return false to stop the query
+		 */
+		boolean onSample(long time, int[] values);
+	}
+
+	/**
+	 * The samples or rollups of one stone at one resolution.
+	 */
+	private static class Series {
+		final ArrayList<SegmentLog.BlockRef> blocks = new ArrayList<>();
+		final TimeSeriesBlock.Writer writer;
+		long last = Long.MIN_VALUE;
+
+		// the rollup of the current interval
+		long bucketStart;
+		int bucketCount;
+		long bucketSum;
+		int bucketMin;
+		int bucketMax;
+
+		Series(int channels) {
+			writer = new TimeSeriesBlock.Writer(channels);
+		}
+	}
+
+	private static PowerHistory _instance;
+
+	private final SegmentLog[] _logs = new SegmentLog[Resolution.values().length];
+	// the series of every stone, by mac address, one per resolution
+	private final HashMap<Long, Series[]> _stones = new HashMap<>();
+	private final int[] _values = new int[Resolution.MINUTE.channels];
+
+	public static synchronized PowerHistory getInstance(Context context) throws IOException {
+		if (_instance == null) {
+			_instance = new PowerHistory(new File(context.getFilesDir(), DIRECTORY));
+		}
+		return _instance;
+	}
+
+	/**
+	 * Open the history in the directory, every resolution has its own subdirectory.
+	 */
+	public PowerHistory(File directory) throws IOException {
+		for (final Resolution resolution : Resolution.values()) {
+			_logs[resolution.ordinal()] = new SegmentLog(new File(directory, resolution.name().toLowerCase()),
+					new SegmentLog.Visitor() {
+				@Override
+				public void onBlock(long key, SegmentLog.BlockRef block) {
+					Series series = getSeries(key)[resolution.ordinal()];
+					series.blocks.add(block);
+					series.last = Math.max(series.last, block.end);
+				}
+			});
+		}
+	}
+
+	private Series[] getSeries(long mac) {
+		Series[] series = _stones.get(mac);
+		if (series == null) {
+			series = new Series[Resolution.values().length];
+			for (Resolution resolution : Resolution.values()) {
+				series[resolution.ordinal()] = new Series(resolution.channels);
+			}
+			_stones.put(mac, series);
+		}
+		return series;
+	}
+
+	/**
+	 * Add a sample of the power usage of a stone. Samples which are older than the last sample
+	 * of the stone are ignored.
+	 * @param time time of the sample, in ms
+	 * @param powerUsage power usage in mW
+	 */
+	public synchronized void record(String address, long time, int powerUsage) {
+		long seconds = time / 1000;
+		long mac = DeviceStore.parseMac(address);
+		Series[] series = getSeries(mac);
+		try {
+			Series raw = series[Resolution.RAW.ordinal()];
+			if (seconds < raw.last) {
+				return;
+			}
+			if (seconds >= raw.last + RAW_INTERVAL) {
+				_values[0] = powerUsage;
+				append(mac, Resolution.RAW, raw, seconds, _values);
+			}
+
+			for (Resolution resolution : Resolution.values()) {
+				if (resolution != Resolution.RAW) {
+					rollup(mac, resolution, series[resolution.ordinal()], seconds, powerUsage);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "failed to record power usage", e);
+		}
+	}
+
+	private void rollup(long mac, Resolution resolution, Series series, long seconds, int powerUsage) throws IOException {
+		long bucketStart = seconds - seconds % resolution.seconds;
+		if (series.bucketCount > 0 && bucketStart != series.bucketStart) {
+			rollupValues(series);
+			append(mac, resolution, series, series.bucketStart, _values);
+			series.bucketCount = 0;
+		}
+		if (series.bucketCount == 0) {
+			series.bucketStart = bucketStart;
+			series.bucketSum = 0;
+			series.bucketMin = Integer.MAX_VALUE;
+			series.bucketMax = Integer.MIN_VALUE;
+		}
+		series.bucketCount++;
+		series.bucketSum += powerUsage;
+		series.bucketMin = Math.min(series.bucketMin, powerUsage);
+		series.bucketMax = Math.max(series.bucketMax, powerUsage);
+	}
+
+	private void rollupValues(Series series) {
+		_values[CHANNEL_MEAN] = (int) Math.round((double) series.bucketSum / series.bucketCount);
+		_values[CHANNEL_MIN] = series.bucketMin;
+		_values[CHANNEL_MAX] = series.bucketMax;
+	}
+
+	private void append(long mac, Resolution resolution, Series series, long seconds, int[] values) throws IOException {
+		if (!series.writer.hasRoom()) {
+			seal(mac, resolution, series);
+		}
+		series.writer.append(seconds, values);
+		series.last = seconds;
+	}
+
+	/**
+	 * Write the block of the series to its log, and start a new block.
+	 */
+	private void seal(long mac, Resolution resolution, Series series) throws IOException {
+		if (series.writer.getCount() == 0) {
+			return;
+		}
+		SegmentLog log = _logs[resolution.ordinal()];
+		series.blocks.add(log.append(mac, series.writer));
+		series.writer.reset();
+		if (log.dropOlderThan(series.last - resolution.retention)) {
+			dropDeletedBlocks(resolution);
+		}
+	}
+
+	private void dropDeletedBlocks(Resolution resolution) {
+		for (Series[] series : _stones.values()) {
+			Iterator<SegmentLog.BlockRef> iterator = series[resolution.ordinal()].blocks.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().segment.isDeleted()) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the blocks which are still being written, and hold at least {@link #MIN_FLUSH_SIZE}
+	 * bytes, to the logs, and the logs to storage. The smaller blocks stay in memory.
+	 */
+	public synchronized void flush() {
+		try {
+			for (Map.Entry<Long, Series[]> entry : _stones.entrySet()) {
+				for (Resolution resolution : Resolution.values()) {
+					Series series = entry.getValue()[resolution.ordinal()];
+					if (series.writer.getBits() >= MIN_FLUSH_SIZE * 8) {
+						seal(entry.getKey(), resolution, series);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "failed to flush power history", e);
+		}
+		for (SegmentLog log : _logs) {
+			log.force();
+		}
+	}
+
+	/**
+	 * Stream the samples or rollups of a stone in a time range, oldest first.
+	 * @param from start of the range in ms, inclusive
+	 * @param to end of the range in ms, exclusive
+	 */
+	public synchronized void query(String address, Resolution resolution, long from, long to, Visitor visitor) {
+		Series[] stone = _stones.get(DeviceStore.parseMac(address));
+		if (stone == null) {
+			return;
+		}
+		Series series = stone[resolution.ordinal()];
+		long fromSeconds = from / 1000;
+		long toSeconds = (to + 999) / 1000;
+		int[] values = new int[resolution.channels];
+
+		for (SegmentLog.BlockRef block : series.blocks) {
+			if (block.end < fromSeconds || block.start >= toSeconds) {
+				continue;
+			}
+			TimeSeriesBlock.Reader reader = new TimeSeriesBlock.Reader(block.segment.getBuffer(), block.offset,
+					resolution.channels, block.start, block.count);
+			if (!visit(reader, values, from, to, visitor)) {
+				return;
+			}
+		}
+
+		TimeSeriesBlock.Writer writer = series.writer;
+		if (writer.getCount() > 0 && writer.getEnd() >= fromSeconds && writer.getStart() < toSeconds) {
+			TimeSeriesBlock.Reader reader = new TimeSeriesBlock.Reader(ByteBuffer.wrap(writer.getBuffer()), 0,
+					resolution.channels, writer.getStart(), writer.getCount());
+			if (!visit(reader, values, from, to, visitor)) {
+				return;
+			}
+		}
+
+		if (resolution != Resolution.RAW && series.bucketCount > 0) {
+			long time = series.bucketStart * 1000;
+			if (time >= from && time < to) {
+				rollupValues(series);
+				System.arraycopy(_values, 0, values, 0, values.length);
+				visitor.onSample(time, values);
+			}
+		}
+	}
+
+	private static boolean visit(TimeSeriesBlock.Reader reader, int[] values, long from, long to, Visitor visitor) {
+		while (reader.next()) {
+			long time = reader.getTime() * 1000;
+			if (time >= to) {
+				return false;
+			}
+			if (time < from) {
+				continue;
+			}
+			for (int c = 0; c < values.length; c++) {
+				values[c] = reader.getValue(c);
+			}
+			if (!visitor.onSample(time, values)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the size of the stored data of a resolution, in bytes
+	 */
+	public synchronized long getSize(Resolution resolution) {
+		return _logs[resolution.ordinal()].getSize();
+	}
+
+}
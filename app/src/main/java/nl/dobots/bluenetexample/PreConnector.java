@@ -0,0 +1,382 @@
+package nl.dobots.bluenetexample;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import nl.dobots.bluenet.ble.base.callbacks.IDiscoveryCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Speculatively connects to a device which the user is likely to open next, e.g. because the
+ * user pressed its row, or because it stayed the closest device for a while. The connection
+ * and discovery then run in the background, and the ControlActivity can claim the warmed up
+ * session instead of starting the connection setup from scratch.
+ *
+ * Only one session is warmed up at a time. If the session is not claimed within
+ * {@link #CLAIM_TIMEOUT} ms, or another device is warmed up, the session is disconnected and
+ * closed again. A stone only accepts one link, so anybody else who connects to the stone, e.g.
+ * to recover it, cancels the session first and waits until it is closed, see
+ * {@link #cancel(String, Runnable)}.
+ *
+ * The library is initialized through the {@link BleStartup}, so a press doesn't block the UI
+ * thread. To verify the gain, the time from the press of a row (see {@link #onPressed(String)})
+ * to the first relay read on the control screen (see {@link #onInteractive(String, boolean)})
+ * is logged, and should stay below {@link #INTERACTIVE_TARGET} ms.
+ *
+ * Created on 19-10-26
+ */
+public class PreConnector {
+
+	private static final String TAG = PreConnector.class.getCanonicalName();
+
+	// how long a warmed up session is kept if nobody claims it
+	public static final int CLAIM_TIMEOUT = 5000;
+	// how long a stone has to stay the closest device before it is pre-connected
+	public static final int CLOSEST_DWELL_TIME = 3000;
+	// time from the press to the first relay read we aim for
+	public static final int INTERACTIVE_TARGET = 200;
+
+	// the connection setup didn't start, because the session was cancelled before
+	public static final int ERROR_CANCELLED = -1;
+
+	/**
+	 * A connection to a device which is being set up, or is set up already.
+	 */
+	public static class Session {
+
+		private final String _address;
+		private final BleExt _ble;
+
+		private boolean _done = false;
+		private int _error = 0;
+		// the session was cancelled, the BleExt is destroyed once the connection setup is done
+		private boolean _closed = false;
+		private ArrayList<IStatusCallback> _waiting = new ArrayList<>();
+
+		private Session(String address, BleExt ble) {
+			_address = address;
+			_ble = ble;
+		}
+
+		public String getAddress() {
+			return _address;
+		}
+
+		public BleExt getBle() {
+			return _ble;
+		}
+
+		/**
+		 * Get informed once connection and discovery are done. If they are done already, the
+		 * callback is called immediately.
+		 * @param callback onSuccess if the device is connected and discovered, onError otherwise
+		 */
+		public void whenReady(IStatusCallback callback) {
+			synchronized (this) {
+				if (!_done) {
+					_waiting.add(callback);
+					return;
+				}
+			}
+			report(callback);
+		}
+
+		private void onDone(int error) {
+			ArrayList<IStatusCallback> waiting;
+			boolean closed;
+			synchronized (this) {
+				_done = true;
+				_error = error;
+				waiting = _waiting;
+				_waiting = new ArrayList<>();
+				closed = _closed;
+			}
+			if (closed) {
+				// cancelled while connecting, nobody claimed the session
+				disconnectAndDestroy();
+				return;
+			}
+			for (IStatusCallback callback : waiting) {
+				report(callback);
+			}
+		}
+
+		private void report(IStatusCallback callback) {
+			if (_error == 0) {
+				callback.onSuccess();
+			} else {
+				callback.onError(_error);
+			}
+		}
+
+		private void close() {
+			synchronized (this) {
+				_closed = true;
+				if (!_done) {
+					// the connection setup is still running. closing now would leave the link
+					// it sets up open, so the session is closed once it is done, see onDone
+					return;
+				}
+			}
+			disconnectAndDestroy();
+		}
+
+		private synchronized boolean isClosed() {
+			return _closed;
+		}
+
+		private void disconnectAndDestroy() {
+			// returns false, without calling back, if there is no link to close
+			if (!_ble.disconnectAndClose(false, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+					destroy();
+				}
+
+				@Override
+				public void onError(int error) {
+					destroy();
+				}
+			})) {
+				destroy();
+			}
+		}
+
+		private void destroy() {
+			// on the thread of the startup, so it runs after the initialization
+			BleStartup.destroy(_ble);
+			getInstance().onClosed(this);
+		}
+
+	}
+
+	private static PreConnector _instance;
+
+	public static synchronized PreConnector getInstance() {
+		if (_instance == null) {
+			_instance = new PreConnector();
+		}
+		return _instance;
+	}
+
+	private final Handler _handler = new Handler(Looper.getMainLooper());
+	private Session _session;
+	// cancelled sessions whose link is not closed yet, and who waits for that, by address
+	private final HashMap<String, Session> _closing = new HashMap<>();
+	private final HashMap<String, ArrayList<Runnable>> _closedWaiting = new HashMap<>();
+
+	// the row which was pressed last, and when
+	private String _pressedAddress;
+	private long _pressedAt;
+
+	private String _closestAddress;
+	private long _closestSince;
+
+	private final Runnable _timeout = new Runnable() {
+		@Override
+		public void run() {
+			Log.i(TAG, "session was not claimed");
+			cancel();
+		}
+	};
+
+	private PreConnector() {
+	}
+
+	/**
+	 * Start connecting to the device in the background. Any other warmed up session is
+	 * cancelled.
+	 * @param context context used to initialize the library
+	 * @param address address of the device
+	 */
+	public synchronized void warmUp(final Context context, final String address) {
+		if (_session != null) {
+			if (_session.getAddress().equals(address)) {
+				// already warming up this device, just restart the timeout
+				_handler.removeCallbacks(_timeout);
+				_handler.postDelayed(_timeout, CLAIM_TIMEOUT);
+				return;
+			}
+			cancel();
+		}
+
+		Log.i(TAG, "pre-connecting to " + address);
+		final BleExt ble = new BleExt();
+		final Session session = new Session(address, ble);
+		_session = session;
+		RadioArbiter.getInstance().acquireConnection(RadioAccounting.Feature.PRE_CONNECT);
+		// the library is initialized in the background, we connect once it is done
+		BleStartup.init(context.getApplicationContext(), ble, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				Log.v(TAG, "onSuccess");
+			}
+
+			@Override
+			public void onError(int error) {
+				Log.e(TAG, "onError: " + error);
+			}
+		}, new Runnable() {
+			@Override
+			public void run() {
+				if (session.isClosed()) {
+					session.onDone(ERROR_CANCELLED);
+					return;
+				}
+				// the keys of the stone's sphere stay set for the lifetime of the link
+				KeyStore.getInstance(context).apply(ble, address);
+				ble.connectAndDiscover(address, new IDiscoveryCallback() {
+					@Override
+					public void onDiscovery(String serviceUuid, String characteristicUuid) {
+					}
+
+					@Override
+					public void onSuccess() {
+						Log.i(TAG, "pre-connected to " + address);
+						session.onDone(0);
+					}
+
+					@Override
+					public void onError(int error) {
+						Log.e(TAG, "failed to pre-connect: " + error);
+						session.onDone(error);
+					}
+				});
+			}
+		});
+		_handler.postDelayed(_timeout, CLAIM_TIMEOUT);
+	}
+
+	/**
+	 * The row of the device was pressed, starts the measurement of the time to interactive.
+	 */
+	public synchronized void onPressed(String address) {
+		_pressedAddress = address;
+		_pressedAt = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * The control screen read the relay state of the device for the first time. Logs the time
+	 * since the press of its row.
+	 * @param preConnected whether the screen claimed a warmed up session
+	 * @return ms since the press, or -1 if the device wasn't pressed
+	 */
+	public synchronized long onInteractive(String address, boolean preConnected) {
+		if (_pressedAt == 0 || !address.equals(_pressedAddress)) {
+			return -1;
+		}
+		long time = SystemClock.elapsedRealtime() - _pressedAt;
+		_pressedAt = 0;
+		_pressedAddress = null;
+		String message = "interactive after " + time + " ms, " + (preConnected ? "pre-connected" : "not pre-connected");
+		if (time > INTERACTIVE_TARGET) {
+			Log.w(TAG, message + ", target " + INTERACTIVE_TARGET + " ms");
+		} else {
+			Log.i(TAG, message);
+		}
+		return time;
+	}
+
+	/**
+	 * Inform the pre-connector about the closest device. Once the same device stayed the
+	 * closest for {@link #CLOSEST_DWELL_TIME} ms, it is pre-connected.
+	 * @param context context used to initialize the library
+	 * @param address address of the closest device, or null if the closest device is no stone
+	 */
+	public synchronized void onClosestDevice(Context context, String address) {
+		long now = SystemClock.elapsedRealtime();
+		if (address == null || !address.equals(_closestAddress)) {
+			_closestAddress = address;
+			_closestSince = now;
+		} else if (_closestSince != 0 && now - _closestSince > CLOSEST_DWELL_TIME) {
+			// only pre-connect once per dwell period
+			_closestSince = 0;
+			warmUp(context, address);
+		}
+	}
+
+	/**
+	 * Take over the warmed up session for the device. The caller becomes the owner of the
+	 * session's BleExt and is responsible for disconnecting and destroying it, and for
+	 * acquiring the connection with the RadioArbiter.
+	 * @param address address of the device
+	 * @return the session, or null if no session for this device is warmed up
+	 */
+	public synchronized Session claim(String address) {
+		if (_session == null || !_session.getAddress().equals(address)) {
+			return null;
+		}
+		_handler.removeCallbacks(_timeout);
+		Session session = _session;
+		_session = null;
+		// the claimer is responsible for the connection from now on
+		RadioArbiter.getInstance().releaseConnection(RadioAccounting.Feature.PRE_CONNECT);
+		return session;
+	}
+
+	/**
+	 * Cancel the warmed up session for the device, if there is one.
+	 * @param address address of the device
+	 */
+	public synchronized void cancel(String address) {
+		if (_session != null && _session.getAddress().equals(address)) {
+			cancel();
+		}
+	}
+
+	/**
+	 * Cancel the warmed up session for the device, if there is one, and run the action on the
+	 * main thread once no session holds a link to the device anymore. Call this before
+	 * connecting to the device with another BleExt.
+	 * @param closed run once the link of the session is closed, or right away if there is no
+	 *               session for the device
+	 */
+	public synchronized void cancel(String address, Runnable closed) {
+		cancel(address);
+		if (!_closing.containsKey(address)) {
+			_handler.post(closed);
+			return;
+		}
+		ArrayList<Runnable> waiting = _closedWaiting.get(address);
+		if (waiting == null) {
+			waiting = new ArrayList<>();
+			_closedWaiting.put(address, waiting);
+		}
+		waiting.add(closed);
+	}
+
+	/**
+	 * Cancel the warmed up session, if there is one.
+	 */
+	public synchronized void cancel() {
+		_handler.removeCallbacks(_timeout);
+		if (_session != null) {
+			Log.i(TAG, "cancel pre-connect to " + _session.getAddress());
+			_closing.put(_session.getAddress(), _session);
+			_session.close();
+			_session = null;
+			RadioArbiter.getInstance().releaseConnection(RadioAccounting.Feature.PRE_CONNECT);
+		}
+	}
+
+	private synchronized void onClosed(Session session) {
+		if (_closing.get(session.getAddress()) != session) {
+			return;
+		}
+		_closing.remove(session.getAddress());
+		ArrayList<Runnable> waiting = _closedWaiting.remove(session.getAddress());
+		if (waiting != null) {
+			for (Runnable runnable : waiting) {
+				_handler.post(runnable);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,440 @@
+package nl.dobots.bluenetexample;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Accounts for the use of the radio by the features of the app, to tune the scan and
+ * connection policies against numbers. Every feature reports when it starts and stops
+ * scanning, and the {@link RadioArbiter} reports when it opens and closes connections. The
+ * accounting keeps:
+ *
+ * 		* the time the radio spent in every {@link Mode}. the modes don't overlap: the radio is
+ * 		  CONNECTED while a connection is open, SCANNING while only scans run, else IDLE
+ * 		* per feature the scan and connection time. if several features scan or hold a
+ * 		  connection at the same time, the time is split between them, as they share the radio
+ * 		* the interval scan of the BleScanService is shared by the features which use it, see
+ * 		  {@link #sharedScanAttached(Feature)}. it is accounted once, as one scan, and its time,
+ * 		  wakeups and callbacks are split between these features
+ * 		* per feature the wakeups (the radio was started for a scan), the callbacks processed
+ * 		  (e.g. scanned devices) and the connections opened
+ * 		* the wakeups, callbacks and connections of each of the last 24 hours
+ *
+ * From these, {@link #getEnergy(Feature)} estimates the charge every feature draws from the
+ * battery. The currents are rough figures for a phone, calibrate them with a power monitor
+ * before comparing against other apps, they are good enough to compare policies.
+ *
+ * The counters are kept since the start of the process, or since {@link #reset()}. Use
+ * {@link #toCsv()} to export them.
+ *
+ * Created on 19-10-26
+ */
+public class RadioAccounting {
+
+	// estimated current of the radio while scanning at full duty, and while connected, in mA
+	public static final double SCAN_CURRENT = 10.0;
+	public static final double CONNECTED_CURRENT = 3.0;
+	// estimated charge of waking up the radio and cpu, of opening a connection (including the
+	// service discovery), and of processing a callback, in mAs
+	public static final double WAKEUP_CHARGE = 1.0;
+	public static final double CONNECT_CHARGE = 20.0;
+	public static final double CALLBACK_CHARGE = 0.05;
+
+	public static final int HOURS = 24;
+	private static final long HOUR = 3600 * 1000;
+
+	public enum Mode {
+		SCANNING,
+		CONNECTED,
+		IDLE
+	}
+
+	public enum Feature {
+		// the scan of the main screen
+		MAIN_SCAN,
+		// the interval scan of the main screen with the scan service
+		SERVICE_SCAN,
+		// the advertisement scan and the polling of the dashboard
+		DASHBOARD,
+		// the control screen of a stone
+		CONTROL,
+		// connections set up in the background before a stone is opened
+		PRE_CONNECT,
+		// bulk maintenance of stones
+		MAINTENANCE,
+		// scans and commands of the gateway service
+		GATEWAY,
+		// delivery of the commands of the command journal
+		JOURNAL
+	}
+
+	public enum Counter {
+		WAKEUPS,
+		CALLBACKS,
+		CONNECTIONS
+	}
+
+	private static RadioAccounting _instance;
+
+	public static synchronized RadioAccounting getInstance() {
+		if (_instance == null) {
+			_instance = new RadioAccounting();
+		}
+		return _instance;
+	}
+
+	private final int _features = Feature.values().length;
+
+	private long _since;
+	private long _last;
+	private final long[] _modeTime = new long[Mode.values().length];
+
+	private final boolean[] _scanning = new boolean[_features];
+	private final int[] _connections = new int[_features];
+	private int _scanners;
+	private int _openConnections;
+
+	// the features which use the shared scan, and whether it runs
+	private final boolean[] _sharedUsers = new boolean[_features];
+	private int _sharedUserCount;
+	private boolean _sharedScanning;
+
+	// time in ms, as double, as the time is split between the features
+	private final double[] _scanTime = new double[_features];
+	private final double[] _connectedTime = new double[_features];
+	// as double, as the wakeups and callbacks of the shared scan are split between the features
+	private final double[][] _counters = new double[Counter.values().length][_features];
+
+	// the counters of the last hours, in a ring indexed by the hour
+	private final long[] _hourStamps = new long[HOURS];
+	private final long[][] _hourly = new long[HOURS][Counter.values().length];
+
+	private RadioAccounting() {
+		reset();
+	}
+
+	/**
+	 * Clear all counters. Scans and connections which are open stay open.
+	 */
+	public synchronized void reset() {
+		_since = SystemClock.elapsedRealtime();
+		_last = _since;
+		for (int i = 0; i < _features; i++) {
+			_scanTime[i] = 0;
+			_connectedTime[i] = 0;
+		}
+		for (double[] counters : _counters) {
+			for (int i = 0; i < _features; i++) {
+				counters[i] = 0;
+			}
+		}
+		for (int i = 0; i < _modeTime.length; i++) {
+			_modeTime[i] = 0;
+		}
+		for (int h = 0; h < HOURS; h++) {
+			_hourStamps[h] = -1;
+		}
+	}
+
+	/**
+	 * The feature started scanning. Starting a scan which already runs is ignored.
+	 */
+	public synchronized void scanStarted(Feature feature) {
+		if (_scanning[feature.ordinal()]) {
+			return;
+		}
+		accrue();
+		_scanning[feature.ordinal()] = true;
+		_scanners++;
+		count(feature, Counter.WAKEUPS);
+	}
+
+	/**
+	 * The feature stopped or paused scanning. Stopping a scan which doesn't run is ignored.
+	 */
+	public synchronized void scanStopped(Feature feature) {
+		if (!_scanning[feature.ordinal()]) {
+			return;
+		}
+		accrue();
+		_scanning[feature.ordinal()] = false;
+		_scanners--;
+	}
+
+	/**
+	 * The feature started using the shared scan of the BleScanService. Attaching a feature
+	 * which already uses it is ignored. The shared scan is only accounted while at least one
+	 * feature uses it.
+	 */
+	public synchronized void sharedScanAttached(Feature feature) {
+		if (_sharedUsers[feature.ordinal()]) {
+			return;
+		}
+		accrue();
+		_sharedUsers[feature.ordinal()] = true;
+		_sharedUserCount++;
+	}
+
+	/**
+	 * The feature stopped using the shared scan. Detaching a feature which doesn't use it is
+	 * ignored.
+	 */
+	public synchronized void sharedScanDetached(Feature feature) {
+		if (!_sharedUsers[feature.ordinal()]) {
+			return;
+		}
+		accrue();
+		_sharedUsers[feature.ordinal()] = false;
+		_sharedUserCount--;
+	}
+
+	/**
+	 * The shared scan started an interval. Starting a scan which already runs is ignored.
+	 */
+	public synchronized void sharedScanStarted() {
+		if (_sharedScanning) {
+			return;
+		}
+		accrue();
+		_sharedScanning = true;
+		countShared(Counter.WAKEUPS);
+	}
+
+	/**
+	 * The shared scan ended an interval, or was stopped. Stopping a scan which doesn't run is
+	 * ignored.
+	 */
+	public synchronized void sharedScanStopped() {
+		if (!_sharedScanning) {
+			return;
+		}
+		accrue();
+		_sharedScanning = false;
+	}
+
+	/**
+	 * The shared scan delivered a callback, e.g. a scanned device.
+	 */
+	public synchronized void sharedCallback() {
+		countShared(Counter.CALLBACKS);
+	}
+
+	public synchronized void connectionOpened(Feature feature) {
+		accrue();
+		_connections[feature.ordinal()]++;
+		_openConnections++;
+		count(feature, Counter.CONNECTIONS);
+	}
+
+	public synchronized void connectionClosed(Feature feature) {
+		if (_connections[feature.ordinal()] == 0) {
+			return;
+		}
+		accrue();
+		_connections[feature.ordinal()]--;
+		_openConnections--;
+	}
+
+	/**
+	 * The feature processed a callback of the radio, e.g. a scanned device.
+	 */
+	public synchronized void callback(Feature feature) {
+		count(feature, Counter.CALLBACKS);
+	}
+
+	private void count(Feature feature, Counter counter) {
+		_counters[counter.ordinal()][feature.ordinal()]++;
+		countHourly(counter);
+	}
+
+	/**
+	 * Count an event of the shared scan once, split between the features which use it.
+	 */
+	private void countShared(Counter counter) {
+		if (_sharedUserCount == 0) {
+			return;
+		}
+		for (int i = 0; i < _features; i++) {
+			if (_sharedUsers[i]) {
+				_counters[counter.ordinal()][i] += 1.0 / _sharedUserCount;
+			}
+		}
+		countHourly(counter);
+	}
+
+	private void countHourly(Counter counter) {
+		long hour = System.currentTimeMillis() / HOUR;
+		int slot = (int) (hour % HOURS);
+		if (_hourStamps[slot] != hour) {
+			_hourStamps[slot] = hour;
+			for (int c = 0; c < _hourly[slot].length; c++) {
+				_hourly[slot][c] = 0;
+			}
+		}
+		_hourly[slot][counter.ordinal()]++;
+	}
+
+	/**
+	 * Add the time since the last change to the mode, and split it between the features which
+	 * use the radio.
+	 */
+	private void accrue() {
+		long now = SystemClock.elapsedRealtime();
+		long elapsed = now - _last;
+		_last = now;
+		if (elapsed <= 0) {
+			return;
+		}
+		// the shared scan counts as one scan, no matter how many features use it
+		boolean shared = _sharedScanning && _sharedUserCount > 0;
+		int scanners = _scanners + (shared ? 1 : 0);
+		Mode mode = _openConnections > 0 ? Mode.CONNECTED : scanners > 0 ? Mode.SCANNING : Mode.IDLE;
+		_modeTime[mode.ordinal()] += elapsed;
+		for (int i = 0; i < _features; i++) {
+			if (_scanning[i]) {
+				_scanTime[i] += (double) elapsed / scanners;
+			}
+			if (shared && _sharedUsers[i]) {
+				_scanTime[i] += (double) elapsed / scanners / _sharedUserCount;
+			}
+			if (_connections[i] > 0) {
+				_connectedTime[i] += (double) elapsed * _connections[i] / _openConnections;
+			}
+		}
+	}
+
+	/**
+	 * @return time since the start of the accounting, in ms
+	 */
+	public synchronized long getDuration() {
+		return SystemClock.elapsedRealtime() - _since;
+	}
+
+	/**
+	 * @return time the radio spent in the mode, in ms
+	 */
+	public synchronized long getModeTime(Mode mode) {
+		accrue();
+		return _modeTime[mode.ordinal()];
+	}
+
+	/**
+	 * @return the feature's share of the scan time, in ms
+	 */
+	public synchronized long getScanTime(Feature feature) {
+		accrue();
+		return Math.round(_scanTime[feature.ordinal()]);
+	}
+
+	/**
+	 * @return the feature's share of the connected time, in ms
+	 */
+	public synchronized long getConnectedTime(Feature feature) {
+		accrue();
+		return Math.round(_connectedTime[feature.ordinal()]);
+	}
+
+	public synchronized long getCount(Feature feature, Counter counter) {
+		return Math.round(_counters[counter.ordinal()][feature.ordinal()]);
+	}
+
+	/**
+	 * @return the counts of the last {@link #HOURS} hours, the current hour last
+	 */
+	public synchronized long[] getHourly(Counter counter) {
+		long[] counts = new long[HOURS];
+		long hour = System.currentTimeMillis() / HOUR;
+		for (int i = 0; i < HOURS; i++) {
+			long stamp = hour - (HOURS - 1) + i;
+			int slot = (int) (stamp % HOURS);
+			if (_hourStamps[slot] == stamp) {
+				counts[i] = _hourly[slot][counter.ordinal()];
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the estimated charge the feature drew from the battery, in mAh
+	 */
+	public synchronized double getEnergy(Feature feature) {
+		accrue();
+		int f = feature.ordinal();
+		double charge = _scanTime[f] / 1000 * SCAN_CURRENT
+				+ _connectedTime[f] / 1000 * CONNECTED_CURRENT
+				+ _counters[Counter.WAKEUPS.ordinal()][f] * WAKEUP_CHARGE
+				+ _counters[Counter.CONNECTIONS.ordinal()][f] * CONNECT_CHARGE
+				+ _counters[Counter.CALLBACKS.ordinal()][f] * CALLBACK_CHARGE;
+		return charge / 3600;
+	}
+
+	/**
+	 * @return the estimated charge of all features, in mAh
+	 */
+	public synchronized double getTotalEnergy() {
+		double total = 0;
+		for (Feature feature : Feature.values()) {
+			total += getEnergy(feature);
+		}
+		return total;
+	}
+
+	/**
+	 * Export the accounting as csv, with a section per mode, per feature and per hour:
+	 *
+	 * 		mode,time_ms
+	 * 		feature,scan_ms,connected_ms,wakeups,callbacks,connections,energy_mah
+	 * 		hours_ago,wakeups,callbacks,connections
+	 */
+	public synchronized String toCsv() {
+		StringBuilder csv = new StringBuilder();
+		csv.append("mode,time_ms\n");
+		for (Mode mode : Mode.values()) {
+			csv.append(mode).append(',').append(getModeTime(mode)).append('\n');
+		}
+		csv.append("\nfeature,scan_ms,connected_ms,wakeups,callbacks,connections,energy_mah\n");
+		for (Feature feature : Feature.values()) {
+			csv.append(String.format(Locale.US, "%s,%d,%d,%d,%d,%d,%.4f\n", feature, getScanTime(feature),
+					getConnectedTime(feature), getCount(feature, Counter.WAKEUPS), getCount(feature, Counter.CALLBACKS),
+					getCount(feature, Counter.CONNECTIONS), getEnergy(feature)));
+		}
+		csv.append("\nhours_ago,wakeups,callbacks,connections\n");
+		long[] wakeups = getHourly(Counter.WAKEUPS);
+		long[] callbacks = getHourly(Counter.CALLBACKS);
+		long[] connections = getHourly(Counter.CONNECTIONS);
+		for (int i = HOURS - 1; i >= 0; i--) {
+			csv.append(HOURS - 1 - i).append(',').append(wakeups[i]).append(',').append(callbacks[i]).append(',')
+					.append(connections[i]).append('\n');
+		}
+		return csv.toString();
+	}
+
+	/**
+	 * Export the totals as json, for the gateway.
+	 */
+	public synchronized String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append(String.format(Locale.US, "{\"duration\":%d,\"modes\":{", getDuration()));
+		for (Mode mode : Mode.values()) {
+			json.append(String.format(Locale.US, "%s\"%s\":%d", mode.ordinal() > 0 ? "," : "",
+					mode.name().toLowerCase(), getModeTime(mode)));
+		}
+		json.append("},\"features\":{");
+		for (Feature feature : Feature.values()) {
+			json.append(String.format(Locale.US,
+					"%s\"%s\":{\"scan\":%d,\"connected\":%d,\"wakeups\":%d,\"callbacks\":%d,\"connections\":%d,\"energy\":%.4f}",
+					feature.ordinal() > 0 ? "," : "", feature.name().toLowerCase(), getScanTime(feature),
+					getConnectedTime(feature), getCount(feature, Counter.WAKEUPS), getCount(feature, Counter.CALLBACKS),
+					getCount(feature, Counter.CONNECTIONS), getEnergy(feature)));
+		}
+		json.append("},\"connectionsPerHour\":[");
+		long[] connections = getHourly(Counter.CONNECTIONS);
+		for (int i = 0; i < HOURS; i++) {
+			json.append(i > 0 ? "," : "").append(connections[i]);
+		}
+		json.append("]}");
+		return json.toString();
+	}
+
+}
@@ -0,0 +1,106 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Arbitrates the radio between scanning and active connections. Instead of stopping the scan
+ * completely whenever a device is connected, the scanners register with the arbiter and are
+ * told to time-slice: while at least one connection is open, they scan in short windows with
+ * long pauses in between, so that the connection gets most of the radio time, but the device
+ * list stays fresh. Once the last connection is released, they go back to full scanning.
+ *
+ * Everybody who opens a connection calls {@link #acquireConnection(RadioAccounting.Feature)}
+ * and, once done, {@link #releaseConnection(RadioAccounting.Feature)}, with the feature which
+ * the connection is accounted to in the {@link RadioAccounting}. Listeners are informed on the
+ * main thread.
+ *
+ * Created on 19-10-26
+ */
+public class RadioArbiter {
+
+	private static final String TAG = RadioArbiter.class.getCanonicalName();
+
+	// scan for 1 second every 5 seconds while connected
+	public static final int LOW_DUTY_SCAN_WINDOW = 1000;
+	public static final int LOW_DUTY_SCAN_PAUSE = 4000;
+
+	public enum Mode {
+		FULL_SCAN,
+		LOW_DUTY_SCAN
+	}
+
+	public interface Listener {
+		void onModeChanged(Mode mode);
+	}
+
+	private static RadioArbiter _instance;
+
+	public static synchronized RadioArbiter getInstance() {
+		if (_instance == null) {
+			_instance = new RadioArbiter();
+		}
+		return _instance;
+	}
+
+	private final Handler _handler = new Handler(Looper.getMainLooper());
+	private final ArrayList<Listener> _listeners = new ArrayList<>();
+
+	private int _connections = 0;
+	private Mode _mode = Mode.FULL_SCAN;
+
+	private RadioArbiter() {
+	}
+
+	public synchronized Mode getMode() {
+		return _mode;
+	}
+
+	public synchronized void registerListener(Listener listener) {
+		if (!_listeners.contains(listener)) {
+			_listeners.add(listener);
+		}
+	}
+
+	public synchronized void unregisterListener(Listener listener) {
+		_listeners.remove(listener);
+	}
+
+	public synchronized void acquireConnection(RadioAccounting.Feature feature) {
+		RadioAccounting.getInstance().connectionOpened(feature);
+		_connections++;
+		if (_connections == 1) {
+			setMode(Mode.LOW_DUTY_SCAN);
+		}
+	}
+
+	public synchronized void releaseConnection(RadioAccounting.Feature feature) {
+		if (_connections == 0) {
+			Log.w(TAG, "release without acquire");
+			return;
+		}
+		RadioAccounting.getInstance().connectionClosed(feature);
+		_connections--;
+		if (_connections == 0) {
+			setMode(Mode.FULL_SCAN);
+		}
+	}
+
+	private void setMode(final Mode mode) {
+		Log.i(TAG, "scan mode: " + mode);
+		_mode = mode;
+		final ArrayList<Listener> listeners = new ArrayList<>(_listeners);
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (Listener listener : listeners) {
+					listener.onModeChanged(mode);
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,169 @@
+package nl.dobots.bluenetexample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fingerprint model of rooms, which classifies a {@link ScanWindow} as one of the rooms.
+ *
+ * Instead of comparing a window with the fingerprints of every room, the model keeps an index
+ * of quantized fingerprints. A window is reduced to keys of decreasing precision:
+ *
+ * 		0. the 3 strongest beacons, in order, with their rssi differences quantized in steps of
+ * 		   {@link #RSSI_STEP} dB
+ * 		1. the 3 strongest beacons, in order
+ * 		2. the 2 strongest beacons, in order
+ * 		3. the strongest beacon
+ *
+ * Every key maps to the room which produced it most often during training. Classifying looks
+ * up the keys from most to least precise, and returns the room of the first key which is
+ * known. That is at most 4 hash lookups, no matter how many rooms there are.
+ *
+ * The model is incremental: training a window only updates the entries of its own keys, so
+ * rooms can be added or refined at any time without rebuilding the index.
+ *
+ * The model is not thread safe.
+ *
+ * Created on 19-10-26
+ */
+public class RoomFingerprints {
+
+	public static final int RSSI_STEP = 6;
+	// rssi differences beyond this are put in the same bin
+	private static final int MAX_BIN = 4;
+
+	public static final int LEVELS = 4;
+
+	public static class Result {
+		public final String room;
+		// the level of the key which matched, 0 is the most precise
+		public final int level;
+		// fraction of the training windows with this key which were in the room
+		public final float confidence;
+
+		Result(String room, int level, float confidence) {
+			this.room = room;
+			this.level = level;
+			this.confidence = confidence;
+		}
+	}
+
+	/**
+	 * Training votes of one key.
+	 */
+	private static class Entry {
+		int[] votes = new int[4];
+		int total;
+		int best = -1;
+
+		void vote(int room) {
+			if (room >= votes.length) {
+				int[] grown = new int[Math.max(room + 1, votes.length * 2)];
+				System.arraycopy(votes, 0, grown, 0, votes.length);
+				votes = grown;
+			}
+			votes[room]++;
+			total++;
+			// only the room which got the vote can overtake the current best
+			if (best < 0 || votes[room] > votes[best]) {
+				best = room;
+			}
+		}
+	}
+
+	private final ArrayList<String> _rooms = new ArrayList<>();
+	private final HashMap<String, Integer> _roomIndices = new HashMap<>();
+	// one table per level, so keys of different levels can't collide
+	private final ArrayList<HashMap<Long, Entry>> _index = new ArrayList<>();
+
+	public RoomFingerprints() {
+		for (int level = 0; level < LEVELS; level++) {
+			_index.add(new HashMap<Long, Entry>());
+		}
+	}
+
+	public List<String> getRooms() {
+		return new ArrayList<>(_rooms);
+	}
+
+	/**
+	 * Add a window which was scanned in the given room.
+	 */
+	public void train(String room, ScanWindow window) {
+		if (window.size() == 0) {
+			return;
+		}
+		Integer index = _roomIndices.get(room);
+		if (index == null) {
+			index = _rooms.size();
+			_rooms.add(room);
+			_roomIndices.put(room, index);
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			if (!hasKey(window, level)) {
+				continue;
+			}
+			long key = key(window, level);
+			Entry entry = _index.get(level).get(key);
+			if (entry == null) {
+				entry = new Entry();
+				_index.get(level).put(key, entry);
+			}
+			entry.vote(index);
+		}
+	}
+
+	/**
+	 * @return the most likely room, or null if the window doesn't match any fingerprint
+	 */
+	public Result classify(ScanWindow window) {
+		for (int level = 0; level < LEVELS; level++) {
+			if (!hasKey(window, level)) {
+				continue;
+			}
+			Entry entry = _index.get(level).get(key(window, level));
+			if (entry != null) {
+				return new Result(_rooms.get(entry.best), level, (float) entry.votes[entry.best] / entry.total);
+			}
+		}
+		return null;
+	}
+
+	private static boolean hasKey(ScanWindow window, int level) {
+		return window.size() >= beacons(level);
+	}
+
+	private static int beacons(int level) {
+		switch (level) {
+			case 0:
+			case 1:
+				return 3;
+			case 2:
+				return 2;
+			default:
+				return 1;
+		}
+	}
+
+	private static long key(ScanWindow window, int level) {
+		int count = beacons(level);
+		long key = 0;
+		for (int i = 0; i < count; i++) {
+			key = mix(key + window.getId(i));
+		}
+		if (level == 0) {
+			for (int i = 1; i < count; i++) {
+				int bin = Math.min(MAX_BIN, (window.getRssi(i - 1) - window.getRssi(i)) / RSSI_STEP);
+				key = mix(key + bin);
+			}
+		}
+		return key;
+	}
+
+	private static long mix(long h) {
+		h *= 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 29);
+	}
+
+}
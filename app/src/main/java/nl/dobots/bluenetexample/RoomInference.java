@@ -0,0 +1,158 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * Infers the room the phone is in from the beacons scanned in every scan interval:
+ *
+ * 		* while training, the beacons of every scan interval are added to the fingerprints of
+ * 		  the room which is being trained
+ * 		* otherwise every scan interval is classified with the {@link RoomFingerprints}. the
+ * 		  room only changes once {@link #STABLE_WINDOWS} intervals in a row agree, so a single
+ * 		  outlier doesn't make the room flap
+ *
+ * The scan intervals can be recorded to a trace file, one interval per line as
+ * "room<TAB>window" (the room is empty if it wasn't training), to replay them in the
+ * benchmark.
+ *
+ * Created on 19-10-26
+ */
+public class RoomInference {
+
+	private static final String TAG = RoomInference.class.getCanonicalName();
+
+	// number of intervals in a row which have to agree before the room changes
+	public static final int STABLE_WINDOWS = 2;
+
+	public interface Listener {
+		/**
+		 * @param room the new room, or null if the room is unknown
+		 */
+		void onRoomChanged(String room);
+	}
+
+	private final RoomFingerprints _fingerprints;
+	private final Handler _handler;
+	private final Listener _listener;
+
+	private Stream.Subscription _subscription;
+	private Writer _trace;
+
+	// accessed on the BLE thread only, except for the training room
+	private volatile String _trainingRoom;
+	private String _room;
+	private String _candidate;
+	private int _candidateCount;
+
+	/**
+	 * @param handler handler of the thread on which the listener is called
+	 */
+	public RoomInference(RoomFingerprints fingerprints, Handler handler, Listener listener) {
+		_fingerprints = fingerprints;
+		_handler = handler;
+		_listener = listener;
+	}
+
+	public void start(ScanStreams streams) {
+		_subscription = streams.devices().bufferUntil(streams.scanEnds()).subscribe(
+				new Stream.Subscriber<List<BleDevice>>() {
+					@Override
+					public void onNext(List<BleDevice> devices) {
+						onWindow(ScanWindow.of(devices));
+					}
+				});
+	}
+
+	public void stop() {
+		if (_subscription != null) {
+			_subscription.unsubscribe();
+			_subscription = null;
+		}
+		stopRecording();
+	}
+
+	/**
+	 * Add the following scan intervals to the fingerprints of the room, until training is
+	 * stopped with null.
+	 */
+	public void train(String room) {
+		_trainingRoom = room;
+	}
+
+	public synchronized void startRecording(String path) throws IOException {
+		stopRecording();
+		_trace = new FileWriter(path, true);
+	}
+
+	public synchronized void stopRecording() {
+		if (_trace != null) {
+			try {
+				_trace.close();
+			} catch (IOException e) {
+				Log.e(TAG, "failed to close the trace", e);
+			}
+			_trace = null;
+		}
+	}
+
+	private void onWindow(ScanWindow window) {
+		String training = _trainingRoom;
+		record(training, window);
+
+		if (training != null) {
+			synchronized (_fingerprints) {
+				_fingerprints.train(training, window);
+			}
+			update(training);
+			return;
+		}
+
+		RoomFingerprints.Result result;
+		synchronized (_fingerprints) {
+			result = _fingerprints.classify(window);
+		}
+		update(result != null ? result.room : null);
+	}
+
+	private void update(String room) {
+		if (room == null ? _candidate == null : room.equals(_candidate)) {
+			_candidateCount++;
+		} else {
+			_candidate = room;
+			_candidateCount = 1;
+		}
+		if (_candidateCount < STABLE_WINDOWS || (room == null ? _room == null : room.equals(_room))) {
+			return;
+		}
+
+		_room = room;
+		final String changed = room;
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				_listener.onRoomChanged(changed);
+			}
+		});
+	}
+
+	private synchronized void record(String room, ScanWindow window) {
+		if (_trace == null) {
+			return;
+		}
+		try {
+			_trace.write((room != null ? room : "") + "\t" + window.toLine() + "\n");
+		} catch (IOException e) {
+			Log.e(TAG, "failed to record the trace", e);
+			stopRecording();
+		}
+	}
+
+}
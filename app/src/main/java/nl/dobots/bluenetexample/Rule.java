@@ -0,0 +1,63 @@
+package nl.dobots.bluenetexample;
+
+/**
+ * A proximity rule: switch the relay of a stone on when the phone gets within
+ * {@link #distance} meters of a trigger device, and off again once the trigger device was
+ * out of range for {@link #awayTimeout} ms. The trigger device is usually the stone itself,
+ * but can also be a beacon next to it.
+ *
+ * Rules are written as one line:
+ *
+ * 		<trigger address> <target address> <distance in m> <away timeout in s>
+ *
+ * e.g. "C5:71:67:31:2D:10 C5:71:67:31:2D:10 2 300" turns the stone on within 2 m and off
+ * after 5 minutes away.
+ *
+ * Created on 19-10-26
+ */
+public class Rule {
+
+	private static final String MAC_PATTERN = "([0-9A-Fa-f]{2}:){5}[0-9A-Fa-f]{2}";
+
+	public final String trigger;
+	public final String target;
+	public final double distance;
+	public final long awayTimeout;
+
+	public Rule(String trigger, String target, double distance, long awayTimeout) {
+		this.trigger = trigger;
+		this.target = target;
+		this.distance = distance;
+		this.awayTimeout = awayTimeout;
+	}
+
+	/**
+	 * @return the rule, or null if the line is empty or a comment (starts with #)
+	 * @throws IllegalArgumentException if the line is not a valid rule
+	 */
+	public static Rule parse(String line) {
+		line = line.trim();
+		if (line.isEmpty() || line.startsWith("#")) {
+			return null;
+		}
+		String[] fields = line.split("\\s+");
+		if (fields.length != 4) {
+			throw new IllegalArgumentException("expected 4 fields: " + line);
+		}
+		if (!fields[0].matches(MAC_PATTERN) || !fields[1].matches(MAC_PATTERN)) {
+			throw new IllegalArgumentException("invalid address: " + line);
+		}
+		try {
+			return new Rule(fields[0].toUpperCase(), fields[1].toUpperCase(),
+					Double.parseDouble(fields[2]), Long.parseLong(fields[3]) * 1000);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid number: " + line);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return trigger + " " + target + " " + distance + " " + awayTimeout / 1000;
+	}
+
+}
@@ -0,0 +1,262 @@
+package nl.dobots.bluenetexample;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * Evaluates {@link Rule}s against the devices scanned in every scan interval, and switches
+ * the target stones through a {@link CommandQueue}.
+ *
+ * The rules are compiled into a plan indexed by the MAC address of the trigger device, so a
+ * scan interval only touches the rules of the devices which were scanned in it, plus the
+ * rules which are on and wait for their away timeout. The cost doesn't grow with the number
+ * of rules which are not involved.
+ *
+ * To avoid switching back and forth:
+ *
+ * 		* a rule only switches on once its trigger was within range for {@link #ENTER_WINDOWS}
+ * 		  scan intervals in a row
+ * 		* a rule sends at most one command per {@link #DEBOUNCE} ms, a command which is
+ * 		  debounced is retried in the next scan interval
+ * 		* a target is only switched off once no rule keeps it on anymore
+ *
+ * The commands of a scan interval are collected first, and then offered to the command queue
+ * together, at most one per target.
+ *
+ * Created on 19-10-26
+ */
+public class RuleEngine {
+
+	private static final String TAG = RuleEngine.class.getCanonicalName();
+
+	// number of scan intervals in a row the trigger has to be in range to switch on
+	public static final int ENTER_WINDOWS = 2;
+	// minimum time between two commands of the same rule
+	public static final long DEBOUNCE = 10000;
+
+	private static class CompiledRule {
+		final Rule rule;
+		// the last scan interval in which the trigger was in range
+		long nearWindow = -1;
+		// number of scan intervals in a row the trigger was in range
+		int nearCount;
+		long nearTime;
+		long firedTime = Long.MIN_VALUE / 2;
+		boolean on;
+
+		CompiledRule(Rule rule) {
+			this.rule = rule;
+		}
+	}
+
+	private final CommandQueue _commands;
+
+	// plan: trigger MAC address -> rules with that trigger
+	private HashMap<Long, CompiledRule[]> _plan = new HashMap<>();
+	// rules which are on, to check their away timeout
+	private final ArrayList<CompiledRule> _on = new ArrayList<>();
+	// number of rules which keep a target on
+	private final HashMap<String, Integer> _targets = new HashMap<>();
+
+	// the current scan interval, and the rules which were in range in it
+	private long _window = 0;
+	private final ArrayList<CompiledRule> _near = new ArrayList<>();
+	// commands of the current scan interval, target -> relay on
+	private HashMap<String, Boolean> _batch = new HashMap<>();
+
+	private Stream.Subscription _subscription;
+
+	public RuleEngine(CommandQueue commands) {
+		_commands = commands;
+	}
+
+	/**
+	 * Replace the rules. A new rule with the trigger and target of an old rule takes over its
+	 * state, so a target which an old rule switched on is still switched off once its trigger
+	 * is away. Targets which are on, but which no new rule covers, are switched off.
+	 */
+	public void setRules(List<Rule> rules) {
+		synchronized (this) {
+			// the old rules by trigger and target. there can be several with the same trigger
+			// and target, they are taken over in order
+			HashMap<String, ArrayList<CompiledRule>> old = new HashMap<>();
+			for (CompiledRule[] group : _plan.values()) {
+				for (CompiledRule rule : group) {
+					String key = getKey(rule.rule);
+					ArrayList<CompiledRule> same = old.get(key);
+					if (same == null) {
+						same = new ArrayList<>();
+						old.put(key, same);
+					}
+					same.add(rule);
+				}
+			}
+
+			HashMap<Long, ArrayList<CompiledRule>> grouped = new HashMap<>();
+			HashMap<String, Integer> targets = new HashMap<>();
+			_on.clear();
+			for (Rule rule : rules) {
+				long mac = DeviceStore.parseMac(rule.trigger);
+				ArrayList<CompiledRule> group = grouped.get(mac);
+				if (group == null) {
+					group = new ArrayList<>();
+					grouped.put(mac, group);
+				}
+				CompiledRule compiled = new CompiledRule(rule);
+				ArrayList<CompiledRule> same = old.get(getKey(rule));
+				if (same != null && !same.isEmpty()) {
+					CompiledRule previous = same.remove(0);
+					compiled.nearWindow = previous.nearWindow;
+					compiled.nearCount = previous.nearCount;
+					compiled.nearTime = previous.nearTime;
+					compiled.firedTime = previous.firedTime;
+					compiled.on = previous.on;
+				}
+				if (compiled.on) {
+					_on.add(compiled);
+					Integer count = targets.get(rule.target);
+					targets.put(rule.target, count != null ? count + 1 : 1);
+				}
+				group.add(compiled);
+			}
+
+			// targets which are on, but which no new rule keeps on
+			for (String target : _targets.keySet()) {
+				if (!targets.containsKey(target)) {
+					_batch.put(target, false);
+				}
+			}
+			_targets.clear();
+			_targets.putAll(targets);
+
+			HashMap<Long, CompiledRule[]> plan = new HashMap<>();
+			for (Map.Entry<Long, ArrayList<CompiledRule>> entry : grouped.entrySet()) {
+				plan.put(entry.getKey(), entry.getValue().toArray(new CompiledRule[entry.getValue().size()]));
+			}
+			_plan = plan;
+			Log.i(TAG, "compiled " + rules.size() + " rules for " + plan.size() + " triggers, " + _on.size()
+					+ " rules are on");
+		}
+		flush();
+	}
+
+	private static String getKey(Rule rule) {
+		return DeviceStore.parseMac(rule.trigger) + "/" + rule.target;
+	}
+
+	public void start(ScanStreams streams) {
+		_subscription = streams.devices().bufferUntil(streams.scanEnds()).subscribe(
+				new Stream.Subscriber<List<BleDevice>>() {
+					@Override
+					public void onNext(List<BleDevice> devices) {
+						evaluate(devices, SystemClock.elapsedRealtime());
+					}
+				});
+	}
+
+	public void stop() {
+		if (_subscription != null) {
+			_subscription.unsubscribe();
+			_subscription = null;
+		}
+	}
+
+	/**
+	 * Evaluate the rules for the devices scanned in one scan interval.
+	 * @param now time in ms
+	 */
+	public void evaluate(List<BleDevice> devices, long now) {
+		synchronized (this) {
+			_window++;
+			for (int i = 0; i < devices.size(); i++) {
+				BleDevice device = devices.get(i);
+				CompiledRule[] rules = _plan.get(DeviceStore.parseMac(device.getAddress()));
+				if (rules == null) {
+					continue;
+				}
+				double distance = device.getDistance();
+				for (CompiledRule rule : rules) {
+					// a device is scanned several times per interval, count the interval once
+					if (distance > rule.rule.distance || rule.nearWindow == _window) {
+						continue;
+					}
+					rule.nearCount = rule.nearWindow == _window - 1 ? rule.nearCount + 1 : 1;
+					rule.nearWindow = _window;
+					rule.nearTime = now;
+					_near.add(rule);
+				}
+			}
+
+			for (int i = 0; i < _near.size(); i++) {
+				CompiledRule rule = _near.get(i);
+				if (!rule.on && rule.nearCount >= ENTER_WINDOWS && fire(rule, true, now)) {
+					_on.add(rule);
+				}
+			}
+			_near.clear();
+
+			for (int i = _on.size() - 1; i >= 0; i--) {
+				CompiledRule rule = _on.get(i);
+				if (now - rule.nearTime >= rule.rule.awayTimeout && fire(rule, false, now)) {
+					// the order of the rules which are on doesn't matter
+					_on.set(i, _on.get(_on.size() - 1));
+					_on.remove(_on.size() - 1);
+				}
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * @return false if the rule was debounced
+	 */
+	private boolean fire(CompiledRule rule, boolean on, long now) {
+		if (now - rule.firedTime < DEBOUNCE) {
+			return false;
+		}
+		rule.firedTime = now;
+		rule.on = on;
+
+		String target = rule.rule.target;
+		Integer count = _targets.get(target);
+		int rules = (count != null ? count : 0) + (on ? 1 : -1);
+		if (rules > 0) {
+			_targets.put(target, rules);
+		} else {
+			_targets.remove(target);
+		}
+		// only the first rule which switches a target on, and the last which switches it
+		// off, send a command
+		if (on && rules == 1) {
+			_batch.put(target, true);
+		} else if (!on && rules == 0) {
+			_batch.put(target, false);
+		}
+		return true;
+	}
+
+	private void flush() {
+		HashMap<String, Boolean> batch;
+		synchronized (this) {
+			if (_batch.isEmpty()) {
+				return;
+			}
+			batch = _batch;
+			_batch = new HashMap<>();
+		}
+		for (Map.Entry<String, Boolean> command : batch.entrySet()) {
+			Log.i(TAG, "switch " + command.getKey() + (command.getValue() ? " on" : " off"));
+			if (!_commands.offer(command.getKey(), command.getValue())) {
+				Log.e(TAG, "command queue full, dropped command for " + command.getKey());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,299 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.util.HashMap;
+import java.util.List;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+import nl.dobots.bluenet.service.BleScanService;
+import nl.dobots.bluenet.service.callbacks.EventListener;
+import nl.dobots.bluenet.service.callbacks.IntervalScanListener;
+import nl.dobots.bluenet.service.callbacks.ScanDeviceListener;
+
+/**
+ * Exposes the listeners of the BleScanService as {@link Stream}s. A listener is only
+ * registered at the service while its stream has subscribers, so the service does not do
+ * work for events nobody is interested in.
+ *
+ * Example: get the rssi sorted top 20 devices at most every 500 ms on the UI thread
+ *
+ * 		streams.rssiSorted(20, 500, new Handler()).subscribe(...)
+ *
+ * Created on 19-10-26
+ */
+public class ScanStreams {
+
+	// thread on which the scanned devices are sampled and sorted, shared by all streams
+	private static Handler _background;
+
+	private static final Stream.Function<BleDevice, String> ADDRESS = new Stream.Function<BleDevice, String>() {
+		@Override
+		public String apply(BleDevice device) {
+			return device.getAddress();
+		}
+	};
+
+	private static final Stream.Function<BleDevice, Integer> RSSI = new Stream.Function<BleDevice, Integer>() {
+		@Override
+		public Integer apply(BleDevice device) {
+			return device.getAverageRssi();
+		}
+	};
+
+	// the accounting of the scan of every service, shared by all streams on the service
+	private static final HashMap<BleScanService, SharedScan> _sharedScans = new HashMap<>();
+
+	/**
+	 * Accounts the scan of a service once, as the {@link RadioAccounting}'s shared scan, no
+	 * matter how many streams and features account it. The listeners are only registered at
+	 * the service while at least one feature accounts the scan.
+	 */
+	private static class SharedScan {
+		private final BleScanService _service;
+		// number of accounting subscriptions per feature
+		private final int[] _subscriptions = new int[RadioAccounting.Feature.values().length];
+		private int _total;
+
+		private final IntervalScanListener _intervalListener = new IntervalScanListener() {
+			@Override
+			public void onScanStart() {
+				RadioAccounting.getInstance().sharedScanStarted();
+			}
+
+			@Override
+			public void onScanEnd() {
+				RadioAccounting.getInstance().sharedScanStopped();
+			}
+		};
+
+		private final ScanDeviceListener _deviceListener = new ScanDeviceListener() {
+			@Override
+			public void onDeviceScanned(BleDevice device) {
+				RadioAccounting.getInstance().sharedCallback();
+			}
+		};
+
+		SharedScan(BleScanService service) {
+			_service = service;
+		}
+
+		void attach(RadioAccounting.Feature feature) {
+			if (_total++ == 0) {
+				_service.registerIntervalScanListener(_intervalListener);
+				_service.registerScanDeviceListener(_deviceListener);
+			}
+			if (_subscriptions[feature.ordinal()]++ == 0) {
+				RadioAccounting.getInstance().sharedScanAttached(feature);
+			}
+		}
+
+		/**
+		 * @return true if no feature accounts the scan anymore
+		 */
+		boolean detach(RadioAccounting.Feature feature) {
+			if (--_subscriptions[feature.ordinal()] == 0) {
+				RadioAccounting.getInstance().sharedScanDetached(feature);
+			}
+			if (--_total > 0) {
+				return false;
+			}
+			_service.unregisterIntervalScanListener(_intervalListener);
+			_service.unregisterScanDeviceListener(_deviceListener);
+			RadioAccounting.getInstance().sharedScanStopped();
+			return true;
+		}
+	}
+
+	private final BleScanService _service;
+
+	// compact copy of the scanned devices, only updated while somebody subscribed to devices
+	private final DeviceSnapshots _snapshots = new DeviceSnapshots();
+
+	private final Stream<BleDevice> _devices = new Stream<BleDevice>() {
+		private final ScanDeviceListener _listener = new ScanDeviceListener() {
+			@Override
+			public void onDeviceScanned(BleDevice device) {
+				_snapshots.update(device);
+				emit(device);
+			}
+		};
+
+		@Override
+		protected void onActive() {
+			_service.registerScanDeviceListener(_listener);
+		}
+
+		@Override
+		protected void onInactive() {
+			_service.unregisterScanDeviceListener(_listener);
+		}
+	};
+
+	private final Stream<Boolean> _scanIntervals = new Stream<Boolean>() {
+		private final IntervalScanListener _listener = new IntervalScanListener() {
+			@Override
+			public void onScanStart() {
+				emit(true);
+			}
+
+			@Override
+			public void onScanEnd() {
+				emit(false);
+			}
+		};
+
+		@Override
+		protected void onActive() {
+			_service.registerIntervalScanListener(_listener);
+		}
+
+		@Override
+		protected void onInactive() {
+			_service.unregisterIntervalScanListener(_listener);
+		}
+	};
+
+	private final Stream<EventListener.Event> _events = new Stream<EventListener.Event>() {
+		private final EventListener _listener = new EventListener() {
+			@Override
+			public void onEvent(Event event) {
+				emit(event);
+			}
+		};
+
+		@Override
+		protected void onActive() {
+			_service.registerEventListener(_listener);
+		}
+
+		@Override
+		protected void onInactive() {
+			_service.unregisterEventListener(_listener);
+		}
+	};
+
+	public ScanStreams(BleScanService service) {
+		_service = service;
+	}
+
+	private static synchronized Handler getBackgroundHandler() {
+		if (_background == null) {
+			HandlerThread thread = new HandlerThread("ScanStreams");
+			thread.start();
+			_background = new Handler(thread.getLooper());
+		}
+		return _background;
+	}
+
+	/**
+	 * @return every scanned device, with updated average rssi and distance
+	 */
+	public Stream<BleDevice> devices() {
+		return _devices;
+	}
+
+	/**
+	 * @return the scanned devices, but only when their average rssi changed since the last
+	 * time the device was passed on
+	 */
+	public Stream<BleDevice> rssiChanges() {
+		return _devices.distinctUntilChanged(ADDRESS, RSSI);
+	}
+
+	/**
+	 * @param count number of updates per list
+	 * @return the rssi changes of {@link #rssiChanges()}, collected into lists of count updates,
+	 * e.g. to write them in batches
+	 */
+	public Stream<List<BleDevice>> rssiChanges(int count) {
+		return rssiChanges().window(count);
+	}
+
+	/**
+	 * @return true at the start, false at the end of every scan interval
+	 */
+	public Stream<Boolean> scanIntervals() {
+		return _scanIntervals;
+	}
+
+	/**
+	 * @return only the ends of the scan intervals, e.g. to use as boundary for
+	 * {@link Stream#bufferUntil(Stream)}
+	 */
+	public Stream<Boolean> scanEnds() {
+		return _scanIntervals.filter(new Stream.Function<Boolean, Boolean>() {
+			@Override
+			public Boolean apply(Boolean start) {
+				return !start;
+			}
+		});
+	}
+
+	/**
+	 * @return bluetooth adapter events, like bluetooth turned on or off
+	 */
+	public Stream<EventListener.Event> events() {
+		return _events;
+	}
+
+	/**
+	 * The strongest devices, sorted by rssi. The devices are only sorted when the result is
+	 * actually delivered, i.e. at most once per interval, not for every scanned device. The
+	 * devices are ingested and sorted on a background thread, only the result is handed to the
+	 * handler's thread. A result is only scheduled once the rssi of a device changed, see
+	 * {@link #rssiChanges()}, as the order can't change otherwise. The results are immutable
+	 * snapshots, if nothing changed in an interval, the same snapshot is delivered again.
+	 * @param limit maximum number of devices
+	 * @param interval minimum time between two results, in ms
+	 * @param handler handler of the thread on which the results are delivered
+	 * @return stream of sorted device stores
+	 */
+	public Stream<DeviceStore> rssiSorted(final int limit, long interval, Handler handler) {
+		return rssiChanges().sample(interval, getBackgroundHandler()).map(new Stream.Function<BleDevice, DeviceStore>() {
+			@Override
+			public DeviceStore apply(BleDevice latest) {
+				return _snapshots.publish(limit);
+			}
+		}).observeOn(handler);
+	}
+
+	/**
+	 * Account the scan intervals and the scanned devices of the service to the feature in the
+	 * {@link RadioAccounting}, until the returned subscription is cancelled. The pauses
+	 * between the intervals are not accounted as scan time. The scan of the service is shared,
+	 * e.g. by the main screen and the gateway, so it is accounted once, and split between the
+	 * features which account it, also if they use different streams.
+	 */
+	public Stream.Subscription account(final RadioAccounting.Feature feature) {
+		final SharedScan scan;
+		synchronized (_sharedScans) {
+			SharedScan shared = _sharedScans.get(_service);
+			if (shared == null) {
+				shared = new SharedScan(_service);
+				_sharedScans.put(_service, shared);
+			}
+			shared.attach(feature);
+			scan = shared;
+		}
+		return new Stream.Subscription() {
+			@Override
+			public void unsubscribe() {
+				synchronized (_sharedScans) {
+					if (scan.detach(feature)) {
+						_sharedScans.remove(_service);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Remove all devices, e.g. when a new scan is started.
+	 */
+	public void clear() {
+		_snapshots.clear();
+	}
+
+}
@@ -0,0 +1,152 @@
+package nl.dobots.bluenetexample;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import nl.dobots.bluenet.ble.extended.structs.BleDevice;
+
+/**
+ * The beacons (iBeacons and Guidestones) seen during one scan interval, with their average
+ * rssi. Beacons are identified by a long: iBeacons by their proximity UUID, major and minor,
+ * so that a beacon is recognized even if it changes its MAC address, other devices by their
+ * MAC address.
+ *
+ * Windows can be written to and read from a single line of text, to record traces for the
+ * {@link RoomFingerprints} benchmark.
+ *
+ * Created on 19-10-26
+ */
+public class ScanWindow {
+
+	private int _size;
+	private long[] _ids;
+	private int[] _rssi;
+	private boolean _sorted = true;
+
+	public ScanWindow() {
+		this(16);
+	}
+
+	public ScanWindow(int capacity) {
+		_ids = new long[capacity];
+		_rssi = new int[capacity];
+	}
+
+	/**
+	 * Create a window of the beacons in a list of scanned devices, other devices are skipped.
+	 */
+	public static ScanWindow of(List<BleDevice> devices) {
+		ScanWindow window = new ScanWindow(devices.size());
+		for (BleDevice device : devices) {
+			if (device.isIBeacon() || device.isGuidestone()) {
+				window.put(getBeaconId(device), device.getAverageRssi());
+			}
+		}
+		return window;
+	}
+
+	public static long getBeaconId(BleDevice device) {
+		if (device.isIBeacon()) {
+			UUID uuid = device.getProximityUuid();
+			long id = uuid.getMostSignificantBits() * 31 + uuid.getLeastSignificantBits();
+			return id * 0x10001L + ((long) device.getMajor() << 16 | device.getMinor());
+		}
+		return DeviceStore.parseMac(device.getAddress());
+	}
+
+	/**
+	 * Set the rssi of a beacon, a beacon which is put twice keeps the latest rssi.
+	 */
+	public void put(long id, int rssi) {
+		for (int i = 0; i < _size; i++) {
+			if (_ids[i] == id) {
+				_rssi[i] = rssi;
+				_sorted = false;
+				return;
+			}
+		}
+		if (_size == _ids.length) {
+			_ids = Arrays.copyOf(_ids, Math.max(4, _size * 2));
+			_rssi = Arrays.copyOf(_rssi, _ids.length);
+		}
+		_ids[_size] = id;
+		_rssi[_size] = rssi;
+		_size++;
+		_sorted = false;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @param rank 0 for the strongest beacon
+	 */
+	public long getId(int rank) {
+		sort();
+		return _ids[rank];
+	}
+
+	public int getRssi(int rank) {
+		sort();
+		return _rssi[rank];
+	}
+
+	private void sort() {
+		if (_sorted) {
+			return;
+		}
+		// windows hold a handful of beacons, insertion sort on the parallel arrays is enough
+		for (int i = 1; i < _size; i++) {
+			long id = _ids[i];
+			int rssi = _rssi[i];
+			int j = i - 1;
+			while (j >= 0 && _rssi[j] < rssi) {
+				_ids[j + 1] = _ids[j];
+				_rssi[j + 1] = _rssi[j];
+				j--;
+			}
+			_ids[j + 1] = id;
+			_rssi[j + 1] = rssi;
+		}
+		_sorted = true;
+	}
+
+	/**
+	 * @return the window as "id:rssi id:rssi ..." with the ids in hex
+	 */
+	public String toLine() {
+		StringBuilder builder = new StringBuilder(_size * 24);
+		for (int i = 0; i < _size; i++) {
+			if (i > 0) {
+				builder.append(' ');
+			}
+			builder.append(Long.toHexString(_ids[i])).append(':').append(_rssi[i]);
+		}
+		return builder.toString();
+	}
+
+	public static ScanWindow fromLine(String line) {
+		String[] entries = line.trim().split(" ");
+		ScanWindow window = new ScanWindow(entries.length);
+		for (String entry : entries) {
+			if (entry.isEmpty()) {
+				continue;
+			}
+			int colon = entry.indexOf(':');
+			window.put(parseHex(entry.substring(0, colon)), Integer.parseInt(entry.substring(colon + 1)));
+		}
+		return window;
+	}
+
+	private static long parseHex(String hex) {
+		// ids use all 64 bits, which Long.parseLong can't parse
+		long value = 0;
+		for (int i = 0; i < hex.length(); i++) {
+			value = value << 4 | Character.digit(hex.charAt(i), 16);
+		}
+		return value;
+	}
+
+}
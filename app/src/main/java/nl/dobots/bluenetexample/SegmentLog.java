@@ -0,0 +1,211 @@
+package nl.dobots.bluenetexample;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Append-only log of {@link TimeSeriesBlock}s in a directory of memory mapped segment files
+ * of {@link #SEGMENT_SIZE} bytes. Blocks are only appended to the last segment, and a new
+ * segment is started when it is full. Old data is dropped a whole segment at a time, see
+ * {@link #dropOlderThan(long)}.
+ *
+ * Every block starts with a header, followed by the encoded samples:
+ *
+ * 		magic (4) | length of the samples in bytes (4) | key (8) | start (8) | end (8) | count (4)
+ *
+ * The magic is written last, so a block which was only partly written when the app was
+ * killed is ignored when the log is opened again.
+ *
+ * Created on 19-10-26
+ */
+public class SegmentLog {
+
+	private static final String TAG = SegmentLog.class.getCanonicalName();
+
+	public static final int SEGMENT_SIZE = 1024 * 1024;
+	public static final int HEADER_SIZE = 36;
+	private static final int MAGIC = 0x50575231;
+
+	/**
+	 * A segment file, mapped into memory.
+	 */
+	public static class Segment {
+		private final File _file;
+		private final MappedByteBuffer _buffer;
+		private int _position;
+		// time of the newest sample in the segment, in seconds
+		private long _newest = Long.MIN_VALUE;
+		private boolean _deleted;
+
+		Segment(File file) throws IOException {
+			_file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				_buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+			} finally {
+				// the mapping stays valid after the file is closed
+				raf.close();
+			}
+		}
+
+		public MappedByteBuffer getBuffer() {
+			return _buffer;
+		}
+
+		public boolean isDeleted() {
+			return _deleted;
+		}
+	}
+
+	/**
+	 * Reference to a block in the log.
+	 */
+	public static class BlockRef {
+		public final Segment segment;
+		// position of the encoded samples in the segment
+		public final int offset;
+		public final long start;
+		public final long end;
+		public final int count;
+
+		BlockRef(Segment segment, int offset, long start, long end, int count) {
+			this.segment = segment;
+			this.offset = offset;
+			this.start = start;
+			this.end = end;
+			this.count = count;
+		}
+	}
+
+	public interface Visitor {
+		void onBlock(long key, BlockRef block);
+	}
+
+	private final File _directory;
+	private final ArrayList<Segment> _segments = new ArrayList<>();
+
+	/**
+	 * Open the log, and call the visitor for every block which is already in it, oldest first.
+	 */
+	public SegmentLog(File directory, Visitor visitor) throws IOException {
+		_directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("failed to create " + directory);
+		}
+		String[] names = directory.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			Segment segment = new Segment(new File(directory, name));
+			scan(segment, visitor);
+			_segments.add(segment);
+		}
+	}
+
+	private static void scan(Segment segment, Visitor visitor) {
+		MappedByteBuffer buffer = segment._buffer;
+		int position = 0;
+		while (position + HEADER_SIZE <= SEGMENT_SIZE && buffer.getInt(position) == MAGIC) {
+			int length = buffer.getInt(position + 4);
+			long key = buffer.getLong(position + 8);
+			BlockRef block = new BlockRef(segment, position + HEADER_SIZE, buffer.getLong(position + 16),
+					buffer.getLong(position + 24), buffer.getInt(position + 32));
+			segment._newest = Math.max(segment._newest, block.end);
+			visitor.onBlock(key, block);
+			position += HEADER_SIZE + length;
+		}
+		segment._position = position;
+	}
+
+	/**
+	 * Append the block which was written with the writer.
+	 * @return the reference to the appended block
+	 */
+	public BlockRef append(long key, TimeSeriesBlock.Writer writer) throws IOException {
+		int length = (writer.getBits() + 7) / 8;
+		Segment segment = _segments.isEmpty() ? null : _segments.get(_segments.size() - 1);
+		if (segment == null || segment._position + HEADER_SIZE + length > SEGMENT_SIZE) {
+			segment = newSegment();
+		}
+
+		MappedByteBuffer buffer = segment._buffer;
+		int position = segment._position;
+		buffer.putInt(position + 4, length);
+		buffer.putLong(position + 8, key);
+		buffer.putLong(position + 16, writer.getStart());
+		buffer.putLong(position + 24, writer.getEnd());
+		buffer.putInt(position + 32, writer.getCount());
+		byte[] data = writer.getBuffer();
+		for (int i = 0; i < length; i++) {
+			buffer.put(position + HEADER_SIZE + i, data[i]);
+		}
+		buffer.putInt(position, MAGIC);
+
+		segment._position = position + HEADER_SIZE + length;
+		segment._newest = Math.max(segment._newest, writer.getEnd());
+		return new BlockRef(segment, position + HEADER_SIZE, writer.getStart(), writer.getEnd(), writer.getCount());
+	}
+
+	private Segment newSegment() throws IOException {
+		int number = 0;
+		if (!_segments.isEmpty()) {
+			number = Integer.parseInt(_segments.get(_segments.size() - 1)._file.getName()) + 1;
+		}
+		Segment segment = new Segment(new File(_directory, String.format("%010d", number)));
+		_segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Delete the segments of which all samples are older than the given time. The last segment
+	 * is kept, as blocks are still appended to it. References to blocks of deleted segments
+	 * can be recognized with {@link Segment#isDeleted()}.
+	 * @param time time in seconds
+	 * @return true if a segment was deleted
+	 */
+	public boolean dropOlderThan(long time) {
+		boolean dropped = false;
+		Iterator<Segment> iterator = _segments.iterator();
+		while (iterator.hasNext()) {
+			Segment segment = iterator.next();
+			if (segment == _segments.get(_segments.size() - 1) || segment._newest >= time) {
+				continue;
+			}
+			segment._deleted = true;
+			iterator.remove();
+			if (!segment._file.delete()) {
+				Log.e(TAG, "failed to delete " + segment._file);
+			}
+			dropped = true;
+		}
+		return dropped;
+	}
+
+	/**
+	 * Write the appended blocks to the files.
+	 */
+	public void force() {
+		for (Segment segment : _segments) {
+			segment._buffer.force();
+		}
+	}
+
+	/**
+	 * @return the size of the data in the log, in bytes
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Segment segment : _segments) {
+			size += segment._position;
+		}
+		return size;
+	}
+
+}
@@ -0,0 +1,81 @@
+package nl.dobots.bluenetexample;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+
+/**
+ * Records the milestones of the app start, in ms since {@link #begin()}, which is called as
+ * the first thing in MainActivity.onCreate:
+ *
+ * 		* FIRST_FRAME: the first frame of the main screen was drawn
+ * 		* BLE_READY: the library is initialized and bluetooth is enabled
+ * 		* FIRST_DEVICE: the first scanned device is shown in the list
+ *
+ * Every milestone is only recorded the first time it is reached, and logged with the tag of
+ * this class, so the timings can be collected from logcat. See StartupBenchmark for a
+ * benchmark of the milestones.
+ *
+ * Created on 19-10-26
+ */
+public class StartupTrace {
+
+	private static final String TAG = StartupTrace.class.getCanonicalName();
+
+	public enum Milestone {
+		FIRST_FRAME,
+		BLE_READY,
+		FIRST_DEVICE
+	}
+
+	private static StartupTrace _instance;
+
+	public static synchronized StartupTrace getInstance() {
+		if (_instance == null) {
+			_instance = new StartupTrace();
+		}
+		return _instance;
+	}
+
+	private long _start = -1;
+	private final EnumMap<Milestone, Long> _times = new EnumMap<>(Milestone.class);
+
+	private StartupTrace() {
+	}
+
+	/**
+	 * Start the trace, if it wasn't started yet (e.g. the activity is recreated).
+	 */
+	public synchronized void begin() {
+		if (_start < 0) {
+			_start = SystemClock.elapsedRealtime();
+		}
+	}
+
+	/**
+	 * Forget the trace, so the next {@link #begin()} starts a new one.
+	 */
+	public synchronized void reset() {
+		_start = -1;
+		_times.clear();
+	}
+
+	public synchronized void mark(Milestone milestone) {
+		if (_start < 0 || _times.containsKey(milestone)) {
+			return;
+		}
+		long time = SystemClock.elapsedRealtime() - _start;
+		_times.put(milestone, time);
+		Log.i(TAG, milestone + " after " + time + " ms");
+	}
+
+	/**
+	 * @return ms from the start to the milestone, or -1 if it wasn't reached (yet)
+	 */
+	public synchronized long getTime(Milestone milestone) {
+		Long time = _times.get(milestone);
+		return time != null ? time : -1;
+	}
+
+}
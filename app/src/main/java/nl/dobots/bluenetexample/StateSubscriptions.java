@@ -0,0 +1,258 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import nl.dobots.bluenet.ble.base.callbacks.IBooleanCallback;
+import nl.dobots.bluenet.ble.base.callbacks.IStatusCallback;
+import nl.dobots.bluenet.ble.extended.BleExt;
+
+/**
+ * Keeps open screens up to date with the state of the stones they show, without reading the
+ * state over and over:
+ *
+ * 		* for the first observer of a stone, notifications on its state characteristic are
+ * 		  enabled. all notifications arrive through one listener and are dispatched to the
+ * 		  observers of the stone they came from
+ * 		* payloads are decoded into a state buffer which is allocated once per stone, so a
+ * 		  stream of notifications doesn't create garbage
+ * 		* if the stone doesn't support notifications (or the connection layer can't deliver
+ * 		  them), the state is polled instead, at most once every {@link #POLL_INTERVAL} ms
+ * 		* when the last observer of a stone unsubscribes, notifications are disabled again or
+ * 		  polling stops
+ *
+ * Observers are called on the thread of the given handler. Several notifications which
+ * arrive before the observers were called are conflated, the observers only see the latest
+ * state.
+ *
+ * Created on 19-10-26
+ */
+public class StateSubscriptions {
+
+	private static final String TAG = StateSubscriptions.class.getCanonicalName();
+
+	// minimum time between two reads if the state has to be polled
+	public static final int POLL_INTERVAL = 3000;
+
+	/**
+	 * The decoded state of a stone. The same instance is reused for every update of the stone,
+	 * so observers should copy the values they want to keep.
+	 */
+	public static class State {
+		public boolean relayOn;
+		public int powerUsage;
+		public boolean hasPowerUsage;
+
+		/**
+		 * Decode a state notification: the relay state as one byte, optionally followed by
+		 * the power usage as a 32 bit little endian value.
+		 */
+		void decode(byte[] payload) {
+			relayOn = payload.length > 0 && payload[0] != 0;
+			hasPowerUsage = payload.length >= 5;
+			if (hasPowerUsage) {
+				powerUsage = (payload[1] & 0xFF) | (payload[2] & 0xFF) << 8 |
+						(payload[3] & 0xFF) << 16 | (payload[4] & 0xFF) << 24;
+			}
+		}
+	}
+
+	public interface Observer {
+		void onStateChanged(String address, State state);
+	}
+
+	private class Entry implements Runnable {
+		final String address;
+		final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<>();
+		final State state = new State();
+
+		// accessed from the handler thread and from the BLE callbacks
+		volatile boolean polling = false;
+		volatile boolean reading = false;
+		// true while observers still have to be informed about the latest state
+		boolean pending = false;
+
+		Entry(String address) {
+			this.address = address;
+		}
+
+		// poll the state, used when notifications aren't available
+		@Override
+		public void run() {
+			if (!polling) {
+				return;
+			}
+			if (!reading) {
+				reading = true;
+				_ble.readRelay(address, new IBooleanCallback() {
+					@Override
+					public void onSuccess(boolean relayOn) {
+						synchronized (state) {
+							state.relayOn = relayOn;
+							state.hasPowerUsage = false;
+						}
+						reading = false;
+						dispatch(Entry.this);
+					}
+
+					@Override
+					public void onError(int error) {
+						Log.e(TAG, "failed to poll " + address + ": " + error);
+						reading = false;
+					}
+				});
+			}
+			_handler.postDelayed(this, POLL_INTERVAL);
+		}
+	}
+
+	private final BleExt _ble;
+	private final NotificationSource _source;
+	private final Handler _handler;
+
+	private final HashMap<String, Entry> _entries = new HashMap<>();
+
+	/**
+	 * @param ble used to poll the state if notifications aren't available
+	 * @param source delivers the notifications, or null if the connection layer doesn't
+	 *               support notifications, in which case the state is always polled
+	 * @param handler handler of the thread on which the observers are called
+	 */
+	public StateSubscriptions(BleExt ble, NotificationSource source, Handler handler) {
+		_ble = ble;
+		_source = source;
+		_handler = handler;
+
+		if (_source != null) {
+			_source.setListener(new NotificationSource.Listener() {
+				@Override
+				public void onNotification(String address, byte[] payload) {
+					Entry entry;
+					synchronized (_entries) {
+						entry = _entries.get(address);
+					}
+					if (entry == null) {
+						return;
+					}
+					synchronized (entry.state) {
+						entry.state.decode(payload);
+					}
+					dispatch(entry);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Observe the state of a stone. The observer is called with every state update until it
+	 * unsubscribes.
+	 */
+	public Stream.Subscription subscribe(final String address, final Observer observer) {
+		final Entry entry;
+		boolean first;
+		synchronized (_entries) {
+			Entry existing = _entries.get(address);
+			first = existing == null;
+			entry = first ? new Entry(address) : existing;
+			if (first) {
+				_entries.put(address, entry);
+			}
+			entry.observers.add(observer);
+		}
+		if (first) {
+			start(entry);
+		}
+
+		return new Stream.Subscription() {
+			@Override
+			public void unsubscribe() {
+				boolean last;
+				synchronized (_entries) {
+					last = entry.observers.remove(observer) && entry.observers.isEmpty();
+					if (last) {
+						_entries.remove(address);
+					}
+				}
+				if (last) {
+					stop(entry);
+				}
+			}
+		};
+	}
+
+	private void start(final Entry entry) {
+		if (_source == null) {
+			startPolling(entry);
+			return;
+		}
+		_source.enableNotifications(entry.address, new IStatusCallback() {
+			@Override
+			public void onSuccess() {
+				Log.d(TAG, "notifications enabled for " + entry.address);
+			}
+
+			@Override
+			public void onError(int error) {
+				Log.w(TAG, "no notifications for " + entry.address + " (" + error + "), polling instead");
+				startPolling(entry);
+			}
+		});
+	}
+
+	private void startPolling(final Entry entry) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				entry.polling = true;
+				entry.run();
+			}
+		});
+	}
+
+	private void stop(final Entry entry) {
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				entry.polling = false;
+				_handler.removeCallbacks(entry);
+			}
+		});
+		if (_source != null) {
+			_source.disableNotifications(entry.address, new IStatusCallback() {
+				@Override
+				public void onSuccess() {
+				}
+
+				@Override
+				public void onError(int error) {
+					Log.e(TAG, "failed to disable notifications for " + entry.address + ": " + error);
+				}
+			});
+		}
+	}
+
+	private void dispatch(final Entry entry) {
+		synchronized (entry.state) {
+			if (entry.pending) {
+				// the observers will see this state with the update which is already scheduled
+				return;
+			}
+			entry.pending = true;
+		}
+		_handler.post(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (entry.state) {
+					entry.pending = false;
+				}
+				for (Observer observer : entry.observers) {
+					observer.onStateChanged(entry.address, entry.state);
+				}
+			}
+		});
+	}
+
+}
@@ -0,0 +1,299 @@
+package nl.dobots.bluenetexample;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A minimal push stream with operators, used to consume scan results without hand coded
+ * throttles. Streams are lazy: a source is only connected (e.g. registered as a listener at
+ * the BleScanService) while at least one subscriber is subscribed, and operators only
+ * subscribe to their upstream while they have subscribers themselves. Work for which nobody
+ * subscribed is therefore never done.
+ *
+ * Backpressure is handled by conflation: {@link #sample(long, Handler)} only keeps the latest
+ * item and hands it to the subscribers at most once per interval, so a slow consumer (e.g.
+ * the UI thread) never builds up a queue of stale items.
+ *
+ * Created on 19-10-26
+ *
+ * @param <T> type of the items in the stream
+ */
+public abstract class Stream<T> {
+
+	public interface Subscriber<T> {
+		void onNext(T item);
+	}
+
+	public interface Function<T, R> {
+		R apply(T item);
+	}
+
+	public interface Subscription {
+		void unsubscribe();
+	}
+
+	private final CopyOnWriteArrayList<Subscriber<? super T>> _subscribers = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Called when the first subscriber subscribes. Connect to the source here.
+	 */
+	protected abstract void onActive();
+
+	/**
+	 * Called when the last subscriber unsubscribes. Disconnect from the source here.
+	 */
+	protected abstract void onInactive();
+
+	public Subscription subscribe(final Subscriber<? super T> subscriber) {
+		boolean first;
+		synchronized (_subscribers) {
+			first = _subscribers.isEmpty();
+			_subscribers.add(subscriber);
+		}
+		if (first) {
+			onActive();
+		}
+		return new Subscription() {
+			@Override
+			public void unsubscribe() {
+				boolean last;
+				synchronized (_subscribers) {
+					last = _subscribers.remove(subscriber) && _subscribers.isEmpty();
+				}
+				if (last) {
+					onInactive();
+				}
+			}
+		};
+	}
+
+	public boolean hasSubscribers() {
+		return !_subscribers.isEmpty();
+	}
+
+	protected void emit(T item) {
+		for (Subscriber<? super T> subscriber : _subscribers) {
+			subscriber.onNext(item);
+		}
+	}
+
+	/**
+	 * Base for operators, which subscribe to their upstream only while they are active.
+	 */
+	private static abstract class Operator<T, R> extends Stream<R> implements Subscriber<T> {
+
+		private final Stream<T> _upstream;
+		private Subscription _subscription;
+
+		Operator(Stream<T> upstream) {
+			_upstream = upstream;
+		}
+
+		@Override
+		protected void onActive() {
+			_subscription = _upstream.subscribe(this);
+		}
+
+		@Override
+		protected void onInactive() {
+			_subscription.unsubscribe();
+			_subscription = null;
+		}
+
+	}
+
+	/**
+	 * Transform every item.
+	 */
+	public <R> Stream<R> map(final Function<? super T, ? extends R> function) {
+		return new Operator<T, R>(this) {
+			@Override
+			public void onNext(T item) {
+				emit(function.apply(item));
+			}
+		};
+	}
+
+	/**
+	 * Only pass the items for which the predicate returns true.
+	 */
+	public Stream<T> filter(final Function<? super T, Boolean> predicate) {
+		return new Operator<T, T>(this) {
+			@Override
+			public void onNext(T item) {
+				if (predicate.apply(item)) {
+					emit(item);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Per key, only pass an item if its signature differs from the signature of the last item
+	 * passed for that key. E.g. use the address as key and the rssi as signature to only get
+	 * a device when its rssi changed.
+	 */
+	public Stream<T> distinctUntilChanged(final Function<? super T, ?> key, final Function<? super T, ?> signature) {
+		return new Operator<T, T>(this) {
+			private final HashMap<Object, Object> _last = new HashMap<>();
+
+			@Override
+			public void onNext(T item) {
+				Object itemKey = key.apply(item);
+				Object itemSignature = signature.apply(item);
+				Object last;
+				synchronized (_last) {
+					last = _last.put(itemKey, itemSignature);
+				}
+				if (last == null || !last.equals(itemSignature)) {
+					emit(item);
+				}
+			}
+
+			@Override
+			protected void onInactive() {
+				super.onInactive();
+				synchronized (_last) {
+					_last.clear();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Collect the items into lists of the given size.
+	 */
+	public Stream<List<T>> window(final int count) {
+		return new Operator<T, List<T>>(this) {
+			private ArrayList<T> _window = new ArrayList<>(count);
+
+			@Override
+			public void onNext(T item) {
+				List<T> full = null;
+				synchronized (this) {
+					_window.add(item);
+					if (_window.size() == count) {
+						full = _window;
+						_window = new ArrayList<>(count);
+					}
+				}
+				if (full != null) {
+					emit(full);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Collect the items into a list, which is emitted whenever the boundary stream emits, e.g.
+	 * at the end of every scan interval. Empty lists are not emitted.
+	 */
+	public Stream<List<T>> bufferUntil(final Stream<?> boundary) {
+		return new Operator<T, List<T>>(this) {
+			private final Object _lock = new Object();
+			private ArrayList<T> _buffer = new ArrayList<>();
+			private Subscription _boundarySubscription;
+
+			@Override
+			public void onNext(T item) {
+				synchronized (_lock) {
+					_buffer.add(item);
+				}
+			}
+
+			@Override
+			protected void onActive() {
+				super.onActive();
+				_boundarySubscription = boundary.subscribe(new Subscriber<Object>() {
+					@Override
+					public void onNext(Object item) {
+						List<T> batch;
+						synchronized (_lock) {
+							if (_buffer.isEmpty()) {
+								return;
+							}
+							batch = _buffer;
+							_buffer = new ArrayList<>();
+						}
+						emit(batch);
+					}
+				});
+			}
+
+			@Override
+			protected void onInactive() {
+				super.onInactive();
+				_boundarySubscription.unsubscribe();
+				_boundarySubscription = null;
+			}
+		};
+	}
+
+	/**
+	 * Emit the items on the handler's thread, e.g. to hand the results of a background thread
+	 * to the UI thread. Items which arrive while an emission is pending replace the pending
+	 * item, so a slow handler thread only gets the latest item.
+	 */
+	public Stream<T> observeOn(Handler handler) {
+		return sample(0, handler);
+	}
+
+	/**
+	 * Emit the latest item at most once per interval on the handler's thread. Items which
+	 * arrive while an emission is pending replace the pending item, so no queue builds up.
+	 * If no items arrive, nothing is scheduled.
+	 */
+	public Stream<T> sample(final long interval, final Handler handler) {
+		return new Operator<T, T>(this) {
+			private T _latest;
+			private boolean _scheduled = false;
+			private long _lastEmit;
+
+			private final Runnable _emitter = new Runnable() {
+				@Override
+				public void run() {
+					T item;
+					synchronized (_emitter) {
+						item = _latest;
+						_latest = null;
+						_scheduled = false;
+						_lastEmit = SystemClock.elapsedRealtime();
+					}
+					if (item != null && hasSubscribers()) {
+						emit(item);
+					}
+				}
+			};
+
+			@Override
+			public void onNext(T item) {
+				long delay;
+				synchronized (_emitter) {
+					_latest = item;
+					if (_scheduled) {
+						return;
+					}
+					_scheduled = true;
+					delay = Math.max(0, _lastEmit + interval - SystemClock.elapsedRealtime());
+				}
+				handler.postDelayed(_emitter, delay);
+			}
+
+			@Override
+			protected void onInactive() {
+				super.onInactive();
+				handler.removeCallbacks(_emitter);
+				synchronized (_emitter) {
+					_latest = null;
+					_scheduled = false;
+				}
+			}
+		};
+	}
+
+}
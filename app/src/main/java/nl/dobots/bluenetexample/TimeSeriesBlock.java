@@ -0,0 +1,285 @@
+package nl.dobots.bluenetexample;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compressed block of a time series with one or more integer values per sample, encoded
+ * like the blocks of Facebook's Gorilla:
+ *
+ * 		* timestamps (in seconds) as the delta of the delta to the previous sample, which is 0,
+ * 		  and encoded in a single bit, for samples at a regular interval
+ * 		* values as the XOR with the previous value of the same channel, a single bit if the
+ * 		  value didn't change, otherwise only the bits between the leading and the trailing
+ * 		  zeros of the XOR
+ *
+ * The first timestamp is not encoded, it is stored in the header of the block, see
+ * {@link SegmentLog}. A block is written with a {@link Writer}, and read, also while it is
+ * still being written, with a {@link Reader}.
+ *
+ * Created on 19-10-26
+ */
+public class TimeSeriesBlock {
+
+	// the largest a block grows, after that it has to be sealed
+	public static final int MAX_SIZE = 1024;
+	private static final int INITIAL_SIZE = 64;
+
+	// bits of a sample in the worst case: the timestamp, and per channel the control bits,
+	// the leading zeros, the length and the value
+	private static final int MAX_TIME_BITS = 4 + 32;
+	private static final int MAX_VALUE_BITS = 2 + 5 + 5 + 32;
+
+	public static class Writer {
+		private final int _channels;
+
+		private byte[] _buffer = new byte[INITIAL_SIZE];
+		private int _bits;
+		private int _count;
+
+		private long _start;
+		private long _time;
+		private long _delta;
+		private final int[] _values;
+		private final int[] _leading;
+		private final int[] _trailing;
+
+		public Writer(int channels) {
+			_channels = channels;
+			_values = new int[channels];
+			_leading = new int[channels];
+			_trailing = new int[channels];
+		}
+
+		public int getChannels() {
+			return _channels;
+		}
+
+		public int getCount() {
+			return _count;
+		}
+
+		public long getStart() {
+			return _start;
+		}
+
+		/**
+		 * @return time of the last sample, in seconds
+		 */
+		public long getEnd() {
+			return _time;
+		}
+
+		public int getBits() {
+			return _bits;
+		}
+
+		public byte[] getBuffer() {
+			return _buffer;
+		}
+
+		/**
+		 * @return false if the block is too full to be sure the next sample fits
+		 */
+		public boolean hasRoom() {
+			return _bits + MAX_TIME_BITS + _channels * MAX_VALUE_BITS <= MAX_SIZE * 8;
+		}
+
+		/**
+		 * Append a sample. The time must not be before the time of the last sample, and the
+		 * block must have room, see {@link #hasRoom()}.
+		 * @param time time in seconds
+		 */
+		public void append(long time, int[] values) {
+			if (_count == 0) {
+				_start = time;
+				_time = time;
+				_delta = 0;
+				for (int c = 0; c < _channels; c++) {
+					write(values[c], 32);
+					_values[c] = values[c];
+					_leading[c] = 32;
+					_trailing[c] = 0;
+				}
+				_count++;
+				return;
+			}
+
+			long delta = time - _time;
+			long deltaOfDelta = delta - _delta;
+			if (deltaOfDelta == 0) {
+				write(0, 1);
+			} else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+				write(0x2, 2);
+				write(deltaOfDelta, 7);
+			} else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+				write(0x6, 3);
+				write(deltaOfDelta, 9);
+			} else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+				write(0xE, 4);
+				write(deltaOfDelta, 12);
+			} else {
+				write(0xF, 4);
+				write(deltaOfDelta, 32);
+			}
+			_time = time;
+			_delta = delta;
+
+			for (int c = 0; c < _channels; c++) {
+				int xor = values[c] ^ _values[c];
+				_values[c] = values[c];
+				if (xor == 0) {
+					write(0, 1);
+					continue;
+				}
+				int leading = Integer.numberOfLeadingZeros(xor);
+				int trailing = Integer.numberOfTrailingZeros(xor);
+				if (leading >= _leading[c] && trailing >= _trailing[c]) {
+					// the meaningful bits fit in the window of the previous value
+					write(0x2, 2);
+					write(xor >>> _trailing[c], 32 - _leading[c] - _trailing[c]);
+				} else {
+					int length = 32 - leading - trailing;
+					write(0x3, 2);
+					write(leading, 5);
+					write(length - 1, 5);
+					write(xor >>> trailing, length);
+					_leading[c] = leading;
+					_trailing[c] = trailing;
+				}
+			}
+			_count++;
+		}
+
+		/**
+		 * Start a new, empty block.
+		 */
+		public void reset() {
+			_bits = 0;
+			_count = 0;
+			Arrays.fill(_buffer, (byte) 0);
+		}
+
+		private void write(long value, int bits) {
+			int needed = (_bits + bits + 7) / 8;
+			if (needed > _buffer.length) {
+				_buffer = Arrays.copyOf(_buffer, Math.min(MAX_SIZE, Math.max(needed, _buffer.length * 2)));
+			}
+			for (int i = bits - 1; i >= 0; i--) {
+				if (((value >>> i) & 1) != 0) {
+					_buffer[_bits >>> 3] |= 0x80 >>> (_bits & 7);
+				}
+				_bits++;
+			}
+		}
+	}
+
+	/**
+	 * Reads the samples of a block, in order. The reader only keeps the state of the last
+	 * sample, so a block is streamed, not decoded as a whole.
+	 */
+	public static class Reader {
+		private final ByteBuffer _data;
+		private final int _offset;
+		private final int _channels;
+		private final int _count;
+
+		private int _bit;
+		private int _read;
+		private long _time;
+		private long _delta;
+		private final int[] _values;
+		private final int[] _leading;
+		private final int[] _trailing;
+
+		/**
+		 * @param data buffer with the encoded samples, which isn't modified
+		 * @param offset position of the first byte of the encoded samples in the buffer
+		 * @param start time of the first sample, in seconds
+		 * @param count number of samples in the block
+		 */
+		public Reader(ByteBuffer data, int offset, int channels, long start, int count) {
+			_data = data;
+			_offset = offset;
+			_channels = channels;
+			_count = count;
+			_time = start;
+			_values = new int[channels];
+			_leading = new int[channels];
+			_trailing = new int[channels];
+		}
+
+		/**
+		 * Decode the next sample.
+		 * @return false if there are no more samples
+		 */
+		public boolean next() {
+			if (_read == _count) {
+				return false;
+			}
+			if (_read == 0) {
+				for (int c = 0; c < _channels; c++) {
+					_values[c] = (int) read(32);
+				}
+				_read++;
+				return true;
+			}
+
+			long deltaOfDelta;
+			if (read(1) == 0) {
+				deltaOfDelta = 0;
+			} else if (read(1) == 0) {
+				deltaOfDelta = signed(read(7), 7);
+			} else if (read(1) == 0) {
+				deltaOfDelta = signed(read(9), 9);
+			} else if (read(1) == 0) {
+				deltaOfDelta = signed(read(12), 12);
+			} else {
+				deltaOfDelta = signed(read(32), 32);
+			}
+			_delta += deltaOfDelta;
+			_time += _delta;
+
+			for (int c = 0; c < _channels; c++) {
+				if (read(1) == 0) {
+					continue;
+				}
+				if (read(1) == 1) {
+					_leading[c] = (int) read(5);
+					int length = (int) read(5) + 1;
+					_trailing[c] = 32 - _leading[c] - length;
+				}
+				int length = 32 - _leading[c] - _trailing[c];
+				_values[c] ^= (int) read(length) << _trailing[c];
+			}
+			_read++;
+			return true;
+		}
+
+		/**
+		 * @return time of the current sample, in seconds
+		 */
+		public long getTime() {
+			return _time;
+		}
+
+		public int getValue(int channel) {
+			return _values[channel];
+		}
+
+		private long read(int bits) {
+			long value = 0;
+			for (int i = 0; i < bits; i++) {
+				int b = _data.get(_offset + (_bit >>> 3));
+				value = (value << 1) | ((b >>> (7 - (_bit & 7))) & 1);
+				_bit++;
+			}
+			return value;
+		}
+
+		private static long signed(long value, int bits) {
+			return (value << (64 - bits)) >> (64 - bits);
+		}
+	}
+
+}